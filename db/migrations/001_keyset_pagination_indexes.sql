@@ -0,0 +1,27 @@
+-- Index cho phân trang theo cursor (beforeId / afterId) thay cho LIMIT/OFFSET.
+-- Mỗi truy vấn trang là 1 range scan bắt đầu từ cursor nên trang sâu tốn như trang đầu.
+-- MySQL 8 (InnoDB): tạo online, không khoá ghi. Chạy 1 lần trên DB hiện có.
+
+-- Hội thoại DM + search: MessageDao.loadConversationPage / searchConversation
+-- mỗi chiều (sender=?, recipient=?, id < / > ?) ORDER BY id
+CREATE INDEX idx_messages_pair_id
+    ON messages (sender, recipient, id)
+    ALGORITHM=INPLACE LOCK=NONE;
+
+-- Tin offline: MessageDao.loadQueuedPage / markDeliveredUpTo
+-- (recipient=?, status='queued', id > ?) ORDER BY id
+CREATE INDEX idx_messages_recipient_status_id
+    ON messages (recipient, status, id)
+    ALGORITHM=INPLACE LOCK=NONE;
+
+-- Lịch sử nhóm: GroupMessageDao.loadPage
+-- (group_id=?, id < / > ?) ORDER BY id
+CREATE INDEX idx_group_messages_group_id
+    ON group_messages (group_id, id)
+    ALGORITHM=INPLACE LOCK=NONE;
+
+-- Lịch sử file: FileDao.listByUserAndPeerBefore / listByUserBefore
+-- join files theo message_id, cursor = message_id
+CREATE INDEX idx_files_message_id
+    ON files (message_id)
+    ALGORITHM=INPLACE LOCK=NONE;
@@ -0,0 +1,20 @@
+-- Nhật ký sửa/xoá tin cho đồng bộ delta (MessageChangeLog).
+-- Client giữ seq đã thấy cho mỗi hội thoại; mở lại hội thoại server chỉ gửi tin mới
+-- (id > afterId) + các dòng ở đây có seq > changeSeq, thay vì cả trang lịch sử.
+-- conv_key: "dm:<a>|<b>" (a < b) hoặc "group:<id>". Chưa chạy migration này thì server
+-- tự tắt delta sync và gửi nguyên trang như cũ.
+
+CREATE TABLE IF NOT EXISTS message_changes (
+    seq         BIGINT       NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    conv_key    VARCHAR(160) NOT NULL,
+    message_id  BIGINT       NOT NULL,
+    op          VARCHAR(8)   NOT NULL,          -- 'edit' | 'delete'
+    body        TEXT         NULL,              -- nội dung mới khi op = 'edit'
+    changed_at  TIMESTAMP    NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_message_changes_conv_seq (conv_key, seq)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+-- Client giữ cache trên đĩa qua nhiều lần mở app (LocalMessageStore) cùng changeSeq, nên KHÔNG dọn
+-- bản ghi theo tuổi: client mở lại sau khi tombstone bị xoá sẽ giữ mãi tin đã sửa/xoá. Muốn dọn thì
+-- phải kèm cơ chế buộc client tải lại (vd server trả "reset" khi changeSeq thấp hơn seq nhỏ nhất còn giữ).
+-- Seq theo hội thoại: xem 005_message_change_seq.sql.
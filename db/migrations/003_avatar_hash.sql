@@ -0,0 +1,7 @@
+-- Hash nội dung avatar: USER_LIST / AUTH_LOGIN chỉ gửi hash, ảnh lấy riêng qua AVATAR_GET
+-- (server.service.AvatarService). Cột sinh tự động nên mọi đường ghi avatar đều tự cập nhật hash.
+-- MySQL 8 (InnoDB): thêm cột STORED phải dựng lại bảng (khoá ghi users trong lúc chạy). Chạy 1 lần.
+-- Chưa chạy migration này: UserDAO tự chuyển sang SHA1(avatar) trong câu SELECT (đúng nhưng chậm hơn).
+
+ALTER TABLE users
+    ADD COLUMN avatar_hash CHAR(40) AS (SHA1(avatar)) STORED;
@@ -0,0 +1,8 @@
+-- Upload lưu theo nội dung: nhiều dòng files trỏ chung 1 blob uploads/blobs/ab/cd/<sha256>
+-- (server.service.UploadStore). Xoá file chỉ unlink blob khi không còn dòng nào cùng file_path,
+-- phép đếm này chạy mỗi lần xoá nên cần index. Prefix 191 ký tự đủ phân biệt (đường dẫn blob kết thúc
+-- bằng hash) và vừa giới hạn khoá của utf8mb4.
+-- Chưa chạy migration này: vẫn đúng, chỉ là mỗi lần xoá file quét cả bảng files.
+
+CREATE INDEX idx_files_file_path
+    ON files (file_path(191));
@@ -0,0 +1,26 @@
+-- Seq nhật ký sửa/xoá đánh riêng từng hội thoại (MessageChangeLog).
+-- seq AUTO_INCREMENT của 002 được cấp lúc INSERT chứ không theo thứ tự commit: 2 transaction sửa/xoá
+-- song song có thể commit ngược thứ tự seq, client đồng bộ giữa 2 lần commit lưu seq lớn rồi không
+-- bao giờ nhận tombstone seq nhỏ. Nay mỗi hội thoại có 1 dòng đếm, tăng + khoá FOR UPDATE trong cùng
+-- transaction với thay đổi → seq của 1 hội thoại commit đúng thứ tự.
+-- Chưa chạy migration này thì server tự tắt delta sync (gửi nguyên trang như cũ).
+
+CREATE TABLE IF NOT EXISTS message_change_counters (
+    conv_key    VARCHAR(160) NOT NULL PRIMARY KEY,
+    seq         BIGINT       NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;
+
+ALTER TABLE message_changes
+    ADD COLUMN conv_seq BIGINT NULL AFTER conv_key;
+
+-- dòng cũ giữ nguyên giá trị seq: changeSeq client đã lưu vẫn so sánh được
+UPDATE message_changes SET conv_seq = seq WHERE conv_seq IS NULL;
+
+ALTER TABLE message_changes
+    MODIFY conv_seq BIGINT NOT NULL,
+    ADD UNIQUE INDEX uq_message_changes_conv_seq (conv_key, conv_seq);
+
+-- dòng đếm bắt đầu từ seq lớn nhất đã cấp cho từng hội thoại
+INSERT INTO message_change_counters (conv_key, seq)
+SELECT conv_key, MAX(seq) FROM message_changes GROUP BY conv_key
+ON DUPLICATE KEY UPDATE seq = GREATEST(message_change_counters.seq, VALUES(seq));
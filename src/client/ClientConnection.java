@@ -1,12 +1,19 @@
 package client;
 
+import client.cache.AvatarStore;
 import client.controller.MidController;
 import client.signaling.CallSignalingService;
 import common.Frame;
+import common.FrameCodec;
 import common.FrameIO;
+import common.FrameScheduler;
+import common.Json;
 import common.MessageType;
 import common.User;
 import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import javafx.scene.layout.HBox;
 
 import java.io.*;
@@ -23,6 +30,19 @@ public class ClientConnection {
     private Socket socket;
     private DataInputStream binIn;
     private DataOutputStream binOut;
+    /** Số frame chờ gửi tối đa mỗi lớp ưu tiên (chunk: ~4MB). */
+    private static final int OUT_CAPACITY = 64;
+    private static final int MAX_BATCH = 64;
+    /**
+     * Hàng đợi gửi + 1 thread ghi duy nhất: tin nhắn / tín hiệu gọi không phải chờ cả file đang upload,
+     * chỉ chờ tối đa 1 chunk đang ghi dở.
+     */
+    private volatile FrameScheduler outQ;
+    private Thread writerThread;
+    private volatile IOException writeFailure;
+    /** Upload song song tối đa (server mặc định cho 8/kết nối, thừa thì báo UPLOAD_LIMIT). */
+    public static final int MAX_PARALLEL_UPLOADS = 4;
+    private final java.util.concurrent.Semaphore uploadSlots = new java.util.concurrent.Semaphore(MAX_PARALLEL_UPLOADS, true);
     private Thread readerThread;
     private CallSignalingService callService;
     private Consumer<Frame> onFrame;
@@ -43,6 +63,7 @@ public class ClientConnection {
             OutputStream rawOut = socket.getOutputStream();
             binIn = new DataInputStream(new BufferedInputStream(rawIn));
             binOut = new DataOutputStream(new BufferedOutputStream(rawOut));
+            startWriter();
             return true;
         } catch (IOException e) {
             e.printStackTrace(); // THÊM DÒNG NÀY
@@ -71,6 +92,9 @@ public class ClientConnection {
     }
 
     public void close() {
+        FrameScheduler q = outQ;
+        if (q != null) q.close(null);
+        if (writerThread != null) writerThread.interrupt();
         try { if (binIn != null) binIn.close(); } catch (Exception ignored) {}
         try { if (binOut != null) binOut.close(); } catch (Exception ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (Exception ignored) {}
@@ -88,15 +112,27 @@ public class ClientConnection {
     }
     
     // ==== USER LIST (for LeftController) ====
-    public void requestUserList(String keyword) throws IOException {
-        String body;
-        if (keyword == null || keyword.isBlank()) {
-            body = "{}";
-        } else {
-            body = "{\"q\":\"" + esc(keyword) + "\"}";
-        }
-        Frame f = new Frame(MessageType.USER_LIST_REQ, "", "", body);
-        sendFrame(f);
+    /** Xin 1 trang danh bạ; {@code after} = username cuối trang trước (null = trang đầu). */
+    public void requestUserList(long reqId, String keyword, String after, int limit) throws IOException {
+        Json.Writer w = Json.object()
+                .field("reqId", reqId)
+                .field("limit", limit);
+        if (keyword != null && !keyword.isBlank()) w.field("q", keyword);
+        if (after != null) w.field("after", after);
+        sendFrame(new Frame(MessageType.USER_LIST_REQ, "", "", w.endObject().toString()));
+    }
+
+    /** Huỷ yêu cầu danh bạ đang chạy trên server (gõ tìm tiếp). */
+    public void cancelUserList() throws IOException {
+        sendFrame(new Frame(MessageType.USER_LIST_REQ, "", "", "{\"cancel\":true}"));
+    }
+
+    /** Thêm/bớt user cần nhận delta PRESENCE (chỉ những user đang hiển thị). */
+    public void subscribePresence(Collection<String> add, Collection<String> remove) throws IOException {
+        Json.Writer w = Json.object();
+        if (add != null && !add.isEmpty()) w.strings("add", new ArrayList<>(add));
+        if (remove != null && !remove.isEmpty()) w.strings("remove", new ArrayList<>(remove));
+        sendFrame(new Frame(MessageType.PRESENCE_SUB, "", "", w.endObject().toString()));
     }
 
     public void startListener(Consumer<Frame> onFrame, Consumer<Exception> onError) {
@@ -113,14 +149,16 @@ public class ClientConnection {
                         continue;
                     }
 
-                    System.out.println("[NET] RECV type=" + f.type + " transferId=" + f.transferId + " body=" + f.body);
+                    if (FrameIO.DEBUG) {
+                        System.out.println("[NET] RECV type=" + f.type + " transferId=" + f.transferId + " body=" + f.body);
+                    }
 
                     if (f.type == MessageType.ACK && f.transferId != null && !f.transferId.isEmpty()) {
-                        String status = jsonGet(f.body, "status");
-                        if ("FILE_SAVED".equals(status)) {
+                        Json.Obj ack = Json.parse(f.body);
+                        if ("FILE_SAVED".equals(ack.str("status"))) {
                             final String fid = f.transferId;
-                            final long messageId = parseLongSafe(jsonGet(f.body, "messageId"), 0L);
-                            final long fileId  = parseLongSafe(jsonGet(f.body, "fileId"), 0L);
+                            final long messageId = ack.lng("messageId", 0L);
+                            final long fileId  = ack.lng("fileId", 0L);
 
                             if (midController != null) {
                                 javafx.application.Platform.runLater(() -> {
@@ -149,6 +187,18 @@ public class ClientConnection {
                     if (this.onFrame != null) {
                         this.onFrame.accept(f);
                     }
+
+                    // Hết 1 trang tin offline → ack sau khi UI đã xử lý các DM của trang (runLater giữ thứ tự)
+                    if (f.type == MessageType.OFFLINE_PAGE) {
+                        final String lastId = Json.get(f.body, "last_id");
+                        javafx.application.Platform.runLater(() -> {
+                            try {
+                                sendFrame(new Frame(MessageType.OFFLINE_ACK, "", "", lastId));
+                            } catch (IOException ex) {
+                                System.err.println("[OFFLINE] ack failed: " + ex.getMessage());
+                            }
+                        });
+                    }
                 }
 
                 if (this.onError != null) this.onError.accept(new EOFException("Server closed connection"));
@@ -168,27 +218,24 @@ public class ClientConnection {
      * @return true nếu đăng ký OK, false nếu tên trùng / lỗi.
      */
     public boolean authRegister(String username, String password, byte[] avatarBytes, String avatarMime) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{\"username\":\"").append(esc(username)).append("\",")
-          .append("\"password\":\"").append(esc(password)).append("\"");
+        Json.Writer w = Json.object()
+                .field("username", nz(username))
+                .field("password", nz(password));
 
         if (avatarBytes != null && avatarBytes.length > 0 &&
                 avatarMime != null && !avatarMime.isBlank()) {
-            String b64 = Base64.getEncoder().encodeToString(avatarBytes);	
-            sb.append(",\"avatarMime\":\"").append(esc(avatarMime)).append("\",")
-              .append("\"avatarBase64\":\"").append(b64).append("\"");
+            w.field("avatarMime", avatarMime)
+             .field("avatarBase64", Base64.getEncoder().encodeToString(avatarBytes));
         }
-        sb.append("}");
 
-        Frame req = new Frame(MessageType.AUTH_REGISTER, username, "", sb.toString());
+        Frame req = new Frame(MessageType.AUTH_REGISTER, username, "", w.endObject().toString());
         sendFrame(req);
-        binOut.flush();
 
         Frame resp = FrameIO.read(binIn);
         if (resp == null) throw new IOException("Server closed connection during register");
 
         if (resp.type == MessageType.ACK) {
-            String status = jsonGet(resp.body, "status");
+            String status = Json.get(resp.body, "status");
             // nếu server gửi {"status":"OK"} hoặc body rỗng thì coi như OK
             return status == null || "OK".equals(status);
         }
@@ -204,10 +251,12 @@ public class ClientConnection {
      * @return User nếu đăng nhập OK, null nếu sai tài khoản/mật khẩu.
      */
     public User authLogin(String username, String password) throws IOException {
-        String body = "{\"username\":\"" + esc(username) + "\",\"password\":\"" + esc(password) + "\"}";
+        String body = Json.object()
+                .field("username", nz(username))
+                .field("password", nz(password))
+                .endObject().toString();
         Frame req = new Frame(MessageType.AUTH_LOGIN, username, "", body);
         sendFrame(req);
-        binOut.flush();
 
         Frame resp = FrameIO.read(binIn);
         if (resp == null) throw new IOException("Server closed connection during login");
@@ -223,49 +272,99 @@ public class ClientConnection {
 
         System.out.println("[AUTH_LOGIN] resp.body = " + resp.body); // log debug
 
-        String status = jsonGet(resp.body, "status");
+        Json.Obj obj = Json.parse(resp.body);
+        String status = obj.str("status");
         if (!"OK".equals(status)) {
             System.err.println("[AUTH_LOGIN] status != OK: " + resp.body);
             return null;
         }
 
-        String uname     = jsonGet(resp.body, "username");
+        String uname     = obj.str("username");
         String finalName = (uname != null && !uname.isBlank()) ? uname : username;
 
-        String idStr = jsonGet(resp.body, "id");
-        int id = 0;
-        if (idStr != null && !idStr.isBlank()) {
-            try { id = (int) Long.parseLong(idStr); } catch (NumberFormatException ignore) {}
-        }
-
-        // 👉 LẤY avatarBase64
-        String avatarB64 = jsonGet(resp.body, "avatarBase64");
-        byte[] avatarBytes = null;
-        if (avatarB64 != null && !avatarB64.isBlank()) {
-            try {
-                avatarBytes = Base64.getDecoder().decode(avatarB64);
-                System.out.println("[AUTH_LOGIN] avatarBytes.length = " + avatarBytes.length);
-            } catch (IllegalArgumentException ex) {
-                System.err.println("[AUTH_LOGIN] decode avatarBase64 failed: " + ex.getMessage());
-            }
-        }
+        int id = (int) obj.lng("id", 0);
 
         User u = new User();
         u.setId(id);
         u.setUsername(finalName);
-        if (avatarBytes != null && avatarBytes.length > 0) {
-            u.setAvatar(avatarBytes);        // 👈 QUAN TRỌNG
+
+        // avatar: server chỉ gửi hash; cache có sẵn thì khỏi tải, chưa có thì xin 1 lần
+        String avatarHash = obj.str("avatarHash");
+        if (avatarHash != null && !avatarHash.isBlank()) {
+            u.setAvatarHash(avatarHash);
+            byte[] avatarBytes = AvatarStore.get().cached(avatarHash);
+            if (avatarBytes == null) avatarBytes = fetchAvatarDuringLogin(id, avatarHash);
+            if (avatarBytes != null && avatarBytes.length > 0) {
+                u.setAvatar(avatarBytes);
+            }
         }
         return u;
     }
 
+    /** Vòng đọc frame chưa chạy lúc đăng nhập nên đọc thẳng AVATAR_DATA trả lời. */
+    private byte[] fetchAvatarDuringLogin(int userId, String hash) throws IOException {
+        sendFrame(AvatarStore.avatarGet(userId, hash));
+        Frame resp = FrameIO.read(binIn);
+        if (resp == null) throw new IOException("Server closed connection during avatar fetch");
+        if (resp.type != MessageType.AVATAR_DATA) {
+            System.err.println("[AUTH_LOGIN] avatar fetch: unexpected " + resp.type + " " + resp.body);
+            return null;
+        }
+        return AvatarStore.get().onAvatarData(resp);
+    }
+
     public void loginFrame(String username) throws IOException {
         sendFrame(new Frame(MessageType.LOGIN, username, "", ""));
     }
 
-    public synchronized void sendFrame(Frame f) throws IOException {
-        System.out.println("[DEBUG] sendFrame: type=" + f.type + ", transferId=" + f.transferId);
-        FrameIO.write(binOut, f);
+    /**
+     * Xếp frame vào hàng gửi (theo lớp ưu tiên); chỉ chặn khi lớp của nó đầy.
+     * Frame được ghi sau khi hàm trả về → không sửa / dùng lại payload của {@code f}.
+     */
+    public void sendFrame(Frame f) throws IOException {
+        if (FrameIO.DEBUG) System.out.println("[DEBUG] sendFrame: type=" + f.type + ", transferId=" + f.transferId);
+        FrameScheduler q = outQ;
+        if (q == null) throw new IOException("Not connected");
+        if (writeFailure != null) throw new IOException("Connection lost", writeFailure);
+        try {
+            if (!q.put(f)) throw new IOException("Connection closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing " + f.type);
+        }
+    }
+
+    private void startWriter() {
+        FrameScheduler q = new FrameScheduler(OUT_CAPACITY, 0);
+        DataOutputStream out = binOut;
+        writeFailure = null;
+        outQ = q;
+        writerThread = new Thread(() -> {
+            FrameCodec codec = new FrameCodec();
+            List<Frame> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (true) {
+                    Frame first = q.take();
+                    if (first == null) break;
+                    batch.add(first);
+                    // gom các frame nhỏ đang chờ; tối đa 1 chunk mỗi lần flush
+                    Frame f;
+                    while (batch.size() < MAX_BATCH && (f = q.poll(false)) != null) batch.add(f);
+                    for (Frame b : batch) codec.write(out, b);
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (InterruptedException ignored) {
+            } catch (IOException e) {
+                writeFailure = e;
+                System.err.println("[CLIENT] writer failed: " + e.getMessage());
+                q.close(null);
+                // đóng socket để thread đọc báo lỗi qua onError như khi rớt mạng
+                try { socket.close(); } catch (IOException ignored) {}
+            }
+        }, "client-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
     public void register(String username) throws IOException {
@@ -277,7 +376,12 @@ public class ClientConnection {
     }
 
     public void history(String from, String peer, int limit) throws IOException {
-        Frame f = new Frame(MessageType.HISTORY, from, peer, String.valueOf(limit));
+        history(from, peer, limit, 0);
+    }
+
+    /** Trang tin cũ hơn {@code beforeId} (id nhỏ nhất đang hiển thị; 0 = mới nhất). */
+    public void history(String from, String peer, int limit, long beforeId) throws IOException {
+        Frame f = new Frame(MessageType.HISTORY, from, peer, historyRequest(limit, beforeId));
         sendFrame(f);
     }
 
@@ -305,9 +409,10 @@ public class ClientConnection {
     }
 
     
-    public void search(String from, String peer, String query, int limit, int offset) throws IOException {
+    /** {@code afterId}: id của kết quả cuối trang trước (0 = từ đầu). */
+    public void search(String from, String peer, String query, int limit, long afterId) throws IOException {
         String q = (query == null) ? "" : query;
-        String body = "{\"q\":\"" + q.replace("\\","\\\\").replace("\"","\\\"") + "\",\"offset\":" + Math.max(0, offset) + "}";
+        String body = Json.object().field("q", q).field("afterId", Math.max(0, afterId)).endObject().toString();
         Frame f = new Frame(common.MessageType.SEARCH, from, peer, body);
         f.seq = limit;
         sendFrame(f);
@@ -319,27 +424,52 @@ public class ClientConnection {
             System.out.println("[DOWNLOAD] skip duplicate request fileId=" + fileId);
             return;
         }
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"fileId\":" + fileId + "}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", Json.object().field("fileId", fileId).endObject().toString());
         sendFrame(req);
     }
     
+    /**
+     * Tải 1 khoảng của file: tiếp tục bản tải dở ({@code offset} = số byte đã có) hoặc tua media.
+     * {@code length <= 0} = tới hết file. FILE_META trả về kèm offset/length thực tế.
+     */
+    public void downloadFileRange(long fileId, long offset, long length) throws IOException {
+        Json.Writer w = Json.object().field("fileId", fileId).field("offset", Math.max(0, offset));
+        if (length > 0) w.field("length", length);
+        sendFrame(new Frame(MessageType.DOWNLOAD_FILE, "", "", w.endObject().toString()));
+    }
+
     public void downloadFileByMsgId(long msgId) throws IOException {
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"messageId\":" + msgId + "}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", Json.object().field("messageId", msgId).endObject().toString());
         sendFrame(req);
     }
 
     public void downloadFileLegacy(String uuidOrLegacyId) throws IOException {
-        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", "{\"id\":\"" + uuidOrLegacyId + "\"}");
+        Frame req = new Frame(MessageType.DOWNLOAD_FILE, "", "", Json.object().field("id", uuidOrLegacyId).endObject().toString());
         sendFrame(req);
     }
 
-    public void sendFileHistoryRequest(String fromUser, String peerUsername, int limit, int offset) throws IOException {
-        String body = String.format("{\"limit\":%d, \"offset\":%d}", limit, offset);
+    /** {@code beforeMessageId}: message_id của file cuối trang trước (0 = mới nhất). */
+    public void sendFileHistoryRequest(String fromUser, String peerUsername, int limit, long beforeMessageId) throws IOException {
+        String body = Json.object().field("limit", limit).field("beforeId", beforeMessageId).endObject().toString();
         Frame req = new Frame(MessageType.FILE_HISTORY, fromUser, peerUsername, body);
         sendFrame(req);
     }
 
-    public synchronized Frame sendFileWithAck(String from, String to, File file, String mimeOrNull, String fileId, long timeoutMs)
+    /**
+     * Gửi file, chờ ACK FILE_SAVED. Gọi được song song từ nhiều thread (mỗi file 1 transferId):
+     * chunk của các file xen kẽ trên cùng kết nối, tối đa {@link #MAX_PARALLEL_UPLOADS} file cùng lúc.
+     */
+    public Frame sendFileWithAck(String from, String to, File file, String mimeOrNull, String fileId, long timeoutMs)
+            throws Exception {
+        uploadSlots.acquire();
+        try {
+            return sendFileWithAck0(from, to, file, mimeOrNull, fileId, timeoutMs);
+        } finally {
+            uploadSlots.release();
+        }
+    }
+
+    private Frame sendFileWithAck0(String from, String to, File file, String mimeOrNull, String fileId, long timeoutMs)
             throws Exception {
         int retries = 3;
         Exception lastEx = null;
@@ -379,43 +509,52 @@ public class ClientConnection {
                     });
                 }
 
-                CompletableFuture<Frame> fut = new CompletableFuture<>();
-                pendingAcks.put(fFileId, fut);
-
              // ★ CHANGED: TẠO META THỦ CÔNG + prepend [REPLY:...] nếu có
                 Long replyTo = currentReplyToIdFromUI();
-                String metaJson = "{"
-                        + "\"to\":\""   + esc(fTo)   + "\","
-                        + "\"name\":\"" + esc(fName) + "\","
-                        + "\"mime\":\"" + esc(fMime) + "\","
-                        + "\"fileId\":\"" + esc(fFileId) + "\","
-                        + "\"size\":" + fSize
-                        + "}";
-
+                String sha = sha256Hex(file); // server đã có nội dung này → không cần gửi byte
                 // KHÔNG có ký tự nào trước “[REPLY:...]”
-                String wireBody = (replyTo != null && replyTo > 0)
-                        ? "[REPLY:" + replyTo + "]" + metaJson
-                        : metaJson;
+                String replyPrefix = (replyTo != null && replyTo > 0) ? "[REPLY:" + replyTo + "]" : "";
 
                 // Thay vì Frame.fileMeta(...), tạo frame trực tiếp để giữ nguyên body
-                Frame meta = new Frame(common.MessageType.FILE_META, fFrom, fTo, wireBody);
+                Frame meta = new Frame(common.MessageType.FILE_META, fFrom, fTo,
+                        replyPrefix + fileMetaJson(fTo, fName, fMime, fFileId, fSize, sha, null));
                 meta.transferId = fFileId;
-                sendFrame(meta);
-
-                try (InputStream fis = new BufferedInputStream(new FileInputStream(file))) {
-                    byte[] buf = new byte[Frame.CHUNK_SIZE];
-                    int n, seq = 0;
-                    long rem = fSize;
-                    while ((n = fis.read(buf)) != -1) {
-                        rem -= n;
-                        boolean last = (rem == 0);
-                        byte[] slice = (n == buf.length) ? buf : java.util.Arrays.copyOf(buf, n);
-                        Frame ch = Frame.fileChunk(fFrom, fTo, fFileId, seq++, last, slice);
-                        sendFrame(ch);
-                    }
+                // lần thử lại cùng fileId: server báo phần đã có, chỉ gửi phần còn thiếu;
+                // server có sẵn cùng nội dung thì đòi bằng chứng (UPLOAD_PROOF) rồi trả luôn FILE_SAVED
+                Frame first = negotiateUpload(meta, fFileId, timeoutMs);
+                if (isProofRequest(first)) {
+                    Frame proved = new Frame(common.MessageType.FILE_META, fFrom, fTo,
+                            replyPrefix + fileMetaJson(fTo, fName, fMime, fFileId, fSize, sha, proofOf(file, first)));
+                    proved.transferId = fFileId;
+                    first = negotiateUpload(proved, fFileId, timeoutMs);
                 }
+                Frame ack;
+                if (isFileSaved(first)) {
+                    System.out.println("[UPLOAD] " + fFileId + " already on server, no bytes sent");
+                    ack = first;
+                } else {
+                    long offset = uploadOffset(first, fFileId);
+
+                    CompletableFuture<Frame> fut = new CompletableFuture<>();
+                    pendingAcks.put(fFileId, fut);
+                    try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(file.toPath())) {
+                        int seq = (int) (offset / Frame.CHUNK_SIZE);
+                        long pos = (long) seq * Frame.CHUNK_SIZE;
+                        do {
+                            int len = (int) Math.min(Frame.CHUNK_SIZE, fSize - pos);
+                            // mỗi chunk 1 mảng riêng: sendFrame chỉ xếp hàng, ghi sau
+                            byte[] buf = new byte[len];
+                            java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(buf);
+                            while (bb.hasRemaining()) {
+                                if (in.read(bb, pos + bb.position()) < 0) throw new IOException("File changed while sending");
+                            }
+                            pos += len;
+                            sendFrame(Frame.fileChunk(fFrom, fTo, fFileId, seq++, pos >= fSize, buf));
+                        } while (pos < fSize);
+                    }
 
-                Frame ack = fut.get(timeoutMs, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    ack = fut.get(timeoutMs, java.util.concurrent.TimeUnit.MILLISECONDS);
+                }
 
                 if (midController != null) {
                     javafx.application.Platform.runLater(() -> {
@@ -446,6 +585,10 @@ public class ClientConnection {
                 lastEx = te;
                 System.err.println("[RETRY] Attempt " + (attempt + 1) + " timed out");
                 Thread.sleep(1000);
+            } catch (java.util.concurrent.ExecutionException ee) { // server báo lỗi (FILE_FAIL) → hỏi lại offset
+                lastEx = ee;
+                System.err.println("[RETRY] Attempt " + (attempt + 1) + " rejected: " + ee.getCause().getMessage());
+                Thread.sleep(1000);
             } catch (IOException ioex) {
                 lastEx = ioex;
                 System.err.println("[RETRY] Attempt " + (attempt + 1) + " failed: " + ioex.getMessage());
@@ -456,7 +599,7 @@ public class ClientConnection {
         throw lastEx != null ? lastEx : new IOException("Failed to send file after " + retries + " attempts");
     }
 
-    public synchronized void sendAudio(String from, String to, byte[] audioBytes, String codec, int sampleRate, int durationSec)
+    public void sendAudio(String from, String to, byte[] audioBytes, String codec, int sampleRate, int durationSec)
             throws IOException {
         if (audioBytes == null || audioBytes.length == 0) throw new IOException("Empty audio");
         if (durationSec > Frame.MAX_AUDIO_SECONDS) throw new IOException("Audio too long (>30s)");
@@ -465,14 +608,7 @@ public class ClientConnection {
 
      // ★ CHANGED: META thủ công + prepend [REPLY:...]
         Long replyTo = currentReplyToIdFromUI();
-        String metaJson = "{"
-                + "\"to\":\"" + esc(to) + "\","
-                + "\"codec\":\"" + esc(codec) + "\","
-                + "\"sampleRate\":" + sampleRate + ","
-                + "\"duration\":" + durationSec + ","
-                + "\"fileId\":\"" + esc(audioId) + "\","
-                + "\"size\":" + audioBytes.length
-                + "}";
+        String metaJson = audioMetaJson(to, codec, sampleRate, durationSec, audioId, audioBytes.length, false);
 
         String wireBody = (replyTo != null && replyTo > 0)
                 ? "[REPLY:" + replyTo + "]" + metaJson
@@ -493,29 +629,29 @@ public class ClientConnection {
         }
     }
 
-    public synchronized Frame sendAudioWithAck(String from, String to, byte[] audioBytes, String codec, int sampleRate, int durationSec, long timeoutMs)
+    public Frame sendAudioWithAck(String from, String to, byte[] audioBytes, String codec, int sampleRate, int durationSec, long timeoutMs)
+            throws Exception {
+        uploadSlots.acquire();
+        try {
+            return sendAudioWithAck0(from, to, audioBytes, codec, sampleRate, durationSec, timeoutMs);
+        } finally {
+            uploadSlots.release();
+        }
+    }
+
+    private Frame sendAudioWithAck0(String from, String to, byte[] audioBytes, String codec, int sampleRate, int durationSec, long timeoutMs)
             throws Exception {
         int retries = 3;
         Exception lastEx = null;
-        String audioId = null;
+        // giữ nguyên id qua các lần thử → server tiếp tục từ phần đã nhận
+        String audioId = java.util.UUID.randomUUID().toString();
         for (int i = 0; i < retries; i++) {
             try {
                 if (audioBytes == null || audioBytes.length == 0) throw new IOException("Empty audio");
                 if (durationSec > Frame.MAX_AUDIO_SECONDS) throw new IOException("Audio too long (>30s)");
 
-                audioId = java.util.UUID.randomUUID().toString();
-                CompletableFuture<Frame> fut = new CompletableFuture<>();
-                pendingAcks.put(audioId, fut);
-
                 Long replyTo = currentReplyToIdFromUI();
-                String metaJson = "{"
-                        + "\"to\":\"" + esc(to) + "\","
-                        + "\"codec\":\"" + esc(codec) + "\","
-                        + "\"sampleRate\":" + sampleRate + ","
-                        + "\"duration\":" + durationSec + ","
-                        + "\"fileId\":\"" + esc(audioId) + "\","
-                        + "\"size\":" + audioBytes.length
-                        + "}";
+                String metaJson = audioMetaJson(to, codec, sampleRate, durationSec, audioId, audioBytes.length, true);
 
                 String wireBody = (replyTo != null && replyTo > 0)
                         ? "[REPLY:" + replyTo + "]" + metaJson
@@ -523,14 +659,18 @@ public class ClientConnection {
 
                 Frame meta = new Frame(common.MessageType.AUDIO_META, from, to, wireBody);
                 meta.transferId = audioId;
-                sendFrame(meta);
+                long offset = uploadOffset(negotiateUpload(meta, audioId, timeoutMs), audioId);
 
-                int off = 0, seq = 0;
+                CompletableFuture<Frame> fut = new CompletableFuture<>();
+                pendingAcks.put(audioId, fut);
+                int seq = (int) (offset / Frame.CHUNK_SIZE);
+                int off = seq * Frame.CHUNK_SIZE;
                 while (off < audioBytes.length) {
                     int len = Math.min(Frame.CHUNK_SIZE, audioBytes.length - off);
                     boolean last = (off + len) >= audioBytes.length;
-                    byte[] slice = java.util.Arrays.copyOfRange(audioBytes, off, off + len);
-                    Frame ch = Frame.audioChunk(from, to, audioId, seq++, last, slice);
+                    Frame ch = Frame.audioChunk(from, to, audioId, seq++, last, audioBytes);
+                    ch.binOffset = off; // slice của mảng gốc, không copy
+                    ch.binLen = len;
                     sendFrame(ch);
                     off += len;
                 }
@@ -544,6 +684,11 @@ public class ClientConnection {
                 System.err.println("[RETRY] Attempt " + (i + 1) + " failed: " + e.getMessage());
                 Thread.sleep(1000);
                 continue;
+            } catch (java.util.concurrent.ExecutionException ee) { // server báo lỗi → hỏi lại offset
+                lastEx = ee;
+                System.err.println("[RETRY] Attempt " + (i + 1) + " rejected: " + ee.getCause().getMessage());
+                Thread.sleep(1000);
+                continue;
             } catch (TimeoutException te) {
                 pendingAcks.remove(audioId);
                 if (midController != null) {
@@ -556,10 +701,41 @@ public class ClientConnection {
         throw lastEx != null ? lastEx : new IOException("Failed to send audio after " + retries + " attempts");
     }
     public void groupHistory(String username, String groupId, int limit) throws IOException {
-        Frame f = new Frame(MessageType.GROUP_HISTORY, username, "group:" + groupId, String.valueOf(limit));
+        groupHistory(username, groupId, limit, 0);
+    }
+
+    public void groupHistory(String username, String groupId, int limit, long beforeId) throws IOException {
+        Frame f = new Frame(MessageType.GROUP_HISTORY, username, "group:" + groupId, historyRequest(limit, beforeId));
         sendFrame(f);
     }
 
+    /**
+     * Đồng bộ delta: chỉ xin tin có id > {@code afterId} cùng tombstone sửa/xoá sau {@code changeSeq}.
+     * Server trả reset=true nếu cache lệch quá xa.
+     */
+    public void syncHistory(String from, String peer, int limit, long afterId, long changeSeq) throws IOException {
+        sendFrame(new Frame(MessageType.HISTORY, from, peer, syncRequest(limit, afterId, changeSeq)));
+    }
+
+    public void syncGroupHistory(String username, String groupId, int limit, long afterId, long changeSeq)
+            throws IOException {
+        sendFrame(new Frame(MessageType.GROUP_HISTORY, username, "group:" + groupId,
+                syncRequest(limit, afterId, changeSeq)));
+    }
+
+    private static String syncRequest(int limit, long afterId, long changeSeq) {
+        return Json.object().field("limit", limit).field("page", true)
+                .field("afterId", afterId).field("changeSeq", changeSeq)
+                .endObject().toString();
+    }
+
+    /** Xin cả trang trong 1 frame HISTORY_PAGE (server cũ bỏ qua "page" và trả từng frame như trước). */
+    private static String historyRequest(int limit, long beforeId) {
+        Json.Writer w = Json.object().field("limit", limit).field("page", true);
+        if (beforeId > 0) w.field("beforeId", beforeId);
+        return w.endObject().toString();
+    }
+
     private static void ensureSendableFile(File file) throws IOException {
         if (file == null || !file.exists()) throw new FileNotFoundException("File not found");
         if (file.length() > Frame.MAX_FILE_BYTES) throw new IOException("File too large (>25MB)");
@@ -591,36 +767,106 @@ public class ClientConnection {
         return "application/octet-stream";
     }
     
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
-        }
-    }
-    private static long parseLongSafe(String s, long def) {
-        if (s == null || s.isBlank()) return def;
-        try { return Long.parseLong(s); } catch (Exception e) { return def; }
-    }
     /*REPLY*/
-    // ★ NEW: escape cho JSON chuỗi đơn giản
-       private static String esc(String s) {
-           if (s == null) return "";
-           return s.replace("\\", "\\\\").replace("\"", "\\\"");
+       private static String nz(String s) {
+           return s == null ? "" : s;
+       }
+
+       private static String audioMetaJson(String to, String codec, int sampleRate, int durationSec,
+                                           String audioId, int size, boolean resume) {
+           Json.Writer w = Json.object()
+                   .field("to", nz(to))
+                   .field("codec", nz(codec))
+                   .field("sampleRate", sampleRate)
+                   .field("duration", durationSec)
+                   .field("fileId", nz(audioId))
+                   .field("size", size);
+           if (resume) w.field("resume", true);
+           return w.endObject().toString();
+       }
+
+       private static String fileMetaJson(String to, String name, String mime, String fileId, long size,
+                                          String sha256, String proof) {
+           Json.Writer w = Json.object()
+                   .field("to", nz(to))
+                   .field("name", nz(name))
+                   .field("mime", nz(mime))
+                   .field("fileId", nz(fileId))
+                   .field("size", size)
+                   .field("resume", true)
+                   .field("sha256", sha256);
+           if (proof != null) w.field("proof", proof);
+           return w.endObject().toString();
+       }
+
+       /**
+        * Gửi META (có "resume":true) rồi chờ ACK đầu tiên của upload {@code id}: UPLOAD_OFFSET (số byte
+        * server đã có, 0 = upload mới), UPLOAD_PROOF nếu META có "sha256" (trả lời bằng META có "proof"),
+        * hoặc FILE_SAVED khi server đã có nội dung đó.
+        */
+       private Frame negotiateUpload(Frame meta, String id, long timeoutMs) throws Exception {
+           CompletableFuture<Frame> fut = new CompletableFuture<>();
+           pendingAcks.put(id, fut);
+           try {
+               sendFrame(meta);
+               return fut.get(Math.min(timeoutMs, 10_000), TimeUnit.MILLISECONDS);
+           } finally {
+               pendingAcks.remove(id, fut);
+           }
+       }
+
+       private static boolean isFileSaved(Frame ack) {
+           return "FILE_SAVED".equals(Json.parse(ack.body).str("status"));
+       }
+
+       private static boolean isProofRequest(Frame ack) {
+           return "UPLOAD_PROOF".equals(Json.parse(ack.body).str("status"));
+       }
+
+       /** Trả lời UPLOAD_PROOF: SHA-256(nonce || đoạn byte server chọn) của file, dạng hex. */
+       private static String proofOf(File file, Frame challenge) throws IOException {
+           Json.Obj c = Json.parse(challenge.body);
+           String nonce = c.str("nonce");
+           long offset = c.lng("offset", 0);
+           long length = c.lng("length", 0);
+           if (nonce == null || offset < 0 || length <= 0 || length > Frame.CHUNK_SIZE || offset + length > file.length()) {
+               throw new IOException("Bad upload challenge: " + challenge.body);
+           }
+           try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(file.toPath())) {
+               java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+               md.update(nonce.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+               java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocate((int) length);
+               while (bb.hasRemaining()) {
+                   if (in.read(bb, offset + bb.position()) < 0) throw new IOException("File changed while sending");
+               }
+               bb.flip();
+               md.update(bb);
+               return java.util.HexFormat.of().formatHex(md.digest());
+           } catch (java.security.NoSuchAlgorithmException e) {
+               throw new IOException(e);
+           }
+       }
+
+       /** Thử lại cùng id sau khi rớt mạng chỉ phải gửi phần sau offset này. */
+       private static long uploadOffset(Frame ack, String id) throws IOException {
+           Json.Obj o = Json.parse(ack.body);
+           if (!"UPLOAD_OFFSET".equals(o.str("status"))) throw new IOException("Unexpected upload ack: " + ack.body);
+           long offset = Math.max(0, o.lng("offset", 0));
+           if (offset > 0) System.out.println("[UPLOAD] resume " + id + " from byte " + offset);
+           return offset;
+       }
+
+       /** SHA-256 (hex) của nội dung file, đọc 1 lượt trước khi gửi. */
+       private static String sha256Hex(File file) throws IOException {
+           try (InputStream in = new BufferedInputStream(new FileInputStream(file), Frame.CHUNK_SIZE)) {
+               java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+               byte[] buf = new byte[Frame.CHUNK_SIZE];
+               int n;
+               while ((n = in.read(buf)) > 0) md.update(buf, 0, n);
+               return java.util.HexFormat.of().formatHex(md.digest());
+           } catch (java.security.NoSuchAlgorithmException e) {
+               throw new IOException(e);
+           }
        }
 
        // ★ NEW: lấy replyTo hiện tại từ UI (MidController -> replyingRow)
@@ -0,0 +1,279 @@
+package client.cache;
+
+import client.ClientConnection;
+import common.Frame;
+import common.Json;
+import common.MessageType;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * AvatarStore
+ * -----------
+ * - Cache avatar theo hash nội dung (SHA-1 hex, server gửi trong USER_LIST / login):
+ *   cùng hash = cùng ảnh, nên ảnh đã có thì không bao giờ tải lại, đổi ảnh = hash mới.
+ * - 2 tầng: RAM (LRU theo byte) và đĩa {@code ~/.socialchat/avatars/<hash>} (LRU theo
+ *   lastModified, dùng chung mọi tài khoản trên máy).
+ * - Thiếu ảnh → gửi AVATAR_GET; nhiều dòng cùng chờ 1 hash chỉ gửi 1 lần.
+ * - Callback chạy trên thread gọi tới ({@link #request}) hoặc thread đọc frame
+ *   ({@link #onAvatarData}); cập nhật UI thì tự Platform.runLater.
+ */
+public final class AvatarStore {
+
+    private static final long MAX_MEM_BYTES = 4L * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 16L * 1024 * 1024;
+
+    // Singleton
+    private static volatile AvatarStore INSTANCE;
+
+    public static AvatarStore get() {
+        AvatarStore local = INSTANCE;
+        if (local == null) {
+            synchronized (AvatarStore.class) {
+                local = INSTANCE;
+                if (local == null) INSTANCE = local = new AvatarStore();
+            }
+        }
+        return local;
+    }
+
+    private final Path dir;
+
+    // RAM: hash → bytes (access-order); khoá bằng this
+    private final LinkedHashMap<String, byte[]> mem = new LinkedHashMap<>(64, 0.75f, true);
+    private long memBytes;
+
+    // Đĩa: hash → byte (access-order); khoá bằng this
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long diskBytes;
+
+    // hash đang xin → callback chờ; khoá bằng chính map
+    private final Map<String, List<Consumer<byte[]>>> inflight = new HashMap<>();
+
+    private AvatarStore() {
+        Path d = Paths.get(System.getProperty("user.home"), ".socialchat", "avatars");
+        try {
+            Files.createDirectories(d);
+        } catch (IOException e) {
+            System.err.println("[AVATAR] disk cache disabled: " + e.getMessage());
+            d = null;
+        }
+        dir = d;
+        if (dir != null) scanDisk();
+    }
+
+    /* ==== API ==== */
+
+    /** Ảnh có hash {@code hash} nếu đã có ở RAM/đĩa, ngược lại null. */
+    public byte[] cached(String hash) {
+        if (!isHash(hash)) return null;
+        synchronized (this) {
+            byte[] b = mem.get(hash);
+            if (b != null) return b;
+            if (dir == null || !disk.containsKey(hash)) return null;
+        }
+        Path p = dir.resolve(hash);
+        try {
+            byte[] b = Files.readAllBytes(p);
+            if (!hash.equals(sha1(b))) { // file hỏng → bỏ, tải lại
+                dropDisk(hash);
+                return null;
+            }
+            touch(p);
+            putMem(hash, b);
+            return b;
+        } catch (IOException e) {
+            dropDisk(hash);
+            return null;
+        }
+    }
+
+    /**
+     * Có sẵn thì gọi {@code onReady} ngay; chưa có thì gửi AVATAR_GET (1 lần cho mỗi hash)
+     * và gọi khi AVATAR_DATA về. {@code onReady(null)} = server không còn ảnh này.
+     */
+    public void request(ClientConnection conn, int userId, String hash, Consumer<byte[]> onReady) {
+        byte[] b = cached(hash);
+        if (b != null || !isHash(hash)) {
+            onReady.accept(b);
+            return;
+        }
+        synchronized (inflight) {
+            List<Consumer<byte[]>> waiting = inflight.get(hash);
+            if (waiting != null) {
+                waiting.add(onReady);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(onReady);
+            inflight.put(hash, waiting);
+        }
+        try {
+            if (conn == null || !conn.isAlive()) throw new IOException("not connected");
+            conn.sendFrame(avatarGet(userId, hash));
+        } catch (IOException e) {
+            System.err.println("[AVATAR] request failed: " + e.getMessage());
+            complete(hash, null);
+        }
+    }
+
+    /** Frame AVATAR_GET cho user {@code userId}, ảnh đang biết có hash {@code hash}. */
+    public static Frame avatarGet(int userId, String hash) {
+        String body = Json.object()
+                .field("id", userId)
+                .field("hash", hash == null ? "" : hash)
+                .endObject().toString();
+        return new Frame(MessageType.AVATAR_GET, "", "", body);
+    }
+
+    /** Xử lý AVATAR_DATA: lưu cache, trả lời các yêu cầu đang chờ; trả về ảnh (null nếu không có). */
+    public byte[] onAvatarData(Frame f) {
+        if (f == null || f.body == null || f.body.isBlank()) return null;
+        Json.Obj obj = Json.parse(f.body);
+        String want = obj.str("hash");
+        byte[] b = obj.isNull("avatarBase64") ? null : obj.base64("avatarBase64");
+        if (b != null && b.length == 0) b = null;
+        if (b != null) put(b);
+        if (want != null) complete(want, b);
+        return b;
+    }
+
+    /** Lưu ảnh vào cache; trả về hash nội dung. */
+    public String put(byte[] data) {
+        String hash = sha1(data);
+        putMem(hash, data);
+        putDisk(hash, data);
+        return hash;
+    }
+
+    /* ==== nội bộ ==== */
+
+    private void complete(String hash, byte[] b) {
+        List<Consumer<byte[]>> waiting;
+        synchronized (inflight) {
+            waiting = inflight.remove(hash);
+        }
+        if (waiting == null) return;
+        for (Consumer<byte[]> c : waiting) {
+            try {
+                c.accept(b);
+            } catch (RuntimeException e) {
+                System.err.println("[AVATAR] callback error: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void putMem(String hash, byte[] b) {
+        if (b.length > MAX_MEM_BYTES / 4) return;
+        byte[] old = mem.put(hash, b);
+        if (old != null) memBytes -= old.length;
+        memBytes += b.length;
+        var it = mem.values().iterator();
+        while (memBytes > MAX_MEM_BYTES && it.hasNext()) {
+            memBytes -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private void putDisk(String hash, byte[] b) {
+        if (dir == null) return;
+        synchronized (this) {
+            if (disk.containsKey(hash)) return;
+        }
+        Path target = dir.resolve(hash);
+        Path tmp = dir.resolve(hash + ".tmp");
+        try {
+            Files.write(tmp, b);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[AVATAR] write failed: " + e.getMessage());
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
+            return;
+        }
+        List<String> evict = new ArrayList<>();
+        synchronized (this) {
+            Long old = disk.put(hash, (long) b.length);
+            if (old != null) diskBytes -= old;
+            diskBytes += b.length;
+            var it = disk.entrySet().iterator();
+            while (diskBytes > MAX_DISK_BYTES && it.hasNext()) {
+                var e = it.next();
+                if (e.getKey().equals(hash)) continue;
+                diskBytes -= e.getValue();
+                evict.add(e.getKey());
+                it.remove();
+            }
+        }
+        for (String h : evict) {
+            try { Files.deleteIfExists(dir.resolve(h)); } catch (IOException ignore) {}
+        }
+    }
+
+    private void dropDisk(String hash) {
+        synchronized (this) {
+            Long old = disk.remove(hash);
+            if (old != null) diskBytes -= old;
+        }
+        try { Files.deleteIfExists(dir.resolve(hash)); } catch (IOException ignore) {}
+    }
+
+    // đánh dấu vừa dùng để LRU theo lastModified còn đúng sau khi khởi động lại
+    private static void touch(Path p) {
+        try {
+            Files.setLastModifiedTime(p, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignore) {}
+    }
+
+    private void scanDisk() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (isHash(name)) files.add(p);
+                else if (name.endsWith(".tmp")) Files.deleteIfExists(p); // ghi dở lần trước
+            }
+            files.sort(Comparator.comparingLong(AvatarStore::lastModified));
+        } catch (IOException e) {
+            System.err.println("[AVATAR] scan failed: " + e.getMessage());
+        }
+        synchronized (this) {
+            for (Path p : files) {
+                try {
+                    long size = Files.size(p);
+                    disk.put(p.getFileName().toString(), size);
+                    diskBytes += size;
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private static boolean isHash(String s) {
+        if (s == null || s.length() != 40) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package client.cache;
+
+import common.Json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LocalMessageStore
+ * -----------------
+ * - Cache tin nhắn trên đĩa của client: mở app / mở lại hội thoại thì hiển thị ngay từ đĩa,
+ *   rồi mới xin server phần delta (tin mới hơn + tombstone sửa/xoá, xem HISTORY_PAGE).
+ * - Mỗi hội thoại 1 file append-only {@code <key>.seg} trong {@code ~/.socialchat/cache/<user>/}.
+ *   Bản ghi: [int len][byte kind][payload UTF-8], kind = M (tin, JSON như trong HISTORY_PAGE),
+ *   E (sửa: {"id","content","at"}), D (xoá: {"id"}), S (changeSeq của server).
+ * - Đọc lại = replay các bản ghi; đuôi ghi dở (tắt app giữa chừng) bị bỏ qua rồi nén lại file.
+ * - Giới hạn tổng dung lượng; vượt thì xoá file của hội thoại lâu không mở nhất (LRU theo
+ *   lastModified, nên thứ tự còn đúng sau khi khởi động lại).
+ * - Mọi I/O chạy trên 1 thread riêng, không chặn FX thread; thứ tự ghi/đọc giữ nguyên.
+ */
+public final class LocalMessageStore {
+    /** Sender của frame HISTORY_PAGE dựng từ cache (để MessageHandler không ghi ngược lại đĩa). */
+    public static final String FRAME_SENDER = "local-cache";
+
+    private static final byte REC_MSG = 'M';
+    private static final byte REC_EDIT = 'E';
+    private static final byte REC_DELETE = 'D';
+    private static final byte REC_SEQ = 'S';
+
+    private static final long MAX_TOTAL_BYTES = 32L * 1024 * 1024;
+    private static final int KEEP_MESSAGES = 500;   // số tin giữ lại mỗi hội thoại khi nén file
+    private static final int RENDER_MESSAGES = 100; // số tin mới nhất dựng lại khi mở hội thoại
+    private static final int MAX_RECORD_BYTES = 4 * 1024 * 1024;
+
+    /** Dữ liệu đã cache của 1 hội thoại; {@code changeSeq < 0} = chưa đồng bộ được với server. */
+    public record Snapshot(String pageBody, int count, long maxId, long changeSeq) {
+        public boolean isEmpty() { return count == 0; }
+    }
+
+    private record Msg(long id, String content, String sender, String recipient, long createdAt, long updatedAt) {}
+
+    private final Path dir;
+    private final ExecutorService io;
+    // LRU: tên file → số byte; chỉ truy cập trên thread I/O
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    // id lớn nhất đã ghi xuống đĩa cho mỗi hội thoại (đọc từ FX thread)
+    private final Map<String, Long> maxIds = new ConcurrentHashMap<>();
+
+    private LocalMessageStore(Path dir) {
+        this.dir = dir;
+        this.io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "local-message-store");
+            t.setDaemon(true);
+            return t;
+        });
+        io.execute(this::scan);
+    }
+
+    /** Store của 1 tài khoản; null nếu không tạo được thư mục cache (chạy như không có cache). */
+    public static LocalMessageStore open(String username) {
+        if (username == null || username.isBlank()) return null;
+        Path dir = Paths.get(System.getProperty("user.home"), ".socialchat", "cache", encode(username));
+        try {
+            Files.createDirectories(dir);
+            return new LocalMessageStore(dir);
+        } catch (IOException e) {
+            System.err.println("[CACHE] disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /* ==== API (gọi từ FX thread) ==== */
+
+    /** Đọc cache của hội thoại; future hoàn tất trên thread I/O. */
+    public CompletableFuture<Snapshot> load(String convKey) {
+        return CompletableFuture.supplyAsync(() -> doLoad(convKey), io);
+    }
+
+    /** Id lớn nhất đã cache, {@code def} nếu hội thoại chưa được đọc/ghi trong phiên này. */
+    public long maxId(String convKey, long def) {
+        Long v = maxIds.get(convKey);
+        return v == null ? def : v;
+    }
+
+    /** Bỏ cache của hội thoại (trước khi tải lại đầy đủ từ server). */
+    public void clear(String convKey) {
+        maxIds.remove(convKey);
+        io.execute(() -> {
+            try {
+                Files.deleteIfExists(file(convKey));
+            } catch (IOException e) {
+                System.err.println("[CACHE] clear failed: " + e.getMessage());
+            }
+            forget(fileName(convKey));
+        });
+    }
+
+    /** Ghi 1 trang HISTORY_PAGE từ server; {@code changeSeq < 0} = trang không mang seq. */
+    public void appendPage(String convKey, boolean reset, List<Json.Obj> messages, List<Json.Obj> changes, long changeSeq) {
+        if (reset) maxIds.remove(convKey);
+        long max = 0;
+        List<byte[]> recs = new ArrayList<>(messages.size() + changes.size() + 1);
+        for (Json.Obj m : messages) {
+            long id = m.lng("id", 0L);
+            if (id <= 0) continue;
+            max = Math.max(max, id);
+            recs.add(record(REC_MSG, m.toString()));
+        }
+        for (Json.Obj c : changes) {
+            String op = c.str("op");
+            Json.Writer w = Json.object().field("id", c.lng("id", 0L));
+            if ("edit".equals(op)) {
+                w.field("content", c.str("content", "")).field("at", System.currentTimeMillis());
+                recs.add(record(REC_EDIT, w.endObject().toString()));
+            }
+            else if ("delete".equals(op)) recs.add(record(REC_DELETE, w.endObject().toString()));
+        }
+        if (changeSeq >= 0) recs.add(record(REC_SEQ, Long.toString(changeSeq)));
+        if (recs.isEmpty() && !reset) return;
+        if (max > 0) maxIds.merge(convKey, max, Math::max);
+
+        io.execute(() -> {
+            try (FileChannel ch = FileChannel.open(file(convKey),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (reset) ch.truncate(0);
+                ch.position(ch.size());
+                for (byte[] r : recs) writeFully(ch, ByteBuffer.wrap(r));
+                track(fileName(convKey), ch.size());
+            } catch (IOException e) {
+                System.err.println("[CACHE] append failed: " + e.getMessage());
+            }
+            evict(fileName(convKey));
+        });
+    }
+
+    /* ==== thread I/O ==== */
+
+    private Snapshot doLoad(String convKey) {
+        Path p = file(convKey);
+        TreeMap<Long, Msg> msgs = new TreeMap<>();
+        long seq = -1;
+        boolean torn = false;
+        long size;
+        int records = 0;
+
+        try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+            size = ch.size();
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE - 8));
+            while (buf.hasRemaining() && ch.read(buf) > 0) { /* đọc hết */ }
+            buf.flip();
+
+            while (buf.remaining() >= 5) {
+                int len = buf.getInt();
+                byte kind = buf.get();
+                if (len < 0 || len > MAX_RECORD_BYTES || len > buf.remaining()) { torn = true; break; }
+                String payload = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+                buf.position(buf.position() + len);
+                records++;
+                switch (kind) {
+                    case REC_MSG -> {
+                        Json.Obj m = Json.parse(payload);
+                        long id = (m == null) ? 0 : m.lng("id", 0L);
+                        if (id > 0) msgs.put(id, new Msg(id, m.str("content", ""), m.str("sender", ""),
+                                m.str("recipient", ""), m.lng("createdAt", 0L), m.lng("updatedAt", 0L)));
+                    }
+                    case REC_EDIT -> {
+                        Json.Obj e = Json.parse(payload);
+                        Msg old = (e == null) ? null : msgs.get(e.lng("id", 0L));
+                        if (old != null) msgs.put(old.id(), new Msg(old.id(), e.str("content", ""), old.sender(),
+                                old.recipient(), old.createdAt(), e.lng("at", 0L)));
+                    }
+                    case REC_DELETE -> {
+                        Json.Obj d = Json.parse(payload);
+                        if (d != null) msgs.remove(d.lng("id", 0L));
+                    }
+                    case REC_SEQ -> {
+                        try { seq = Long.parseLong(payload.trim()); } catch (NumberFormatException ignore) {}
+                    }
+                    default -> { torn = true; }
+                }
+                if (torn) break;
+            }
+            if (buf.hasRemaining()) torn = true;
+        } catch (NoSuchFileException e) {
+            forget(fileName(convKey));
+            return new Snapshot(null, 0, 0, -1);
+        } catch (IOException e) {
+            System.err.println("[CACHE] load failed: " + e.getMessage());
+            return new Snapshot(null, 0, 0, -1);
+        }
+
+        while (msgs.size() > KEEP_MESSAGES) msgs.pollFirstEntry();
+        long maxId = msgs.isEmpty() ? 0 : msgs.lastKey();
+        maxIds.put(convKey, maxId);
+
+        // file đứt đuôi hoặc phần lớn là bản ghi đã bị thay thế → ghi lại gọn
+        if (torn || records > 2 * msgs.size() + 64) compact(p, convKey, msgs.values(), seq);
+        else touch(p, size);
+
+        return new Snapshot(pageBody(convKey, msgs, seq), Math.min(msgs.size(), RENDER_MESSAGES), maxId, seq);
+    }
+
+    /** Dựng body giống HISTORY_PAGE của server để client hiển thị bằng đúng đường xử lý cũ. */
+    private static String pageBody(String convKey, TreeMap<Long, Msg> msgs, long seq) {
+        List<Msg> tail = new ArrayList<>(msgs.values());
+        if (tail.size() > RENDER_MESSAGES) tail = tail.subList(tail.size() - RENDER_MESSAGES, tail.size());
+        Json.Writer w = new Json.Writer(4 * 1024).beginObject()
+                .field("peer", convKey)
+                .beginArray("messages");
+        for (Msg m : tail) {
+            w.beginObject()
+                    .field("id", m.id())
+                    .field("content", m.content())
+                    .field("sender", m.sender())
+                    .field("recipient", m.recipient())
+                    .field("createdAt", m.createdAt())
+                    .field("updatedAt", m.updatedAt())
+                    .endObject();
+        }
+        w.endArray();
+        if (seq >= 0) w.field("changeSeq", seq);
+        return w.field("count", tail.size()).field("more", false).endObject().toString();
+    }
+
+    private void compact(Path p, String convKey, Collection<Msg> msgs, long seq) {
+        Path tmp = p.resolveSibling(p.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Msg m : msgs) {
+                String json = Json.object()
+                        .field("id", m.id())
+                        .field("content", m.content())
+                        .field("sender", m.sender())
+                        .field("recipient", m.recipient())
+                        .field("createdAt", m.createdAt())
+                        .field("updatedAt", m.updatedAt())
+                        .endObject().toString();
+                writeFully(ch, ByteBuffer.wrap(record(REC_MSG, json)));
+            }
+            if (seq >= 0) writeFully(ch, ByteBuffer.wrap(record(REC_SEQ, Long.toString(seq))));
+        } catch (IOException e) {
+            System.err.println("[CACHE] compact failed: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            track(fileName(convKey), Files.size(p));
+        } catch (IOException e) {
+            System.err.println("[CACHE] compact failed: " + e.getMessage());
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
+        }
+    }
+
+    /** Nạp chỉ mục LRU từ thư mục: cũ nhất (lastModified nhỏ nhất) đứng đầu. */
+    private void scan() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.seg")) {
+            ds.forEach(files::add);
+        } catch (IOException e) {
+            System.err.println("[CACHE] scan failed: " + e.getMessage());
+            return;
+        }
+        files.sort(Comparator.comparingLong(LocalMessageStore::lastModified));
+        for (Path f : files) {
+            try {
+                track(f.getFileName().toString(), Files.size(f));
+            } catch (IOException ignore) {}
+        }
+        evict(null);
+    }
+
+    private void touch(Path p, long size) {
+        try {
+            Files.setLastModifiedTime(p, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignore) {}
+        track(p.getFileName().toString(), size);
+    }
+
+    private void track(String name, long size) {
+        Long old = sizes.put(name, size);
+        totalBytes += size - (old == null ? 0 : old);
+    }
+
+    private void forget(String name) {
+        Long old = sizes.remove(name);
+        if (old != null) totalBytes -= old;
+    }
+
+    /** Xoá hội thoại ít dùng nhất cho tới khi về dưới giới hạn; không đụng file đang ghi. */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (totalBytes > MAX_TOTAL_BYTES && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (e.getKey().equals(keep)) continue;
+            try {
+                Files.deleteIfExists(dir.resolve(e.getKey()));
+                totalBytes -= e.getValue();
+                it.remove();
+                maxIds.remove(decode(e.getKey()));
+            } catch (IOException ex) {
+                System.err.println("[CACHE] evict failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /* ==== tiện ích ==== */
+
+    private static byte[] record(byte kind, String payload) {
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer b = ByteBuffer.allocate(5 + data.length);
+        b.putInt(data.length).put(kind).put(data);
+        return b.array();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) ch.write(b);
+    }
+
+    private static long lastModified(Path p) {
+        try {
+            return Files.getLastModifiedTime(p).toMillis();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    private Path file(String convKey) {
+        return dir.resolve(fileName(convKey));
+    }
+
+    private static String fileName(String convKey) {
+        return encode(convKey) + ".seg";
+    }
+
+    /** Tên file an toàn cho mọi username / "group:<id>" (base64 url-safe, không padding). */
+    private static String encode(String s) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String fileName) {
+        String b = fileName.endsWith(".seg") ? fileName.substring(0, fileName.length() - 4) : fileName;
+        try {
+            return new String(Base64.getUrlDecoder().decode(b), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return b;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package client.controller;
 
 import client.ClientConnection;
+import client.cache.AvatarStore;
 import client.controller.right.SearchMessageHandler;
 import client.signaling.CallSignalingService;
 import common.Frame;
+import common.Json;
 import common.MessageType;
 import common.User;
 import javafx.application.Platform;
@@ -20,7 +22,6 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javax.sound.sampled.*;
 import java.io.*;
-import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeoutException;
@@ -298,13 +299,18 @@ public class HomeController {
         );
 
         Stage stage = (Stage) centerStack.getScene().getWindow();
-        File file = fc.showOpenDialog(stage);
-        if (file == null) {
+        List<File> files = fc.showOpenMultipleDialog(stage);
+        if (files == null || files.isEmpty()) {
             System.out.println("[ATTACH] Người dùng huỷ chọn file.");
             return;
         }
 
+        // mỗi file 1 thread: các file gửi song song trên cùng kết nối
         final String fromUser = currentUser.getUsername();
+        for (File file : files) sendAttachment(fromUser, toUser, file);
+    }
+
+    private void sendAttachment(String fromUser, String toUser, File file) {
         final String fileId = UUID.randomUUID().toString();
         System.out.println("[ATTACH] Gửi file: " + file.getAbsolutePath() + " -> @" + toUser + ", fileId=" + fileId);
 
@@ -581,12 +587,10 @@ public class HomeController {
                 final String json = f.body; // {"group_id":3,"name":"Nhóm A","owner":"siu"}
 
                 if (json != null && !json.isBlank()) {
-                    String gidStr = jsonGet(json, "group_id");
-                    String gname  = jsonGet(json, "name");
-                    String gowner = jsonGet(json, "owner");
-
-                    int gid = 0;
-                    try { gid = Integer.parseInt(gidStr); } catch (Exception ignore) {}
+                    Json.Obj g = Json.parse(json);
+                    String gname  = g.str("name");
+                    String gowner = g.str("owner");
+                    int gid = g.integer("group_id", 0);
 
                     final int gidFinal       = gid;
                     final String gnameFinal  = gname;
@@ -609,6 +613,16 @@ public class HomeController {
                 leftCtrl.handleUserListFrame(f);
                 break;
             }
+            case PRESENCE: {
+                // delta online/offline của những user sidebar đã đăng ký (PRESENCE_SUB)
+                leftCtrl.handlePresenceFrame(f);
+                break;
+            }
+            case AVATAR_DATA: {
+                // ảnh avatar xin qua AVATAR_GET; AvatarStore lưu cache + gọi các dòng đang chờ
+                AvatarStore.get().onAvatarData(f);
+                break;
+            }
 
             // ACK từ server: dùng cho nhiều mục đích
             // - LOGIN: "OK LOGIN <username>"
@@ -620,15 +634,13 @@ public class HomeController {
                 // 1. Kiểm tra xem có phải ACK tạo group mới không
                 //    Server sendFrame(Frame.ack(respJson))
                 //    trong respJson có: "status":"OK_GROUP_CREATED", "group_id":..., "name":..., "owner":...
-                String status = jsonGet(body, "status");
+                Json.Obj ack = Json.parse(body);
+                String status = ack.str("status");
                 if ("OK_GROUP_CREATED".equals(status)) {
 
-                    String gidStr = jsonGet(body, "group_id");
-                    String gname  = jsonGet(body, "name");
-                    String gowner = jsonGet(body, "owner");
-
-                    int gid = 0;
-                    try { gid = Integer.parseInt(gidStr); } catch (Exception ignore) {}
+                    String gname  = ack.str("name");
+                    String gowner = ack.str("owner");
+                    int gid = ack.integer("group_id", 0);
 
                     final int gidFinal       = gid;
                     final String gnameFinal  = gname;
@@ -652,14 +664,6 @@ public class HomeController {
 
                     break; // quan trọng: mình xử lý xong case OK_GROUP_CREATED rồi thì break
                 }
-                if (body.startsWith("🔵 ") || body.startsWith("🔴 ")) {
-                    System.out.println("[PRESENCE] broadcast: " + body);
-                    Platform.runLater(() -> {
-                        // gọi lại USER_LIST_REQ để update online/offline + last_seen
-                        leftCtrl.reloadAll();
-                    });
-                }
-
                 // 2. Các ACK khác (login, delivered...) bạn giữ nguyên logic cũ nếu có
                 //    ví dụ: if (body.startsWith("OK LOGIN")) { ... }
                 //           if (body.startsWith("Delivered ")) { ... }
@@ -667,14 +671,11 @@ public class HomeController {
             }
             case LIST_MEMBERS: {
                 String json = f.body; // {"group_id":11,"members":["hic","huudat","Long","siu"]}
-                int gid = Integer.parseInt(jsonGet(json, "group_id"));
-
-                // Parse mảng JSON rất đơn giản
-                String arr = json.substring(json.indexOf('[')+1, json.indexOf(']'));
-                List<String> existingMembers = Arrays.stream(arr.replace("\"", "").split(","))
-                                                     .map(String::trim)
-                                                     .filter(s -> !s.isEmpty())
-                                                     .toList();
+                Json.Obj obj = Json.parse(json);
+                int gid = Integer.parseInt(obj.str("group_id"));
+                List<String> existingMembers = obj.strings("members").stream()
+                                                  .filter(s -> !s.isBlank())
+                                                  .toList();
 
                 String groupName = midCtrl.getCurrentGroupChatName();
 
@@ -689,7 +690,8 @@ public class HomeController {
         }
 
         // cuối cùng forward frame nào cũng đưa cho midCtrl xử lý chat, file, call, vv.
-        if (midCtrl != null && f.type != MessageType.USER_LIST) {
+        if (midCtrl != null && f.type != MessageType.USER_LIST && f.type != MessageType.AVATAR_DATA
+                && f.type != MessageType.PRESENCE) {
             Platform.runLater(() -> midCtrl.onIncomingFrame(f));
         }
     }
@@ -713,58 +715,14 @@ public class HomeController {
         dialog.show();
     }
 
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
-        }
-    }
     private java.util.List<LeftController.GroupViewModel> parseGroupsFromJson(String json) {
-        // vì bạn đang dùng parser thủ công jsonGet(),
-        // ta viết parser tay đơn giản luôn.
-
         // giả định json = {"groups":[{"id":5,"name":"abc","owner":"siu"}, {...}]}
-
         java.util.List<LeftController.GroupViewModel> list = new java.util.ArrayList<>();
 
-        int arrStart = json.indexOf("\"groups\"");
-        if (arrStart < 0) return list;
-
-        arrStart = json.indexOf('[', arrStart);
-        int arrEnd = json.indexOf(']', arrStart);
-        if (arrStart < 0 || arrEnd < 0) return list;
-
-        String arrBody = json.substring(arrStart + 1, arrEnd); // {...},{...}
-
-        // tách thô theo "},{" vì JSON đơn giản
-        String[] items = arrBody.split("\\},\\{");
-
-        for (String raw : items) {
-            String obj = raw.trim();
-            if (!obj.startsWith("{")) obj = "{" + obj;
-            if (!obj.endsWith("}")) obj = obj + "}";
-
-            String gidStr = jsonGet(obj, "id");
-            String gname  = jsonGet(obj, "name");
-            String gowner = jsonGet(obj, "owner");
-
-            int gid = 0;
-            try { gid = Integer.parseInt(gidStr); } catch (Exception ignore) {}
+        for (Json.Obj obj : Json.parse(json).objects("groups")) {
+            int gid = obj.integer("id", 0);
+            String gname  = obj.str("name");
+            String gowner = obj.str("owner");
 
             if (gid > 0 && gname != null) {
                 list.add(new LeftController.GroupViewModel(gid, gname, gowner));
@@ -779,7 +737,10 @@ public class HomeController {
         if (currentUser == null) return;
 
         // body yêu cầu
-        String body = "{\"username\":\"" + currentUser.getUsername() + "\",\"op\":\"list\"}";
+        String body = Json.object()
+                .field("username", currentUser.getUsername())
+                .field("op", "list")
+                .endObject().toString();
 
         Frame req = new Frame(
                 MessageType.GROUP_LIST,        // dùng luôn GROUP_LIST
@@ -843,7 +804,10 @@ public class HomeController {
 
         try {
             // Gửi yêu cầu lên server
-            String json = String.format("{\"group_id\":%d,\"username\":\"%s\"}", groupId, currentUser.getUsername());
+            String json = Json.object()
+                    .field("group_id", groupId)
+                    .field("username", currentUser.getUsername())
+                    .endObject().toString();
             Frame frame = new Frame(MessageType.REMOVE_MEMBER, currentUser.getUsername(), "", json);
             connection.sendFrame(frame);
             System.out.println("[GROUP] Sent leave group request: " + json);
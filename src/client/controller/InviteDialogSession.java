@@ -2,6 +2,7 @@ package client.controller;
 
 import client.ClientConnection;
 import common.Frame;
+import common.Json;
 import common.MessageType;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -257,13 +258,10 @@ public class InviteDialogSession {
             return;
         }
 
-        String json = String.format(
-                "{\"group_id\":%d,\"members\":[%s]}",
-                existingGroupId,
-                toAdd.stream()
-                        .map(u -> "\"" + u + "\"")
-                        .collect(Collectors.joining(","))
-        );
+        String json = Json.object()
+                .field("group_id", existingGroupId)
+                .strings("members", toAdd)
+                .endObject().toString();
 
         Frame f = new Frame(MessageType.ADD_MEMBER, currentUser, "", json);
         try {
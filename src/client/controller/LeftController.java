@@ -1,10 +1,15 @@
 package client.controller;
 
 import client.ClientConnection;
+import client.cache.AvatarStore;
+import client.media.ImageService;
 import common.Frame;
+import common.Json;
 import common.MessageType;
 import common.User;
+import javafx.animation.Animation;
 import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
@@ -24,7 +29,6 @@ import javafx.scene.shape.Circle;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 
-import java.io.ByteArrayInputStream;
 import java.time.Instant;
 import java.util.*;
 import java.util.function.Consumer;
@@ -43,6 +47,7 @@ public class LeftController {
     private Stage hostStage;
 
     private final Map<Integer, Label> lastLabels = new HashMap<>();
+    private final Map<Integer, ImageView> avatarViews = new HashMap<>();
     private final Map<Integer, User> idToUser = new HashMap<>();
     private final Map<Integer, GroupViewModel> groupMap = new HashMap<>();
 
@@ -52,11 +57,28 @@ public class LeftController {
     private User currentUser;
     private Consumer<User> onOpenConversation;
 
-    // Cache avatar để tránh query lặp
-    private final Map<Integer, Image> avatarCache = new HashMap<>();
+    private static final int AVATAR_PX = 96; // kích thước giải mã avatar (đủ cho 40px trên màn HiDPI)
     private Image defaultAvatar; // lazy-load
     private List<GroupViewModel> groupCache = new ArrayList<>();
-    private final List<User> userCache = new ArrayList<>();   // ❗ cache tất cả user server gửi
+    private final Map<Integer, User> userCache = new LinkedHashMap<>();   // ❗ cache tất cả user server gửi (id → user)
+
+    // ==== danh bạ theo trang ====
+    private static final int USER_PAGE = 200;
+    private static final Duration SEARCH_DEBOUNCE = Duration.millis(150);
+    private final java.util.concurrent.atomic.AtomicLong userListSeq = new java.util.concurrent.atomic.AtomicLong();
+    private volatile long activeUserList = -1;   // reqId đang nhận trang (-1 = không có); đọc từ thread đọc frame
+    private String activeQuery = "";             // "" = cả danh bạ
+    private boolean awaitingFirstPage;
+    private String shownQuery = "";              // kết quả của truy vấn nào đang hiện (null = lọc tạm phía client)
+    private String nextUserCursor;               // cursor trang kế của activeUserList (null = hết / đang xin)
+    private ScrollPane listScroll;               // ScrollPane chứa chatList, tìm lúc trang đầu về
+    private static final double LOAD_MORE_EDGE = 0.9; // cuộn quá 90% → xin trang kế
+    private PauseTransition searchDebounce;
+    // ==== presence: chỉ đăng ký user đã hiện trên sidebar, server đẩy delta PRESENCE ====
+    private final Set<String> presenceSubscribed = new HashSet<>();
+    private final Map<String, Integer> nameToId = new HashMap<>();
+    // userId → hash avatar đã có bytes (thread đọc frame dùng để khỏi đọc lại cache đĩa)
+    private final Map<Integer, String> knownAvatarHashes = new java.util.concurrent.ConcurrentHashMap<>();
     public User getUserByUsername(String username) {
         if (username == null || username.isBlank()) return null;
 
@@ -76,8 +98,8 @@ public class LeftController {
     }
     public void setUsersForSidebar(List<User> users) {
         userCache.clear();
-        if (users != null) userCache.addAll(users);
-        renderAll(userCache, groupCache);
+        if (users != null) for (User u : users) userCache.put(u.getId(), u);
+        renderAll(new ArrayList<>(userCache.values()), groupCache);
     }
 
     
@@ -148,97 +170,245 @@ public class LeftController {
 
     public void setCurrentUser(User user) { this.currentUser = user; }
     public void setOnOpenConversation(Consumer<User> cb) { this.onOpenConversation = cb; }
-    public void setConnection(ClientConnection conn) { this.connection = conn; }
+    public void setConnection(ClientConnection conn) {
+        this.connection = conn;
+        presenceSubscribed.clear(); // kết nối mới: server chưa biết mình theo dõi ai
+    }
     public void setHostStage(Stage stage) { this.hostStage = stage; }
     
+    /* ==== danh bạ USER_LIST theo trang ==== */
+
+    /** 1 dòng danh bạ đã parse trên thread đọc frame; {@code avatarBytes} lấy sẵn từ cache nếu có. */
+    private record UserRow(int id, String username, boolean online, String lastSeen,
+                           String avatarHash, byte[] avatarBytes) {}
+
+    /**
+     * 1 frame = 1 trang {"reqId","more","next","users":[..]}. Trang của yêu cầu đã bị thay
+     * (gõ tiếp khi tìm, polling mới) bị bỏ; trang sau chỉ xin khi cuộn gần cuối danh sách
+     * hoặc danh sách chưa lấp đầy khung nhìn (vd. kết quả tìm còn ít).
+     */
     public void handleUserListFrame(Frame f) {
         if (f == null) return;
         String json = f.body;
         if (json == null || json.isBlank()) return;
 
-        String idStr       = jsonGet(json, "id");
-        String username    = jsonGet(json, "username");
-        String onlineStr   = jsonGet(json, "online");
-        String lastSeenIso = jsonGet(json, "lastSeen");
-        String avatarB64   = jsonGet(json, "avatarBase64");
-
-        int id;
-        try {
-            id = Integer.parseInt(idStr);
-        } catch (Exception e) {
-            return;
+        Json.Obj page = Json.parse(json);
+        long reqId = page.lng("reqId", 0);
+        if (reqId != activeUserList) return;
+        boolean more = page.bool("more", false);
+        String next = page.str("next");
+
+        List<UserRow> rows = new ArrayList<>();
+        for (Json.Obj obj : page.objects("users")) {
+            int id = obj.integer("id", -1);
+            String username = obj.str("username");
+            if (id < 0 || username == null || username.isBlank()) continue;
+
+            // avatar chỉ là hash; ảnh lấy từ AvatarStore (RAM/đĩa) hoặc AVATAR_GET nếu chưa có
+            String avatarHash = obj.str("avatarHash");
+            if (avatarHash != null && avatarHash.isBlank()) avatarHash = null;
+            byte[] avatarBytes = null;
+            if (avatarHash != null && !avatarHash.equals(knownAvatarHashes.get(id))) {
+                avatarBytes = AvatarStore.get().cached(avatarHash); // đọc đĩa ở đây, không trên FX thread
+            }
+            rows.add(new UserRow(id, username, obj.bool("online", false), obj.str("lastSeen"),
+                    avatarHash, avatarBytes));
         }
-        if (username == null || username.isBlank()) return;
 
-        // ✅ decode avatar thành bytes + Image
-        byte[] avatarBytes = null;
-        if (avatarB64 != null && !avatarB64.isBlank()) {
-            try {
-                avatarBytes = Base64.getDecoder().decode(avatarB64);
-                Image img = new Image(new ByteArrayInputStream(avatarBytes));
-                avatarCache.put(id, img);
-            } catch (IllegalArgumentException ignore) {
-                // decode fail -> dùng default
-            }
+        Platform.runLater(() -> applyUserPage(reqId, rows, more, next));
+    }
+
+    private void applyUserPage(long reqId, List<UserRow> rows, boolean more, String next) {
+        if (reqId != activeUserList) return;
+        if (awaitingFirstPage) {
+            awaitingFirstPage = false;
+            // kết quả tìm mới thay cho danh sách đang hiện; polling cùng truy vấn chỉ cập nhật tại chỗ
+            if (!activeQuery.isEmpty() && !activeQuery.equals(shownQuery)) renderUsers(List.of());
+            shownQuery = activeQuery;
+        }
+        for (UserRow r : rows) applyUser(r);
+        syncPresence();
+
+        if (more && next != null) {
+            nextUserCursor = next;
+            bindListScroll();
+            // đợi layout xong mới biết danh sách đã lấp đầy khung nhìn chưa
+            Platform.runLater(this::loadMoreUsersIfNeeded);
+        } else {
+            nextUserCursor = null;
+            activeUserList = -1;
         }
+    }
+
+    /** Tìm ScrollPane chứa chatList (chỉ có sau khi skin dựng xong) và xin trang kế khi cuộn gần cuối. */
+    private void bindListScroll() {
+        if (listScroll != null || chatList == null) return;
+        Node p = chatList.getParent();
+        while (p != null && !(p instanceof ScrollPane)) p = p.getParent();
+        if (!(p instanceof ScrollPane sp)) return;
+        listScroll = sp;
+        sp.vvalueProperty().addListener((obs, o, n) -> loadMoreUsersIfNeeded());
+    }
 
-        boolean online = "1".equals(onlineStr) || "true".equalsIgnoreCase(onlineStr);
+    private void loadMoreUsersIfNeeded() {
+        long reqId = activeUserList;
+        if (reqId < 0 || nextUserCursor == null) return;
+        ScrollPane sp = listScroll;
+        if (sp != null) {
+            double contentH = chatList.getBoundsInLocal().getHeight();
+            boolean fills = contentH > sp.getViewportBounds().getHeight();
+            double min = sp.getVmin(), max = sp.getVmax();
+            boolean nearEnd = sp.getVvalue() >= min + (max - min) * LOAD_MORE_EDGE;
+            if (fills && !nearEnd) return;
+        }
+        String after = nextUserCursor;
+        nextUserCursor = null; // 1 trang 1 lần; trang về sẽ đặt lại cursor
+        requestUserPage(reqId, activeQuery, after);
+    }
 
+    private void applyUser(UserRow r) {
         // cập nhật / tạo User trong map
-        User u = idToUser.get(id);
+        User u = idToUser.get(r.id());
         boolean isNew = (u == null);
+        if (u == null) u = userCache.get(r.id()); // đang tìm: dòng chưa hiện nhưng đã biết user
         if (u == null) {
             u = new User();
-            u.setId(id);
-        }
-        u.setUsername(username);
-        u.setOnline(online);           // ✅ quan trọng
-        u.setLastSeenIso(lastSeenIso); // ✅ quan trọng
-        if (avatarBytes != null) {
-            u.setAvatar(avatarBytes);  // ✅ để createChatItem dùng được
-        }
-        idToUser.put(id, u);
+            u.setId(r.id());
+        }
+        u.setUsername(r.username());
+        u.setOnline(r.online());           // ✅ quan trọng
+        u.setLastSeenIso(r.lastSeen());    // ✅ quan trọng
+
+        // hash không đổi và đã có ảnh → không làm gì (trường hợp thường gặp khi polling)
+        String avatarHash = r.avatarHash();
+        boolean avatarChanged = !Objects.equals(avatarHash, u.getAvatarHash())
+                || (avatarHash != null && u.getAvatar() == null);
+        if (avatarChanged) {
+            setUserAvatar(u, avatarHash, r.avatarBytes());  // ✅ để createChatItem dùng được
+        }
+        idToUser.put(u.getId(), u);
+        userCache.put(u.getId(), u);   // ✅ update cache cho search
+        nameToId.put(u.getUsername(), u.getId());
         if (currentUser != null && currentUser.getId() == u.getId()) {
             currentUser.setOnline(u.isOnline());
             currentUser.setLastSeenIso(u.getLastSeenIso());
             currentUser.setAvatar(u.getAvatar());
         }
-        final int uidFinal = id;
-        final boolean onlineFinal = online;
-        final String lastSeenFinal = lastSeenIso;
+
+        final int uid = u.getId();
         final User userFinal = u;
-        final boolean newUserFinal = isNew;
+        if (avatarChanged && avatarHash != null && u.getAvatar() == null) {
+            AvatarStore.get().request(connection, uid, avatarHash, bytes -> {
+                if (bytes == null) return;
+                Platform.runLater(() -> {
+                    if (!avatarHash.equals(userFinal.getAvatarHash())) return; // đã đổi ảnh lần nữa
+                    setUserAvatar(userFinal, avatarHash, bytes);
+                    if (currentUser != null && currentUser.getId() == uid) currentUser.setAvatar(bytes);
+                    refreshAvatar(uid);
+                });
+            });
+        }
 
-        Platform.runLater(() -> {
-            // ✅ update cache cho search
-            userCache.removeIf(uu -> uu.getId() == uidFinal);
-            userCache.add(userFinal);
-
-            // Nếu là user mới -> tạo row UI
-            if (newUserFinal) {
-                HBox row = createChatItem(userFinal);
-                chatList.getChildren().add(row);
+        // Nếu là user mới -> tạo row UI
+        if (isNew) {
+            chatList.getChildren().add(createChatItem(u));
+        } else if (avatarChanged) {
+            refreshAvatar(uid);
+        }
+
+        updateStatusLabel(uid, r.online(), r.lastSeen());
+    }
+
+    // Cập nhật label trạng thái
+    private void updateStatusLabel(int uid, boolean online, String lastSeen) {
+        Label lbl = lastLabels.get(uid);
+        if (lbl == null) return;
+        lbl.getStyleClass().removeAll("chat-status-online", "chat-status-offline");
+        if (online) {
+            lbl.setText("Online");
+            lbl.getStyleClass().add("chat-status-online");
+        } else {
+            String text = "Offline";
+            if (lastSeen != null && !lastSeen.isBlank()) {
+                text += humanize(lastSeen, true); // humanize() đã tự thêm " • "
             }
+            lbl.setText(text);
+            lbl.getStyleClass().add("chat-status-offline");
+        }
+    }
 
-            // Cập nhật label trạng thái
-            Label lbl = lastLabels.get(uidFinal);
-            if (lbl != null) {
-                lbl.getStyleClass().removeAll("chat-status-online", "chat-status-offline");
-                if (onlineFinal) {
-                    lbl.setText("Online");
-                    lbl.getStyleClass().add("chat-status-online");
-                } else {
-                    String text = "Offline";
-                    if (lastSeenFinal != null && !lastSeenFinal.isBlank()) {
-                        text += humanize(lastSeenFinal, true); // humanize() đã tự thêm " • "
-                    }
-                    lbl.setText(text);
-                    lbl.getStyleClass().add("chat-status-offline");
-                }
+    /**
+     * Đăng ký presence đúng bằng các dòng user đang hiện: thêm dòng mới, gửi {@code remove} cho dòng
+     * đã rời danh sách (kết quả tìm thay thế, render lại). Gọi sau mỗi lần thêm/xoá dòng.
+     */
+    private void syncPresence() {
+        if (connection == null || !connection.isAlive()) return;
+        Set<String> shown = new HashSet<>();
+        for (User u : idToUser.values()) {
+            if (u.getUsername() != null) shown.add(u.getUsername());
+        }
+        List<String> add = new ArrayList<>();
+        for (String name : shown) if (!presenceSubscribed.contains(name)) add.add(name);
+        List<String> remove = new ArrayList<>();
+        for (String name : presenceSubscribed) if (!shown.contains(name)) remove.add(name);
+        if (add.isEmpty() && remove.isEmpty()) return;
+        try {
+            connection.subscribePresence(add, remove);
+            presenceSubscribed.addAll(add);
+            remove.forEach(presenceSubscribed::remove);
+        } catch (Exception e) {
+            System.err.println("[PRESENCE] subscribe failed: " + e.getMessage());
+        }
+    }
+
+    /** Delta {"p":[{"u":..,"on":1|0,"ls":..}]} cho các user đã đăng ký; cập nhật tại chỗ, không tải lại danh bạ. */
+    public void handlePresenceFrame(Frame f) {
+        if (f == null || f.body == null || f.body.isBlank()) return;
+        List<Json.Obj> items = Json.parse(f.body).objects("p");
+        if (items.isEmpty()) return;
+        Platform.runLater(() -> {
+            for (Json.Obj p : items) {
+                Integer uid = nameToId.get(p.str("u"));
+                if (uid == null) continue;
+                User u = userCache.get(uid);
+                if (u == null) continue;
+                boolean online = p.integer("on", 0) == 1;
+                u.setOnline(online);
+                String ls = p.str("ls");
+                if (!online && ls != null) u.setLastSeenIso(ls);
+                updateStatusLabel(uid, online, u.getLastSeenIso());
             }
         });
     }
-    
+
+    private void setUserAvatar(User u, String hash, byte[] bytes) {
+        u.setAvatarHash(hash);
+        u.setAvatar(bytes);
+        if (hash != null && bytes != null) knownAvatarHashes.put(u.getId(), hash);
+        else knownAvatarHashes.remove(u.getId());
+    }
+
+    /** Bắt đầu yêu cầu danh bạ mới ({@code q} rỗng = tất cả); yêu cầu cũ bị thay. */
+    private void startUserList(String q) {
+        long reqId = userListSeq.incrementAndGet();
+        activeUserList = reqId;
+        activeQuery = q;
+        awaitingFirstPage = true;
+        nextUserCursor = null;
+        requestUserPage(reqId, q, null);
+    }
+
+    private void requestUserPage(long reqId, String q, String after) {
+        try {
+            connection.requestUserList(reqId, q, after, USER_PAGE);
+        } catch (Exception e) {
+            System.err.println("[LEFT] cannot send USER_LIST_REQ: " + e.getMessage());
+            activeUserList = -1;
+            // fallback: nếu gửi lỗi thì vẫn cứ render cache
+            if (awaitingFirstPage && q.isEmpty()) renderAll(new ArrayList<>(userCache.values()), groupCache);
+        }
+    }
+
     public void startPresencePolling() {
         if (connection == null || currentUser == null || !connection.isAlive()) {
             return;
@@ -269,12 +439,14 @@ public class LeftController {
     private void renderUsers(List<User> users) {
         chatList.getChildren().clear();
         lastLabels.clear();
+        avatarViews.clear();
         idToUser.clear();
 
         for (User u : users) {
             idToUser.put(u.getId(), u);
             chatList.getChildren().add(createChatItem(u));
         }
+        syncPresence();
     }
 
     public void reloadAll() {
@@ -282,46 +454,58 @@ public class LeftController {
 
         // Nếu chưa có connection hoặc chưa biết currentUser → render cache sẵn có (nếu có)
         if (connection == null || currentUser == null || !connection.isAlive()) {
-            renderAll(userCache, groupCache);
+            renderAll(new ArrayList<>(userCache.values()), groupCache);
             return;
         }
-
-        try {
-            // body tuỳ theo server, anh giả sử handler trên server đang đọc key "q"
-            String body = "{\"q\":\"\"}"; // q="" = lấy tất cả user
-
-            Frame req = new Frame(
-                    MessageType.USER_LIST_REQ,          // ✅ yêu cầu danh sách user
-                    currentUser.getUsername(),          // from
-                    "",                                 // to (không cần)
-                    body
-            );
-
-            System.out.println("[LEFT] reloadAll() -> send USER_LIST_REQ");
-            connection.sendFrame(req);
-        } catch (Exception e) {
-            System.err.println("[LEFT] cannot send USER_LIST_REQ: " + e.getMessage());
-            // fallback: nếu gửi lỗi thì vẫn cứ render cache
-            renderAll(userCache, groupCache);
-        }
+        // đang gõ tìm: để debounce gửi truy vấn mới, không làm mới truy vấn cũ
+        if (searchDebounce != null && searchDebounce.getStatus() == Animation.Status.RUNNING) return;
+        // đang xem kết quả tìm: làm mới đúng kết quả đó (cập nhật online/last_seen)
+        System.out.println("[LEFT] reloadAll() -> send USER_LIST_REQ");
+        startUserList(activeQuery);
     }
 
 
+    /** Gõ tìm: huỷ ngay yêu cầu đang chạy, đợi ngừng gõ {@link #SEARCH_DEBOUNCE} rồi mới hỏi server. */
     public void searchUsers(String keyword) {
         String k = (keyword == null) ? "" : keyword.trim();
+        if (activeUserList >= 0 && connection != null && connection.isAlive()) {
+            activeUserList = -1;
+            try {
+                connection.cancelUserList();
+            } catch (Exception ignore) {}
+        }
+
+        if (searchDebounce == null) {
+            searchDebounce = new PauseTransition(SEARCH_DEBOUNCE);
+        }
+        searchDebounce.stop();
+
         if (k.isEmpty()) {
+            // bỏ tìm: hiện lại danh bạ đã biết ngay, rồi làm mới
+            activeQuery = "";
+            shownQuery = "";
+            renderAll(new ArrayList<>(userCache.values()), groupCache);
             reloadAll();
             return;
         }
 
+        // lọc tạm trên danh bạ đã biết cho tới khi server trả kết quả
         List<User> filtered = new ArrayList<>();
-        for (User u : userCache) {
+        String lower = k.toLowerCase();
+        for (User u : userCache.values()) {
             String name = u.getUsername();
-            if (name != null && name.toLowerCase().contains(k.toLowerCase())) {
+            if (name != null && name.toLowerCase().contains(lower)) {
                 filtered.add(u);
             }
         }
         renderUsers(filtered);
+        shownQuery = null;
+
+        searchDebounce.setOnFinished(e -> {
+            if (connection == null || !connection.isAlive()) return;
+            startUserList(k);
+        });
+        searchDebounce.playFromStart();
     }
 
     private HBox createChatItem(User u) {
@@ -330,8 +514,10 @@ public class LeftController {
         row.setPadding(new Insets(8));
         row.setUserData(u.getId());
 
-        Image img = loadAvatarImage(u.getId());
-        StackPane avatarPane = buildCircularAvatar(img, 40);
+        StackPane avatarPane = buildCircularAvatar(loadDefaultAvatar(), 40);
+        ImageView avatarView = (ImageView) avatarPane.getChildren().get(0);
+        avatarViews.put(u.getId(), avatarView);
+        loadAvatarInto(avatarView, u.getId());
 
         VBox textBox = new VBox(2);
         HBox.setHgrow(textBox, Priority.ALWAYS);
@@ -374,6 +560,10 @@ public class LeftController {
                 return new Image(url.toExternalForm());
             }
         } catch (Exception ignore) {}
+        return loadDefaultAvatar();
+    }
+
+    private Image loadDefaultAvatar() {
         if (defaultAvatar == null) {
             defaultAvatar = new Image(
                 Objects.requireNonNull(
@@ -384,28 +574,21 @@ public class LeftController {
         return defaultAvatar;
     }
 
-    private Image loadAvatarImage(int userId) {
-        // cache
-        Image cached = avatarCache.get(userId);
-        if (cached != null) return cached;
-
+    /** Avatar mặc định hiển thị trước; bản thu nhỏ thay vào khi ImageService giải mã xong. */
+    private void loadAvatarInto(ImageView iv, int userId) {
         User u = idToUser.get(userId);
-        Image img;
-        if (u != null && u.getAvatar() != null && u.getAvatar().length > 0) {
-            img = new Image(new ByteArrayInputStream(u.getAvatar()));
-        } else {
-            if (defaultAvatar == null) {
-                defaultAvatar = new Image(
-                    Objects.requireNonNull(
-                        getClass().getResource("/client/view/images/default user.png")
-                    ).toExternalForm()
-                );
-            }
-            img = defaultAvatar;
-        }
+        byte[] bytes = (u != null) ? u.getAvatar() : null;
+        if (bytes == null || bytes.length == 0) return;
+        ImageService.get().into(iv, ImageService.avatarKey(bytes), AVATAR_PX, ImageService.bytes(bytes));
+    }
 
-        avatarCache.put(userId, img);
-        return img;
+    /** Ảnh của user vừa đổi (hoặc vừa tải xong) → vẽ lại avatar trên dòng sidebar. */
+    private void refreshAvatar(int userId) {
+        ImageView iv = avatarViews.get(userId);
+        if (iv == null) return;
+        User u = idToUser.get(userId);
+        if (u == null || u.getAvatar() == null) iv.setImage(loadDefaultAvatar());
+        else loadAvatarInto(iv, userId);
     }
 
 
@@ -534,7 +717,7 @@ public class LeftController {
     }
     public java.util.List<String> getAllUsernames() {
         java.util.List<String> list = new java.util.ArrayList<>();
-        for (User u : idToUser.values()) {
+        for (User u : userCache.values()) {
             if (u != null && u.getUsername() != null && !u.getUsername().isBlank()) {
                 list.add(u.getUsername());
             }
@@ -615,6 +798,7 @@ public class LeftController {
     private void renderAll(List<User> users, List<GroupViewModel> groups) {
         chatList.getChildren().clear();
         lastLabels.clear();
+        avatarViews.clear();
         idToUser.clear();
         // groupMap clear
         groupMap.clear();
@@ -633,6 +817,7 @@ public class LeftController {
             idToUser.put(u.getId(), u);
             chatList.getChildren().add(createChatItem(u));
         }
+        syncPresence();
     }
     public void addSingleGroupToSidebar(GroupViewModel gvm) {
         if (groupCache == null) groupCache = new ArrayList<>();
@@ -688,34 +873,5 @@ public class LeftController {
         });
     }
     
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length()
-                    && "-0123456789truefals".indexOf(
-                            Character.toLowerCase(json.charAt(end))
-                       ) >= 0) {
-                end++;
-            }
-            return json.substring(j, end);
-        }
-    }
 
 }
\ No newline at end of file
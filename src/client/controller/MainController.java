@@ -1,6 +1,7 @@
 package client.controller;
 
 import client.ClientConnection;
+import client.media.ImageService;
 import client.signaling.CallSignalingService;
 import common.User;
 import javafx.fxml.FXML;
@@ -26,7 +27,6 @@ import java.io.File;
 import java.nio.file.Files;
 import java.util.Objects;
 import java.util.Optional;
-import java.io.ByteArrayInputStream;
 public class MainController {
 
     @FXML private Button loginBtn;
@@ -311,17 +311,16 @@ public class MainController {
             home.setCallService(callSvc);
             
             byte[] avatarBytes = loggedInUser.getAvatar();
-            Image selfAvatar;
+            home.setSelfAvatar(new Image(
+                Objects.requireNonNull(
+                    getClass().getResource("/client/view/images/default user.png")
+                ).toExternalForm()
+            ));
             if (avatarBytes != null && avatarBytes.length > 0) {
-                selfAvatar = new Image(new ByteArrayInputStream(avatarBytes));
-            } else {
-                selfAvatar = new Image(
-                    Objects.requireNonNull(
-                        getClass().getResource("/client/view/images/default user.png")
-                    ).toExternalForm()
-                );
+                // giải mã + thu nhỏ ngoài FX thread, thay ảnh mặc định khi xong
+                ImageService.get().load(ImageService.avatarKey(avatarBytes), 192,
+                        ImageService.bytes(avatarBytes), home::setSelfAvatar);
             }
-            home.setSelfAvatar(selfAvatar);
 
             
             Scene scene = new Scene(root);
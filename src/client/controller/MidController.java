@@ -1,13 +1,16 @@
 package client.controller;
 
 import client.ClientConnection;
+import client.cache.LocalMessageStore;
 import client.controller.mid.CallHandler;
 import client.controller.mid.FileHandler;
 import client.controller.mid.MediaHandler;
 import client.controller.mid.MessageHandler;
+import client.controller.mid.MessageListModel;
 import client.controller.mid.UIMessageHandler;
 import client.controller.mid.UtilHandler;
 import client.controller.mid.VoiceRecordHandler;
+import client.media.ImageService;
 import client.media.LanAudioSession;
 import client.media.LanVideoSession;
 import client.signaling.CallSignalListener;
@@ -16,7 +19,6 @@ import common.Frame;
 import common.MessageType;
 import common.User;
 import javafx.application.Platform;
-import javafx.beans.value.ChangeListener;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableMap;
 import javafx.scene.Node;
@@ -34,7 +36,6 @@ import java.io.File;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
-import java.io.ByteArrayInputStream;
 public class MidController implements CallSignalListener {
 	public static final class MsgView {
 	    private final long epochMillis;
@@ -89,7 +90,7 @@ public class MidController implements CallSignalListener {
 	private HBox replyingRow = null;
 	private boolean replyingIncoming = false;
 
-    private ChangeListener<Number> autoScrollListener;
+    private MessageListModel messageList;
     private final List<MsgView> messageSnapshot = new ArrayList<>();
 
     private final Map<String, List<Frame>> pendingFileEvents = new ConcurrentHashMap<>();
@@ -105,6 +106,22 @@ public class MidController implements CallSignalListener {
     
     private final CallHandler callHandler = new CallHandler(this);
     private final Set<String> shownCallLogs = ConcurrentHashMap.newKeySet();
+
+    /* ==== cache hội thoại đã mở (đồng bộ delta) ==== */
+    // giữ nguyên các dòng đã render của vài hội thoại gần nhất; mở lại chỉ xin tin mới + tombstone
+    private static final int CONV_CACHE_SIZE = 8;
+    private record ConvState(List<HBox> rows, List<MsgView> snapshot, Set<String> callLogs) {}
+    private final Map<String, ConvState> convCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, ConvState> e) {
+            if (size() <= CONV_CACHE_SIZE) return false;
+            convChangeSeq.remove(e.getKey());
+            return true;
+        }
+    };
+    // seq nhật ký sửa/xoá server đã gửi cho từng hội thoại
+    private final Map<String, Long> convChangeSeq = new HashMap<>();
+    // cache trên đĩa theo tài khoản (null = không dùng được)
+    private LocalMessageStore localStore;
     private final Map<String, HBox> pendingHistoryFileRows = new ConcurrentHashMap<>();
     private final Map<String, MediaPlayer> videoPlayers = new ConcurrentHashMap<>();
     
@@ -129,7 +146,8 @@ public class MidController implements CallSignalListener {
 	public MediaHandler getMediaHandler() {
 		return mediaHandler;
 	}
-	private final Map<String, Image> avatarCache = new ConcurrentHashMap<>();
+	private static final int AVATAR_PX = 96;   // avatar trong dòng tin (28px) / danh sách
+	private static final int HEADER_PX = 192;  // avatar header + panel phải
 	private LeftController leftController;
 	public void setLeftController(LeftController lc) {
         this.leftController = lc;
@@ -138,14 +156,12 @@ public class MidController implements CallSignalListener {
 	private final Image defaultAvatar;
 	public void setSelfAvatar(Image img) {
         this.selfAvatar = img;
-        if (currentUser != null && currentUser.getUsername() != null && img != null) {
-            avatarCache.put(currentUser.getUsername(), img);
-        }
     }
     public void bind(Label currentChatName, Label currentChatStatus, VBox messageContainer, TextField messageField, ImageView midHeaderAvatar) {
         this.currentChatName = currentChatName;
         this.currentChatStatus = currentChatStatus;
         this.messageContainer = messageContainer;
+        this.messageList = (messageContainer != null) ? new MessageListModel(messageContainer) : null;
         this.messageField = messageField;
         this.midHeaderAvatar = midHeaderAvatar;
 
@@ -167,17 +183,10 @@ public class MidController implements CallSignalListener {
 	}
     public void setRightController(RightController rc) { this.rightController = rc; }
     public void setCurrentUser(User user) {
+        String prev = (this.currentUser != null) ? this.currentUser.getUsername() : null;
         this.currentUser = user;
-
-        if (user != null && user.getUsername() != null) {
-            byte[] bytes = user.getAvatar();
-            if (bytes != null && bytes.length > 0) {
-                try {
-                    Image img = new Image(new ByteArrayInputStream(bytes));
-                    this.selfAvatar = img;
-                    avatarCache.put(user.getUsername(), img);
-                } catch (Exception ignore) {}
-            }
+        if (user != null && user.getUsername() != null && !user.getUsername().equals(prev)) {
+            localStore = LocalMessageStore.open(user.getUsername());
         }
     }
 
@@ -295,6 +304,7 @@ public class MidController implements CallSignalListener {
     
     public void scrollToRow(HBox target) {
         if (target == null || messageContainer == null) return;
+        if (messageList != null) messageList.reveal(target); // dòng cũ có thể đang bị tháo khỏi container
         // tìm ScrollPane chứa messageContainer
         Node p = messageContainer.getParent();
         while (p != null && !(p instanceof ScrollPane)) p = p.getParent();
@@ -353,6 +363,7 @@ public class MidController implements CallSignalListener {
 
     public void openConversation(User u) {
         System.out.println("[OPEN] conversation with " + u.getUsername());
+        stashConversation();
         this.selectedUser = u;
         this.currentPeerUser = u;
         this.currentPeer = u.getUsername(); // ✅ FIX: remember current peer for 1-1 chat
@@ -366,35 +377,20 @@ public class MidController implements CallSignalListener {
             rightController.showUser(u, online, lastSeen);
         }
 
-        Image peerAvatar = loadAvatarImage(u);
-        if (midHeaderAvatar != null && peerAvatar != null) {
-            midHeaderAvatar.setImage(peerAvatar);
-        }
-        if (rightController != null) {
-            rightController.setAvatar(peerAvatar);
-        }
-        if (u.getUsername() != null && peerAvatar != null) {
-            avatarCache.put(u.getUsername(), peerAvatar);
+        // ảnh mặc định trước, bản thu nhỏ thay vào khi giải mã xong (không decode trên FX thread)
+        if (midHeaderAvatar != null) midHeaderAvatar.setImage(defaultAvatar);
+        if (rightController != null) rightController.setAvatar(defaultAvatar);
+        byte[] peerBytes = u.getAvatar();
+        if (peerBytes != null && peerBytes.length > 0) {
+            String key = ImageService.avatarKey(peerBytes);
+            ImageService.get().into(midHeaderAvatar, key, HEADER_PX, ImageService.bytes(peerBytes));
+            ImageService.get().load(key, HEADER_PX, ImageService.bytes(peerBytes), img -> {
+                if (rightController != null && u.getUsername().equals(currentPeer)) rightController.setAvatar(img);
+            });
         }
-        if (messageContainer != null) {
-            if (messageContainer.getChildren().size() > 100) {
-                messageContainer.getChildren().remove(0, messageContainer.getChildren().size() - 100);
-            }
-            messageContainer.getChildren().clear();
-        }
-
-        shownCallLogs.clear();
-        messageSnapshot.clear(); 
+        clearConversationView();
         enableAutoScroll();
-
-        if (connection != null && connection.isAlive()) {
-            try {
-                connection.history(currentUser.getUsername(), u.getUsername(), 50);
-            } catch (Exception e) {
-                System.err.println("[HISTORY] Failed to load history: " + e.getMessage());
-                Platform.runLater(() -> showErrorAlert("Lịch sử tin nhắn không tải được: " + e.getMessage()));
-            }
-        }
+        loadHistory(u.getUsername());
 
         List<Frame> pending = pendingFileEvents.remove(u.getUsername());
         if (pending != null) pending.forEach(this::handleServerFrame);
@@ -402,6 +398,7 @@ public class MidController implements CallSignalListener {
 
     
     public void openGroupConversation(LeftController.GroupViewModel g) {
+        stashConversation();
         this.selectedUser = null;
         this.currentPeerUser = null;
         this.currentPeer = "group:" + g.groupId; // để biết peer hiện tại là group
@@ -419,27 +416,10 @@ public class MidController implements CallSignalListener {
         if (rightController != null) rightController.setAvatar(groupAvatar);
 
         // clear messageContainer như openConversation(user)
-        if (messageContainer != null) {
-            messageContainer.getChildren().clear();
-        }
-
-        shownCallLogs.clear();
-        messageSnapshot.clear();
+        clearConversationView();
         enableAutoScroll();
-
-        // xin history từ server cho group
-        if (connection != null && connection.isAlive()) {
-            try {
-                // TOÀN BỘ CHỖ NÀY TÙY VÀO GIAO THỨC SERVER
-                // Ví dụ: history(fromUser, toPeer, limit)
-                // toPeer = "group:<id>"
-            	connection.groupHistory(currentUser.getUsername(), String.valueOf(g.groupId), 50);
-
-            } catch (Exception e) {
-                System.err.println("[HISTORY] Failed to load group history: " + e.getMessage());
-                Platform.runLater(() -> showErrorAlert("Không tải được lịch sử nhóm."));
-            }
-        }
+        // xin history cho group (toPeer = "group:<id>")
+        loadHistory(currentPeer);
         if (rightController != null) {
             User pseudoGroup = new User();
             pseudoGroup.setUsername(g.name); // show group name
@@ -457,52 +437,116 @@ public class MidController implements CallSignalListener {
             }
         }
     }
-    public Image loadAvatarImageForUser(String username) {
-        if (username == null || username.isBlank()) return defaultAvatar;
-
-        // 1. Nếu là chính mình
-        if (currentUser != null && username.equals(currentUser.getUsername())) {
-            if (selfAvatar != null) return selfAvatar;
-
-            byte[] bytes = currentUser.getAvatar();
-            if (bytes != null && bytes.length > 0) {
-                try {
-                    Image img = new Image(new ByteArrayInputStream(bytes));
-                    selfAvatar = img;
-                    avatarCache.put(username, img);
-                    return img;
-                } catch (Exception ignore) {}
-            }
-            return defaultAvatar;
-        }
 
-        // 2. Thử cache theo username
-        Image cached = avatarCache.get(username);
-        if (cached != null) {
-            System.out.println("[AVATAR] cache hit for " + username);
-            return cached;
+    /** Cất các dòng đang hiển thị của hội thoại hiện tại vào cache trước khi chuyển. */
+    private void stashConversation() {
+        if (currentPeer == null || messageList == null) return;
+        if (!convChangeSeq.containsKey(currentPeer)) return; // server không hỗ trợ delta → không cần giữ
+        convCache.put(currentPeer, new ConvState(
+                new ArrayList<>(messageList.rows()),
+                new ArrayList<>(messageSnapshot),
+                new HashSet<>(shownCallLogs)));
+    }
+
+    /**
+     * Hiển thị hội thoại từ cache (bộ nhớ → đĩa) rồi chỉ xin server phần delta;
+     * không có cache thì tải trang mới nhất như cũ.
+     */
+    private void loadHistory(String key) {
+        long afterId = restoreConversation(key);
+        Long seq = convChangeSeq.get(key);
+        if (afterId > 0 && seq != null) {
+            // dòng đang hiển thị có thể gồm tin realtime chưa ghi xuống đĩa → đồng bộ theo mốc của đĩa
+            if (localStore != null) afterId = localStore.maxId(key, afterId);
+            requestHistory(key, afterId, seq);
+            return;
         }
+        if (localStore == null) {
+            requestHistory(key, 0, -1);
+            return;
+        }
+        LocalMessageStore store = localStore;
+        store.load(key).thenAccept(snap -> Platform.runLater(() -> {
+            if (!key.equals(currentPeer)) return; // đã chuyển hội thoại khác
+            if (snap.isEmpty() || snap.changeSeq() < 0) {
+                store.clear(key);
+                requestHistory(key, 0, -1);
+                return;
+            }
+            handleServerFrame(new Frame(MessageType.HISTORY_PAGE, LocalMessageStore.FRAME_SENDER,
+                    currentUser.getUsername(), snap.pageBody()));
+            requestHistory(key, snap.maxId(), snap.changeSeq());
+        }));
+    }
 
-        // 3. Hỏi LeftController xem có User + avatar bytes không
-        if (leftController != null) {
-            User u = leftController.getUserByUsername(username);
-            if (u != null) {
-                byte[] bytes = u.getAvatar();
-                if (bytes != null && bytes.length > 0) {
-                    try {
-                        Image img = new Image(new ByteArrayInputStream(bytes));
-                        avatarCache.put(username, img);
-                        System.out.println("[AVATAR] loaded from LeftController for " + username);
-                        return img;
-                    } catch (Exception ignore) { }
-                }
+    /** {@code afterId > 0 && changeSeq >= 0}: đồng bộ delta; ngược lại trang mới nhất. */
+    private void requestHistory(String key, long afterId, long changeSeq) {
+        if (connection == null || !connection.isAlive() || currentUser == null) return;
+        String me = currentUser.getUsername();
+        boolean sync = afterId > 0 && changeSeq >= 0;
+        try {
+            if (key.startsWith("group:")) {
+                String groupId = key.substring("group:".length());
+                if (sync) connection.syncGroupHistory(me, groupId, 50, afterId, changeSeq);
+                else connection.groupHistory(me, groupId, 50);
+            } else {
+                if (sync) connection.syncHistory(me, key, 50, afterId, changeSeq);
+                else connection.history(me, key, 50);
             }
+        } catch (Exception e) {
+            System.err.println("[HISTORY] Failed to load history: " + e.getMessage());
+            Platform.runLater(() -> showErrorAlert("Lịch sử tin nhắn không tải được: " + e.getMessage()));
         }
+    }
+
+    public LocalMessageStore getLocalStore() { return localStore; }
 
-        System.out.println("[AVATAR] default for " + username);
+    /** Dựng lại hội thoại từ cache; trả id tin lớn nhất đã có (0 = không có cache, cần tải đầy đủ). */
+    private long restoreConversation(String key) {
+        ConvState st = (key == null) ? null : convCache.remove(key);
+        if (st == null || messageList == null) return 0;
+        messageList.setAll(st.rows());
+        messageSnapshot.addAll(st.snapshot());
+        shownCallLogs.addAll(st.callLogs());
+
+        long maxId = 0;
+        for (Node n : st.rows()) {
+            Object ud = n.getUserData();
+            if (ud == null) continue;
+            try { maxId = Math.max(maxId, Long.parseLong(String.valueOf(ud))); }
+            catch (NumberFormatException ignore) {}
+        }
+        return maxId;
+    }
+
+    /** Xoá khung chat (đổi hội thoại, hoặc server báo cache lệch quá xa → reset). */
+    public void clearConversationView() {
+        if (messageList != null) messageList.clear();
+        shownCallLogs.clear();
+        messageSnapshot.clear();
+    }
+
+    public void setConversationChangeSeq(String key, long seq) {
+        if (key != null && seq >= 0) convChangeSeq.put(key, seq);
+    }
+
+    /** Ảnh tạm cho avatar trong dòng tin (self đã có sẵn ảnh, còn lại ảnh mặc định). */
+    public Image getAvatarPlaceholder(String username) {
+        if (selfAvatar != null && currentUser != null && username != null
+                && username.equals(currentUser.getUsername())) {
+            return selfAvatar;
+        }
         return defaultAvatar;
     }
 
+    /** Đặt avatar thu nhỏ của {@code username} vào {@code iv} khi ImageService giải mã xong. */
+    public void loadAvatarInto(ImageView iv, String username) {
+        User u = findUserByUsername(username);
+        byte[] bytes = (u != null) ? u.getAvatar() : null;
+        if (bytes == null || bytes.length == 0) return;
+        ImageService.get().into(iv, ImageService.avatarKey(bytes), AVATAR_PX, ImageService.bytes(bytes));
+    }
+
 
     private User findUserByUsername(String username) {
         if (username == null || username.isBlank()) return null;
@@ -528,19 +572,6 @@ public class MidController implements CallSignalListener {
             ).toExternalForm()
         );
     }
-    private Image loadAvatarImage(User u) {
-        try {
-            byte[] bytes = (u != null) ? u.getAvatar() : null;
-            if (bytes != null && bytes.length > 0) {
-                return new Image(new java.io.ByteArrayInputStream(bytes));
-            }
-        } catch (Exception ignore) { }
-        return new Image(
-            Objects.requireNonNull(
-                getClass().getResource("/client/view/images/default user.png")
-            ).toExternalForm()
-        );
-    }
 
     
     private void snapshotText(String text, boolean incoming) {
@@ -557,19 +588,11 @@ public class MidController implements CallSignalListener {
     }
 
     public HBox findRowByUserData(String id) {
-        if (id == null) return null;
-        for (Node n : messageContainer.getChildren()) {
-            if (n instanceof HBox h) {
-                Object ud = h.getUserData();
-                if (ud != null && id.equals(String.valueOf(ud))) return h;
-            }
-        }
-        return null;
+        return (messageList == null) ? null : messageList.findById(id);
     }
 
     public boolean removeMessageById(String id) {
-        HBox row = findRowByUserData(id);
-        return row != null && messageContainer.getChildren().remove(row); 
+        return messageList != null && messageList.remove(findRowByUserData(id));
     }
 
     public void showErrorAlert(String message) {
@@ -672,23 +695,9 @@ public class MidController implements CallSignalListener {
     }
 
     private void enableAutoScroll() {
-        ScrollPane sp = findMessageScrollPane();
-        if (sp == null) return;
-
-        if (autoScrollListener != null) {
-            messageContainer.heightProperty().removeListener(autoScrollListener);
-        }
-
-        autoScrollListener = (obs, oldV, newV) -> Platform.runLater(() -> {
-            sp.layout();
-            sp.setVvalue(1.0);
-        });
-        messageContainer.heightProperty().addListener(autoScrollListener);
-
-        Platform.runLater(() -> {
-            sp.layout();
-            sp.setVvalue(1.0);
-        });
+        if (messageList == null) return;
+        messageList.bindScroll(findMessageScrollPane());
+        messageList.scrollToBottom();
     }
     
     public void updateTextBubbleById(String id, String newText) {
@@ -723,31 +732,18 @@ public class MidController implements CallSignalListener {
     }
 
     public HBox findRowByFid(String fid) {
-        if (fid == null || fid.isBlank()) return null;
-        var mc = getMessageContainer();
-        if (mc == null) return null;
-        for (var n : mc.getChildren()) {
-            if (n instanceof HBox row) {
-                Object p = row.getProperties().get("fid");
-                if (p != null && fid.equals(String.valueOf(p))) return row;
-            }
-        }
-        return null;
+        return (messageList == null) ? null : messageList.findByFid(fid);
     }
     public void tagNextPendingOutgoing(String dbIdStr) {
         if (dbIdStr == null || dbIdStr.isBlank()) return;
         try { Long.parseLong(dbIdStr); } catch (Exception e) { return; }
-        var mc = getMessageContainer();
-        if (mc != null && !mc.getChildren().isEmpty()) {
-            for (int i = mc.getChildren().size() - 1; i >= 0; i--) {
-                var n = mc.getChildren().get(i);
-                if (n instanceof HBox row) {
-                    Object ud = row.getUserData();
-                    boolean numeric = false;
-                    if (ud != null) { try { Long.parseLong(String.valueOf(ud)); numeric = true; } catch (Exception ignore) {} }
-                    if (!numeric) { row.setUserData(dbIdStr); break; }
-                }
-            }
+        if (messageList != null) {
+            HBox row = messageList.findLast(r -> {
+                Object ud = r.getUserData();
+                if (ud == null) return true;
+                try { Long.parseLong(String.valueOf(ud)); return false; } catch (Exception ignore) { return true; }
+            });
+            if (row != null) row.setUserData(dbIdStr);
         }
         if (getOutgoingFileBubbles() != null && !getOutgoingFileBubbles().isEmpty()) {
             var it = getOutgoingFileBubbles().entrySet().iterator();
@@ -863,10 +859,6 @@ public class MidController implements CallSignalListener {
         return UtilHandler.classifyMedia(mime, name);
     }
 
-    private static String jsonGet(String json, String key) {
-        return UtilHandler.jsonGet(json, key);
-    }
-
     private static String guessExt(String mime, String fallbackName) {
         return UtilHandler.guessExt(mime, fallbackName);
     }
@@ -901,6 +893,7 @@ public class MidController implements CallSignalListener {
     public Label getCurrentChatName() { return currentChatName; }
     public Label getCurrentChatStatus() { return currentChatStatus; }
     public VBox getMessageContainer() { return messageContainer; }
+    public MessageListModel getMessageList() { return messageList; }
     public TextField getMessageField() { return messageField; }
     public Button getLogoutBtn() { return logoutBtn; }
     public RightController getRightController() { return rightController; }
@@ -1,6 +1,7 @@
 package client.controller;
 
 import client.controller.mid.UtilHandler;
+import client.media.ImageService;
 import common.User;
 import javafx.application.Platform;
 import javafx.beans.value.ChangeListener;
@@ -244,15 +245,17 @@ public class RightController {
     public void addPhotoThumb(String fileId, String fileName, long fileSize, String filePath) {
         Platform.runLater(() -> {
             File localFile = new File(filePath);
-            Image image = localFile.exists() ? 
-                    new Image(localFile.toURI().toString()) : 
-                    new Image(getClass().getResource("/client/view/images/avatar.jpg").toExternalForm());
-            
+            Image image = new Image(getClass().getResource("/client/view/images/avatar.jpg").toExternalForm());
+
             StackPane cell = makeSquareThumb(92);
             ImageView iv = new ImageView(image);
             iv.setFitWidth(92);
             iv.setFitHeight(92);
             iv.setPreserveRatio(false);
+            if (localFile.exists()) {
+                // thumbnail 184px (HiDPI) giải mã ngoài FX thread, cache theo fileId
+                ImageService.get().into(iv, "file:" + fileId, 184, ImageService.file(localFile));
+            }
             cell.getChildren().add(iv);
 
             Rectangle clip = new Rectangle(92, 92);
@@ -8,6 +8,7 @@ import client.media.CallOffer;
 import client.media.LanAudioSession;
 import client.media.LanVideoSession;
 import client.media.LanVideoSession.OfferInfo;
+import common.Json;
 import common.User;
 import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
@@ -215,18 +216,18 @@ public class CallHandler {
         if (sendToPeer && conn != null && conn.isAlive()) {
             String calleeName = controller.isCaller() ? peer : self;
 
-            String payload = "[CALLLOG]{"
-                + "\"type\":\"video\","
-                + "\"title\":\"" + escape(title) + "\","
-                + "\"subtitle\":\"" + escape(subtitle) + "\","
-                + "\"icon\":\"" + escape(icon) + "\","
-                + "\"started\":" + started + ","
-                + "\"ended\":" + ended + ","
-                + "\"durationMs\":" + duration + ","
-                + "\"callId\":\"" + controller.getCurrentCallId() + "\","
-                + "\"caller\":\"" + escape(callerName) + "\","
-                + "\"callee\":\"" + escape(calleeName) + "\""
-                + "}";
+            String payload = "[CALLLOG]" + Json.object()
+                .field("type", "video")
+                .field("title", nz(title))
+                .field("subtitle", nz(subtitle))
+                .field("icon", nz(icon))
+                .field("started", started)
+                .field("ended", ended)
+                .field("durationMs", duration)
+                .field("callId", String.valueOf(controller.getCurrentCallId()))
+                .field("caller", nz(callerName))
+                .field("callee", nz(calleeName))
+                .endObject().toString();
             try {
                 conn.dm(self, peer, payload);
             } catch (Exception e) {
@@ -246,8 +247,8 @@ public class CallHandler {
             );
     }
 
-    private static String escape(String s) {
-        return (s == null) ? "" : s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static String nz(String s) {
+        return (s == null) ? "" : s;
     }
 
     public void localCancelBeforeConnect() {
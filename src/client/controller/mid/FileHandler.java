@@ -7,6 +7,7 @@ import javafx.scene.layout.HBox;
 import java.io.File;
 
 import client.controller.MidController;
+import client.media.ImageService;
 import client.controller.mid.UtilHandler.MediaKind;
 
 public class FileHandler {
@@ -39,21 +40,9 @@ public class FileHandler {
 
         switch (kind) {
             case IMAGE -> {
-                Image img;
-                try {
-                    if (!safeId.isBlank()) {
-                        File f = new File("Uploads", safeId);
-                        if (f.exists()) {
-                            img = new Image(f.toURI().toString(), 200, 0, true, true);
-                        } else {
-                            img = new WritableImage(8, 8);
-                        }
-                    } else {
-                        img = new WritableImage(8, 8);
-                    }
-                } catch (Exception e) {
-                    img = new WritableImage(8, 8);
-                }
+                // ảnh tạm; bản thu nhỏ được giải mã ngoài FX thread rồi thay vào
+                Image img = new WritableImage(8, 8);
+                File local = safeId.isBlank() ? null : new File("Uploads", safeId);
 
                 // Caption: "<name> • <size>" (nếu có size)
                 String caption = safeName;
@@ -61,6 +50,9 @@ public class FileHandler {
 
                 row = controller.addImageMessage(img, caption, false, safeId.isBlank() ? null : safeId, sender, createdAt, updatedAt);
                 if (!safeId.isBlank()) row.setUserData(safeId);
+                if (local != null && local.exists()) {
+                    controller.getMediaHandler().loadImageInto(row, "file:" + safeId, ImageService.file(local));
+                }
             }
 
             case AUDIO -> {
@@ -1,6 +1,7 @@
 package client.controller.mid;
 
 import client.controller.MidController;
+import client.media.ImageService;
 import javafx.application.Platform;
 import javafx.geometry.Pos;
 import javafx.scene.Node;
@@ -30,6 +31,9 @@ public class MediaHandler {
 
     /* ------------ helpers ------------ */
     private boolean onFx() { return Platform.isFxApplicationThread(); }
+    // ảnh chat hiển thị rộng 260px → giải mã tối đa 520px (đủ cho HiDPI), không giữ bitmap gốc
+    private static final int IMAGE_PX = 520;
+
     private void runFx(Runnable r) { if (onFx()) r.run(); else Platform.runLater(r); }
 
     private Node getBubbleNode(HBox row) {
@@ -455,7 +459,8 @@ public class MediaHandler {
     public void updateImageBubbleFromUrl(HBox row, String fileUrl) {
         runFx(() -> {
             try {
-                Image img = new Image(fileUrl, true);
+                Object fid = (row == null) ? null : row.getProperties().get("fid");
+                String key = (fid != null) ? "file:" + fid : "url:" + fileUrl;
                 Node bubble = getBubbleNode(row);
 
                 if (!(bubble instanceof VBox box) || box.getId() == null || !box.getId().endsWith("-image")) {
@@ -466,7 +471,7 @@ public class MediaHandler {
                     ImageView iv = new ImageView();
                     iv.setFitWidth(260);
                     iv.setPreserveRatio(true);
-                    iv.setImage(img);
+                    ImageService.get().into(iv, key, IMAGE_PX, ImageService.url(fileUrl));
 
                     newBox.getChildren().add(iv);
                     replaceBubble(row, newBox);
@@ -481,7 +486,7 @@ public class MediaHandler {
                     iv.setPreserveRatio(true);
                     box.getChildren().add(0, iv);
                 }
-                iv.setImage(img);
+                ImageService.get().into(iv, key, IMAGE_PX, ImageService.url(fileUrl));
 
                 // Xoá mọi label còn sót (nếu có)
                 box.getChildren().removeIf(n -> n instanceof Label);
@@ -492,6 +497,14 @@ public class MediaHandler {
         });
     }
 
+    /** Bubble ảnh đã dựng với ảnh tạm: thay bằng bản thu nhỏ khi ImageService giải mã xong (giữ caption). */
+    public void loadImageInto(HBox row, String key, ImageService.Source src) {
+        runFx(() -> {
+            if (!(getBubbleNode(row) instanceof VBox box)) return;
+            findFirst(box, ImageView.class).ifPresent(iv -> ImageService.get().into(iv, key, IMAGE_PX, src));
+        });
+    }
+
     /* ===================== META: chỉ áp dụng cho FILE thường ===================== */
     public void updateGenericFileMeta(HBox row, String fid) {
         updateGenericFileMeta(row, fid, null);
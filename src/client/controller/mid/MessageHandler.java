@@ -1,6 +1,8 @@
 package client.controller.mid;
 
 import common.Frame;
+import common.Json;
+import client.cache.LocalMessageStore;
 import javafx.application.Platform;
 import javafx.scene.layout.HBox;
 
@@ -61,6 +63,7 @@ public class MessageHandler {
         switch (f.type) {
             case DM -> handleDmFrame(f, convKey);
             case HISTORY -> handleHistoryFrame(f, convKey);
+            case HISTORY_PAGE -> handleHistoryPageFrame(f, convKey);
             case FILE_EVT, AUDIO_EVT -> handleFileEvtFrame(f, convKey);
             case FILE_META -> handleFileMetaFrame(f);
             case FILE_CHUNK -> handleFileChunkFrame(f);
@@ -141,17 +144,18 @@ public class MessageHandler {
         boolean isIncoming;
         
         // Thử parse JSON (Định dạng mới: Server gửi JSON có time/sender)
-        String jsonSender = UtilHandler.jsonGet(jsonBody, "sender");
-        String jsonContent = UtilHandler.jsonGet(jsonBody, "content");
-        String jsonRecipient = UtilHandler.jsonGet(jsonBody, "recipient");
+        Json.Obj obj = Json.parse(jsonBody);
+        String jsonSender = obj.str("sender");
+        String jsonContent = obj.str("content");
+        String jsonRecipient = obj.str("recipient");
         
         if (jsonSender != null && jsonContent != null) {
             // --- ĐỊNH DẠNG JSON MỚI ---
             sender = jsonSender;
             content = jsonContent;
             recipient = jsonRecipient;
-            createdAt = UtilHandler.parseLongSafe(UtilHandler.jsonGet(jsonBody, "createdAt"), System.currentTimeMillis());
-            updatedAt = UtilHandler.parseLongSafe(UtilHandler.jsonGet(jsonBody, "updatedAt"), 0L);
+            createdAt = obj.lng("createdAt", System.currentTimeMillis());
+            updatedAt = obj.lng("updatedAt", 0L);
             
             // Xác định incoming/outgoing dựa trên sender của JSON (vì Frame.recipient là user hiện tại)
             String myName = (controller.getCurrentUser() != null) ? controller.getCurrentUser().getUsername() : "";
@@ -194,6 +198,57 @@ public class MessageHandler {
         handleHistoryContent(content, f.transferId, isIncoming, sender, createdAt, updatedAt);
     }
 
+    /**
+     * 1 trang lịch sử (DM hoặc group) trong 1 frame: render toàn bộ trong cùng 1 lần chạy
+     * trên FX thread thay vì mỗi tin 1 frame + 1 runLater.
+     */
+    private void handleHistoryPageFrame(Frame f, String openPeer) {
+        if (!Platform.isFxApplicationThread()) {
+            Platform.runLater(() -> handleHistoryPageFrame(f, getCurrentConversationKey()));
+            return;
+        }
+        Json.Obj page = Json.parse(f.body);
+        if (page == null) return;
+        String peer = page.str("peer");
+        boolean reset = page.bool("reset", false);
+
+        // ghi xuống cache đĩa kể cả khi đã chuyển hội thoại: dữ liệu vẫn đúng cho lần mở sau
+        LocalMessageStore store = controller.getLocalStore();
+        if (store != null && peer != null && !LocalMessageStore.FRAME_SENDER.equals(f.sender)) {
+            store.appendPage(peer, reset, page.objects("messages"), page.objects("changes"),
+                    page.lng("changeSeq", -1L));
+        }
+        if (peer == null || openPeer == null || !openPeer.equals(peer)) return; // đã chuyển cuộc hội thoại khác
+
+        if (reset) controller.clearConversationView();
+
+        String myName = (controller.getCurrentUser() != null) ? controller.getCurrentUser().getUsername() : "";
+        for (Json.Obj m : page.objects("messages")) {
+            String sender = m.str("sender");
+            String content = m.str("content");
+            if (sender == null || content == null) continue;
+
+            long msgId = m.lng("id", 0L);
+            if (msgId > 0 && controller.findRowByUserData(String.valueOf(msgId)) != null) continue; // đã có trong cache
+            handleHistoryContent(
+                    content,
+                    (msgId > 0) ? String.valueOf(msgId) : null,
+                    !sender.equals(myName),
+                    sender,
+                    m.lng("createdAt", System.currentTimeMillis()),
+                    m.lng("updatedAt", 0L));
+        }
+
+        // tombstone sửa/xoá từ lần đồng bộ trước
+        for (Json.Obj c : page.objects("changes")) {
+            String id = c.str("id");
+            if (id == null) continue;
+            if ("delete".equals(c.str("op"))) controller.removeMessageById(id);
+            else if ("edit".equals(c.str("op"))) controller.updateTextBubbleById(id, c.str("content", ""));
+        }
+        if (page.has("changeSeq")) controller.setConversationChangeSeq(peer, page.lng("changeSeq", -1L));
+    }
+
 	 private void handleHistoryContent(String body, Object transferId, boolean incoming, String sender, long createdAt, long updatedAt) {
 	     String[] pr = parseReplyPrefix(body);
 	     String clean = pr[0];
@@ -273,15 +328,16 @@ public class MessageHandler {
     private void handleFileEvtFrame(Frame f, String currentConvKey) {
         String json = (f.body == null) ? "" : f.body;
 
-        String from = UtilHandler.jsonGet(json, "from");
-        String to   = UtilHandler.jsonGet(json, "to");
-        String name = UtilHandler.jsonGet(json, "name");
-        String mime = UtilHandler.jsonGet(json, "mime");
-        long bytes  = UtilHandler.parseLongSafe(UtilHandler.jsonGet(json, "bytes"), 0);
-        int duration = UtilHandler.parseIntSafe(UtilHandler.jsonGet(json, "duration"), 0);
-        String uuid   = UtilHandler.jsonGet(json, "uuid");
-        String legacy = UtilHandler.jsonGet(json, "id");
-        String dbIdStr = UtilHandler.jsonGet(json, "fileId");
+        Json.Obj obj = Json.parse(json);
+        String from = obj.str("from");
+        String to   = obj.str("to");
+        String name = obj.str("name");
+        String mime = obj.str("mime");
+        long bytes  = obj.lng("bytes", 0);
+        int duration = obj.integer("duration", 0);
+        String uuid   = obj.str("uuid");
+        String legacy = obj.str("id");
+        String dbIdStr = obj.str("fileId");
         final String sender = (from != null) ? from : "";
         final long createdAt = System.currentTimeMillis();
         final long updatedAt = 0L;
@@ -379,7 +435,7 @@ public class MessageHandler {
                 row.getProperties().put("fid", displayKey);
             }
 
-            String msgIdStr0 = UtilHandler.jsonGet(json, "messageId");
+            String msgIdStr0 = obj.str("messageId");
             if (msgIdStr0 != null && !msgIdStr0.isBlank()) {
                 controller.getFileIdToMsgId().put(displayKey, msgIdStr0);
                 try {
@@ -392,7 +448,7 @@ public class MessageHandler {
             if (controller.getConnection() != null && controller.getConnection().isAlive()) {
                 try {
                     Long msgId = null;
-                    String msgIdS = UtilHandler.jsonGet(json, "messageId");
+                    String msgIdS = obj.str("messageId");
                     if (msgIdS != null && !msgIdS.isBlank()) {
                         try { msgId = Long.parseLong(msgIdS); } catch (Exception ignore) {}
                     }
@@ -419,15 +475,16 @@ public class MessageHandler {
 
     private void handleFileMetaFrame(Frame f) {
         String body = (f.body == null) ? "" : f.body;
-        String fid = UtilHandler.jsonGet(body, "fileId");
-        String msgIdStr = UtilHandler.jsonGet(body, "messageId");
-        String name = UtilHandler.jsonGet(body, "name");
-        String mime = UtilHandler.jsonGet(body, "mime");
-        String replyTo = UtilHandler.jsonGet(body, "replyTo");
+        Json.Obj obj = Json.parse(body);
+        String fid = obj.str("fileId");
+        String msgIdStr = obj.str("messageId");
+        String name = obj.str("name");
+        String mime = obj.str("mime");
+        String replyTo = obj.str("replyTo");
         System.out.println("[CLIENT] FILE_META parsed replyTo=" + replyTo
                 + " fid=" + fid + " msgIdStr=" + msgIdStr + " name=" + name + " mime=" + mime);
-        long metaSize = UtilHandler.parseLongSafe(UtilHandler.jsonGet(body, "size"), 0);
-        if (metaSize <= 0) metaSize = UtilHandler.parseLongSafe(UtilHandler.jsonGet(body, "bytes"), 0);
+        long metaSize = obj.lng("size", 0);
+        if (metaSize <= 0) metaSize = obj.lng("bytes", 0);
         final long sizeHint = metaSize;
 
         if (fid == null || fid.isBlank()) return;
@@ -468,35 +525,25 @@ public class MessageHandler {
                 }
             } catch (Exception ignore) {}
             if (!tagged) {
-                var mc = controller.getMessageContainer();
-                if (mc != null && !mc.getChildren().isEmpty()) {
-                    for (int i = mc.getChildren().size() - 1; i >= 0; i--) {
-                        var n = mc.getChildren().get(i);
-                        if (n instanceof HBox h) {
-                            Object ud = h.getUserData();
-                            boolean hasNumeric = false;
-                            if (ud != null) {
-                                try {
-                                    Long.parseLong(String.valueOf(ud));
-                                    hasNumeric = true;
-                                } catch (Exception ignore) {}
-                            }
-                            if (hasNumeric) continue;
-                            Node b = h.getChildren().isEmpty() ? null : h.getChildren().get(h.getChildren().size() - 1);
-                            if (b instanceof VBox vb) {
-                                String bid = vb.getId();
-                                if (bid != null && bid.startsWith("outgoing-")) {
-                                    h.setUserData(msgIdStr);
-                                    h.getProperties().put("fid", fid);
-                                    if (replyTo != null && !replyTo.isBlank() && h.getProperties().get("replyTo") == null) {
-                                        h.getProperties().put("replyTo", replyTo);
-                                        new UIMessageHandler(controller).attachReplyChipById(
-                                            h, h.getAlignment()==Pos.CENTER_LEFT, replyTo);
-                                    }
-                                    break;
-                                }
-                            }
-                        }
+                HBox h = controller.getMessageList().findLast(r -> {
+                    Object ud = r.getUserData();
+                    if (ud != null) {
+                        try {
+                            Long.parseLong(String.valueOf(ud));
+                            return false;
+                        } catch (Exception ignore) {}
+                    }
+                    Node b = r.getChildren().isEmpty() ? null : r.getChildren().get(r.getChildren().size() - 1);
+                    String bid = (b instanceof VBox vb) ? vb.getId() : null;
+                    return bid != null && bid.startsWith("outgoing-");
+                });
+                if (h != null) {
+                    h.setUserData(msgIdStr);
+                    h.getProperties().put("fid", fid);
+                    if (replyTo != null && !replyTo.isBlank() && h.getProperties().get("replyTo") == null) {
+                        h.getProperties().put("replyTo", replyTo);
+                        new UIMessageHandler(controller).attachReplyChipById(
+                            h, h.getAlignment()==Pos.CENTER_LEFT, replyTo);
                     }
                 }
             }
@@ -557,13 +604,13 @@ public class MessageHandler {
 
     private void handleFileChunkFrame(Frame f) {
         String fid = f.transferId;
-        byte[] data = (f.bin == null) ? new byte[0] : f.bin;
+        int len = f.binLength();
         BufferedOutputStream bos = controller.getDlOut().get(fid);
         
         if (bos != null) {
             try {
                 // Ghi dữ liệu từ chunk vào luồng đầu ra
-                if (data.length > 0) bos.write(data);
+                if (len > 0) bos.write(f.bin, f.binOffset, len);
             } catch (IOException e) {
                 System.err.println("[DL] write failed: " + e.getMessage());
                 // Đóng stream và xóa nó khỏi map nếu có lỗi
@@ -673,10 +720,11 @@ public class MessageHandler {
         }
         if (body.contains("\"status\"") && body.contains("FILE_SAVED")) {
             String uuid = f.transferId;
-            String msgIdStr = UtilHandler.jsonGet(body, "messageId");
-            String fileIdStr = UtilHandler.jsonGet(body, "fileId");
-            String bytesStr = UtilHandler.jsonGet(body, "bytes");
-            String mime = UtilHandler.jsonGet(body, "mime");
+            Json.Obj obj = Json.parse(body);
+            String msgIdStr = obj.str("messageId");
+            String fileIdStr = obj.str("fileId");
+            String bytesStr = obj.str("bytes");
+            String mime = obj.str("mime");
             Long msgId = null, fileId = null, bytes = null;
             try {
                 if (msgIdStr != null) msgId = Long.parseLong(msgIdStr);
@@ -726,10 +774,11 @@ public class MessageHandler {
 
         try {
             long fileId = UtilHandler.parseLongSafe(f.transferId, 0);
-            String fileName = UtilHandler.jsonGet(body, "file_name");
-            String mimeType = UtilHandler.jsonGet(body, "mime_type");
-            long fileSize = UtilHandler.parseLongSafe(UtilHandler.jsonGet(body, "file_size"), 0);
-            String filePath = UtilHandler.jsonGet(body, "file_path"); // Lấy đường dẫn file từ JSON
+            Json.Obj obj = Json.parse(body);
+            String fileName = obj.str("file_name");
+            String mimeType = obj.str("mime_type");
+            long fileSize = obj.lng("file_size", 0);
+            String filePath = obj.str("file_path"); // Lấy đường dẫn file từ JSON
 
             if (fileId <= 0 || fileName == null || filePath == null) return;
 
@@ -950,12 +999,13 @@ public class MessageHandler {
             int i = body.indexOf('{');
             if (!body.startsWith("[CALLLOG]") || i < 0) return null;
             String json = body.substring(i);
-            String icon = UtilHandler.jsonGet(json, "icon");
-            String title = UtilHandler.jsonGet(json, "title");
-            String subtitle = UtilHandler.jsonGet(json, "subtitle");
-            String callId = UtilHandler.jsonGet(json, "callId");
-            String caller = UtilHandler.jsonGet(json, "caller");
-            String callee = UtilHandler.jsonGet(json, "callee");
+            Json.Obj obj = Json.parse(json);
+            String icon = obj.str("icon");
+            String title = obj.str("title");
+            String subtitle = obj.str("subtitle");
+            String callId = obj.str("callId");
+            String caller = obj.str("caller");
+            String callee = obj.str("callee");
             if (title == null) title = "";
             if (subtitle == null) subtitle = "";
             if (icon == null || icon.isBlank()) icon = "🎥";
@@ -1062,14 +1112,11 @@ public class MessageHandler {
             // ✅ Render gợi ý lên UI
             Platform.runLater(() -> {
                 try {
-                    VBox msgBox = controller.getMessageContainer();
-                    if (msgBox == null) return;
+                    MessageListModel msgList = controller.getMessageList();
+                    if (msgList == null) return;
 
                     // 🧹 XÓA TẤT CẢ Smart Reply Box CŨ
-                    msgBox.getChildren().removeIf(node ->
-                            node instanceof HBox h &&
-                            "smart-reply-box".equals(h.getId())
-                    );
+                    msgList.removeIf(h -> "smart-reply-box".equals(h.getId()));
 
                     // 🆕 TẠO BOX GỢI Ý MỚI
                     HBox suggestionBox = new HBox(8);
@@ -1087,13 +1134,13 @@ public class MessageHandler {
                         btn.setOnAction(ev -> {
                             controller.getMessageField().setText(sug);
                             controller.onSendMessage();
-                            msgBox.getChildren().remove(suggestionBox);
+                            msgList.remove(suggestionBox);
                         });
                         suggestionBox.getChildren().add(btn);
                     }
 
                     // 🪄 THÊM CHỈ SAU TIN NHẮN GẦN NHẤT
-                    msgBox.getChildren().add(suggestionBox);
+                    msgList.append(suggestionBox);
 
                 } catch (Exception ex) {
                     System.err.println("[UI] SMART_REPLY render failed: " + ex.getMessage());
@@ -1186,9 +1233,10 @@ public class MessageHandler {
             if (jsonBody.isEmpty()) return;
 
             // 1) Parse JSON
-            String recipientKey = UtilHandler.jsonGet(jsonBody, "recipient"); // "group:11"
-            String sender       = UtilHandler.jsonGet(jsonBody, "sender");
-            String content      = UtilHandler.jsonGet(jsonBody, "content");
+            Json.Obj obj = Json.parse(jsonBody);
+            String recipientKey = obj.str("recipient"); // "group:11"
+            String sender       = obj.str("sender");
+            String content      = obj.str("content");
 
             if (recipientKey == null || !recipientKey.startsWith("group:")) {
                 System.err.println("[GHIST] invalid recipient in json: " + recipientKey);
@@ -1205,8 +1253,8 @@ public class MessageHandler {
                 return;
             }
 
-            long createdAt = UtilHandler.parseLongSafe(UtilHandler.jsonGet(jsonBody, "createdAt"), System.currentTimeMillis());
-            long updatedAt = UtilHandler.parseLongSafe(UtilHandler.jsonGet(jsonBody, "updatedAt"), 0L);
+            long createdAt = obj.lng("createdAt", System.currentTimeMillis());
+            long updatedAt = obj.lng("updatedAt", 0L);
             long msgId     = UtilHandler.parseLongSafe(f.transferId, 0L);
 
             String myName = (controller.getCurrentUser() != null)
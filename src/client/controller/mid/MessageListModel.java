@@ -0,0 +1,238 @@
+package client.controller.mid;
+
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * MessageListModel
+ * ----------------
+ * - Danh sách dòng tin của hội thoại đang mở, tách khỏi scene graph: chỉ 1 cửa sổ liên tiếp
+ *   (tối đa {@link #MAX_WINDOW} dòng) được gắn vào messageContainer, nên CSS/layout chỉ tính
+ *   cho phần đó dù hội thoại dài bao nhiêu.
+ * - Cuộn chạm mép trên/dưới → gắn thêm {@link #PAGE} dòng phía đó, tháo bớt phía kia,
+ *   giữ nguyên vị trí đang đọc.
+ * - Tìm theo id / fid, sửa, xoá đều đi qua model (kể cả dòng đang bị tháo khỏi container).
+ * - Thay cho việc xoá hẳn dòng cũ khi vượt 100 tin như trước.
+ */
+public class MessageListModel {
+    private static final int WINDOW = 120;      // số dòng gắn sẵn khi mở / nhảy tới tin mới nhất
+    private static final int PAGE = 40;         // số dòng gắn thêm mỗi lần cuộn chạm mép
+    private static final int MAX_WINDOW = WINDOW + 2 * PAGE;
+    private static final double EDGE = 0.02;    // coi như chạm mép khi vvalue cách mép < 2%
+
+    private final VBox container;
+    private final List<HBox> rows = new ArrayList<>();
+    private final Map<String, HBox> byId = new HashMap<>();
+    private int lo, hi;                 // rows[lo, hi) đang nằm trong container
+    private ScrollPane scroll;
+    private boolean stickToBottom = true;
+    private boolean adjusting;
+
+    public MessageListModel(VBox container) {
+        this.container = container;
+        container.heightProperty().addListener((obs, o, n) -> {
+            if (stickToBottom && !adjusting) scrollToBottomLater();
+        });
+    }
+
+    /* ==== model ==== */
+
+    public int size() { return rows.size(); }
+
+    /** Toàn bộ dòng (cũ → mới), kể cả dòng không hiển thị. Chỉ đọc. */
+    public List<HBox> rows() { return Collections.unmodifiableList(rows); }
+
+    public void clear() {
+        rows.clear();
+        byId.clear();
+        lo = hi = 0;
+        container.getChildren().clear();
+        stickToBottom = true;
+    }
+
+    /** Thay toàn bộ nội dung (khôi phục hội thoại từ cache), hiển thị phần mới nhất. */
+    public void setAll(Collection<HBox> all) {
+        rows.clear();
+        byId.clear();
+        rows.addAll(all);
+        for (HBox r : rows) index(r);
+        showLatest();
+    }
+
+    /** Thêm dòng mới ở cuối; đang xem tin cũ thì nhảy về tin mới nhất như trước. */
+    public void append(HBox row) {
+        rows.add(row);
+        index(row);
+        if (hi == rows.size() - 1) {
+            container.getChildren().add(row);
+            hi++;
+            while (hi - lo > MAX_WINDOW) container.getChildren().remove(rows.get(lo++));
+        } else {
+            showLatest();
+        }
+        stickToBottom = true;
+    }
+
+    public boolean remove(HBox row) {
+        if (row == null) return false;
+        int i = rows.indexOf(row);
+        if (i < 0) return false;
+        rows.remove(i);
+        Object ud = row.getUserData();
+        if (ud != null) byId.remove(String.valueOf(ud), row);
+        if (i < lo) { lo--; hi--; }
+        else if (i < hi) { hi--; container.getChildren().remove(row); }
+        return true;
+    }
+
+    public void removeIf(Predicate<HBox> p) {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            if (p.test(rows.get(i))) remove(rows.get(i));
+        }
+    }
+
+    /** Dòng có userData = {@code id}; userData có thể được gán sau khi thêm nên kiểm lại rồi mới tin map. */
+    public HBox findById(String id) {
+        if (id == null) return null;
+        HBox r = byId.get(id);
+        if (r != null && id.equals(String.valueOf(r.getUserData()))) return r;
+        r = findLast(h -> id.equals(String.valueOf(h.getUserData())));
+        if (r != null) byId.put(id, r);
+        return r;
+    }
+
+    public HBox findByFid(String fid) {
+        if (fid == null || fid.isBlank()) return null;
+        return findLast(h -> fid.equals(String.valueOf(h.getProperties().get("fid"))));
+    }
+
+    /** Dòng mới nhất thoả điều kiện. */
+    public HBox findLast(Predicate<HBox> p) {
+        for (int i = rows.size() - 1; i >= 0; i--) {
+            HBox h = rows.get(i);
+            if (p.test(h)) return h;
+        }
+        return null;
+    }
+
+    private void index(HBox row) {
+        Object ud = row.getUserData();
+        if (ud != null) byId.put(String.valueOf(ud), row);
+    }
+
+    /* ==== cửa sổ hiển thị ==== */
+
+    /** Gắn dòng {@code row} vào container (nếu đang bị tháo) để có thể cuộn tới. */
+    public void reveal(HBox row) {
+        int i = rows.indexOf(row);
+        if (i < 0 || (i >= lo && i < hi)) return;
+        lo = Math.max(0, i - WINDOW / 2);
+        hi = Math.min(rows.size(), lo + WINDOW);
+        lo = Math.max(0, hi - WINDOW);
+        stickToBottom = false;
+        rebuild();
+    }
+
+    private void showLatest() {
+        hi = rows.size();
+        lo = Math.max(0, hi - WINDOW);
+        rebuild();
+    }
+
+    private void rebuild() {
+        adjusting = true;
+        container.getChildren().setAll(rows.subList(lo, hi));
+        Platform.runLater(() -> adjusting = false);
+    }
+
+    /* ==== cuộn ==== */
+
+    /** Gắn với ScrollPane chứa container (gọi 1 lần sau khi FXML đã dựng xong). */
+    public void bindScroll(ScrollPane sp) {
+        if (sp == null || sp == scroll) return;
+        scroll = sp;
+        sp.vvalueProperty().addListener((obs, o, n) -> onScroll(n.doubleValue()));
+    }
+
+    public void scrollToBottom() {
+        stickToBottom = true;
+        if (hi < rows.size()) showLatest();
+        scrollToBottomLater();
+    }
+
+    private void scrollToBottomLater() {
+        ScrollPane sp = scroll;
+        if (sp == null) return;
+        Platform.runLater(() -> {
+            sp.layout();
+            sp.setVvalue(sp.getVmax());
+        });
+    }
+
+    private void onScroll(double v) {
+        if (adjusting || scroll == null) return;
+        double min = scroll.getVmin(), max = scroll.getVmax();
+        double edge = (max - min) * EDGE;
+        boolean atBottom = v >= max - edge;
+        stickToBottom = atBottom && hi == rows.size();
+
+        if (v <= min + edge && lo > 0) revealAbove();
+        else if (atBottom && hi < rows.size()) revealBelow();
+    }
+
+    private void revealAbove() {
+        HBox anchor = rows.get(lo);
+        double offset = offsetInViewport(anchor);
+        int newLo = Math.max(0, lo - PAGE);
+        container.getChildren().addAll(0, rows.subList(newLo, lo));
+        lo = newLo;
+        while (hi - lo > MAX_WINDOW) container.getChildren().remove(rows.get(--hi));
+        keepAnchor(anchor, offset);
+    }
+
+    private void revealBelow() {
+        HBox anchor = rows.get(hi - 1);
+        double offset = offsetInViewport(anchor);
+        int newHi = Math.min(rows.size(), hi + PAGE);
+        container.getChildren().addAll(rows.subList(hi, newHi));
+        hi = newHi;
+        while (hi - lo > MAX_WINDOW) container.getChildren().remove(rows.get(lo++));
+        keepAnchor(anchor, offset);
+    }
+
+    /** Khoảng cách từ đỉnh viewport tới đỉnh {@code n}. */
+    private double offsetInViewport(Node n) {
+        return n.getBoundsInParent().getMinY() - scrollTop();
+    }
+
+    private double scrollTop() {
+        double range = container.getHeight() - scroll.getViewportBounds().getHeight();
+        double span = scroll.getVmax() - scroll.getVmin();
+        if (range <= 0 || span <= 0) return 0;
+        return (scroll.getVvalue() - scroll.getVmin()) / span * range;
+    }
+
+    /** Sau khi gắn/tháo dòng, đặt lại vvalue để {@code anchor} đứng yên trên màn hình. */
+    private void keepAnchor(HBox anchor, double offset) {
+        adjusting = true;
+        try {
+            scroll.applyCss();
+            scroll.layout();
+            double range = container.getHeight() - scroll.getViewportBounds().getHeight();
+            if (range <= 0) return;
+            double top = anchor.getBoundsInParent().getMinY() - offset;
+            double frac = Math.min(1.0, Math.max(0.0, top / range));
+            scroll.setVvalue(scroll.getVmin() + frac * (scroll.getVmax() - scroll.getVmin()));
+        } finally {
+            adjusting = false;
+        }
+        stickToBottom = scroll.getVvalue() >= scroll.getVmax() - (scroll.getVmax() - scroll.getVmin()) * EDGE
+                && hi == rows.size();
+    }
+}
@@ -4,9 +4,6 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
-import server.dao.UserDAO;
-
-import java.sql.SQLException;
 
 import client.controller.MidController;
 
@@ -18,9 +15,7 @@ public class SessionHandler {
     }
 
     public void onLogout() {
-        try {
-            if (controller.getCurrentUser() != null) UserDAO.setOnline(controller.getCurrentUser().getId(), false);
-        } catch (SQLException ignored) {}
+        // đóng kết nối là đủ: server (PresenceService) tự chuyển offline + ghi last_seen
         if (controller.getConnection() != null) {
             try {
                 controller.getConnection().close();
@@ -223,7 +223,7 @@ public class UIMessageHandler {
                 if (controller.getConnection() != null && controller.getConnection().isAlive()) {
                     controller.getConnection().deleteMessage(id);
                 }
-                controller.getMessageContainer().getChildren().remove(row);
+                controller.getMessageList().remove(row);
             } catch (Exception ex) {
                 System.out.println("[MENU] DELETE failed ex=" + ex);
             }
@@ -618,29 +618,12 @@ public class UIMessageHandler {
         attachReplyChipById(row, row.getAlignment()==Pos.CENTER_LEFT, String.valueOf(rt));
     }
 
-    /**/
-    private void scrollToBottom() {
-        var n = controller.getMessageContainer();
-        var p = n.getParent();
-        while (p != null && !(p instanceof ScrollPane)) p = p.getParent();
-        if (p instanceof ScrollPane sp) {
-            Platform.runLater(() -> {
-                sp.layout();
-                sp.setVvalue(1.0);
-            });
-        }
-    }
-    
     private static boolean isNumeric(String s){
         if (s == null) return false;
         try { Long.parseLong(s); return true; } catch (Exception ignore){ return false; }
     }
 
     private HBox addRowWithBubble(Node bubble, boolean incoming, String messageId, String sender, long createdAt, long updatedAt) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
-        }
-
         // 1. VBox Mẹ (Wrapper) - Căn trái/phải toàn bộ tin nhắn
         VBox messageVBoxWrapper = new VBox();
         messageVBoxWrapper.setAlignment(incoming ? Pos.CENTER_LEFT : Pos.CENTER_RIGHT);
@@ -688,11 +671,10 @@ public class UIMessageHandler {
         // Gắn Side Menu
         attachSideMenu(row, spacer, incoming, messageId);
 
-        controller.getMessageContainer().getChildren().add(row);
         if (sender != null && !sender.isBlank()) {
             row.getProperties().put("sender", sender);
         }
-        scrollToBottom();
+        controller.getMessageList().append(row); // tự cuộn xuống cuối
         // Logic reply link (giữ nguyên)
         Object ud = row.getUserData();
         if (ud != null) {
@@ -747,8 +729,8 @@ public class UIMessageHandler {
 
     // Helper để lấy Avatar (sẽ cần MidController hỗ trợ cache)
     private ImageView getAvatarView(String sender) {
-        Image avatar = controller.loadAvatarImageForUser(sender); // lấy avatar theo username
-        ImageView iv = new ImageView(avatar);
+        ImageView iv = new ImageView(controller.getAvatarPlaceholder(sender));
+        controller.loadAvatarInto(iv, sender); // avatar thu nhỏ, giải mã ngoài FX thread
         iv.setFitWidth(28);
         iv.setFitHeight(28);
         iv.setPreserveRatio(true);
@@ -883,10 +865,6 @@ public class UIMessageHandler {
     }
 
     public HBox addVoiceMessage(String duration, boolean incoming, String messageId, String sender, long createdAt, long updatedAt) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
-        }
-
         // 1. Bubble voice
         HBox voiceBox = new HBox(10);
         voiceBox.setId(incoming ? "incoming-voice" : "outgoing-voice");
@@ -937,10 +915,6 @@ public class UIMessageHandler {
     /* VIDEO: chỉ khu vực phát + nút Play + Slider, KHÔNG label */
     /* VIDEO: khu vực phát + nút Play + Slider, KHÔNG label tên trong bubble (thông tin nằm ở header) */
     public HBox addVideoMessage(String filename, String meta, boolean incoming, String messageId, String sender, long createdAt, long updatedAt) {
-        if (controller.getMessageContainer().getChildren().size() > 100) {
-            controller.getMessageContainer().getChildren().remove(0);
-        }
-
         VBox box = new VBox(6);
         box.setId(incoming ? "incoming-video" : "outgoing-video");
         box.setAlignment(Pos.CENTER_LEFT);
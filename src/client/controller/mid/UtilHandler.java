@@ -69,62 +69,6 @@ public class UtilHandler {
         return MediaKind.FILE;
     }
 
-    public static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) {
-            j++;
-        }
-        if (j >= json.length()) return null;
-
-        char c = json.charAt(j);
-
-        // ===== CHUỖI =====
-        if (c == '"') {
-            StringBuilder sb = new StringBuilder();
-            boolean escape = false;
-
-            for (int k = j + 1; k < json.length(); k++) {
-                char ch = json.charAt(k);
-
-                if (escape) {
-                    switch (ch) {
-                        case '"': sb.append('"'); break;
-                        case '\\': sb.append('\\'); break;
-                        case 'n': sb.append('\n'); break;
-                        case 't': sb.append('\t'); break;
-                        case 'r': sb.append('\r'); break;
-                        default: sb.append(ch); break;
-                    }
-                    escape = false;
-                } else if (ch == '\\') {
-                    escape = true;
-                } else if (ch == '"') {
-                    // kết thúc chuỗi
-                    return sb.toString();
-                } else {
-                    sb.append(ch);
-                }
-            }
-            // không tìm thấy dấu " đóng, trả về những gì đọc được
-            return sb.toString();
-        }
-
-        // ===== SỐ (giữ nguyên behaviour cũ) =====
-        int end = j;
-        while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) {
-            end++;
-        }
-        if (end == j) return null;
-        return json.substring(j, end);
-    }
 
     public static String guessExt(String mime, String fallbackName) {
         if (mime == null) return ".bin";
@@ -1,5 +1,7 @@
 package client.media;
 
+import common.Json;
+
 import java.io.IOException;
 
 public class CallOffer {
@@ -12,32 +14,15 @@ public class CallOffer {
     }
 
     public String toJson() {
-        return "{\"host\":\"" + host + "\",\"vport\":" + vport + ",\"aport\":" + aport + "}";
+        return Json.object().field("host", host).field("vport", vport).field("aport", aport).endObject().toString();
     }
 
     public static CallOffer fromJson(String json) throws IOException {
-        try {
-            String s = json.trim();
-            String host = pickString(s, "\"host\"");
-            int vport   = pickInt(s, "\"vport\"");
-            int aport   = pickInt(s, "\"aport\"");
-            if (host == null || vport <= 0 || aport <= 0) throw new IOException("Bad OFFER JSON");
-            return new CallOffer(host, vport, aport);
-        } catch (Exception e) {
-            throw new IOException("Parse OFFER failed", e);
-        }
-    }
-
-    private static String pickString(String s, String key) {
-        int i = s.indexOf(key); if (i < 0) return null;
-        int c = s.indexOf(':', i), q1 = s.indexOf('"', c + 1), q2 = s.indexOf('"', q1 + 1);
-        return (q1 > 0 && q2 > q1) ? s.substring(q1 + 1, q2) : null;
-    }
-    private static int pickInt(String s, String key) {
-        int i = s.indexOf(key); if (i < 0) return -1;
-        int c = s.indexOf(':', i), e = c + 1;
-        while (e < s.length() && Character.isWhitespace(s.charAt(e))) e++;
-        int e2 = e; while (e2 < s.length() && Character.isDigit(s.charAt(e2))) e2++;
-        return Integer.parseInt(s.substring(e, e2));
+        Json.Obj obj = Json.parse(json == null ? null : json.trim());
+        String host = obj.str("host");
+        int vport   = obj.integer("vport", -1);
+        int aport   = obj.integer("aport", -1);
+        if (host == null || vport <= 0 || aport <= 0) throw new IOException("Bad OFFER JSON");
+        return new CallOffer(host, vport, aport);
     }
 }
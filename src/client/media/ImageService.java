@@ -0,0 +1,354 @@
+package client.media;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * ImageService
+ * ------------
+ * - Giải mã ảnh (avatar, ảnh trong chat) trên thread pool riêng, đúng kích thước hiển thị,
+ *   thay vì decode nguyên ảnh gốc trên FX thread.
+ * - Cache 2 tầng theo key (vd "avatar:<hash>", "file:<fileId>"):
+ *     + RAM: LRU giới hạn theo số byte bitmap (w*h*4).
+ *     + Đĩa: thumbnail PNG đã thu nhỏ trong {@code ~/.socialchat/thumbs}, LRU theo dung lượng.
+ * - Ảnh xong được trả về FX thread theo lô (1 Platform.runLater cho mọi ảnh đã sẵn sàng).
+ *
+ * Cách dùng:
+ *   ImageService.get().into(imageView, "file:" + fid, 520, ImageService.file(f));
+ *   // imageView giữ ảnh tạm cho tới khi bản thu nhỏ sẵn sàng
+ */
+public final class ImageService {
+
+    /** Nguồn byte ảnh gốc; chỉ được mở trên thread giải mã. */
+    @FunctionalInterface
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    private static final long MAX_MEM_BYTES = 64L * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 128L * 1024 * 1024;
+    private static final String VIEW_KEY = "image-service-key";
+
+    // Singleton
+    private static volatile ImageService INSTANCE;
+
+    public static ImageService get() {
+        ImageService local = INSTANCE;
+        if (local == null) {
+            synchronized (ImageService.class) {
+                local = INSTANCE;
+                if (local == null) INSTANCE = local = new ImageService();
+            }
+        }
+        return local;
+    }
+
+    private final ExecutorService decoders;
+    private final Path thumbDir;
+
+    // RAM: key@size → Image (access-order); khoá bằng chính map
+    private final LinkedHashMap<String, Image> mem = new LinkedHashMap<>(64, 0.75f, true);
+    private long memBytes;
+
+    // Đĩa: tên file → byte (access-order); khoá bằng chính map
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long diskBytes;
+
+    // Đang giải mã: key@size → các callback chờ (tránh decode trùng)
+    private final Map<String, List<Consumer<Image>>> inflight = new HashMap<>();
+
+    // Kết quả chờ đưa lên FX thread
+    private final ConcurrentLinkedQueue<Runnable> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private ImageService() {
+        int n = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        decoders = Executors.newFixedThreadPool(n, r -> {
+            Thread t = new Thread(r, "image-decode");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+        Path dir = Paths.get(System.getProperty("user.home"), ".socialchat", "thumbs");
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            System.err.println("[IMAGE] thumbnail dir unavailable: " + e.getMessage());
+            dir = null;
+        }
+        thumbDir = dir;
+        if (thumbDir != null) decoders.execute(this::scanDisk);
+    }
+
+    /* ==== nguồn tiện dụng ==== */
+
+    public static Source bytes(byte[] data) {
+        return () -> new ByteArrayInputStream(data);
+    }
+
+    public static Source file(File f) {
+        return () -> new BufferedInputStream(new FileInputStream(f));
+    }
+
+    public static Source url(String url) {
+        return () -> java.net.URI.create(url).toURL().openStream();
+    }
+
+    // mảng byte avatar → key (mảng không override equals nên so theo identity); tránh băm lại mỗi dòng tin
+    private static final Map<byte[], String> AVATAR_KEYS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /** Key cache cho avatar theo nội dung (cùng ảnh ở nhiều nơi chỉ decode 1 lần). */
+    public static String avatarKey(byte[] data) {
+        return AVATAR_KEYS.computeIfAbsent(data, d -> "avatar:" + sha1(d));
+    }
+
+    /* ==== API ==== */
+
+    /** Ảnh đã có trong RAM (null nếu chưa) — gọi được từ FX thread, không chặn. */
+    public Image cached(String key, int size) {
+        synchronized (mem) {
+            return mem.get(key + "@" + size);
+        }
+    }
+
+    /**
+     * Lấy ảnh thu nhỏ vừa khung {@code size}x{@code size}; {@code onReady} chạy trên FX thread
+     * (ngay lập tức nếu đã có trong RAM và đang ở FX thread). Lỗi giải mã → không gọi.
+     */
+    public void load(String key, int size, Source src, Consumer<Image> onReady) {
+        String k = key + "@" + size;
+        Image hit = cached(key, size);
+        if (hit != null) {
+            if (Platform.isFxApplicationThread()) onReady.accept(hit);
+            else deliver(() -> onReady.accept(hit));
+            return;
+        }
+        synchronized (inflight) {
+            List<Consumer<Image>> waiters = inflight.get(k);
+            if (waiters != null) {
+                waiters.add(onReady);
+                return;
+            }
+            waiters = new ArrayList<>(2);
+            waiters.add(onReady);
+            inflight.put(k, waiters);
+        }
+        decoders.execute(() -> {
+            Image img = decode(key, size, src);
+            if (img != null) remember(k, img);
+            List<Consumer<Image>> waiters;
+            synchronized (inflight) {
+                waiters = inflight.remove(k);
+            }
+            if (img == null || waiters == null) return;
+            deliver(() -> waiters.forEach(w -> w.accept(img)));
+        });
+    }
+
+    /**
+     * Gắn ảnh vào {@code view}: có sẵn trong RAM thì đặt ngay, không thì giữ ảnh hiện tại của view
+     * làm ảnh tạm và đặt khi giải mã xong (bỏ qua nếu view đã được gắn key khác trong lúc chờ).
+     */
+    public void into(ImageView view, String key, int size, Source src) {
+        if (view == null || key == null) return;
+        String k = key + "@" + size;
+        view.getProperties().put(VIEW_KEY, k);
+        load(key, size, src, img -> {
+            if (k.equals(view.getProperties().get(VIEW_KEY))) view.setImage(img);
+        });
+    }
+
+    /* ==== giải mã (thread pool) ==== */
+
+    private Image decode(String key, int size, Source src) {
+        String name = sha1((key + "@" + size).getBytes(StandardCharsets.UTF_8)) + ".png";
+
+        // 1) thumbnail đã có trên đĩa
+        if (thumbDir != null) {
+            Path p = thumbDir.resolve(name);
+            if (Files.exists(p)) {
+                try (InputStream in = Files.newInputStream(p)) {
+                    Image img = new Image(in);
+                    if (!img.isError()) {
+                        touchDisk(p);
+                        return img;
+                    }
+                } catch (IOException ignore) {}
+            }
+        }
+
+        // 2) ảnh gốc → thu nhỏ bằng ImageIO → ghi thumbnail → Image từ bản thu nhỏ
+        try {
+            BufferedImage src0;
+            try (InputStream in = src.open()) {
+                src0 = ImageIO.read(in);
+            }
+            if (src0 != null) {
+                byte[] png = toPng(scaleToFit(src0, size));
+                if (thumbDir != null) writeThumb(name, png);
+                return new Image(new ByteArrayInputStream(png));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[IMAGE] decode failed " + key + ": " + e.getMessage());
+        }
+
+        // 3) định dạng ImageIO không đọc được → để JavaFX tự thu nhỏ khi decode (không cache đĩa)
+        try (InputStream in = src.open()) {
+            Image img = new Image(in, size, size, true, true);
+            return img.isError() ? null : img;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static BufferedImage scaleToFit(BufferedImage img, int size) {
+        int w = img.getWidth(), h = img.getHeight();
+        double scale = Math.min(1.0, (double) size / Math.max(w, h)); // không phóng to
+        int tw = Math.max(1, (int) Math.round(w * scale));
+        int th = Math.max(1, (int) Math.round(h * scale));
+        if (tw == w && th == h && img.getType() == BufferedImage.TYPE_INT_ARGB) return img;
+
+        BufferedImage out = new BufferedImage(tw, th, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = out.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(img, 0, 0, tw, th, null);
+        } finally {
+            g.dispose();
+        }
+        return out;
+    }
+
+    private static byte[] toPng(BufferedImage img) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * 1024);
+        ImageIO.write(img, "png", bos);
+        return bos.toByteArray();
+    }
+
+    /* ==== cache RAM ==== */
+
+    private void remember(String k, Image img) {
+        long cost = (long) img.getWidth() * (long) img.getHeight() * 4L;
+        synchronized (mem) {
+            Image old = mem.put(k, img);
+            if (old != null) memBytes -= (long) old.getWidth() * (long) old.getHeight() * 4L;
+            memBytes += cost;
+            Iterator<Map.Entry<String, Image>> it = mem.entrySet().iterator();
+            while (memBytes > MAX_MEM_BYTES && it.hasNext()) {
+                Map.Entry<String, Image> e = it.next();
+                if (e.getKey().equals(k)) continue;
+                memBytes -= (long) e.getValue().getWidth() * (long) e.getValue().getHeight() * 4L;
+                it.remove();
+            }
+        }
+    }
+
+    /* ==== cache đĩa ==== */
+
+    private void writeThumb(String name, byte[] png) {
+        Path p = thumbDir.resolve(name);
+        Path tmp = thumbDir.resolve(name + "." + Thread.currentThread().threadId() + ".tmp");
+        try {
+            Files.write(tmp, png);
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(tmp); } catch (IOException ignore) {}
+            return;
+        }
+        List<String> evict = new ArrayList<>();
+        synchronized (disk) {
+            Long old = disk.put(name, (long) png.length);
+            diskBytes += png.length - (old == null ? 0 : old);
+            Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+            while (diskBytes > MAX_DISK_BYTES && it.hasNext()) {
+                Map.Entry<String, Long> e = it.next();
+                if (e.getKey().equals(name)) continue;
+                diskBytes -= e.getValue();
+                evict.add(e.getKey());
+                it.remove();
+            }
+        }
+        for (String f : evict) {
+            try { Files.deleteIfExists(thumbDir.resolve(f)); } catch (IOException ignore) {}
+        }
+    }
+
+    private void touchDisk(Path p) {
+        synchronized (disk) {
+            disk.get(p.getFileName().toString()); // access-order
+        }
+        try {
+            Files.setLastModifiedTime(p, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignore) {}
+    }
+
+    /** Nạp chỉ mục LRU từ thư mục thumbnail (cũ nhất trước). */
+    private void scanDisk() {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(thumbDir, "*.png")) {
+            ds.forEach(files::add);
+        } catch (IOException e) {
+            return;
+        }
+        Map<Path, Long> mtime = new HashMap<>();
+        for (Path f : files) {
+            try { mtime.put(f, Files.getLastModifiedTime(f).toMillis()); } catch (IOException ignore) {}
+        }
+        files.removeIf(f -> !mtime.containsKey(f));
+        files.sort(Comparator.comparingLong(mtime::get));
+        synchronized (disk) {
+            for (Path f : files) {
+                try {
+                    long sz = Files.size(f);
+                    Long old = disk.put(f.getFileName().toString(), sz);
+                    diskBytes += sz - (old == null ? 0 : old);
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    /* ==== giao kết quả theo lô ==== */
+
+    private void deliver(Runnable r) {
+        ready.add(r);
+        if (flushScheduled.compareAndSet(false, true)) Platform.runLater(this::flush);
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        Runnable r;
+        while ((r = ready.poll()) != null) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                System.err.println("[IMAGE] callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b : d) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package client.media;
 
+import common.Json;
 import com.github.sarxos.webcam.Webcam;
 import javafx.application.Platform;
 import javafx.embed.swing.SwingFXUtils;
@@ -60,26 +61,11 @@ public class LanVideoSession {
         public final String host;
         public final int port;
         public OfferInfo(String host, int port) { this.host = host; this.port = port; }
-        public String toJson() { return "{\"host\":\"" + host + "\",\"port\":" + port + "}"; }
+        public String toJson() { return Json.object().field("host", host).field("port", port).endObject().toString(); }
         public static OfferInfo fromJson(String json) throws IOException {
-            String s = json.trim();
-            String host = null; int port = -1;
-            int hi = s.indexOf("\"host\"");
-            if (hi >= 0) {
-                int c = s.indexOf(':', hi);
-                int q1 = s.indexOf('"', c + 1);
-                int q2 = s.indexOf('"', q1 + 1);
-                host = s.substring(q1 + 1, q2);
-            }
-            int pi = s.indexOf("\"port\"");
-            if (pi >= 0) {
-                int c = s.indexOf(':', pi);
-                int e = c + 1;
-                while (e < s.length() && Character.isWhitespace(s.charAt(e))) e++;
-                int e2 = e;
-                while (e2 < s.length() && Character.isDigit(s.charAt(e2))) e2++;
-                port = Integer.parseInt(s.substring(e, e2));
-            }
+            Json.Obj obj = Json.parse(json == null ? null : json.trim());
+            String host = obj.str("host");
+            int port = obj.integer("port", -1);
             if (host == null || port <= 0) throw new IOException("Bad OFFER JSON");
             return new OfferInfo(host, port);
         }
@@ -10,6 +10,21 @@ public class Frame {
     public int seq;
     public boolean last;
     public byte[] bin;
+    /** Payload có thể là 1 đoạn của {@code bin} (slice, không copy); binLen = -1 nghĩa là cả mảng. */
+    public int binOffset;
+    public int binLen = -1;
+    /**
+     * Payload là đoạn [{@code fileOffset}, {@code fileOffset + binLen}) của file thay cho {@code bin}
+     * (server gửi file: ghi header rồi chuyển thẳng file → socket, không qua heap).
+     * Frame {@code last} đóng {@code file} sau khi ghi xong hoặc khi kết nối bỏ hàng đợi.
+     */
+    public java.nio.channels.FileChannel file;
+    public long fileOffset;
+    /**
+     * Bytes trên dây đã encode sẵn ({@link FrameCodec#preEncode}); codec ghi thẳng mảng này.
+     * Frame đã encode sẵn được dùng chung cho nhiều kết nối → không được sửa field nào nữa.
+     */
+    public byte[] wire;
 
     public static final int CHUNK_SIZE = 64 * 1024;
     public static final long MAX_FILE_BYTES = 25L * 1024 * 1024;
@@ -22,22 +37,49 @@ public class Frame {
         this.body = body;
     }
 
+    public int binLength() {
+        if (bin == null) return (file != null && binLen > 0) ? binLen : 0;
+        return binLen < 0 ? bin.length : binLen;
+    }
+
+    /** Frame cuối của 1 lần gửi file: đóng {@link #file} (đã ghi xong hoặc bị bỏ khỏi hàng đợi). */
+    public void releaseFile() {
+        if (file == null || !last) return;
+        try {
+            file.close();
+        } catch (java.io.IOException ignored) {}
+    }
+
+    /** Copy payload ra mảng riêng (khi frame được đọc bằng buffer dùng lại mà cần giữ lâu hơn). */
+    public Frame detach() {
+        if (bin != null && (binOffset != 0 || binLength() != bin.length)) {
+            bin = java.util.Arrays.copyOfRange(bin, binOffset, binOffset + binLength());
+            binOffset = 0;
+            binLen = -1;
+        }
+        return this;
+    }
+
     public static Frame register(String name) { return new Frame(MessageType.REGISTER, name, "", ""); }
     public static Frame dm(String from, String to, String text) { return new Frame(MessageType.DM, from, to, text); }
     public static Frame ack(String text) { return new Frame(MessageType.ACK, "", "", text); }
     public static Frame error(String text) { return new Frame(MessageType.ERROR, "", "", text); }
 
     public static Frame fileMeta(String from, String to, String name, String mime, String fileId, long size) {
-        String j = "{\"from\":\"" + esc(from) + "\",\"to\":\"" + esc(to) + "\",\"name\":\"" + esc(name) + "\"," +
-                   "\"mime\":\"" + esc(mime) + "\",\"fileId\":\"" + esc(fileId) + "\",\"size\":" + size + "}";
+        String j = Json.object()
+                .field("from", nz(from)).field("to", nz(to)).field("name", nz(name))
+                .field("mime", nz(mime)).field("fileId", nz(fileId)).field("size", size)
+                .endObject().toString();
         return new Frame(MessageType.FILE_META, from, to, j);
     }
 
     public static Frame audioMeta(String from, String to, String codec, int sampleRate, int durationSec,
                                   String audioId, long size) {
-        String j = "{\"from\":\"" + esc(from) + "\",\"to\":\"" + esc(to) + "\",\"codec\":\"" + esc(codec) + "\"," +
-                   "\"sampleRate\":" + sampleRate + ",\"durationSec\":" + durationSec + "," +
-                   "\"audioId\":\"" + esc(audioId) + "\",\"size\":" + size + "}";
+        String j = Json.object()
+                .field("from", nz(from)).field("to", nz(to)).field("codec", nz(codec))
+                .field("sampleRate", sampleRate).field("durationSec", durationSec)
+                .field("audioId", nz(audioId)).field("size", size)
+                .endObject().toString();
         return new Frame(MessageType.AUDIO_META, from, to, j);
     }
 
@@ -60,17 +102,16 @@ public class Frame {
     }
 
     public static Frame callNoPayload(MessageType t, String from, String to, String callId) {
-        String j = "{\"callId\":\"" + esc(callId) + "\"}";
+        String j = Json.object().field("callId", nz(callId)).endObject().toString();
         return new Frame(t, from, to, j);
     }
 
     public static Frame callWithPayload(MessageType t, String from, String to, String callId, String payloadB64) {
-        String j = "{\"callId\":\"" + esc(callId) + "\",\"payload\":\"" + esc(payloadB64) + "\"}";
+        String j = Json.object().field("callId", nz(callId)).field("payload", nz(payloadB64)).endObject().toString();
         return new Frame(t, from, to, j);
     }
 
-    private static String esc(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    private static String nz(String s) {
+        return s == null ? "" : s;
     }
 }
\ No newline at end of file
@@ -0,0 +1,386 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codec frame dùng lại buffer (mỗi kết nối / mỗi thread 1 instance, KHÔNG thread-safe).
+ * - Encode: chuỗi được mã hoá UTF-8 thẳng vào buffer, không tạo byte[] trung gian;
+ *   payload chunk ghi thẳng từ mảng gốc.
+ * - Decode: payload chunk là 1 slice ({@link Frame#binOffset}/{@link Frame#binLen}) của buffer
+ *   đọc, không copy lần 2.
+ * Định dạng giữ nguyên như {@link FrameIO}.
+ */
+public final class FrameCodec {
+
+    private static final int HEADER_LEN = 1 + 2 + 2 + 4 + 2;
+    private static final int CHUNK_HEADER_LEN = 4 + 1 + 4;
+
+    private final boolean direct;
+    private ByteBuffer encodeBuf;
+    private ByteBuffer readBuf;
+    // channel bọc stream ghi gần nhất (payload từ file → stream)
+    private OutputStream channelOut;
+    private WritableByteChannel channel;
+
+    public FrameCodec() {
+        this(16 * 1024, false);
+    }
+
+    /** {@code direct=true}: buffer encode là direct (để ghi ra channel); buffer đọc luôn là heap. */
+    public FrameCodec(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        this.encodeBuf = allocate(Math.max(256, initialCapacity));
+    }
+
+    /* ================= ENCODE ================= */
+
+    /** Số byte frame chiếm trên dây (kể cả 4 byte độ dài). */
+    public static int encodedLength(Frame f) throws IOException {
+        if (f.wire != null) return f.wire.length;
+        return 4 + totalLen(f);
+    }
+
+    /**
+     * Cận trên rẻ của {@link #encodedLength} (mỗi char tối đa 3 byte UTF-8), không phải duyệt chuỗi.
+     * Dùng để kiểm tra chỗ trống trước khi encode 1 lượt.
+     */
+    public static long maxEncodedLength(Frame f) {
+        if (f.wire != null) return f.wire.length;
+        long chars = len(f.sender) + len(f.recipient) + len(f.body) + len(f.transferId);
+        return 4 + HEADER_LEN + 3 * chars + (isChunk(f) ? CHUNK_HEADER_LEN + f.binLength() : 0);
+    }
+
+    /**
+     * Encode {@code f} vào buffer dùng chung của codec (đã flip, sẵn sàng để đọc/ghi).
+     * Chỉ hợp lệ tới lần gọi encode/write tiếp theo.
+     */
+    public ByteBuffer encode(Frame f) throws IOException {
+        if (f.wire != null) return ByteBuffer.wrap(f.wire).asReadOnlyBuffer();
+        encodeBuf = ensure(encodeBuf, f, true, direct);
+        encodeBuf.clear();
+        encodeTo(f, encodeBuf, true);
+        encodeBuf.flip();
+        return encodeBuf;
+    }
+
+    /** Encode trọn frame vào {@code dst} (phải còn đủ {@link #encodedLength} byte). */
+    public static void encodeTo(Frame f, ByteBuffer dst) throws IOException {
+        if (f.wire != null) {
+            dst.put(f.wire);
+            return;
+        }
+        encodeTo(f, dst, true);
+    }
+
+    /**
+     * Chỉ header (kể cả header chunk) của frame có payload từ file; payload ghi riêng bằng
+     * {@link java.nio.channels.FileChannel#transferTo}. {@code dst} phải còn đủ
+     * {@code maxEncodedLength(f) - f.binLength()} byte.
+     */
+    public static void encodeHeaderTo(Frame f, ByteBuffer dst) throws IOException {
+        encodeTo(f, dst, false);
+    }
+
+    /**
+     * Encode {@code f} 1 lần vào {@link Frame#wire} rồi trả lại chính nó: fan-out tới N kết nối
+     * chỉ tốn 1 lần mã hoá UTF-8, các writer chỉ copy byte. Sau lời gọi này không được sửa {@code f}.
+     */
+    public static Frame preEncode(Frame f) throws IOException {
+        if (f.wire != null) return f;
+        ByteBuffer buf = ByteBuffer.allocate(encodedLength(f));
+        encodeTo(f, buf, true);
+        f.wire = buf.array();
+        return f;
+    }
+
+    /**
+     * Ghi 1 frame ra stream: header + chuỗi qua buffer dùng lại, payload chunk ghi thẳng
+     * từ {@code f.bin} (không copy vào buffer).
+     */
+    public void write(OutputStream out, Frame f) throws IOException {
+        if (f.wire != null) {
+            out.write(f.wire);
+            return;
+        }
+        if (encodeBuf.isDirect()) encodeBuf = ByteBuffer.allocate(encodeBuf.capacity());
+        encodeBuf = ensure(encodeBuf, f, false, false);
+        encodeBuf.clear();
+        encodeTo(f, encodeBuf, false);
+        out.write(encodeBuf.array(), 0, encodeBuf.position());
+        if (isChunk(f) && f.binLength() > 0) {
+            if (f.file != null) transferFile(f, out);
+            else out.write(f.bin, f.binOffset, f.binLength());
+        }
+    }
+
+    /** Payload từ file → stream qua buffer nhỏ của channel bọc, không cấp phát theo kích thước chunk. */
+    private void transferFile(Frame f, OutputStream out) throws IOException {
+        if (channelOut != out) {
+            channel = Channels.newChannel(out);
+            channelOut = out;
+        }
+        long pos = f.fileOffset, rem = f.binLength();
+        while (rem > 0) {
+            long n = f.file.transferTo(pos, rem, channel);
+            if (n <= 0) throw new IOException("File truncated at " + pos);
+            pos += n;
+            rem -= n;
+        }
+    }
+
+    /** Đảm bảo buffer đủ chỗ; thường chỉ cần cận trên, frame rất lớn mới tính độ dài chính xác. */
+    private static ByteBuffer ensure(ByteBuffer buf, Frame f, boolean withPayload, boolean direct) throws IOException {
+        long need = maxEncodedLength(f) - (withPayload || !isChunk(f) ? 0 : f.binLength());
+        if (need <= buf.capacity()) return buf;
+        if (need > (1 << 20)) need = encodedLength(f) - (withPayload || !isChunk(f) ? 0 : f.binLength());
+        if (need <= buf.capacity()) return buf;
+        int cap = (int) need;
+        return direct ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+    }
+
+    /**
+     * Encode 1 lượt: ghi chuỗi trước rồi điền độ dài vào header (absolute put),
+     * không phải tính độ dài UTF-8 riêng.
+     */
+    private static void encodeTo(Frame f, ByteBuffer dst, boolean withPayload) throws IOException {
+        int start = dst.position();
+        dst.position(start + 4 + HEADER_LEN);
+        int sLen = putUtf8(dst, f.sender);
+        int rLen = putUtf8(dst, f.recipient);
+        int bLen = putUtf8(dst, f.body);
+        int idLen = putUtf8(dst, f.transferId);
+        if (sLen > 0xFFFF || rLen > 0xFFFF || idLen > 0xFFFF) {
+            dst.position(start);
+            throw new IOException("Header string too long");
+        }
+
+        boolean chunk = isChunk(f);
+        int binLen = f.binLength();
+        if (chunk) {
+            dst.putInt(f.seq);
+            dst.put((byte) (f.last ? 1 : 0));
+            dst.putInt(binLen);
+            if (withPayload && binLen > 0) {
+                if (f.file != null) readFile(f, dst);
+                else dst.put(f.bin, f.binOffset, binLen);
+            }
+        }
+        long totalLen = (long) dst.position() - start - 4 + (chunk && !withPayload ? binLen : 0);
+        if (totalLen > FrameIO.MAX_TOTAL_LEN) {
+            dst.position(start);
+            throw new IOException("Invalid totalLen: " + totalLen);
+        }
+
+        dst.putInt(start, (int) totalLen);
+        dst.put(start + 4, f.type.id);
+        dst.putShort(start + 5, (short) sLen);
+        dst.putShort(start + 7, (short) rLen);
+        dst.putInt(start + 9, bLen);
+        dst.putShort(start + 13, (short) idLen);
+    }
+
+    private static void readFile(Frame f, ByteBuffer dst) throws IOException {
+        int end = dst.position() + f.binLength();
+        ByteBuffer view = dst.duplicate().limit(end);
+        long pos = f.fileOffset;
+        while (view.hasRemaining()) {
+            int n = f.file.read(view, pos);
+            if (n < 0) throw new IOException("File truncated at " + pos);
+            pos += n;
+        }
+        dst.position(end);
+    }
+
+    private static int totalLen(Frame f) throws IOException {
+        int sLen = utf8Length(f.sender);
+        int rLen = utf8Length(f.recipient);
+        int idLen = utf8Length(f.transferId);
+        if (sLen > 0xFFFF || rLen > 0xFFFF || idLen > 0xFFFF)
+            throw new IOException("Header string too long");
+        long total = (long) HEADER_LEN + sLen + rLen + utf8Length(f.body) + idLen
+                + (isChunk(f) ? CHUNK_HEADER_LEN + f.binLength() : 0);
+        if (total > FrameIO.MAX_TOTAL_LEN)
+            throw new IOException("Invalid totalLen: " + total);
+        return (int) total;
+    }
+
+    private static int len(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private ByteBuffer allocate(int cap) {
+        return direct ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+    }
+
+    /* ================= DECODE ================= */
+
+    /**
+     * Đọc 1 frame vào buffer nội bộ (dùng lại giữa các lần đọc).
+     * Payload chunk của frame trả về trỏ vào buffer đó → chỉ dùng được tới lần {@code read} sau;
+     * frame cần giữ lâu hơn / chuyển sang thread khác thì gọi {@link Frame#detach()}.
+     * Trả null khi EOF trước frame.
+     */
+    public Frame read(DataInputStream in) throws IOException {
+        int totalLen;
+        try {
+            totalLen = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (totalLen < 0 || totalLen > FrameIO.MAX_TOTAL_LEN)
+            throw new IOException("Invalid totalLen: " + totalLen);
+
+        if (readBuf == null || readBuf.capacity() < totalLen) {
+            readBuf = ByteBuffer.allocate(Math.max(totalLen, 16 * 1024));
+        }
+        in.readFully(readBuf.array(), 0, totalLen);
+        readBuf.clear().limit(totalLen);
+        return decodeBody(readBuf, totalLen, false);
+    }
+
+    /**
+     * Decode phần thân frame (sau 4 byte độ dài) dài {@code totalLen} từ vị trí hiện tại của {@code in}.
+     * {@code copyChunk=false}: payload chunk là slice của {@code in} (khi {@code in} là heap buffer).
+     */
+    static Frame decodeBody(ByteBuffer in, int totalLen, boolean copyChunk) throws IOException {
+        int end = in.position() + totalLen;
+        if (totalLen < HEADER_LEN) throw new EOFException("Truncated frame");
+        MessageType type = MessageType.from(in.get());
+        int sLen = Short.toUnsignedInt(in.getShort());
+        int rLen = Short.toUnsignedInt(in.getShort());
+        int bLen = in.getInt();
+        int idLen = Short.toUnsignedInt(in.getShort());
+        if (bLen < 0 || (long) in.position() + sLen + rLen + bLen + idLen > end)
+            throw new EOFException("Truncated string");
+
+        Frame f = new Frame(type, readString(in, sLen), readString(in, rLen), readString(in, bLen));
+        f.transferId = readString(in, idLen);
+
+        if (type == MessageType.FILE_CHUNK || type == MessageType.AUDIO_CHUNK) {
+            if (end - in.position() < CHUNK_HEADER_LEN) throw new EOFException("Truncated chunk data");
+            f.seq = in.getInt();
+            f.last = in.get() == 1;
+            int dLen = in.getInt();
+            if (dLen < 0 || in.position() + dLen > end) throw new EOFException("Truncated chunk data");
+            if (!copyChunk && in.hasArray()) {
+                f.bin = in.array();
+                f.binOffset = in.arrayOffset() + in.position();
+                f.binLen = dLen;
+                in.position(in.position() + dLen);
+            } else {
+                f.bin = new byte[dLen];
+                in.get(f.bin);
+            }
+        }
+        in.position(end);
+        return f;
+    }
+
+    private static String readString(ByteBuffer in, int len) {
+        if (len == 0) return "";
+        String v;
+        if (in.hasArray()) {
+            v = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        } else {
+            v = StandardCharsets.UTF_8.decode(in.slice(in.position(), len)).toString();
+        }
+        in.position(in.position() + len);
+        return v;
+    }
+
+    /* ================= UTF-8 ================= */
+
+    /** Độ dài UTF-8 giống {@code s.getBytes(UTF_8).length} (surrogate lẻ → '?'). */
+    static int utf8Length(String s) {
+        if (s == null) return 0;
+        int n = s.length();
+        int len = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) len += 1;
+            else if (c < 0x800) len += 2;
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    len += 4;
+                    i++;
+                } else {
+                    len += 1;
+                }
+            } else len += 3;
+        }
+        return len;
+    }
+
+    /** Ghi UTF-8 (giống {@code getBytes(UTF_8)}), trả về số byte đã ghi. */
+    private static int putUtf8(ByteBuffer dst, String s) {
+        if (s == null || s.isEmpty()) return 0;
+        if (!dst.hasArray()) {
+            int before = dst.position();
+            for (int i = 0; i < s.length(); i++) i = putChar(dst, s, i);
+            return dst.position() - before;
+        }
+        byte[] a = dst.array();
+        int base = dst.arrayOffset();
+        int p = base + dst.position();
+        int start = p;
+        int n = s.length();
+        int i = 0;
+        // heap buffer: ghi thẳng vào mảng, chỉ surrogate mới đi đường chậm
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                a[p++] = (byte) c;
+            } else if (c < 0x800) {
+                a[p++] = (byte) (0xC0 | (c >> 6));
+                a[p++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                a[p++] = (byte) (0xE0 | (c >> 12));
+                a[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                a[p++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                dst.position(p - base);
+                i = putChar(dst, s, i);
+                p = base + dst.position();
+            }
+        }
+        dst.position(p - base);
+        return p - start;
+    }
+
+    /** Ghi ký tự tại {@code i}; trả về chỉ số ký tự cuối đã dùng (surrogate pair dùng 2). */
+    private static int putChar(ByteBuffer dst, String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            dst.put((byte) c);
+        } else if (c < 0x800) {
+            dst.put((byte) (0xC0 | (c >> 6)));
+            dst.put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isSurrogate(c)) {
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                dst.put((byte) '?');
+            }
+        } else {
+            dst.put((byte) (0xE0 | (c >> 12)));
+            dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            dst.put((byte) (0x80 | (c & 0x3F)));
+        }
+        return i;
+    }
+
+    private static boolean isChunk(Frame f) {
+        return f.type == MessageType.FILE_CHUNK || f.type == MessageType.AUDIO_CHUNK;
+    }
+}
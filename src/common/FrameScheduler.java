@@ -0,0 +1,251 @@
+package common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Hàng đợi gửi đi của 1 kết nối, chia theo lớp ưu tiên (nhiều thread đưa vào, 1 thread/loop ghi lấy ra).
+ * - {@link Lane#CONTROL}: tín hiệu cuộc gọi; {@link Lane#MESSAGE}: tin nhắn, ACK, presence... (mọi frame
+ *   khác); {@link Lane#BULK}: META + chunk của file/audio (cùng lane để META luôn đi trước chunk của nó).
+ * - Luôn lấy lane cao nhất đang có frame → DM / tín hiệu gọi không phải chờ sau hàng trăm chunk 64KB.
+ *   Thứ tự trong từng lane giữ nguyên.
+ * - BULK có phần băng thông riêng của kết nối: token bucket {@code bulkBytesPerSec} (0 = không giới hạn,
+ *   dùng hết phần còn trống); và chống đói: chunk đầu hàng chờ quá {@link #BULK_MAX_WAIT_NANOS} thì được
+ *   đi trước MESSAGE (vẫn sau CONTROL).
+ * - Sức chứa tính riêng từng lane: file lớn xếp hàng không làm đầy chỗ của tin nhắn.
+ */
+public final class FrameScheduler {
+
+    public enum Lane { CONTROL, MESSAGE, BULK }
+
+    /** BULK chờ lâu hơn mức này (trong khi MESSAGE liên tục có frame) thì được gửi 1 frame. */
+    public static final long BULK_MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private static final Lane[] LANES = Lane.values();
+
+    public static Lane laneOf(Frame f) {
+        return switch (f.type) {
+            case CALL_INVITE, CALL_ACCEPT, CALL_REJECT, CALL_CANCEL, CALL_BUSY, CALL_END,
+                 CALL_OFFER, CALL_ANSWER, CALL_ICE, CALL_OFFLINE -> Lane.CONTROL;
+            case FILE_META, AUDIO_META, FILE_CHUNK, AUDIO_CHUNK -> Lane.BULK;
+            default -> Lane.MESSAGE;
+        };
+    }
+
+    private final int capacityPerLane;
+    private final long bulkBytesPerSec;
+    private final long burstBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final List<ArrayDeque<Frame>> lanes = new ArrayList<>(LANES.length);
+    private int size;
+    private boolean closed;
+    private boolean finishing; // không nhận thêm, consumer lấy nốt phần còn lại
+
+    // token bucket của BULK (byte, có thể âm = đang nợ) và lúc BULK bắt đầu chờ ở đầu hàng
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private long bulkWaitingSince;
+
+    // thống kê
+    private final long[] sent = new long[LANES.length];
+    private long bulkThrottled;
+
+    /**
+     * @param capacityPerLane số frame tối đa chờ trong mỗi lane
+     * @param bulkBytesPerSec băng thông tối đa cho BULK; 0 = không giới hạn
+     */
+    public FrameScheduler(int capacityPerLane, long bulkBytesPerSec) {
+        this.capacityPerLane = Math.max(1, capacityPerLane);
+        this.bulkBytesPerSec = Math.max(0, bulkBytesPerSec);
+        // cho phép dồn tối đa ~100ms (ít nhất 1 chunk) để không bị giật theo từng chunk
+        this.burstBytes = Math.max(Frame.CHUNK_SIZE, this.bulkBytesPerSec / 10);
+        this.tokens = burstBytes;
+        for (int i = 0; i < LANES.length; i++) lanes.add(new ArrayDeque<>());
+    }
+
+    /* ================= producer ================= */
+
+    /** Không chặn. false nếu lane của {@code f} đã đầy hoặc đã đóng. */
+    public boolean offer(Frame f) {
+        lock.lock();
+        try {
+            return enqueue(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Chặn tới khi lane của {@code f} có chỗ. false nếu đã đóng. */
+    public boolean put(Frame f) throws InterruptedException {
+        lock.lock();
+        try {
+            ArrayDeque<Frame> q = lanes.get(laneOf(f).ordinal());
+            while (!closed && !finishing && q.size() >= capacityPerLane) {
+                notFull.await(200, TimeUnit.MILLISECONDS);
+            }
+            return enqueue(f);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean enqueue(Frame f) {
+        if (closed || finishing || f == null) return false;
+        Lane lane = laneOf(f);
+        ArrayDeque<Frame> q = lanes.get(lane.ordinal());
+        if (q.size() >= capacityPerLane) return false;
+        if (lane == Lane.BULK && q.isEmpty()) bulkWaitingSince = System.nanoTime();
+        q.addLast(f);
+        size++;
+        notEmpty.signal();
+        return true;
+    }
+
+    /* ================= consumer ================= */
+
+    /** Frame tiếp theo được phép gửi ngay, null nếu không có (hoặc chỉ còn BULK đang bị giới hạn). */
+    public Frame poll() {
+        return poll(true);
+    }
+
+    /** Như {@link #poll()}; {@code allowBulk=false} để gom lô chỉ gồm frame nhỏ. */
+    public Frame poll(boolean allowBulk) {
+        lock.lock();
+        try {
+            return next(allowBulk, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Chặn tới khi có frame được phép gửi; null nếu đã đóng (hoặc đã {@link #finish} và hết frame). */
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed) {
+                long now = System.nanoTime();
+                Frame f = next(true, now);
+                if (f != null) return f;
+                if (finishing && size == 0) return null;
+                long wait = (size == 0) ? TimeUnit.MILLISECONDS.toNanos(200) : bulkDelay(now);
+                notEmpty.awaitNanos(Math.max(wait, 1));
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Chỉ còn BULK đang bị giới hạn: số nano phải chờ; 0 nếu có frame gửi được ngay hoặc hàng rỗng. */
+    public long bulkDelayNanos() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (size == 0 || size > lanes.get(Lane.BULK.ordinal()).size()) return 0;
+            return bulkDelay(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame next(boolean allowBulk, long now) {
+        if (size == 0) return null;
+        ArrayDeque<Frame> control = lanes.get(Lane.CONTROL.ordinal());
+        ArrayDeque<Frame> message = lanes.get(Lane.MESSAGE.ordinal());
+        ArrayDeque<Frame> bulk = lanes.get(Lane.BULK.ordinal());
+
+        if (!control.isEmpty()) return remove(Lane.CONTROL, now);
+        boolean bulkReady = allowBulk && !bulk.isEmpty() && bulkDelay(now) == 0;
+        if (!message.isEmpty()) {
+            // MESSAGE trước, trừ khi BULK đã chờ quá lâu
+            if (bulkReady && now - bulkWaitingSince > BULK_MAX_WAIT_NANOS) return remove(Lane.BULK, now);
+            return remove(Lane.MESSAGE, now);
+        }
+        if (bulkReady) return remove(Lane.BULK, now);
+        if (allowBulk && !bulk.isEmpty()) bulkThrottled++;
+        return null;
+    }
+
+    private Frame remove(Lane lane, long now) {
+        Frame f = lanes.get(lane.ordinal()).pollFirst();
+        size--;
+        sent[lane.ordinal()]++;
+        if (lane == Lane.BULK) {
+            if (bulkBytesPerSec > 0) tokens -= f.binLength() + 64;
+            bulkWaitingSince = now;
+        }
+        notFull.signalAll();
+        return f;
+    }
+
+    /** Nạp token theo thời gian; 0 nếu BULK được gửi ngay. */
+    private long bulkDelay(long now) {
+        if (bulkBytesPerSec == 0) return 0;
+        tokens = Math.min(burstBytes, tokens + (now - refilledAt) * (bulkBytesPerSec / 1e9));
+        refilledAt = now;
+        if (tokens > 0) return 0;
+        return (long) Math.ceil((1 - tokens) * 1e9 / bulkBytesPerSec);
+    }
+
+    /* ================= trạng thái ================= */
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() { return size() == 0; }
+
+    /** Ngừng nhận frame mới nhưng giữ phần đang chờ cho consumer lấy nốt; producer đang chặn được thả ra. */
+    public void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Đóng: frame đang chờ bị bỏ (gọi {@code onDrop} cho từng frame); producer đang chặn được thả ra. */
+    public void close(Consumer<Frame> onDrop) {
+        ArrayDeque<Frame> dropped = new ArrayDeque<>();
+        lock.lock();
+        try {
+            closed = true;
+            for (ArrayDeque<Frame> q : lanes) {
+                dropped.addAll(q);
+                q.clear();
+            }
+            size = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (onDrop != null) dropped.forEach(onDrop);
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return "sent{control=" + sent[0] + ", message=" + sent[1] + ", bulk=" + sent[2]
+                    + "}, queued=" + size + ", bulkThrottled=" + bulkThrottled;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
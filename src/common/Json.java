@@ -0,0 +1,432 @@
+package common;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JSON dùng chung cho server và client (thay các bản jsonGet/pickJson/extractArray chép tay).
+ * - {@link #parse}: duyệt body 1 lần, chỉ ghi lại vị trí value của từng key; value chỉ được
+ *   tạo String khi gọi tới (field lớn như avatarBase64 có thể decode thẳng qua {@link Obj#base64}).
+ * - Tra key giống jsonGet cũ: lần xuất hiện đầu tiên ở bất kỳ độ sâu nào.
+ * - Body không phải JSON / hỏng giữa chừng: giữ những key đã đọc được, không ném lỗi.
+ * - {@link Writer}: dựng JSON có escape đầy đủ.
+ */
+public final class Json {
+    private Json() {}
+
+    /* ================= ĐỌC ================= */
+
+    public static Obj parse(String json) {
+        return new Obj(json, 0, json == null ? 0 : json.length());
+    }
+
+    /** Tra nhanh 1 key (string đã unescape, số/true/false dạng text, null → null). */
+    public static String get(String json, String key) {
+        return parse(json).str(key);
+    }
+
+    public static long getLong(String json, String key, long def) {
+        return parse(json).lng(key, def);
+    }
+
+    /**
+     * View đã index của 1 object JSON (hoặc 1 đoạn con của chuỗi gốc, không copy).
+     * Không thread-safe; dùng trong phạm vi 1 lần xử lý frame.
+     */
+    public static final class Obj {
+        private final String src;
+        private final int from;
+        private final int to;
+        /** key → {start, end} của value (string gồm cả dấu nháy). */
+        private Map<String, int[]> index;
+
+        private Obj(String src, int from, int to) {
+            this.src = src;
+            this.from = from;
+            this.to = to;
+        }
+
+        private Map<String, int[]> index() {
+            if (index == null) {
+                index = new HashMap<>();
+                if (src != null) new Scanner(src, from, to, index).scan();
+            }
+            return index;
+        }
+
+        public boolean has(String key) { return index().containsKey(key); }
+
+        /** true nếu key không có hoặc là {@code null}. */
+        public boolean isNull(String key) {
+            int[] v = index().get(key);
+            return v == null || src.startsWith("null", v[0]);
+        }
+
+        public String str(String key) {
+            int[] v = index().get(key);
+            if (v == null) return null;
+            char c = src.charAt(v[0]);
+            if (c == '"') return unescape(src, v[0] + 1, v[1] - 1);
+            if (c == 'n' && src.startsWith("null", v[0])) return null;
+            return src.substring(v[0], v[1]);
+        }
+
+        public String str(String key, String def) {
+            String s = str(key);
+            return s == null ? def : s;
+        }
+
+        public long lng(String key, long def) {
+            int[] v = index().get(key);
+            if (v == null) return def;
+            int s = v[0], e = v[1];
+            if (src.charAt(s) == '"') { s++; e--; }   // "123" cũng chấp nhận
+            if (s >= e) return def;
+            try {
+                return Long.parseLong(src, s, e, 10);
+            } catch (NumberFormatException ex) {
+                return def;
+            }
+        }
+
+        public int integer(String key, int def) {
+            long v = lng(key, def);
+            return (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) ? def : (int) v;
+        }
+
+        public boolean bool(String key, boolean def) {
+            String s = str(key);
+            if (s == null) return def;
+            return "true".equalsIgnoreCase(s) || "1".equals(s);
+        }
+
+        /** JSON thô của value (object/array/literal), không unescape. */
+        public String raw(String key) {
+            int[] v = index().get(key);
+            return v == null ? null : src.substring(v[0], v[1]);
+        }
+
+        /**
+         * Value string dạng view trên chuỗi gốc, không copy (chưa unescape — chỉ dùng cho
+         * nội dung không có ký tự escape như base64).
+         */
+        public CharSequence span(String key) {
+            int[] v = index().get(key);
+            if (v == null || src.charAt(v[0]) != '"') return null;
+            return CharBuffer.wrap(src, v[0] + 1, v[1] - 1);
+        }
+
+        /** Decode base64 thẳng từ chuỗi gốc (không tạo substring). null nếu không có / sai định dạng. */
+        public byte[] base64(String key) {
+            int[] v = index().get(key);
+            if (v == null || src.charAt(v[0]) != '"') return null;
+            int s = v[0] + 1, e = v[1] - 1;
+            byte[] ascii = new byte[e - s];
+            for (int i = s; i < e; i++) ascii[i - s] = (byte) src.charAt(i);
+            try {
+                return Base64.getDecoder().decode(ascii);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        /** Object con, dùng chung chuỗi gốc. */
+        public Obj obj(String key) {
+            int[] v = index().get(key);
+            if (v == null || src.charAt(v[0]) != '{') return null;
+            return new Obj(src, v[0], v[1]);
+        }
+
+        /** Mảng object: mỗi phần tử là 1 Obj trên chuỗi gốc. */
+        public List<Obj> objects(String key) {
+            List<Obj> out = new ArrayList<>();
+            int[] v = index().get(key);
+            if (v == null || src.charAt(v[0]) != '[') return out;
+            Scanner sc = new Scanner(src, v[0] + 1, v[1] - 1, null);
+            sc.eachElement((s, e) -> {
+                if (src.charAt(s) == '{') out.add(new Obj(src, s, e));
+            });
+            return out;
+        }
+
+        /** Mảng string/số → List<String> (string đã unescape). */
+        public List<String> strings(String key) {
+            List<String> out = new ArrayList<>();
+            int[] v = index().get(key);
+            if (v == null || src.charAt(v[0]) != '[') return out;
+            Scanner sc = new Scanner(src, v[0] + 1, v[1] - 1, null);
+            sc.eachElement((s, e) -> {
+                char c = src.charAt(s);
+                if (c == '"') out.add(unescape(src, s + 1, e - 1));
+                else if (c != '{' && c != '[' && !src.startsWith("null", s)) out.add(src.substring(s, e));
+            });
+            return out;
+        }
+
+        @Override
+        public String toString() {
+            return src == null ? "" : src.substring(from, to);
+        }
+    }
+
+    /** Tokenizer 1 lượt; ghi vị trí value đầu tiên của mỗi key vào {@code index}. */
+    private static final class Scanner {
+        private final String s;
+        private final int end;
+        private final Map<String, int[]> index;
+        private int p;
+
+        interface ElementSink { void accept(int start, int end); }
+
+        Scanner(String s, int from, int to, Map<String, int[]> index) {
+            this.s = s;
+            this.p = from;
+            this.end = Math.min(to, s.length());
+            this.index = index;
+        }
+
+        void scan() {
+            try {
+                skipWs();
+                if (p < end && (s.charAt(p) == '{' || s.charAt(p) == '[')) value();
+            } catch (RuntimeException malformed) {
+                // JSON hỏng: giữ các key đã index được
+            }
+        }
+
+        void eachElement(ElementSink sink) {
+            try {
+                while (true) {
+                    skipWs();
+                    if (p >= end) return;
+                    int start = p;
+                    value();
+                    sink.accept(start, p);
+                    skipWs();
+                    if (p >= end || s.charAt(p) != ',') return;
+                    p++;
+                }
+            } catch (RuntimeException malformed) {
+                // dừng ở phần tử hỏng
+            }
+        }
+
+        private void value() {
+            skipWs();
+            char c = s.charAt(p);
+            switch (c) {
+                case '{' -> object();
+                case '[' -> array();
+                case '"' -> skipString();
+                default -> {
+                    while (p < end && ",}] \t\r\n".indexOf(s.charAt(p)) < 0) p++;
+                }
+            }
+        }
+
+        private void object() {
+            p++; // {
+            while (true) {
+                skipWs();
+                if (s.charAt(p) == '}') { p++; return; }
+                int ks = p;
+                skipString();
+                skipWs();
+                expect(':');
+                skipWs();
+                int vs = p;
+                value();
+                if (index != null) {
+                    String key = unescape(s, ks + 1, keyEnd(ks));
+                    index.putIfAbsent(key, new int[]{vs, p});
+                }
+                skipWs();
+                char c = s.charAt(p++);
+                if (c == '}') return;
+                if (c != ',') throw new IllegalStateException("Expected , or }");
+            }
+        }
+
+        /** Vị trí dấu nháy đóng của key bắt đầu ở {@code ks}. */
+        private int keyEnd(int ks) {
+            int i = ks + 1;
+            while (s.charAt(i) != '"') i += (s.charAt(i) == '\\') ? 2 : 1;
+            return i;
+        }
+
+        private void array() {
+            p++; // [
+            while (true) {
+                skipWs();
+                if (s.charAt(p) == ']') { p++; return; }
+                value();
+                skipWs();
+                char c = s.charAt(p++);
+                if (c == ']') return;
+                if (c != ',') throw new IllegalStateException("Expected , or ]");
+            }
+        }
+
+        private void skipString() {
+            expect('"');
+            while (true) {
+                char c = s.charAt(p++);
+                if (c == '"') return;
+                if (c == '\\') p++;
+                if (p >= end) throw new IllegalStateException("Unterminated string");
+            }
+        }
+
+        private void expect(char c) {
+            if (s.charAt(p) != c) throw new IllegalStateException("Expected " + c);
+            p++;
+        }
+
+        private void skipWs() {
+            while (p < end && Character.isWhitespace(s.charAt(p))) p++;
+        }
+    }
+
+    private static String unescape(String s, int from, int to) {
+        int bs = s.indexOf('\\', from);
+        if (bs < 0 || bs >= to) return s.substring(from, to);
+        StringBuilder sb = new StringBuilder(to - from);
+        sb.append(s, from, bs);
+        for (int i = bs; i < to; i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 >= to) { sb.append(c); continue; }
+            char n = s.charAt(++i);
+            switch (n) {
+                case 'n' -> sb.append('\n');
+                case 't' -> sb.append('\t');
+                case 'r' -> sb.append('\r');
+                case 'b' -> sb.append('\b');
+                case 'f' -> sb.append('\f');
+                case 'u' -> {
+                    if (i + 4 < to) {
+                        try {
+                            sb.append((char) Integer.parseInt(s, i + 1, i + 5, 16));
+                            i += 4;
+                        } catch (NumberFormatException e) {
+                            sb.append('u');
+                        }
+                    } else {
+                        sb.append('u');
+                    }
+                }
+                default -> sb.append(n);   // \" \\ \/
+            }
+        }
+        return sb.toString();
+    }
+
+    /* ================= GHI ================= */
+
+    public static Writer object() {
+        return new Writer().beginObject();
+    }
+
+    /** Thêm {@code "..."} đã escape vào {@code sb}. */
+    public static StringBuilder quote(StringBuilder sb, String s) {
+        sb.append('"');
+        if (s != null) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"'  -> sb.append("\\\"");
+                    case '\\' -> sb.append("\\\\");
+                    case '\n' -> sb.append("\\n");
+                    case '\r' -> sb.append("\\r");
+                    case '\t' -> sb.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            sb.append("\\u00");
+                            sb.append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+                        } else {
+                            sb.append(c);
+                        }
+                    }
+                }
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Dựng JSON tuần tự: {@code Json.object().field("id", 1).field("name", n).endObject().toString()}.
+     * Field string null được ghi là {@code null}.
+     */
+    public static final class Writer {
+        private final StringBuilder sb;
+        /** first[depth]: phần tử đầu tiên của object/array hiện tại chưa được ghi. */
+        private boolean[] first = new boolean[8];
+        private int depth = -1;
+
+        public Writer() { this(128); }
+
+        public Writer(int capacity) { this.sb = new StringBuilder(capacity); }
+
+        public Writer beginObject() { comma(); sb.append('{'); push(); return this; }
+        public Writer beginObject(String key) { key(key); sb.append('{'); push(); return this; }
+        public Writer beginArray() { comma(); sb.append('['); push(); return this; }
+        public Writer beginArray(String key) { key(key); sb.append('['); push(); return this; }
+        public Writer endObject() { depth--; sb.append('}'); return this; }
+        public Writer endArray() { depth--; sb.append(']'); return this; }
+
+        public Writer field(String key, String value) {
+            key(key);
+            if (value == null) sb.append("null");
+            else quote(sb, value);
+            return this;
+        }
+
+        public Writer field(String key, long value) { key(key); sb.append(value); return this; }
+
+        public Writer field(String key, boolean value) { key(key); sb.append(value); return this; }
+
+        /** Số có thể null. */
+        public Writer field(String key, Long value) {
+            key(key);
+            sb.append(value == null ? "null" : value.toString());
+            return this;
+        }
+
+        /** Giá trị đã là JSON hợp lệ (vd. mảng dựng sẵn). */
+        public Writer rawField(String key, String json) { key(key); sb.append(json); return this; }
+
+        public Writer value(String v) { comma(); if (v == null) sb.append("null"); else quote(sb, v); return this; }
+        public Writer value(long v) { comma(); sb.append(v); return this; }
+
+        public Writer strings(String key, List<String> values) {
+            beginArray(key);
+            for (String v : values) value(v);
+            return endArray();
+        }
+
+        private void key(String k) {
+            comma();
+            quote(sb, k).append(':');
+        }
+
+        private void comma() {
+            if (depth < 0) return;
+            if (first[depth]) first[depth] = false;
+            else sb.append(',');
+        }
+
+        private void push() {
+            if (++depth == first.length) first = java.util.Arrays.copyOf(first, depth * 2);
+            first[depth] = true;
+        }
+
+        /** Số ký tự đã ghi (để tách trang khi body quá lớn). */
+        public int length() { return sb.length(); }
+
+        @Override
+        public String toString() { return sb.toString(); }
+    }
+}
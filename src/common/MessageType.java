@@ -47,7 +47,14 @@ public enum MessageType {
 	AUTH_REGISTER((byte)50),
     AUTH_LOGIN   ((byte)51),
     USER_LIST_REQ((byte)52),
-    USER_LIST    ((byte)53);	
+    USER_LIST    ((byte)53),
+    OFFLINE_PAGE ((byte)54),   // server → client: hết 1 trang tin offline, body {"count":..,"last_id":..}
+    OFFLINE_ACK  ((byte)55),   // client → server: đã nhận xong trang, body = last_id
+    HISTORY_PAGE ((byte)56),   // server → client: 1 trang lịch sử DM/group, body {"peer":..,"more":..,"messages":[..]}
+    AVATAR_GET   ((byte)57),   // client → server: xin avatar, body {"id":..,"hash":..}
+    AVATAR_DATA  ((byte)58),   // server → client: {"id":..,"hash":<hash đã xin>,"current":..,"mime":..,"avatarBase64":..}
+    PRESENCE_SUB ((byte)59),   // client → server: {"add":[username..],"remove":[..]} theo dõi presence
+    PRESENCE     ((byte)60);   // server → client: delta {"p":[{"u":..,"on":1|0,"ls":..}]}	
 	
     public final byte id;
     MessageType(byte id){ this.id = id; }
@@ -19,6 +19,9 @@ public class User {
     // user.avatar_updated_at (nếu cần cache avatar)
     private String avatarUpdatedAtIso;
 
+    // SHA-1 (hex) của avatar; USER_LIST / login chỉ gửi hash, ảnh lấy riêng qua AVATAR_GET
+    private String avatarHash;
+
     public User() {}
 
     public User(int id, String username, String password) {
@@ -99,4 +102,12 @@ public class User {
     public void setAvatarUpdatedAtIso(String avatarUpdatedAtIso) {
         this.avatarUpdatedAtIso = avatarUpdatedAtIso;
     }
+
+    public String getAvatarHash() {
+        return avatarHash;
+    }
+
+    public void setAvatarHash(String avatarHash) {
+        this.avatarHash = avatarHash;
+    }
 }
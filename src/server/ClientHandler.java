@@ -3,29 +3,44 @@ package server;
 import server.dao.MessageDao;
 import server.dao.UserDAO;
 import common.User;
-import java.util.Base64;
 import server.signaling.CallRouter;
 import common.Frame;
-import common.FrameIO;
+import common.FrameCodec;
 import common.GroupMessage;
+import common.Json;
 import common.MessageType;
 import server.dao.FileDao;
 import server.dao.GroupDao;
 import server.dao.GroupMessageDao;
+import server.dao.MessageChangeLog;
+import server.net.ConnectionHandler;
+import server.net.FrameSink;
+import server.net.FrameWriter;
+import server.service.AvatarService;
+import server.service.FanoutService;
+import server.service.PresenceService;
+import server.service.SmartReplyService;
+import server.service.UploadStore;
+import server.service.UserDirectoryService;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import common.Message;
 import common.FileResource;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ConnectionHandler {
     private final Socket socket;
     private final Set<ClientHandler> clients;
     private final Map<String, ClientHandler> online;
@@ -35,32 +50,79 @@ public class ClientHandler implements Runnable {
     private final GroupMessageDao groupMessageDao;
     private DataInputStream binIn;
     private DataOutputStream binOut;
+    private volatile FrameSink sink;
+    private final int outboundCapacity;
+    private final long bulkBytesPerSec;
+    private final ThreadFactory writerThreads;
+    /** Handler đang xử lý frame trên thread hiện tại (để sendFrame biết khi nào được phép chặn). */
+    private static final ThreadLocal<ClientHandler> DISPATCHING = new ThreadLocal<>();
     private int userId = -1;    
     private final UserDAO userDao = new UserDAO();
     private String username = null;
     private static final File UPLOAD_DIR = new File("uploads");
     private static final Map<String, String> fileNameMap = new ConcurrentHashMap<>();
 
-    // ==== state 1 phiên upload (hợp nhất file/audio) ====
-    private String upFileId;
-    private String upToUser;
-    private String upOrigName;
-    private String upMime;
-    private long upDeclaredSize;
-    private int upExpectedSeq;
-    private long upWritten;
-    private BufferedOutputStream upOut;
+    // ==== các upload đang mở (file/audio), theo transferId — xem UploadStore.Sessions ====
+    private final UploadStore.Sessions uploads = UploadStore.getInstance().newSessions();
 
     // map uuid<->id để tải lại theo uuid phía client cũ
     private static final Map<String, Long> uuidToFileId = new ConcurrentHashMap<>();
     private static final Map<String, Long> uuidToMsgId  = new ConcurrentHashMap<>();
     private static final String REPLY_TAG = "[REPLY:";
-    private Long upReplyTo;
+
+    // ==== tin offline gửi theo trang ====
+    private static final int OFFLINE_PAGE_SIZE = 200;
+    private long offlineCursor;
+    private final List<Long> offlinePageIds = new ArrayList<>();   // id các tin trong trang vừa gửi
+    private int offlineDelivered;
+    private boolean offlineDraining;
+
+    // ==== lịch sử gửi theo trang (HISTORY_PAGE) ====
+    /** Tách trang khi body vượt ngưỡng này (ký tự) để frame luôn dưới MAX_TOTAL_LEN. */
+    private static final int HISTORY_PAGE_MAX_CHARS = 256 * 1024;
+    // đồng bộ delta: quá số tombstone này thì bảo client nạp lại từ đầu (reset)
+    private static final int HISTORY_SYNC_MAX_CHANGES = 500;
+
+    // ==== danh bạ USER_LIST theo trang (yêu cầu mới thay/huỷ yêu cầu cũ) ====
+    private final UserDirectoryService.Session directory = new UserDirectoryService.Session();
     public ClientHandler(Socket socket,
                          Set<ClientHandler> clients,
                          Map<String, ClientHandler> online,
                          MessageDao messageDao, FileDao fileDao, GroupDao groupDao, GroupMessageDao groupmessageDao) {
+        this(socket, FrameWriter.DEFAULT_CAPACITY, 0, r -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                }, clients, online, messageDao, fileDao, groupDao, groupmessageDao);
+    }
+
+    /** Blocking socket; {@code writerThreads} quyết định writer là platform hay virtual thread. */
+    public ClientHandler(Socket socket, int outboundCapacity, long bulkBytesPerSec, ThreadFactory writerThreads,
+                         Set<ClientHandler> clients,
+                         Map<String, ClientHandler> online,
+                         MessageDao messageDao, FileDao fileDao, GroupDao groupDao, GroupMessageDao groupmessageDao) {
+        this(socket, null, outboundCapacity, bulkBytesPerSec, writerThreads, clients, online,
+                messageDao, fileDao, groupDao, groupmessageDao);
+    }
+
+    /** Dùng cho transport NIO: không có Socket, đầu ra là {@code sink} do NioServer cung cấp. */
+    public ClientHandler(FrameSink sink,
+                         Set<ClientHandler> clients,
+                         Map<String, ClientHandler> online,
+                         MessageDao messageDao, FileDao fileDao, GroupDao groupDao, GroupMessageDao groupmessageDao) {
+        this(null, sink, 0, 0, null, clients, online, messageDao, fileDao, groupDao, groupmessageDao);
+    }
+
+    private ClientHandler(Socket socket, FrameSink sink, int outboundCapacity, long bulkBytesPerSec,
+                          ThreadFactory writerThreads,
+                          Set<ClientHandler> clients,
+                          Map<String, ClientHandler> online,
+                          MessageDao messageDao, FileDao fileDao, GroupDao groupDao, GroupMessageDao groupmessageDao) {
         this.socket = socket;
+        this.sink = sink;
+        this.outboundCapacity = outboundCapacity;
+        this.bulkBytesPerSec = bulkBytesPerSec;
+        this.writerThreads = writerThreads;
         this.clients = clients;
         this.online = online;
         this.messageDao = messageDao;
@@ -75,47 +137,17 @@ public class ClientHandler implements Runnable {
             socket.setTcpNoDelay(true);
             binIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             binOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            FrameWriter w = new FrameWriter("frame-writer-" + socket.getRemoteSocketAddress(),
+                    binOut, outboundCapacity, bulkBytesPerSec, writerThreads, this::closeNow);
+            w.start();
+            sink = w;
 
-            if (!UPLOAD_DIR.exists()) UPLOAD_DIR.mkdirs();
-
+            // Đọc bằng buffer dùng lại: payload chunk là slice, chỉ hợp lệ trong onFrame (xử lý đồng bộ)
+            FrameCodec reader = new FrameCodec();
             while (true) {
-                Frame f = FrameIO.read(binIn);
+                Frame f = reader.read(binIn);
                 if (f == null) break;
-
-                switch (f.type) {
-	                case AUTH_REGISTER -> handleAuthRegister(f);
-	                case AUTH_LOGIN    -> handleAuthLogin(f);
-                    case REGISTER, LOGIN -> handleLogin(f);
-                    case DM -> handleDirectMessage(f);
-                    case HISTORY -> handleHistory(f);
-
-                    // HỢP NHẤT: FILE + AUDIO đều đi qua 2 type meta/chunk này
-                    case FILE_META, FILE_CHUNK -> handleFile(f);
-                    case AUDIO_META, AUDIO_CHUNK -> handleFile(f); // tương thích ngược
-
-                    case CALL_INVITE, CALL_ACCEPT, CALL_REJECT,
-                         CALL_CANCEL, CALL_BUSY, CALL_END,
-                         CALL_OFFER, CALL_ANSWER, CALL_ICE -> handleCall(f);
-
-                    case DELETE_MSG -> handleDeleteMessage(f);
-
-                    // Lịch sử/tải/xoá file — CHUNG
-                    case DOWNLOAD_FILE -> handleDownloadFile(f);
-                    case FILE_HISTORY  -> handleFileHistory(f);
-                    case DELETE_FILE   -> handleDeleteFile(f);
-
-                    case EDIT_MSG -> handleEditMessage(f);
-                    case SEARCH   -> handleSearch(f);
-                    case CREATE_GROUP -> handleCreateGroup(f);
-                    case ADD_MEMBER -> handleAddMember(f);
-                    case REMOVE_MEMBER -> handleRemoveMember(f);
-                    case DELETE_GROUP -> handleDeleteGroup(f);
-                    case LIST_MEMBERS -> handleListMember(f);
-                    case GROUP_MSG -> handleGroupMessage(f);
-                    case GROUP_HISTORY -> handleGroupHistory(f);
-                    case USER_LIST_REQ -> handleUserListReq(f);
-                    default -> System.out.println("[SERVER] Unknown frame: " + f.type);
-                }
+                onFrame(f);
             }
         } catch (SocketException | EOFException ignored) {
         } catch (IOException e) {
@@ -125,89 +157,172 @@ public class ClientHandler implements Runnable {
         }
     }
     
-    /* ================= USER LIST (for Left sidebar) ================= */
-    private void handleUserListReq(Frame f) {
+    @Override
+    public void onFrame(Frame f) {
+        DISPATCHING.set(this);
         try {
-            String body = (f.body == null) ? "" : f.body.trim();
-            String q = jsonGet(body, "q");
-
-            // lấy danh sách user khác mình
-            java.util.List<User> users = (q == null || q.isBlank())
-                    ? UserDAO.listOthers(this.userId)
-                    : UserDAO.searchUsers(q, this.userId);
-
-            // presence chung cho tất cả
-            java.util.Map<Integer, UserDAO.Presence> presMap = UserDAO.getPresenceOfAll();
+            dispatch(f);
+        } finally {
+            DISPATCHING.remove();
+        }
+    }
 
-            int count = 0;
-            for (User u : users) {
-                UserDAO.Presence p = presMap.get(u.getId());
-                boolean online = (p != null && p.online);
-                String lastSeen = (p != null) ? p.lastSeenIso : null;
+    @Override
+    public void onClosed() {
+        cleanup();
+    }
 
-                // avatar
-                byte[] avatarBytes = null;
-                try {
-                    avatarBytes = UserDAO.getAvatarById(u.getId());
-                } catch (Exception ignore) {}
+    private void dispatch(Frame f) {
+        if (!UPLOAD_DIR.exists()) UPLOAD_DIR.mkdirs();
+
+        switch (f.type) {
+            case AUTH_REGISTER -> handleAuthRegister(f);
+            case AUTH_LOGIN    -> handleAuthLogin(f);
+            case REGISTER, LOGIN -> handleLogin(f);
+            case DM -> handleDirectMessage(f);
+            case OFFLINE_ACK -> handleOfflineAck(f);
+            case HISTORY -> handleHistory(f);
+
+            // HỢP NHẤT: FILE + AUDIO đều đi qua 2 type meta/chunk này
+            case FILE_META, FILE_CHUNK -> handleFile(f);
+            case AUDIO_META, AUDIO_CHUNK -> handleFile(f); // tương thích ngược
+
+            case CALL_INVITE, CALL_ACCEPT, CALL_REJECT,
+                 CALL_CANCEL, CALL_BUSY, CALL_END,
+                 CALL_OFFER, CALL_ANSWER, CALL_ICE -> handleCall(f);
+
+            case DELETE_MSG -> handleDeleteMessage(f);
+
+            // Lịch sử/tải/xoá file — CHUNG
+            case DOWNLOAD_FILE -> handleDownloadFile(f);
+            case FILE_HISTORY  -> handleFileHistory(f);
+            case DELETE_FILE   -> handleDeleteFile(f);
+
+            case EDIT_MSG -> handleEditMessage(f);
+            case SEARCH   -> handleSearch(f);
+            case CREATE_GROUP -> handleCreateGroup(f);
+            case ADD_MEMBER -> handleAddMember(f);
+            case REMOVE_MEMBER -> handleRemoveMember(f);
+            case DELETE_GROUP -> handleDeleteGroup(f);
+            case LIST_MEMBERS -> handleListMember(f);
+            case GROUP_MSG -> handleGroupMessage(f);
+            case GROUP_HISTORY -> handleGroupHistory(f);
+            case USER_LIST_REQ -> handleUserListReq(f);
+            case AVATAR_GET -> handleAvatarGet(f);
+            case PRESENCE_SUB -> handlePresenceSub(f);
+            default -> System.out.println("[SERVER] Unknown frame: " + f.type);
+        }
+    }
 
-                StringBuilder sb = new StringBuilder();
-                sb.append("{\"id\":").append(u.getId())
-                  .append(",\"username\":\"").append(escJson(u.getUsername())).append("\"")
-                  .append(",\"online\":").append(online ? 1 : 0);
+    /* ================= USER LIST (for Left sidebar) ================= */
+    /**
+     * body {"reqId":..,"q":..,"after":<username cuối trang trước>,"limit":..} → 1 frame USER_LIST
+     * {"reqId":..,"more":..,"next":..,"users":[{id,username,online,lastSeen,avatarHash}]}.
+     * {"cancel":true} bỏ yêu cầu đang chạy. Truy vấn chạy trên UserDirectoryService, không chặn
+     * hàng đợi frame của kết nối; reqId cũ bị thay thì trang của nó không được gửi.
+     */
+    private void handleUserListReq(Frame f) {
+        String body = (f.body == null || f.body.isBlank()) ? "{}" : f.body;
+        Json.Obj req = Json.parse(body);
+        UserDirectoryService dir = UserDirectoryService.getInstance();
+        if (req.bool("cancel", false)) {
+            dir.cancel(directory);
+            return;
+        }
+        long reqId = req.lng("reqId", 0);
+        String q = req.str("q");
+        String after = req.str("after");
+        int limit = req.integer("limit", UserDirectoryService.DEFAULT_PAGE);
+
+        dir.submit(directory, this.userId, reqId, q, after, limit,
+                page -> sendFrame(new Frame(MessageType.USER_LIST, "server",
+                        this.username == null ? "" : this.username, userListPageBody(page))),
+                e -> {
+                    e.printStackTrace();
+                    sendFrame(Frame.error("USER_LIST_DB_ERROR"));
+                });
+    }
 
-                if (lastSeen != null && !lastSeen.isBlank()) {
-                    sb.append(",\"lastSeen\":\"").append(escJson(lastSeen)).append("\"");
-                }
-                if (avatarBytes != null && avatarBytes.length > 0) {
-                    String b64 = java.util.Base64.getEncoder().encodeToString(avatarBytes);
-                    sb.append(",\"avatarBase64\":\"").append(b64).append("\"");
-                }
+    private String userListPageBody(UserDirectoryService.Page page) {
+        Json.Writer w = new Json.Writer(64 + page.users().size() * 128).beginObject()
+                .field("reqId", page.reqId())
+                .field("more", page.more());
+        if (page.next() != null) w.field("next", page.next());
+        w.beginArray("users");
+        PresenceService presence = PresenceService.getInstance();
+        for (User u : page.users()) {
+            // online lấy từ PresenceService (các phiên đang sống), không quét bảng users
+            w.beginObject()
+             .field("id", u.getId())
+             .field("username", u.getUsername())
+             .field("online", presence.isOnline(u.getUsername()) ? 1 : 0);
+            String lastSeen = presence.lastSeen(u.getUsername()); // mới hơn DB nếu chưa kịp ghi lô
+            if (lastSeen == null) lastSeen = u.getLastSeenIso();
+            if (lastSeen != null && !lastSeen.isBlank()) w.field("lastSeen", lastSeen);
+            // chỉ gửi hash; client chưa có ảnh này thì tự xin qua AVATAR_GET
+            if (u.getAvatarHash() != null) w.field("avatarHash", u.getAvatarHash());
+            w.endObject();
+        }
+        return w.endArray().endObject().toString();
+    }
 
-                sb.append("}");
+    /* ================= PRESENCE (đăng ký theo user đang hiển thị) ================= */
+    private void handlePresenceSub(Frame f) {
+        if (f.body == null || f.body.isBlank()) return;
+        Json.Obj req = Json.parse(f.body);
+        PresenceService.getInstance().subscribe(this, req.strings("add"), req.strings("remove"));
+    }
 
-                Frame out = new Frame(
-                        MessageType.USER_LIST,
-                        "server",
-                        this.username,
-                        sb.toString()
-                );
-                sendFrame(out);
-                count++;
+    /* ================= AVATAR (theo hash nội dung) ================= */
+    private void handleAvatarGet(Frame f) {
+        if (this.userId <= 0) { // chỉ sau AUTH_LOGIN
+            sendFrame(Frame.error("AVATAR_NOT_AUTHENTICATED"));
+            return;
+        }
+        Json.Obj req = Json.parse(f.body);
+        int uid = req.integer("id", 0);
+        String want = req.str("hash");
+        try {
+            AvatarService.Entry e = AvatarService.getInstance().fetch(uid, want);
+
+            // luôn trả lời (kể cả không có ảnh) để client bỏ yêu cầu đang chờ
+            Json.Writer w = Json.object()
+                    .field("id", uid)
+                    .field("hash", want);
+            if (e != null) {
+                w.field("current", e.hash())
+                 .field("mime", e.mime())
+                 .field("avatarBase64", e.base64());
             }
-
-            sendFrame(Frame.ack("OK USER_LIST " + count));
-
-        } catch (java.sql.SQLException e) {
-            e.printStackTrace();
-            sendFrame(Frame.error("USER_LIST_DB_ERROR"));
-        } catch (Exception e) {
+            sendFrame(new Frame(MessageType.AVATAR_DATA, "server",
+                    this.username == null ? "" : this.username, w.endObject().toString()));
+        } catch (SQLException e) {
             e.printStackTrace();
-            sendFrame(Frame.error("USER_LIST_FAIL"));
+            sendFrame(Frame.error("AVATAR_DB_ERROR"));
         }
     }
 
-    
     /* ================= AUTH REGISTER (DB only) ================= */
     private void handleAuthRegister(Frame f) {
         try {
-            String body = (f.body == null) ? "" : f.body;
-            String u = jsonGet(body, "username");
-            String p = jsonGet(body, "password");
-            String avatarMime = jsonGet(body, "avatarMime");
-            String avatarB64  = jsonGet(body, "avatarBase64");
+            Json.Obj req = Json.parse(f.body);
+            String u = req.str("username");
+            String p = req.str("password");
+            String avatarMime = req.str("avatarMime");
 
             if (u == null || u.isBlank() || p == null || p.isBlank()) {
                 sendFrame(Frame.error("REGISTER_INVALID_INPUT"));
                 return;
             }
 
+            // decode thẳng từ body, không tạo substring base64 trung gian
             byte[] avatarBytes = null;
-            if (avatarB64 != null && !avatarB64.isBlank()) {
-                try {
-                    avatarBytes = Base64.getDecoder().decode(avatarB64);
-                } catch (IllegalArgumentException ex) {
-                    System.err.println("[AUTH_REGISTER] avatar base64 decode failed: " + ex.getMessage());
+            if (!req.isNull("avatarBase64")) {
+                avatarBytes = req.base64("avatarBase64");
+                if (avatarBytes == null) {
+                    System.err.println("[AUTH_REGISTER] avatar base64 decode failed");
+                } else if (avatarBytes.length == 0) {
+                    avatarBytes = null;
                 }
             }
 
@@ -231,9 +346,9 @@ public class ClientHandler implements Runnable {
     /* ================= AUTH LOGIN (DB only) ================= */
     private void handleAuthLogin(Frame f) {
         try {
-            String body = (f.body == null) ? "" : f.body;
-            String u = jsonGet(body, "username");
-            String p = jsonGet(body, "password");
+            Json.Obj req = Json.parse(f.body);
+            String u = req.str("username");
+            String p = req.str("password");
 
             if (u == null || u.isBlank() || p == null || p.isBlank()) {
                 sendFrame(Frame.error("LOGIN_INVALID_INPUT"));
@@ -254,42 +369,19 @@ public class ClientHandler implements Runnable {
             }
 
             this.userId = user.getId();
+            // users.online được PresenceService ghi (theo lô) khi LOGIN
 
-            // Đánh dấu online trong DB
-            try {
-                UserDAO.setOnline(user.getId(), true);
-            } catch (Exception ex) {
-                System.err.println("[AUTH_LOGIN] setOnline failed: " + ex.getMessage());
-            }
+            Json.Writer w = Json.object()
+                    .field("status", "OK")
+                    .field("id", user.getId())
+                    .field("username", user.getUsername());
 
-            // 👉 LẤY AVATAR TỪ DB
-            byte[] avatarBytes = null;
-            try {
-                avatarBytes = UserDAO.getAvatarById(user.getId());
-            } catch (Exception ex) {
-                System.err.println("[AUTH_LOGIN] getAvatarById failed: " + ex.getMessage());
-            }
-
-            String avatarB64 = null;
-            if (avatarBytes != null && avatarBytes.length > 0) {
-                avatarB64 = Base64.getEncoder().encodeToString(avatarBytes);
+            // avatar: chỉ gửi hash, client lấy ảnh từ cache hoặc AVATAR_GET
+            if (user.getAvatarHash() != null) {
+                w.field("avatarHash", user.getAvatarHash());
             }
 
-            // 👉 TRẢ JSON CÓ KÈM avatarBase64
-            StringBuilder sb = new StringBuilder();
-            sb.append("{")
-              .append("\"status\":\"OK\",")
-              .append("\"id\":").append(user.getId()).append(",")
-              .append("\"username\":\"").append(escJson(user.getUsername())).append("\"");
-
-            if (avatarB64 != null) {
-                sb.append(",\"avatarBase64\":\"").append(avatarB64).append("\"");
-            }
-
-            sb.append("}");
-
-            String json = sb.toString();
-            sendFrame(Frame.ack(json));
+            sendFrame(Frame.ack(w.endObject().toString()));
 
         } catch (SQLException e) {
             e.printStackTrace();
@@ -303,21 +395,40 @@ public class ClientHandler implements Runnable {
     /* ================= LOGIN ================= */
     private void handleLogin(Frame f) {
         String u = f.sender;
-        if (u == null || u.isBlank() || online.containsKey(u)) {
+        // PresenceService giữ bảng online duy nhất (cả cho CallRouter); người theo dõi nhận delta PRESENCE
+        if (u == null || u.isBlank() || !PresenceService.getInstance().connect(u, userId, this)) {
             sendFrame(Frame.error("LOGIN_FAIL"));
             return;
         }
         username = u;
-        online.put(username, this);
-        CallRouter.getInstance().register(username, this);
 
         sendFrame(Frame.ack("OK LOGIN " + username));
-        broadcast("🔵 " + username + " joined", true);
 
+        // Tin offline gửi theo trang; trang sau chỉ gửi khi client OFFLINE_ACK trang trước
+        offlineCursor = 0;
+        offlineDelivered = 0;
+        sendOfflinePage();
+
+        // 🔥 NEW: gửi danh sách group user đang ở
+        sendGroupListToClient();
+    }
+
+    /* ================= OFFLINE QUEUE ================= */
+    /** Gửi trang tin chờ kế tiếp (id > offlineCursor), kết thúc bằng OFFLINE_PAGE. */
+    private void sendOfflinePage() {
         try {
-            // DAO giờ trả về List<Message>
-            List<Message> pending = messageDao.loadQueued(username);
-            for (Message m : pending) {
+            List<Message> page = messageDao.loadQueuedPage(username, offlineCursor, OFFLINE_PAGE_SIZE);
+            if (page.isEmpty()) {
+                offlineDraining = false;
+                if (offlineDelivered > 0) {
+                    sendFrame(Frame.ack("Delivered " + offlineDelivered + " offline messages"));
+                }
+                return;
+            }
+            offlineDraining = true;
+            offlinePageIds.clear();
+            for (Message m : page) {
+                offlinePageIds.add(m.getId());
                 String bodyWithReply = prependReplyTag(
                         m.getBody() == null ? "" : m.getBody(),
                         m.getReplyTo()
@@ -331,15 +442,29 @@ public class ClientHandler implements Runnable {
                 dm.transferId = String.valueOf(m.getId());
                 sendFrame(dm);
             }
-            if (!pending.isEmpty()) {
-                sendFrame(Frame.ack("Delivered " + pending.size() + " offline messages"));
-            }
+            offlineCursor = page.get(page.size() - 1).getId();
+            sendFrame(new Frame(MessageType.OFFLINE_PAGE, "server", username,
+                    Json.object().field("count", page.size()).field("last_id", offlineCursor).endObject().toString()));
         } catch (SQLException e) {
+            offlineDraining = false;
             sendFrame(Frame.error("OFFLINE_DELIVERY_FAIL"));
         }
+    }
 
-        // 🔥 NEW: gửi danh sách group user đang ở
-        sendGroupListToClient();
+    /** Client đã nhận xong trang: đánh dấu delivered đúng các tin của trang rồi gửi trang kế tiếp. */
+    private void handleOfflineAck(Frame f) {
+        if (username == null || !offlineDraining) return;
+        long ackedId = parseLongSafe(f.body == null ? null : f.body.trim(), -1L);
+        if (ackedId != offlineCursor) return; // ack cũ/lạc → bỏ qua
+        try {
+            offlineDelivered += messageDao.markDelivered(username, offlinePageIds);
+        } catch (SQLException e) {
+            // chưa đánh dấu được thì lần login sau gửi lại, không mất tin
+            offlineDraining = false;
+            sendFrame(Frame.error("OFFLINE_DELIVERY_FAIL"));
+            return;
+        }
+        sendOfflinePage();
     }
 
     /* ================= DIRECT MESSAGE ================= */
@@ -351,29 +476,44 @@ public class ClientHandler implements Runnable {
         StringBuilder bodyBuf = new StringBuilder(f.body == null ? "" : f.body);
         Long replyTo = extractReplyIdAndStrip(bodyBuf);
         String cleanBody = bodyBuf.toString();
-        try {
-            long id;
-            ClientHandler target = online.get(to);
-            if (target != null) {
-            	// Lưu bản gửi (đã strip prefix), kèm reply_to
-                id = messageDao.saveSentReturnId(f.sender, to, cleanBody, replyTo);
-                // Phát cho người nhận, thêm lại prefix để client render chip
-                Frame deliver = new Frame(MessageType.DM, f.sender, to, prependReplyTag(cleanBody, replyTo));
-                deliver.transferId = String.valueOf(id);
-                target.sendFrame(deliver);
-                Frame ack = Frame.ack("OK DM");
-                ack.transferId = String.valueOf(id);
-                sendFrame(ack);
-            } else {
-            	 id = messageDao.saveQueuedReturnId(f.sender, to, cleanBody, replyTo);
-                Frame ack = Frame.ack("OK QUEUED");
-                ack.transferId = String.valueOf(id);
-                sendFrame(ack);
-            }
-            requestSmartReply(String.valueOf(id), username, to, f.body);
-        } catch (SQLException e) {
+
+        ClientHandler target = online.get(to);
+        // Lưu bản gửi (đã strip prefix), kèm reply_to; có thể được gom batch (write-behind)
+        CompletableFuture<Long> saved = messageDao.saveAsync(f.sender, to, cleanBody, replyTo, target != null);
+        if (messageDao.ackAfterEnqueue()) {
+            // không chờ commit: ack + giao tin chạy khi batch commit xong (theo đúng thứ tự)
+            saved.whenComplete((id, err) -> finishDirectMessage(f, target, cleanBody, replyTo, id, err));
+        } else {
+            Long id = null;
+            Throwable err = null;
+            try { id = saved.join(); } catch (CompletionException e) { err = e.getCause(); }
+            finishDirectMessage(f, target, cleanBody, replyTo, id, err);
+        }
+    }
+
+    private void finishDirectMessage(Frame f, ClientHandler target, String cleanBody, Long replyTo,
+                                     Long id, Throwable err) {
+        if (err != null || id == null) {
+            System.err.println("[SERVER] DM save failed: " + (err == null ? "no id" : err.getMessage()));
             sendFrame(Frame.error("DM_SAVE_FAIL"));
+            return;
         }
+        String to = f.recipient;
+        if (target != null) {
+            // Phát cho người nhận, thêm lại prefix để client render chip
+            Frame deliver = new Frame(MessageType.DM, f.sender, to, prependReplyTag(cleanBody, replyTo));
+            deliver.transferId = String.valueOf(id);
+            target.sendFrame(deliver);
+        }
+        Frame ack = Frame.ack(target != null ? "OK DM" : "OK QUEUED");
+        ack.transferId = String.valueOf(id);
+        sendFrame(ack);
+
+        // Gợi ý trả lời chạy nền, không làm chậm DM
+        SmartReplyService.getInstance().submit(f.sender, to, id, f.body, resp -> {
+            ClientHandler h = online.get(to);
+            if (h != null) h.sendFrame(new Frame(MessageType.SMART_REPLY, "system", to, resp));
+        });
     }
     
     // === SMART REPLY ===
@@ -382,69 +522,6 @@ public class ClientHandler implements Runnable {
         System.out.println("[SERVER] Received SMART_REPLY frame (no-op): " + f.body);
     }
 
-    // === CALL FASTAPI SMART-REPLY BACKEND ===
-    private void requestSmartReply(String conversationId, String sender, String recipient, String lastMessage) {
-        try {
-            // ✅ Tạo payload JSON gọn gàng
-            String escapedMsg = (lastMessage == null ? "" : lastMessage.replace("\"", "\\\""));
-            String payload = """
-            {
-                "conversation_id": "%s",
-                "messages": [
-                    {"role": "A", "text": "%s"}
-                ],
-                "n": 3,
-                "max_words": 12,
-                "lang": "vi"
-            }
-            """.formatted(conversationId, escapedMsg);
-
-            System.out.println("[SMART-REPLY] Request payload: " + payload);
-
-            // ✅ Gọi FastAPI /smart-reply
-            var url = new java.net.URL("http://localhost:8000/smart-reply");
-            var conn = (java.net.HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json");
-            conn.setDoOutput(true);
-
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(payload.getBytes());
-                os.flush();
-            }
-
-            int status = conn.getResponseCode();
-            if (status != 200) {
-                System.err.println("[SMART-REPLY] API returned status: " + status);
-                return;
-            }
-
-            // ✅ Đọc phản hồi JSON từ FastAPI
-            StringBuilder sb = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) sb.append(line);
-            }
-
-            String resp = sb.toString();
-            System.out.println("[SMART-REPLY] Response: " + resp);
-
-            if (resp.contains("suggestions")) {
-                // Gửi Frame SMART_REPLY tới client nhận
-                Frame replyFrame = new Frame(MessageType.SMART_REPLY, "system", recipient, resp);
-                ClientHandler target = online.get(recipient);
-                if (target != null) {
-                    target.sendFrame(replyFrame);
-                    System.out.println("[SMART-REPLY] Sent SMART_REPLY to " + recipient);
-                } else {
-                    System.out.println("[SMART-REPLY] Recipient " + recipient + " is offline");
-                }
-            }
-
-        } catch (Exception e) {
-            System.err.println("[SMART-REPLY] failed: " + e.getMessage());
-        }
-    }
     /* ================= EDIT ================= */
     private void handleEditMessage(Frame f) {
         try {
@@ -477,20 +554,9 @@ public class ClientHandler implements Runnable {
             sendFrame(ack);
 
             // Broadcast cho members
-            List<String> members = groupDao.listMembers(groupId);
-            for (String m : members) {
-                ClientHandler target = online.get(m);
-                if (target != null && !m.equals(username)) {
-                    Frame evt = new Frame(
-                            MessageType.EDIT_MSG,
-                            username,
-                            String.valueOf(groupId),
-                            newBodyRaw
-                    );
-                    evt.transferId = String.valueOf(id);
-                    target.sendFrame(evt);
-                }
-            }
+            Frame evt = new Frame(MessageType.EDIT_MSG, username, String.valueOf(groupId), newBodyRaw);
+            evt.transferId = String.valueOf(id);
+            fanout(evt, groupDao.listMembers(groupId), username);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -501,13 +567,13 @@ public class ClientHandler implements Runnable {
     /* ================= SEARCH ================= */
     private void handleSearch(Frame f) {
         String peer = f.recipient;
-        String q = jsonGet(f.body, "q");
-        if (q == null) q = "";
+        Json.Obj req = Json.parse(f.body);
+        String q = req.str("q", "");
         int limit = (f.seq > 0) ? f.seq : 50;
-        int offset = (int) parseLongSafe(jsonGet(f.body, "offset"), 0);
+        long afterId = req.lng("afterId", 0);   // cursor = id của kết quả cuối trang trước
 
         try {
-            List<Message> rows = messageDao.searchConversation(username, peer, q, limit, offset);
+            List<Message> rows = messageDao.searchConversation(username, peer, q, limit, afterId);
             for (Message m : rows) {
                 String plain = (m.getBody() == null) ? "" : m.getBody();
                 String bodyWithReply = prependReplyTag(plain, m.getReplyTo());
@@ -530,23 +596,58 @@ public class ClientHandler implements Runnable {
     /* ================= HISTORY ================= */
     private void handleHistory(Frame f) {
         String peer = f.recipient;
-        int limit = 50;
-        try { limit = Integer.parseInt(f.body); } catch (Exception ignore) {}
+        Json.Obj req = historyRequest(f.body);
+        int limit = req.integer("limit", 50);
 
         try {
-            List<Message> rows = messageDao.loadConversation(username, peer, limit);
+            if (req.bool("page", false)) {
+                MessageChangeLog log = messageDao.changeLog();
+                String convKey = MessageChangeLog.dmKey(username, peer);
+                // đọc seq và mốc id TRƯỚC khi tải dòng: thay đổi xen giữa sẽ bị gửi lại lần sau (áp lại
+                // vô hại); không trả tin có id vượt mốc để afterId của client không nhảy qua tin chưa commit
+                long seq = log.currentSeq(convKey);
+                long maxId = messageDao.committedIdWatermark();
+                long afterId = req.lng("afterId", 0);
+
+                boolean reset = false;
+                List<Message> rows = null;
+                List<MessageChangeLog.Change> changes = null;
+                if (isSyncRequest(req)) {
+                    changes = log.since(convKey, req.lng("changeSeq", 0), HISTORY_SYNC_MAX_CHANGES + 1);
+                    rows = messageDao.loadConversationPage(username, peer, 0, afterId, maxId, limit + 1);
+                    if (syncTooStale(rows.size(), limit, changes)) {
+                        rows = null;
+                        changes = null;
+                        reset = true;
+                    }
+                }
+                if (rows == null) {
+                    long beforeId = req.lng("beforeId", 0);
+                    rows = messageDao.loadConversationPage(username, peer, beforeId,
+                            reset ? 0 : afterId, maxId, limit);
+                }
+                HistoryPager pager = new HistoryPager(peer, reset);
+                for (Message m : rows) {
+                    pager.add(m.getId(), prependReplyTag(m.getBody() == null ? "" : m.getBody(), m.getReplyTo()),
+                            m.getSender(), m.getRecipient(), m.getCreatedAt(), m.getUpdatedAt());
+                }
+                pager.finish(changes, seq);
+                return;
+            }
+            List<Message> rows = messageDao.loadConversationPage(
+                    username, peer, req.lng("beforeId", 0), req.lng("afterId", 0), limit);
             for (Message m : rows) {
                 boolean incoming = !username.equals(m.getSender());
                 String plain = (m.getBody() == null) ? "" : m.getBody();
                 String bodyWithReply = prependReplyTag(plain, m.getReplyTo());
 
-                String payloadJson = "{"
-                        + "\"content\":\"" + escJson(bodyWithReply) + "\","
-                        + "\"sender\":\"" + escJson(m.getSender()) + "\","
-                        + "\"recipient\":\"" + escJson(m.getRecipient()) + "\"," // recipient cần cho Client xác định peer
-                        + "\"createdAt\":" + m.getCreatedAt().toEpochMilli() + ","
-                        + "\"updatedAt\":" + (m.getUpdatedAt() != null ? m.getUpdatedAt().toEpochMilli() : 0L)
-                        + "}";
+                String payloadJson = Json.object()
+                        .field("content", bodyWithReply)
+                        .field("sender", m.getSender())
+                        .field("recipient", m.getRecipient()) // recipient cần cho Client xác định peer
+                        .field("createdAt", m.getCreatedAt().toEpochMilli())
+                        .field("updatedAt", m.getUpdatedAt() != null ? m.getUpdatedAt().toEpochMilli() : 0L)
+                        .endObject().toString();
                     
                     Frame hist = new Frame(
                             MessageType.HISTORY,
@@ -565,10 +666,11 @@ public class ClientHandler implements Runnable {
 
     /* ================= FILE (hợp nhất cả AUDIO) ================= */
     private void handleFile(Frame f) {
+        String tid = f.transferId;
         try {
             // --- META (FILE_META / AUDIO_META) ---
             if (f.type == MessageType.FILE_META || f.type == MessageType.AUDIO_META) {
-            	// Cho phép prefix [REPLY:<id>] đứng TRƯỚC JSON, sẽ strip ra và lưu vào upReplyTo
+            	// Cho phép prefix [REPLY:<id>] đứng TRƯỚC JSON, sẽ strip ra và lưu vào phiên upload
                 String body = (f.body == null ? "" : f.body);
                 Long replyToParsed = null;
                 if (body.startsWith("[REPLY:")) {
@@ -579,205 +681,220 @@ public class ClientHandler implements Runnable {
                         body = body.substring(end + 1); // bỏ prefix
                     }
                 }
-                String to   = pickJson(body, "to");
-                String name = pickJson(body, "name");
-                String mime = pickJson(body, "mime");
-                String fid  = pickJson(body, "fileId");
-                long size   = parseLongSafe(pickJson(body, "size"), 0);
+                Json.Obj meta = Json.parse(body);
+                String to   = meta.str("to");
+                String name = meta.str("name");
+                String mime = meta.str("mime");
+                String fid  = meta.str("fileId");
+                long size   = meta.lng("size", 0);
+
+                boolean resume = meta.bool("resume", false);
 
                 if (fid == null || fid.isBlank()) fid = java.util.UUID.randomUUID().toString();
                 if (name == null || name.isBlank()) name = "file-" + fid;
                 if (mime == null || mime.isBlank()) mime = "application/octet-stream";
                 if (size > Frame.MAX_FILE_BYTES) throw new IOException("file too large");
 
-                if (upOut != null) { try { upOut.close(); } catch (Exception ignore) {} }
-                upFileId       = fid;
-                upToUser       = to;
-                upOrigName     = name;
-                upMime         = mime;
-                upDeclaredSize = size;
-                upExpectedSeq  = 0;
-                upWritten      = 0L;
-                upReplyTo      = replyToParsed; // << quan trọng
-                if (!UPLOAD_DIR.exists()) UPLOAD_DIR.mkdirs();
-                File outFile = new File(UPLOAD_DIR, sanitizeFilename(fid));
+                tid = fid;
                 fileNameMap.put(fid, name);
-                upOut = new BufferedOutputStream(new FileOutputStream(outFile));
+                UploadStore.Info info = new UploadStore.Info(username, to, name, mime, size);
+
+                // client gửi kèm hash: chỉ bỏ qua gửi byte khi người gửi đã có file này, hoặc trả lời đúng
+                // challenge (nonce + đoạn byte server chọn); hash + size thôi không đủ
+                String sha = resume ? meta.str("sha256") : null;
+                if (sha != null) {
+                    String proof = meta.str("proof");
+                    UploadStore.Blob have = (proof != null)
+                            ? uploads.prove(fid, sha, size, proof)
+                            : UploadStore.getInstance().lookup(sha, size,
+                                    path -> fileDao.countByPathAndSender(path, username));
+                    if (have != null) {
+                        uploads.close(fid);
+                        finishUpload(fid, info, replyToParsed, have);
+                        return;
+                    }
+                    UploadStore.Challenge c = (proof == null) ? uploads.challenge(fid, sha, size) : null;
+                    if (c != null) {
+                        Frame ack = Frame.ack(Json.object()
+                                .field("status", "UPLOAD_PROOF")
+                                .field("nonce", c.nonce())
+                                .field("offset", c.offset())
+                                .field("length", c.length())
+                                .endObject().toString());
+                        ack.transferId = fid;
+                        sendFrame(ack);
+                        return;
+                    }
+                }
+
+                UploadStore.Session up = uploads.open(fid, sanitizeFilename(fid), info, resume, replyToParsed);
+
+                if (resume) {
+                    // client mới: báo offset đã có, client gửi tiếp từ đó
+                    Frame ack = Frame.ack(Json.object()
+                            .field("status", "UPLOAD_OFFSET")
+                            .field("offset", up.upload.offset())
+                            .endObject().toString());
+                    ack.transferId = fid;
+                    sendFrame(ack);
+                }
                 return;
             }
 
          // --- CHUNK (FILE_CHUNK / AUDIO_CHUNK) ---
             if (f.type == MessageType.FILE_CHUNK || f.type == MessageType.AUDIO_CHUNK) {
-                if (upOut == null || upFileId == null) throw new IOException("CHUNK without META");
-                if (!upFileId.equals(f.transferId))     throw new IOException("Mismatched fileId");
-                if (f.seq != upExpectedSeq)             throw new IOException("Out-of-order chunk");
+                UploadStore.Session up = uploads.get(f.transferId);
+                if (up == null) throw new IOException("CHUNK without META");
 
-                int len = (f.bin == null ? 0 : f.bin.length);
-                if (upWritten + len > Frame.MAX_FILE_BYTES) throw new IOException("File exceeds limit");
-                if (len > 0) { upOut.write(f.bin); upWritten += len; }
-                upExpectedSeq++;
+                // chunk đã có (gửi lại sau khi tiếp tục) → bỏ qua
+                UploadStore.getInstance().write(up.upload, f.seq, f.last, f.bin, f.binOffset, f.binLength());
 
                 if (f.last) {
-                    upOut.flush();
-                    upOut.close();
-                    upOut = null;
+                    finishUpload(up.transferId, up.upload.info, up.replyTo, uploads.complete(up));
+                }
+                return;
+            }
 
-                    long msgId = 0L;
-                    long fileId = 0L;
 
-                    try {
-                        String fileBody = "[FILE] " + upOrigName;
-
-                        // 1) Nhận diện group hay DM
-                        boolean isGroup = false;
-                        int groupId = -1;
-
-                        if (upToUser != null) {
-                            String t = upToUser.trim();
-
-                            if (t.startsWith("group:")) {
-                                try {
-                                    groupId = Integer.parseInt(t.substring("group:".length()));
-                                    isGroup = true;
-                                } catch (NumberFormatException ignore) {}
-                            } else if (t.matches("\\d+")) {
-                                try {
-                                    int gid = Integer.parseInt(t);
-                                    // nếu user hiện tại là member của gid → xem như gửi file group
-                                    if (groupDao != null && groupDao.isMember(gid, username)) {
-                                        groupId = gid;
-                                        isGroup = true;
-                                    }
-                                } catch (NumberFormatException ignore) {}
-                            }
-                        }
+        } catch (UploadStore.LimitException e) {
+            // các upload khác của kết nối vẫn chạy; client đợi 1 cái xong rồi gửi lại META
+            System.err.println("[FILE] upload " + tid + " rejected: " + e.getMessage());
+            Frame err = Frame.error("UPLOAD_LIMIT");
+            err.transferId = tid;
+            sendFrame(err);
+        } catch (IOException e) {
+            System.err.println("[FILE] upload " + tid + " failed: " + e.getMessage());
+            // chỉ bỏ phiên lỗi; phiên tiếp tục được thì giữ phần đã nhận: client hỏi lại offset rồi gửi tiếp
+            uploads.close(tid);
+            Frame err = Frame.error("FILE_FAIL");
+            err.transferId = tid;
+            sendFrame(err);
+        }
+    }
 
-                        // 2) Lưu message
-                        if (isGroup) {
-                            // lưu vào bảng message group
-                            msgId = groupMessageDao.saveMessage(groupId, username, fileBody, upReplyTo);
-                        } else {
-                            // DM như cũ
-                            msgId = messageDao.saveSentReturnId(
-                                    username,
-                                    upToUser,
-                                    fileBody,
-                                    upReplyTo
-                            );
-                        }
+    /**
+     * Upload {@code upFileId} đã có đủ nội dung ở {@code blob}: lưu message + dòng files, ACK người gửi,
+     * đẩy FILE_EVT cho người nhận. Luôn bỏ ghim blob khi xong; ghi DB lỗi thì báo lỗi theo transferId
+     * (client thử lại) và trả blob — blob mới không dòng files nào trỏ tới sẽ bị xoá.
+     */
+    private void finishUpload(String upFileId, UploadStore.Info info, Long upReplyTo, UploadStore.Blob blob) {
+        String filePath = blob.path();
+        String upToUser = info.to();
+        String upOrigName = info.name();
+        String upMime = info.mime();
+        long upWritten = blob.size();
+        long msgId = 0L;
+        long fileId = 0L;
+        boolean saved = false;
 
-                        // 3) Lưu file gắn với msgId
-                        String filePath = new File(UPLOAD_DIR, sanitizeFilename(upFileId)).getAbsolutePath();
-                        fileId = fileDao.save(msgId, upOrigName, filePath, upMime, upWritten);
-
-                        System.out.println("[FILE/SAVE] sender=" + username
-                                + " to=" + upToUser
-                                + " isGroup=" + isGroup
-                                + " groupId=" + groupId
-                                + " msgId=" + msgId
-                                + " fileId=" + fileId
-                                + " origName=" + upOrigName
-                                + " mime=" + upMime
-                                + " bytes=" + upWritten
-                                + " replyTo=" + upReplyTo);
-
-                        if (fileId > 0) uuidToFileId.put(upFileId, fileId);
-                        if (msgId  > 0) uuidToMsgId.put(upFileId, msgId);
-
-                        // 4) ACK cho sender (giữ nguyên)
-                        String ackJson = "{"
-                                + "\"status\":\"FILE_SAVED\","
-                                + "\"messageId\":" + msgId + ","
-                                + "\"fileId\":" + fileId + ","
-                                + "\"bytes\":" + upWritten + ","
-                                + "\"mime\":\"" + escJson(upMime) + "\""
-                                + "}";
-                        Frame ack = Frame.ack(ackJson);
-                        ack.transferId = upFileId;
-                        sendFrame(ack);
+        try {
+            String fileBody = "[FILE] " + upOrigName;
 
-                        // 5) Broadcast realtime
-                        if (isGroup && groupId > 0) {
-                            // Gửi cho tất cả member online trong group
-                            List<String> members = groupDao.listMembers(groupId);
-                            if (members != null) {
-                                String json = "{"
-                                        + "\"from\":\"" + escJson(username) + "\","
-                                        + "\"to\":\"group:" + groupId + "\","
-                                        + "\"uuid\":\"" + escJson(upFileId) + "\","
-                                        + "\"id\":\""   + escJson(upFileId) + "\","
-                                        + "\"fileId\":" + fileId + ","
-                                        + "\"messageId\":" + msgId + ","
-                                        + "\"replyTo\":" + (upReplyTo == null ? "null" : upReplyTo) + ","
-                                        + "\"name\":\"" + escJson(upOrigName) + "\","
-                                        + "\"mime\":\"" + escJson(upMime) + "\","
-                                        + "\"bytes\":"  + upWritten
-                                        + "}";
-
-                                for (String m : members) {
-                                    if (m.equals(username)) continue; // sender tự render local
-                                    ClientHandler target = online.get(m);
-                                    if (target != null) {
-                                        Frame evt = new Frame(
-                                                MessageType.FILE_EVT,
-                                                username,
-                                                String.valueOf(groupId), // recipient = groupId
-                                                json
-                                        );
-                                        System.out.println("[FILE/EVT][GROUP] push to member="
-                                                + m + " groupId=" + groupId
-                                                + " fileId=" + fileId
-                                                + " msgId=" + msgId);
-                                        target.sendFrame(evt);
-                                    }
-                                }
-                            }
-                        } else if (upToUser != null && !upToUser.isBlank()) {
-                            // DM cũ giữ nguyên
-                            ClientHandler target = online.get(upToUser);
-                            if (target != null) {
-                                String json = "{"
-                                        + "\"from\":\"" + escJson(username) + "\","
-                                        + "\"to\":\""   + escJson(upToUser) + "\","
-                                        + "\"uuid\":\"" + escJson(upFileId) + "\","
-                                        + "\"id\":\""   + escJson(upFileId) + "\","
-                                        + "\"fileId\":" + fileId + ","
-                                        + "\"messageId\":" + msgId + ","
-                                        + "\"replyTo\":" + (upReplyTo == null ? "null" : upReplyTo) + ","
-                                        + "\"name\":\"" + escJson(upOrigName) + "\","
-                                        + "\"mime\":\"" + escJson(upMime) + "\","
-                                        + "\"bytes\":"  + upWritten
-                                        + "}";
-                                Frame evt = new Frame(MessageType.FILE_EVT, username, upToUser, json);
-                                System.out.println("[FILE/EVT][DM] push to=" + upToUser
-                                        + " fileId=" + fileId
-                                        + " msgId=" + msgId);
-                                target.sendFrame(evt);
-                            }
-                        }
+            // 1) Nhận diện group hay DM
+            boolean isGroup = false;
+            int groupId = -1;
 
-                    } catch (SQLException sqle) {
-                        System.err.println("[DB] Failed to save file metadata: " + sqle.getMessage());
-                    }
+            if (upToUser != null) {
+                String t = upToUser.trim();
 
-                    // 6) Reset state
-                    upFileId = null;
-                    upToUser = null;
-                    upOrigName = null;
-                    upMime = null;
-                    upDeclaredSize = 0;
-                    upExpectedSeq = 0;
-                    upWritten = 0;
-                    upReplyTo = null;
+                if (t.startsWith("group:")) {
+                    try {
+                        groupId = Integer.parseInt(t.substring("group:".length()));
+                        isGroup = true;
+                    } catch (NumberFormatException ignore) {}
+                } else if (t.matches("\\d+")) {
+                    try {
+                        int gid = Integer.parseInt(t);
+                        // nếu user hiện tại là member của gid → xem như gửi file group
+                        if (groupDao != null && groupDao.isMember(gid, username)) {
+                            groupId = gid;
+                            isGroup = true;
+                        }
+                    } catch (NumberFormatException ignore) {}
                 }
-                return;
             }
 
+            // 2) Lưu message
+            if (isGroup) {
+                // lưu vào bảng message group
+                msgId = groupMessageDao.saveMessage(groupId, username, fileBody, upReplyTo);
+            } else {
+                // DM như cũ
+                msgId = messageDao.saveSentReturnId(
+                        username,
+                        upToUser,
+                        fileBody,
+                        upReplyTo
+                );
+            }
 
-        } catch (IOException e) {
-            try { if (upOut != null) upOut.close(); } catch (Exception ignore) {}
-            upOut = null; upFileId = null; upReplyTo = null;
-            sendFrame(Frame.error("FILE_FAIL"));
+            // 3) Lưu file gắn với msgId
+            fileId = fileDao.save(msgId, upOrigName, filePath, upMime, upWritten);
+            saved = true;
+
+            System.out.println("[FILE/SAVE] sender=" + username
+                    + " to=" + upToUser
+                    + " isGroup=" + isGroup
+                    + " groupId=" + groupId
+                    + " msgId=" + msgId
+                    + " fileId=" + fileId
+                    + " origName=" + upOrigName
+                    + " mime=" + upMime
+                    + " bytes=" + upWritten
+                    + " replyTo=" + upReplyTo);
+
+            if (fileId > 0) uuidToFileId.put(upFileId, fileId);
+            if (msgId  > 0) uuidToMsgId.put(upFileId, msgId);
+
+            // 4) ACK cho sender (giữ nguyên)
+            String ackJson = Json.object()
+                    .field("status", "FILE_SAVED")
+                    .field("messageId", msgId)
+                    .field("fileId", fileId)
+                    .field("bytes", upWritten)
+                    .field("mime", upMime)
+                    .endObject().toString();
+            Frame ack = Frame.ack(ackJson);
+            ack.transferId = upFileId;
+            sendFrame(ack);
+
+            // 5) Broadcast realtime
+            if (isGroup && groupId > 0) {
+                // Gửi cho tất cả member online trong group
+                List<String> members = groupDao.listMembers(groupId);
+                if (members != null) {
+                    String json = fileEvtJson(upFileId, info, upReplyTo, upWritten, "group:" + groupId, fileId, msgId);
+                    // recipient = groupId; sender tự render local
+                    Frame evt = new Frame(MessageType.FILE_EVT, username, String.valueOf(groupId), json);
+                    System.out.println("[FILE/EVT][GROUP] push to " + members.size()
+                            + " members groupId=" + groupId
+                            + " fileId=" + fileId
+                            + " msgId=" + msgId);
+                    fanout(evt, members, username);
+                }
+            } else if (upToUser != null && !upToUser.isBlank()) {
+                // DM cũ giữ nguyên
+                ClientHandler target = online.get(upToUser);
+                if (target != null) {
+                    String json = fileEvtJson(upFileId, info, upReplyTo, upWritten, upToUser, fileId, msgId);
+                    Frame evt = new Frame(MessageType.FILE_EVT, username, upToUser, json);
+                    System.out.println("[FILE/EVT][DM] push to=" + upToUser
+                            + " fileId=" + fileId
+                            + " msgId=" + msgId);
+                    target.sendFrame(evt);
+                }
+            }
+
+        } catch (SQLException sqle) {
+            System.err.println("[DB] Failed to save file metadata: " + sqle.getMessage());
+            if (!saved) {
+                Frame err = Frame.error("FILE_SAVE_FAIL");
+                err.transferId = upFileId;
+                sendFrame(err);
+            }
+        } finally {
+            UploadStore.getInstance().unpin(blob);
+            if (!saved) UploadStore.getInstance().releaseBlob(filePath, fileDao::countByPath);
         }
     }
 
@@ -789,9 +906,10 @@ public class ClientHandler implements Runnable {
             Long fileId = null;
             Long messageId = null;
 
-            String fileIdStr = jsonGet(body, "fileId");
-            String msgIdStr  = jsonGet(body, "messageId");
-            String legacyId  = jsonGet(body, "id"); // uuid cũ
+            Json.Obj req = Json.parse(body);
+            String fileIdStr = req.str("fileId");
+            String msgIdStr  = req.str("messageId");
+            String legacyId  = req.str("id"); // uuid cũ
 
             if (fileIdStr != null && !fileIdStr.isBlank()) {
                 try { fileId = Long.parseLong(fileIdStr); } catch (Exception ignore) {}
@@ -860,48 +978,35 @@ public class ClientHandler implements Runnable {
                 System.out.println("[DL] getReplyToByMessageId failed: " + e.getMessage());
             }
 
-            String metaJson = "{"
-                    + "\"from\":\"" + escJson(username) + "\","
-                    + "\"to\":\"\","
-                    + "\"name\":\"" + escJson(name) + "\","
-                    + "\"mime\":\"" + escJson(mime) + "\","
-                    + "\"fileId\":\"" + frId + "\","
-                    + "\"messageId\":\"" + frMsgId + "\","
-                    + "\"replyTo\":" + (replyTo == null ? "null" : replyTo) + ","
-                    + "\"size\":" + file.length()
-                    + "}";
+            // mở 1 lần; các FILE_CHUNK chỉ trỏ vào đoạn của channel này, frame cuối đóng nó
+            FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            long total = fc.size();
+            // khoảng cần tải: {"offset":..,"length":..} (tiếp tục tải / tua media); mặc định cả file
+            long from = Math.max(0, Math.min(total, req.lng("offset", 0)));
+            long length = req.lng("length", 0);
+            long to = (length > 0) ? Math.min(total, from + length) : total;
+
+            String metaJson = Json.object()
+                    .field("from", username)
+                    .field("to", "")
+                    .field("name", name)
+                    .field("mime", mime)
+                    .field("fileId", String.valueOf(frId))
+                    .field("messageId", String.valueOf(frMsgId))
+                    .field("replyTo", replyTo)
+                    .field("size", total)
+                    .field("offset", from)
+                    .field("length", to - from)
+                    .endObject().toString();
 
             System.out.println("[DL] send FILE_META fileId=" + frId
                     + " msgId=" + frMsgId
                     + " replyTo=" + replyTo
-                    + " size=" + file.length());
+                    + " size=" + total
+                    + " range=" + from + "-" + to);
 
             sendFrame(new Frame(MessageType.FILE_META, username, "", metaJson));
-
-            try (InputStream fis = new BufferedInputStream(new FileInputStream(file))) {
-                byte[] buf = new byte[Frame.CHUNK_SIZE];
-                int n, seq = 0;
-                long rem = file.length();
-                while ((n = fis.read(buf)) != -1) {
-                    if (seq == 0) {
-                        System.out.println("[DL] start streaming fileId=" + frId + " total=" + file.length());
-                    }
-                    rem -= n;
-                    boolean last = (rem == 0);
-                    byte[] slice = (n == buf.length) ? buf : Arrays.copyOf(buf, n);
-
-                    Frame ch = new Frame(MessageType.FILE_CHUNK, username, "", "");
-                    ch.transferId = String.valueOf(frId);
-                    ch.seq = seq++;
-                    ch.last = last;
-                    ch.bin = slice;
-                    sendFrame(ch);
-
-                    if (last) {
-                        System.out.println("[DL] done streaming fileId=" + frId + " chunks=" + (seq));
-                    }
-                }
-            }
+            streamFile(fc, from, to, String.valueOf(frId));
         } catch (SQLException e) {
             sendFrame(Frame.error("DB_ERROR_FILE_FETCH"));
         } catch (IOException e) {
@@ -909,10 +1014,46 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Xếp các FILE_CHUNK (≤ CHUNK_SIZE) cho khoảng [from, to), trỏ vào đoạn file thay vì đọc ra mảng: writer ghi header rồi
+     * chuyển payload thẳng từ file (NIO: sendfile), nên bộ nhớ không tăng theo số lượt tải đồng thời.
+     */
+    private void streamFile(FileChannel fc, long from, long to, String transferId) {
+        if (to <= from) { // giữ như cũ: khoảng rỗng chỉ có FILE_META
+            closeQuietly(fc);
+            return;
+        }
+        System.out.println("[DL] start streaming fileId=" + transferId + " bytes=" + from + "-" + to);
+        int seq = 0;  // seq đánh từ 0 trong khoảng; vị trí thật = offset trong FILE_META + tổng byte trước đó
+        for (long pos = from; pos < to; pos += Frame.CHUNK_SIZE) {
+            int len = (int) Math.min(Frame.CHUNK_SIZE, to - pos);
+            Frame ch = new Frame(MessageType.FILE_CHUNK, username, "", "");
+            ch.transferId = transferId;
+            ch.seq = seq++;
+            ch.last = (pos + len >= to);
+            ch.file = fc;
+            ch.fileOffset = pos;
+            ch.binLen = len;
+            sendFrame(ch);
+        }
+        FrameSink w = sink;
+        if (w == null || w.isClosed()) {
+            closeQuietly(fc); // frame cuối có thể chưa vào hàng đợi
+            return;
+        }
+        System.out.println("[DL] done streaming fileId=" + transferId + " chunks=" + seq);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            c.close();
+        } catch (IOException ignored) {}
+    }
+
     /* ================= FILE HISTORY (hợp nhất) ================= */
     private void handleFileHistory(Frame f) {
         int limit = 5;
-        int offset = 0;
+        long beforeId = 0;   // cursor = message_id của file cuối trang trước (0 = mới nhất)
 
         String peer = f.recipient;
         if (peer == null || peer.isBlank()) {
@@ -922,24 +1063,22 @@ public class ClientHandler implements Runnable {
 
         try {
             if (f.body != null && !f.body.isBlank()) {
-                String body = f.body.trim();
-                String limitStr = jsonGet(body, "limit");
-                String offsetStr = jsonGet(body, "offset");
-                if (limitStr != null)  limit  = Integer.parseInt(limitStr);
-                if (offsetStr != null) offset = Integer.parseInt(offsetStr);
+                Json.Obj req = Json.parse(f.body.trim());
+                limit  = req.integer("limit", limit);
+                beforeId = req.lng("beforeId", beforeId);
             }
         } catch (Exception ignore) {}
 
         try {
-            List<FileResource> rows = fileDao.listByUserAndPeer(username, peer, limit, offset);
+            List<FileResource> rows = fileDao.listByUserAndPeerBefore(username, peer, beforeId, limit);
             for (FileResource r : rows) {
-                String jsonBody = String.format(
-                    "{\"file_name\":\"%s\",\"mime_type\":\"%s\",\"file_size\":%d,\"file_path\":\"%s\"}",
-                    escJson(r.getFileName()),
-                    escJson(r.getMimeType()),
-                    r.getFileSize(),
-                    escJson(r.getFilePath())
-                );
+                String jsonBody = Json.object()
+                    .field("file_name", java.util.Objects.toString(r.getFileName(), ""))
+                    .field("mime_type", java.util.Objects.toString(r.getMimeType(), ""))
+                    .field("file_size", r.getFileSize())
+                    .field("file_path", java.util.Objects.toString(r.getFilePath(), ""))
+                    .field("message_id", r.getMessageId())
+                    .endObject().toString();
                 Frame hist = new Frame(MessageType.FILE_HISTORY, username, peer, jsonBody);
                 hist.transferId = String.valueOf(r.getId());
                 sendFrame(hist);
@@ -962,10 +1101,8 @@ public class ClientHandler implements Runnable {
             FileResource row = fileDao.getByMessageId(msgId);
             boolean deleted = fileDao.deleteByMessageId(msgId);
             if (deleted) {
-                if (row != null) {
-                    File onDisk = new File(row.getFilePath());
-                    if (onDisk.exists()) onDisk.delete();
-                }
+                // blob dùng chung: chỉ unlink khi không còn dòng files nào trỏ tới
+                if (row != null) UploadStore.getInstance().releaseBlob(row.getFilePath(), fileDao::countByPath);
                 sendFrame(Frame.ack("OK FILE_DELETED"));
             } else {
                 sendFrame(Frame.error("FILE_NOT_FOUND"));
@@ -994,8 +1131,7 @@ public class ClientHandler implements Runnable {
                     FileResource fileRow = fileDao.getByMessageId(id);
                     if (fileRow != null) {
                         fileDao.deleteByMessageId(id);
-                        File toDelete = new File(fileRow.getFilePath());
-                        if (toDelete.exists()) toDelete.delete();
+                        UploadStore.getInstance().releaseBlob(fileRow.getFilePath(), fileDao::countByPath);
                     }
                 } catch (SQLException ignore) {}
 
@@ -1024,20 +1160,9 @@ public class ClientHandler implements Runnable {
             sendFrame(ack);
 
             // broadcast tới các member
-            List<String> members = groupDao.listMembers(groupId);
-            for (String m : members) {
-                ClientHandler target = online.get(m);
-                if (target != null && !m.equals(username)) {
-                    Frame evt = new Frame(
-                            MessageType.DELETE_MSG,
-                            username,
-                            String.valueOf(groupId),
-                            ""
-                    );
-                    evt.transferId = String.valueOf(id);
-                    target.sendFrame(evt);
-                }
-            }
+            Frame evt = new Frame(MessageType.DELETE_MSG, username, String.valueOf(groupId), "");
+            evt.transferId = String.valueOf(id);
+            fanout(evt, groupDao.listMembers(groupId), username);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1053,12 +1178,12 @@ public class ClientHandler implements Runnable {
             int groupId = groupDao.createGroup(username, name);
 
             if (groupId > 0) {
-            	String respJson = "{"
-            	        + "\"status\":\"OK_GROUP_CREATED\","
-            	        + "\"group_id\":" + groupId + ","
-            	        + "\"name\":\"" + escJson(name) + "\","
-            	        + "\"owner\":\"" + escJson(username) + "\""
-            	        + "}";
+            	String respJson = Json.object()
+            	        .field("status", "OK_GROUP_CREATED")
+            	        .field("group_id", groupId)
+            	        .field("name", name)
+            	        .field("owner", username)
+            	        .endObject().toString();
             	    sendFrame(Frame.ack(respJson));
             } else {
                 sendFrame(Frame.error("GROUP_CREATE_FAIL"));
@@ -1072,11 +1197,12 @@ public class ClientHandler implements Runnable {
     /* ================= ADD MEMBER ================= */
     private void handleAddMember(Frame f) {
         try {
-            String body = f.body;
-            int groupId = Integer.parseInt(jsonGet(body, "group_id"));
-            List<String> newMembers = extractArray(body, "members");
+            Json.Obj req = Json.parse(f.body);
+            int groupId = Integer.parseInt(req.str("group_id"));
+            List<String> newMembers = req.strings("members"); // không bao giờ null
+            newMembers.removeIf(String::isBlank);
 
-            if (newMembers == null || newMembers.isEmpty()) {
+            if (newMembers.isEmpty()) {
                 sendFrame(Frame.error("NO_MEMBERS_PROVIDED"));
                 return;
             }
@@ -1104,11 +1230,11 @@ public class ClientHandler implements Runnable {
                     ClientHandler target = online.get(m);
                     if (target != null) {
                         // 2a. báo cho người đó biết họ đã được add
-                        String notice = "{"
-                                + "\"event\":\"ADDED_TO_GROUP\","
-                                + "\"group_id\":"+groupId+","
-                                + "\"by\":\""+escJson(username)+"\""
-                                + "}";
+                        String notice = Json.object()
+                                .field("event", "ADDED_TO_GROUP")
+                                .field("group_id", groupId)
+                                .field("by", username)
+                                .endObject().toString();
                         Frame noticeFrame = Frame.ack(notice);
                         target.sendFrame(noticeFrame);
 
@@ -1124,18 +1250,13 @@ public class ClientHandler implements Runnable {
                 var membersNow = groupDao.listMembers(groupId);
                 String addedJoined = String.join(",", actuallyAdded);
 
-                for (String memberName : membersNow) {
-                    ClientHandler h = online.get(memberName);
-                    if (h != null) {
-                        Frame sys = new Frame(
-                            MessageType.GROUP_SYSTEM,
-                            "system",
-                            String.valueOf(groupId),
-                            username + " added " + addedJoined + " to the group"
-                        );
-                        h.sendFrame(sys);
-                    }
-                }
+                Frame sys = new Frame(
+                    MessageType.GROUP_SYSTEM,
+                    "system",
+                    String.valueOf(groupId),
+                    username + " added " + addedJoined + " to the group"
+                );
+                fanout(sys, membersNow, null);
             }
 
             // 4. ACK cho người gọi (owner – người bấm "Tạo nhóm"/"Thêm thành viên")
@@ -1153,9 +1274,9 @@ public class ClientHandler implements Runnable {
 
     private void handleRemoveMember(Frame f) {
         try {
-            String body = f.body;
-            int groupId = Integer.parseInt(jsonGet(body, "group_id"));
-            String targetUser = jsonGet(body, "username");
+            Json.Obj req = Json.parse(f.body);
+            int groupId = Integer.parseInt(req.str("group_id"));
+            String targetUser = req.str("username");
 
             if (targetUser == null || targetUser.isBlank()) {
                 sendFrame(Frame.error("MISSING_MEMBER"));
@@ -1188,18 +1309,13 @@ public class ClientHandler implements Runnable {
                 groupDao.updateOwner(groupId, newOwner);
 
                 // Gửi thông báo nội bộ
-                for (String m : remaining) {
-                    ClientHandler h = online.get(m);
-                    if (h != null) {
-                        Frame notice = new Frame(
-                            MessageType.GROUP_SYSTEM,
-                            "system",
-                            String.valueOf(groupId),
-                            "👑 Owner " + targetUser + " rời nhóm — owner mới là " + newOwner
-                        );
-                        h.sendFrame(notice);
-                    }
-                }
+                Frame notice = new Frame(
+                    MessageType.GROUP_SYSTEM,
+                    "system",
+                    String.valueOf(groupId),
+                    "👑 Owner " + targetUser + " rời nhóm — owner mới là " + newOwner
+                );
+                fanout(notice, remaining, null);
 
                 sendFrame(Frame.ack("OK OWNER_CHANGED_TO " + newOwner));
                 return;
@@ -1210,18 +1326,13 @@ public class ClientHandler implements Runnable {
 
             // Thông báo cho các thành viên còn lại
             List<String> remaining = groupDao.listMembers(groupId);
-            for (String m : remaining) {
-                ClientHandler h = online.get(m);
-                if (h != null) {
-                    Frame sys = new Frame(
-                        MessageType.GROUP_SYSTEM,
-                        "system",
-                        String.valueOf(groupId),
-                        targetUser + " đã rời nhóm."
-                    );
-                    h.sendFrame(sys);
-                }
-            }
+            Frame sys = new Frame(
+                MessageType.GROUP_SYSTEM,
+                "system",
+                String.valueOf(groupId),
+                targetUser + " đã rời nhóm."
+            );
+            fanout(sys, remaining, null);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -1242,19 +1353,13 @@ public class ClientHandler implements Runnable {
             if (ok) {
                 sendFrame(Frame.ack("OK GROUP_DELETED " + groupId));
 
-                for (String m : members) {
-                    if (m.equals(username)) continue;
-                    ClientHandler target = online.get(m);
-                    if (target != null) {
-                        Frame sys = new Frame(
-                            MessageType.GROUP_SYSTEM,
-                            "system",
-                            String.valueOf(groupId),
-                            "Group " + groupId + " was deleted by owner " + username
-                        );
-                        target.sendFrame(sys);
-                    }
-                }
+                Frame sys = new Frame(
+                    MessageType.GROUP_SYSTEM,
+                    "system",
+                    String.valueOf(groupId),
+                    "Group " + groupId + " was deleted by owner " + username
+                );
+                fanout(sys, members, username);
             } else {
                 sendFrame(Frame.error("DELETE_GROUP_DENIED"));
             }
@@ -1275,16 +1380,12 @@ public class ClientHandler implements Runnable {
             }
 
             // Gộp danh sách thành JSON gọn để client dễ parse
-            StringBuilder sb = new StringBuilder();
-            sb.append("{\"group_id\":").append(groupId).append(",\"members\":[");
+            String json = Json.object()
+                    .field("group_id", groupId)
+                    .strings("members", members)
+                    .endObject().toString();
 
-            for (int i = 0; i < members.size(); i++) {
-                sb.append("\"").append(escJson(members.get(i))).append("\"");
-                if (i < members.size() - 1) sb.append(",");
-            }
-            sb.append("]}");
-
-            Frame resp = new Frame(MessageType.LIST_MEMBERS, "server", username, sb.toString());
+            Frame resp = new Frame(MessageType.LIST_MEMBERS, "server", username, json);
             sendFrame(resp);
 
             // Gửi ACK cuối cùng
@@ -1313,11 +1414,11 @@ public class ClientHandler implements Runnable {
                 String gname    = g.getName();
                 String gowner   = g.getOwner();
 
-                String json = "{"
-                    + "\"group_id\":" + gid + ","
-                    + "\"name\":\"" + escJson(gname) + "\","
-                    + "\"owner\":\"" + escJson(gowner) + "\""
-                    + "}";
+                String json = Json.object()
+                    .field("group_id", gid)
+                    .field("name", gname)
+                    .field("owner", gowner)
+                    .endObject().toString();
 
                 Frame out = new Frame(
                     MessageType.GROUP_LIST,
@@ -1366,31 +1467,21 @@ public class ClientHandler implements Runnable {
                 return;
             }
 
-            System.out.println("[SERVER] saving message...");
-            long msgId = groupMessageDao.saveMessage(groupId, username, msgBody, replyTo);
-            System.out.println("[SERVER] message saved with id=" + msgId);
-
+            // lấy danh sách thành viên trước: callback write-behind không được chạm DB
             var members = groupDao.listMembers(groupId);
             System.out.println("[SERVER] members=" + members);
 
-            for (String m : members) {
-                System.out.println("[SERVER] pushing to member " + m);
-                if (m.equals(username)) continue;
-                if (m.equals(username)) continue;
-                ClientHandler target = online.get(m);
-                if (target != null) {
-                	Frame gf = new Frame(MessageType.GROUP_MSG, username, String.valueOf(groupId),
-                	        prependReplyTag(msgBody, replyTo));
-                	gf.transferId = String.valueOf(msgId);
-                	target.sendFrame(gf);
-                }
+            System.out.println("[SERVER] saving message...");
+            CompletableFuture<Long> saved = groupMessageDao.saveMessageAsync(groupId, username, msgBody, replyTo);
+            if (groupMessageDao.ackAfterEnqueue()) {
+                saved.whenComplete((msgId, err) -> finishGroupMessage(groupId, members, msgBody, replyTo, msgId, err));
+            } else {
+                Long msgId = null;
+                Throwable err = null;
+                try { msgId = saved.join(); } catch (CompletionException e) { err = e.getCause(); }
+                finishGroupMessage(groupId, members, msgBody, replyTo, msgId, err);
             }
 
-            System.out.println("[SERVER] ack to sender");
-            Frame ack = Frame.ack("OK GROUP_MSG_SENT");
-            ack.transferId = String.valueOf(msgId);
-            sendFrame(ack);
-
         } catch (SQLException e) {
             e.printStackTrace();
             sendFrame(Frame.error("DB_GROUP_MSG_FAIL"));
@@ -1400,29 +1491,88 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    private void finishGroupMessage(int groupId, List<String> members, String msgBody, Long replyTo,
+                                    Long msgId, Throwable err) {
+        if (err != null || msgId == null) {
+            System.err.println("[SERVER] group message save failed: " + (err == null ? "no id" : err.getMessage()));
+            sendFrame(Frame.error("DB_GROUP_MSG_FAIL"));
+            return;
+        }
+        System.out.println("[SERVER] message saved with id=" + msgId);
+
+        // ACK ngay khi đã lưu: người gửi không phải chờ phát xong cho cả nhóm
+        Frame ack = Frame.ack("OK GROUP_MSG_SENT");
+        ack.transferId = String.valueOf(msgId);
+        sendFrame(ack);
+
+        // 1 frame dùng chung cho mọi thành viên (encode 1 lần trong FanoutService)
+        Frame gf = new Frame(MessageType.GROUP_MSG, username, String.valueOf(groupId),
+                prependReplyTag(msgBody, replyTo));
+        gf.transferId = String.valueOf(msgId);
+        fanout(gf, members, username);
+    }
+
+    /** Phát {@code f} tới thành viên nhóm đang online trừ {@code exclude} (xem {@link FanoutService}). */
+    private void fanout(Frame f, List<String> members, String exclude) {
+        FanoutService.getInstance().deliver(f, members, exclude, online);
+    }
+
     /* ================= GROUP HISTORY ================= */
     private void handleGroupHistory(Frame f) {
         try {
             int groupId = Integer.parseInt(f.recipient.replace("group:", ""));
-            int limit = 50;
-            try { limit = Integer.parseInt(f.body); } catch (Exception ignore) {}
+            Json.Obj req = historyRequest(f.body);
+            int limit = req.integer("limit", 50);
 
             if (!groupDao.isMember(groupId, username)) {
                 sendFrame(Frame.error("NOT_GROUP_MEMBER"));
                 return;
             }
 
-            List<GroupMessage> messages = groupMessageDao.loadRecentMessages(groupId, limit);
+            if (req.bool("page", false)) {
+                MessageChangeLog log = groupMessageDao.changeLog();
+                String key = MessageChangeLog.groupKey(groupId);
+                long seq = log.currentSeq(key);
+                long maxId = groupMessageDao.committedIdWatermark();
+                long afterId = req.lng("afterId", 0);
+
+                boolean reset = false;
+                List<GroupMessage> rows = null;
+                List<MessageChangeLog.Change> changes = null;
+                if (isSyncRequest(req)) {
+                    changes = log.since(key, req.lng("changeSeq", 0), HISTORY_SYNC_MAX_CHANGES + 1);
+                    rows = groupMessageDao.loadPage(groupId, 0, afterId, maxId, limit + 1);
+                    if (syncTooStale(rows.size(), limit, changes)) {
+                        rows = null;
+                        changes = null;
+                        reset = true;
+                    }
+                }
+                if (rows == null) {
+                    rows = groupMessageDao.loadPage(groupId, req.lng("beforeId", 0),
+                            reset ? 0 : afterId, maxId, limit);
+                }
+                HistoryPager pager = new HistoryPager(key, reset);
+                for (GroupMessage m : rows) {
+                    pager.add(m.getId(), prependReplyTag(m.getBody(), m.getReplyTo()),
+                            m.getSender(), key, m.getCreatedAt(), m.getUpdatedAt());
+                }
+                pager.finish(changes, seq);
+                return;
+            }
+
+            List<GroupMessage> messages = groupMessageDao.loadPage(
+                    groupId, req.lng("beforeId", 0), req.lng("afterId", 0), limit);
 
             for (GroupMessage m : messages) {
                 String bodyWithReply = prependReplyTag(m.getBody(), m.getReplyTo());
-                String payloadJson = "{"
-                        + "\"content\":\"" + escJson(bodyWithReply) + "\","
-                        + "\"sender\":\"" + escJson(m.getSender()) + "\","
-                        + "\"recipient\":\"group:" + groupId + "\","
-                        + "\"createdAt\":" + m.getCreatedAt().toEpochMilli()+ "," // M.getCreatedAt() là Instant
-                        + "\"updatedAt\":" + (m.getUpdatedAt() != null ? m.getUpdatedAt().toEpochMilli() : 0L) // M.getUpdatedAt() là Instant
-                        + "}";
+                String payloadJson = Json.object()
+                        .field("content", bodyWithReply)
+                        .field("sender", m.getSender())
+                        .field("recipient", "group:" + groupId)
+                        .field("createdAt", m.getCreatedAt().toEpochMilli()) // M.getCreatedAt() là Instant
+                        .field("updatedAt", m.getUpdatedAt() != null ? m.getUpdatedAt().toEpochMilli() : 0L) // M.getUpdatedAt() là Instant
+                        .endObject().toString();
 
                     Frame hist = new Frame(
                             MessageType.GROUP_HISTORY,
@@ -1448,75 +1598,180 @@ public class ClientHandler implements Runnable {
 
 
     /* ================= Helpers ================= */
-    private void broadcast(String msg, boolean excludeSelf) {
-        for (ClientHandler c : clients) {
-            if (excludeSelf && c == this) continue;
-            c.sendFrame(Frame.ack(msg));
-        }
-    }
 
+    /**
+     * Chỉ enqueue; FrameSink của kết nối này (FrameWriter hoặc NIO) mới thực sự ghi ra socket.
+     * - Gọi trong lúc chính handler này đang xử lý frame: chặn khi hàng đợi đầy (backpressure cho download...).
+     * - Gọi từ thread khác (DM, fan-out group, CallRouter...): không bao giờ chặn;
+     *   nếu hàng đợi đầy thì người nhận là slow consumer → ngắt kết nối của họ.
+     */
     public void sendFrame(Frame f) {
-        if (binOut == null) return;
-        try {
-            FrameIO.write(binOut, f);
-            binOut.flush();
-        } catch (Exception e) {
-            System.err.println("[SERVER] Send frame failed: " + e.getMessage());
+        FrameSink w = sink;
+        if (w == null || w.isClosed()) return;
+        if (DISPATCHING.get() == this) {
+            try {
+                w.put(f);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (!w.offer(f)) {
+            System.err.println("[SERVER] Outbound queue full for " + username
+                    + " (depth=" + w.depth() + "), dropping slow consumer");
+            closeNow();
         }
     }
 
-    private void cleanup() {
-        if (username != null) {
-            // set offline ở DB
-            if (userId > 0) {
-                try {
-                    UserDAO.setOnline(userId, false);
-                } catch (Exception e) {
-                    System.err.println("[CLEANUP] setOnline(false) failed: " + e.getMessage());
-                }
-            }
+    /** Số frame đang chờ ghi ra socket của kết nối này. */
+    public int outboundDepth() {
+        FrameSink w = sink;
+        return (w == null) ? 0 : w.depth();
+    }
 
-            CallRouter.getInstance().unregister(username, this);
-            online.remove(username, this);
-            broadcast("🔴 " + username + " left", true);
-            username = null;
-        }
+    private void cleanup() {
+        UserDirectoryService.getInstance().cancel(directory);
+        uploads.closeAll(); // upload dở: giữ lại nếu client tiếp tục được
+        // offline + last_seen (DB ghi nền theo lô), bỏ mọi đăng ký presence của kết nối này
+        PresenceService.getInstance().disconnect(username, userId, this);
+        username = null;
         clients.remove(this);
         close();
     }
 
+    /** Đóng kết nối sau khi ghi nốt các frame đang chờ (ERROR/ACK cuối) trong hạn ngắn. */
     public void close() {
+        close(false);
+    }
+
+    /** Đóng ngay, bỏ frame đang chờ: slow consumer, lỗi ghi, tắt server. */
+    public void closeNow() {
+        close(true);
+    }
+
+    private void close(boolean force) {
+        FrameSink w = sink;
+        if (w != null) {
+            if (force) w.abort();
+            else w.close();
+        }
         try { if (binIn != null) binIn.close(); } catch (Exception ignored) {}
         try { if (binOut != null) binOut.close(); } catch (Exception ignored) {}
         try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
     }
 
-    private static String jsonGet(String json, String key) {
-        if (json == null) return null;
-        String kq = "\"" + key + "\"";
-        int i = json.indexOf(kq);
-        if (i < 0) return null;
-        int colon = json.indexOf(':', i + kq.length());
-        if (colon < 0) return null;
-        int j = colon + 1;
-        while (j < json.length() && Character.isWhitespace(json.charAt(j))) j++;
-        if (j >= json.length()) return null;
-        char c = json.charAt(j);
-        if (c == '"') {
-            int end = json.indexOf('"', j + 1);
-            if (end < 0) return null;
-            return json.substring(j + 1, end);
-        } else {
-            int end = j;
-            while (end < json.length() && "-0123456789".indexOf(json.charAt(end)) >= 0) end++;
-            return json.substring(j, end);
+    /**
+     * Body yêu cầu lịch sử: client cũ gửi "50" (trả từng frame HISTORY/GROUP_HISTORY + ACK),
+     * client mới gửi {"limit":50,"page":true} để nhận cả trang trong HISTORY_PAGE.
+     */
+    private static Json.Obj historyRequest(String body) {
+        String b = (body == null) ? "" : body.trim();
+        if (b.startsWith("{")) return Json.parse(b);
+        return Json.parse(Json.object().field("limit", parseLongSafe(b, 50)).endObject().toString());
+    }
+
+    /** Yêu cầu đồng bộ delta: client đã có cache tới {@code afterId} và đã thấy nhật ký tới {@code changeSeq}. */
+    private static boolean isSyncRequest(Json.Obj req) {
+        return req.has("changeSeq") && req.lng("afterId", 0) > 0 && req.lng("changeSeq", -1) >= 0;
+    }
+
+    /** Cache client lệch quá xa (hụt dòng mới hoặc quá nhiều tombstone, hoặc không có nhật ký) → gửi lại trang mới nhất. */
+    private static boolean syncTooStale(int newRows, int limit, List<MessageChangeLog.Change> changes) {
+        return changes == null || changes.size() > HISTORY_SYNC_MAX_CHANGES || newRows > limit;
+    }
+
+    /** Gom các dòng lịch sử vào frame HISTORY_PAGE; body quá lớn thì tách thành nhiều trang (more=true). */
+    private final class HistoryPager {
+        private final String peer;
+        private Json.Writer w;
+        private int count;
+        private boolean reset;
+
+        /** {@code reset}: client phải bỏ cache hội thoại và hiển thị lại từ trang đầu tiên này. */
+        HistoryPager(String peer, boolean reset) {
+            this.peer = peer;
+            this.reset = reset;
+            start();
+        }
+
+        private void start() {
+            w = new Json.Writer(8 * 1024).beginObject()
+                    .field("peer", peer);
+            if (reset) w.field("reset", true);
+            reset = false; // chỉ trang đầu
+            w.beginArray("messages");
+            count = 0;
+        }
+
+        void add(long id, String content, String sender, String recipient,
+                 java.time.Instant createdAt, java.time.Instant updatedAt) {
+            w.beginObject()
+                    .field("id", id)
+                    .field("content", content)
+                    .field("sender", sender)
+                    .field("recipient", recipient)
+                    .field("createdAt", createdAt.toEpochMilli())
+                    .field("updatedAt", updatedAt != null ? updatedAt.toEpochMilli() : 0L)
+                    .endObject();
+            count++;
+            if (w.length() >= HISTORY_PAGE_MAX_CHARS) {
+                send(true);
+                start();
+            }
+        }
+
+        /**
+         * Trang cuối mang thêm tombstone edit/delete ({@code changes}) và seq nhật ký để client lưu
+         * làm mốc cho lần đồng bộ sau; {@code changeSeq < 0} = server không có nhật ký.
+         */
+        void finish(List<MessageChangeLog.Change> changes, long changeSeq) {
+            if (changes != null && !changes.isEmpty()) {
+                w.endArray().beginArray("changes");
+                for (MessageChangeLog.Change c : changes) {
+                    w.beginObject()
+                            .field("seq", c.seq())
+                            .field("id", c.messageId())
+                            .field("op", c.op());
+                    if (c.body() != null) w.field("content", c.body());
+                    w.endObject();
+                    changeSeq = Math.max(changeSeq, c.seq());
+                }
+            }
+            w.endArray();
+            if (changeSeq >= 0) w.field("changeSeq", changeSeq);
+            close(false);
+        }
+
+        private void send(boolean more) {
+            w.endArray();
+            close(more);
+        }
+
+        private void close(boolean more) {
+            String body = w.field("count", count)
+                    .field("more", more)
+                    .endObject().toString();
+            sendFrame(new Frame(MessageType.HISTORY_PAGE, "server", username, body));
         }
     }
-    private static String pickJson(String json, String key) { return jsonGet(json, key); }
-    private static String escJson(String s) {
-        if (s == null) return "";
-        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+
+    /** Body FILE_EVT cho upload {@code transferId} vừa xong ({@code to} = username hoặc "group:<id>"). */
+    private String fileEvtJson(String transferId, UploadStore.Info info, Long replyTo, long bytes,
+                               String to, long fileId, long msgId) {
+        return Json.object()
+                .field("from", username)
+                .field("to", to)
+                .field("uuid", transferId)
+                .field("id", transferId)
+                .field("fileId", fileId)
+                .field("messageId", msgId)
+                .field("replyTo", replyTo)
+                .field("name", info.name())
+                .field("mime", info.mime())
+                .field("bytes", bytes)
+                .endObject().toString();
     }
+
     private static String sanitizeFilename(String name) {
         if (name == null || name.isBlank()) return "file";
         name = name.replace('\\', '/');
@@ -1553,20 +1808,5 @@ public class ClientHandler implements Runnable {
         if (replyTo == null || replyTo <= 0) return body;
         return "[REPLY:" + replyTo + "]" + (body == null ? "" : body);
     }
-    private static List<String> extractArray(String json, String key) {
-        List<String> list = new ArrayList<>();
-        if (json == null) return list;
-        int start = json.indexOf("\"" + key + "\"");
-        if (start < 0) return list;
-        start = json.indexOf('[', start);
-        int end = json.indexOf(']', start);
-        if (start < 0 || end < 0) return list;
-        String arr = json.substring(start + 1, end);
-        for (String item : arr.split(",")) {
-            item = item.replaceAll("[\"\\s]", "");
-            if (!item.isEmpty()) list.add(item);
-        }
-        return list;
-    }
 
 }
@@ -0,0 +1,122 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cấu hình server lúc khởi động.
+ * Đọc từ tham số dòng lệnh dạng {@code --key=value}, sau đó tới system property {@code -Dchat.key=value}.
+ * Ví dụ: {@code java server.ServerMain --transport=nio --ioThreads=2}
+ */
+public final class ServerConfig {
+
+    public enum Transport { BLOCKING, NIO }
+
+    public enum Threads { PLATFORM, VIRTUAL }
+
+    private final Map<String, String> values = new HashMap<>();
+
+    private ServerConfig() {}
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig c = new ServerConfig();
+        if (args != null) {
+            for (String a : args) {
+                if (a == null || !a.startsWith("--")) continue;
+                int eq = a.indexOf('=');
+                if (eq > 2) c.values.put(a.substring(2, eq), a.substring(eq + 1));
+                else c.values.put(a.substring(2), "true");
+            }
+        }
+        return c;
+    }
+
+    public String get(String key, String def) {
+        String v = values.get(key);
+        if (v == null) v = System.getProperty("chat." + key);
+        return (v == null || v.isBlank()) ? def : v.trim();
+    }
+
+    public int getInt(String key, int def) {
+        try { return Integer.parseInt(get(key, String.valueOf(def))); } catch (NumberFormatException e) { return def; }
+    }
+
+    public long getLong(String key, long def) {
+        try { return Long.parseLong(get(key, String.valueOf(def))); } catch (NumberFormatException e) { return def; }
+    }
+
+    public boolean getBool(String key, boolean def) {
+        return Boolean.parseBoolean(get(key, String.valueOf(def)));
+    }
+
+    /* ================= Các khoá dùng chung ================= */
+
+    public int port() { return getInt("port", 5000); }
+
+    public Transport transport() {
+        return "nio".equalsIgnoreCase(get("transport", "blocking")) ? Transport.NIO : Transport.BLOCKING;
+    }
+
+    public int ioThreads() {
+        return getInt("ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    public int outboundCapacity() { return getInt("outboundCapacity", 1024); }
+
+    /** Băng thông tối đa cho chunk file/audio trên mỗi kết nối (byte/s); 0 = không giới hạn. */
+    public long bulkBytesPerSec() { return getLong("bulkBytesPerSec", 0); }
+
+    /** {@code --threads=virtual}: mỗi ClientHandler / writer / task chạy trên virtual thread. */
+    public Threads threads() {
+        return "virtual".equalsIgnoreCase(get("threads", "platform")) ? Threads.VIRTUAL : Threads.PLATFORM;
+    }
+
+    /** Ngưỡng (ms) để báo 1 lần virtual thread bị ghim vào carrier. */
+    public long pinnedThresholdMs() { return getLong("pinnedThresholdMs", 20); }
+
+    public int dbPoolSize() { return getInt("dbPoolSize", 16); }
+    public long dbCheckoutTimeoutMs() { return getLong("dbCheckoutTimeoutMs", 5_000); }
+    public int dbStatementCache() { return getInt("dbStatementCache", 64); }
+
+    /** {@code --persist=batch}: DM/group message đi qua MessageWriteBehind thay vì INSERT từng dòng. */
+    public boolean persistBatch() { return "batch".equalsIgnoreCase(get("persist", "direct")); }
+    /** {@code commit} (mặc định): ack sau khi commit; {@code enqueue}: handler không chờ commit. */
+    public String persistAck() { return get("persistAck", "commit"); }
+    public int persistMaxBatch() { return getInt("persistMaxBatch", 128); }
+    public long persistLingerMs() { return getLong("persistLingerMs", 2); }
+    public int persistQueueCapacity() { return getInt("persistQueueCapacity", 8_192); }
+
+    /** Endpoint gợi ý trả lời; rỗng = tắt. */
+    public String smartReplyUrl() { return get("smartReplyUrl", "http://localhost:8000/smart-reply"); }
+    public long smartReplyDebounceMs() { return getLong("smartReplyDebounceMs", 800); }
+    public long smartReplyConnectTimeoutMs() { return getLong("smartReplyConnectTimeoutMs", 1_000); }
+    public long smartReplyTimeoutMs() { return getLong("smartReplyTimeoutMs", 3_000); }
+    public int smartReplyMaxPending() { return getInt("smartReplyMaxPending", 1_000); }
+    public int smartReplyMaxInFlight() { return getInt("smartReplyMaxInFlight", 8); }
+    /** Số lỗi liên tiếp để mở mạch, và thời gian mạch mở. */
+    public int smartReplyFailureThreshold() { return getInt("smartReplyFailureThreshold", 5); }
+    public long smartReplyOpenMs() { return getLong("smartReplyOpenMs", 30_000); }
+
+    /** Cửa sổ gom thay đổi presence trước khi phát cho người đăng ký. */
+    public long presenceWindowMs() { return getLong("presenceWindowMs", 250); }
+    /** Chu kỳ ghi users.online / last_seen theo lô. */
+    public long presenceDbFlushMs() { return getLong("presenceDbFlushMs", 2_000); }
+
+    /** Số lane (thread) phát frame nhóm; mỗi người nhận cố định 1 lane. */
+    public int fanoutThreads() {
+        return getInt("fanoutThreads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** Upload dở (chờ client tiếp tục) quá thời gian này thì bị xoá. */
+    public long uploadResumeTtlMs() { return getLong("uploadResumeTtlMs", 24L * 60 * 60 * 1000); }
+
+    /** Upload song song tối đa mỗi kết nối và tổng size khai báo của chúng. */
+    public int uploadMaxSessions() { return getInt("uploadMaxSessions", 8); }
+    public long uploadMaxBytes() { return getLong("uploadMaxBytes", 100L * 1024 * 1024); }
+
+    /** Upload không nhận chunk nào quá lâu thì đóng (phần đã nhận vẫn tiếp tục được). */
+    public long uploadIdleTimeoutMs() { return getLong("uploadIdleTimeoutMs", 120_000); }
+
+    /** Chu kỳ (giây) in thống kê ra log; 0 = tắt. */
+    public int statsIntervalSec() { return getInt("statsIntervalSec", 60); }
+}
@@ -1,53 +1,107 @@
 package server;
 
+import server.dao.ConnectionPool;
 import server.dao.DBConnection;
 import server.dao.MessageDao;
+import server.dao.MessageWriteBehind;
 import server.dao.FileDao;
 import server.dao.GroupDao;
 import server.dao.GroupMessageDao;
+import server.diag.PinnedThreadMonitor;
+import server.net.NioServer;
+import server.service.AvatarService;
+import server.service.FanoutService;
+import server.service.PresenceService;
+import server.service.SmartReplyService;
+import server.service.UploadStore;
+import server.service.UserDirectoryService;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
 import java.util.Set;
 import java.util.Map;
 import java.util.concurrent.*;
 
 public class ServerMain {
-    private static final int PORT = 5000;
+    private final ServerConfig config;
+    private final int port;
 
     private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
-    private final Map<String, ClientHandler> online = new ConcurrentHashMap<>();
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    // username → handler đang online; PresenceService giữ và cập nhật, handler chỉ đọc để định tuyến
+    private final Map<String, ClientHandler> online = PresenceService.getInstance().sessions();
+    private final ExecutorService pool;
+    /** Thread cho FrameWriter của từng kết nối (platform daemon hoặc virtual). */
+    private final ThreadFactory writerThreads;
 
 
-    private Connection conn;
+    private ConnectionPool db;
+    private ScheduledExecutorService statsTimer;
     private MessageDao messageDao;
     private FileDao filedao;
     private GroupDao groupdao;
     private GroupMessageDao groupmessageDao;
+    private MessageWriteBehind writeBehind;
+    private NioServer nioServer;
+
+    public ServerMain(ServerConfig config) {
+        this.config = config;
+        this.port = config.port();
+        if (config.threads() == ServerConfig.Threads.VIRTUAL) {
+            this.pool = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            this.writerThreads = Thread.ofVirtual().name("frame-writer-", 0).factory();
+        } else {
+            this.pool = Executors.newCachedThreadPool();
+            this.writerThreads = r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            };
+        }
+    }
+
     public static void main(String[] args) {
-        new ServerMain().start();
+        new ServerMain(ServerConfig.fromArgs(args)).start();
     }
 
     public void start() {
         try {
-       
-            conn = DBConnection.get();              
-            messageDao = new MessageDao(conn);
-            filedao = new FileDao(conn);
-            groupdao = new GroupDao(conn);
-            groupmessageDao = new GroupMessageDao(conn);
-            try (ServerSocket ss = new ServerSocket(PORT)) {
-                System.out.println("✅ Server started at port " + PORT);
-                while (true) {
-                    Socket s = ss.accept();
-                    System.out.println("➡ Client connected: " + s.getRemoteSocketAddress());
-
-                    ClientHandler handler = new ClientHandler(s, clients, online, messageDao, filedao, groupdao, groupmessageDao);;
-                    clients.add(handler);
-                    pool.submit(handler);
-                }
+            if (config.threads() == ServerConfig.Threads.VIRTUAL) {
+                PinnedThreadMonitor.getInstance().start(java.time.Duration.ofMillis(config.pinnedThresholdMs()));
+            }
+            DBConnection.configure(config.dbPoolSize(), config.dbCheckoutTimeoutMs(),
+                    config.dbStatementCache(), 30_000);
+            db = DBConnection.pool();
+            messageDao = new MessageDao(db);
+            filedao = new FileDao(db);
+            groupdao = new GroupDao(db);
+            groupmessageDao = new GroupMessageDao(db);
+            if (config.persistBatch()) {
+                MessageWriteBehind.Durability d = "enqueue".equalsIgnoreCase(config.persistAck())
+                        ? MessageWriteBehind.Durability.ENQUEUE : MessageWriteBehind.Durability.COMMIT;
+                writeBehind = new MessageWriteBehind(db, d, config.persistMaxBatch(), config.persistLingerMs(),
+                        config.persistQueueCapacity(), config.dbCheckoutTimeoutMs());
+                messageDao.setWriteBehind(writeBehind);
+                groupmessageDao.setWriteBehind(writeBehind);
+                System.out.println("[WRITE-BEHIND] enabled (" + d + ", maxBatch=" + config.persistMaxBatch() + ")");
+            }
+            SmartReplyService.getInstance().start(config.smartReplyUrl(),
+                    java.time.Duration.ofMillis(config.smartReplyDebounceMs()),
+                    java.time.Duration.ofMillis(config.smartReplyConnectTimeoutMs()),
+                    java.time.Duration.ofMillis(config.smartReplyTimeoutMs()),
+                    config.smartReplyMaxPending(), config.smartReplyMaxInFlight(),
+                    config.smartReplyFailureThreshold(),
+                    java.time.Duration.ofMillis(config.smartReplyOpenMs()));
+            PresenceService.getInstance().start(java.time.Duration.ofMillis(config.presenceWindowMs()),
+                    java.time.Duration.ofMillis(config.presenceDbFlushMs()));
+            FanoutService.getInstance().start(config.fanoutThreads());
+            UploadStore.getInstance().start(java.time.Duration.ofMillis(config.uploadResumeTtlMs()),
+                    config.uploadMaxSessions(), config.uploadMaxBytes(),
+                    java.time.Duration.ofMillis(config.uploadIdleTimeoutMs()));
+            startStatsLog();
+            if (config.transport() == ServerConfig.Transport.NIO) {
+                serveNio();
+            } else {
+                serveBlocking();
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -58,13 +112,75 @@ public class ServerMain {
         }
     }
 
+    /** Mô hình cũ: 1 thread cho mỗi kết nối. */
+    private void serveBlocking() throws IOException {
+        try (ServerSocket ss = new ServerSocket(port)) {
+            System.out.println("✅ Server started at port " + port + " (" + config.threads() + " threads)");
+            while (true) {
+                Socket s = ss.accept();
+                System.out.println("➡ Client connected: " + s.getRemoteSocketAddress());
+
+                ClientHandler handler = new ClientHandler(s, config.outboundCapacity(), config.bulkBytesPerSec(), writerThreads,
+                        clients, online, messageDao, filedao, groupdao, groupmessageDao);
+                clients.add(handler);
+                pool.submit(handler);
+            }
+        }
+    }
+
+    /** Reactor NIO: vài event loop cho mọi kết nối, logic chạy trên {@code pool}. */
+    private void serveNio() throws IOException {
+        nioServer = new NioServer(port, config.ioThreads(), pool, config.outboundCapacity(),
+                config.bulkBytesPerSec(), sink -> {
+            ClientHandler handler = new ClientHandler(sink, clients, online, messageDao, filedao, groupdao, groupmessageDao);
+            clients.add(handler);
+            return handler;
+        });
+        nioServer.serve();
+    }
+
+    private void startStatsLog() {
+        int sec = config.statsIntervalSec();
+        if (sec <= 0) return;
+        statsTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats-log");
+            t.setDaemon(true);
+            return t;
+        });
+        statsTimer.scheduleAtFixedRate(() -> {
+            System.out.println("[STATS] " + db.stats());
+            System.out.println("[STATS] " + groupdao.stats());
+            System.out.println("[STATS] " + SmartReplyService.getInstance().stats());
+            System.out.println("[STATS] " + AvatarService.getInstance().stats());
+            System.out.println("[STATS] " + PresenceService.getInstance().stats());
+            System.out.println("[STATS] " + UserDirectoryService.getInstance().stats());
+            System.out.println("[STATS] " + FanoutService.getInstance().stats());
+            System.out.println("[STATS] " + UploadStore.getInstance().stats());
+            if (writeBehind != null) System.out.println("[STATS] " + writeBehind.stats());
+        }, sec, sec, TimeUnit.SECONDS);
+    }
+
     private void shutdown() {
+        if (nioServer != null) nioServer.stop();
         try {
-            for (ClientHandler h : clients) h.close();
+            for (ClientHandler h : clients) h.closeNow();
         } catch (Exception ignored) {}
         pool.shutdownNow();
+        FanoutService.getInstance().stop();
+        UploadStore.getInstance().stop();
+        PinnedThreadMonitor.getInstance().stop();
+        SmartReplyService.getInstance().stop();
+        PresenceService.getInstance().stop();   // ghi nốt last_seen trước khi đóng pool
 
-        try { if (conn != null && !conn.isClosed()) conn.close(); } catch (Exception ignored) {}
+        if (statsTimer != null) statsTimer.shutdownNow();
+        if (writeBehind != null) {
+            writeBehind.close();    // ghi nốt trước khi đóng pool
+            System.out.println("[STATS] " + writeBehind.stats());
+        }
+        if (db != null) {
+            System.out.println("[STATS] " + db.stats());
+            db.close();
+        }
 
         System.out.println("🛑 Server shutdown.");
     }
@@ -0,0 +1,87 @@
+package server.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mốc id "đã commit liền mạch" của 1 bảng id AUTO_INCREMENT (messages, group_messages).
+ * Id được cấp lúc INSERT, không theo thứ tự commit: đang có INSERT id 10 chưa commit mà id 11 đã
+ * commit, client đồng bộ lúc đó lưu mốc 11 rồi không bao giờ nhận tin 10. Mỗi INSERT đăng ký
+ * {@link #begin} trước khi chạy và {@link #end} sau commit; {@link #safeId} nhỏ hơn id của mọi INSERT
+ * còn đang chạy nên mọi dòng có id ≤ mốc đã commit (hoặc rollback hẳn).
+ * Chỉ đúng khi mọi INSERT vào bảng đi qua server này (1 tiến trình).
+ */
+final class CommitWatermark {
+
+    static final CommitWatermark MESSAGES = new CommitWatermark("messages");
+    static final CommitWatermark GROUP_MESSAGES = new CommitWatermark("group_messages");
+
+    private final String table;
+    // ReentrantLock: lần đầu nạp MAX(id) là 1 lượt DB, không ghim carrier thread của virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // token → id đã commit lớn nhất lúc INSERT đó bắt đầu (id của nó chắc chắn lớn hơn)
+    private final Map<Long, Long> open = new HashMap<>();
+    private long nextToken;
+    private long committed = -1; // -1 = chưa nạp được từ DB
+
+    private CommitWatermark(String table) {
+        this.table = table;
+    }
+
+    /** Gọi ngay trước INSERT (ngoài transaction hoặc trước khi mở transaction). */
+    long begin(ConnectionPool pool) {
+        lock.lock();
+        try {
+            load(pool);
+            long token = nextToken++;
+            open.put(token, Math.max(0, committed));
+            return token;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sau commit (hoặc rollback: {@code maxId = 0}); {@code maxId} = id lớn nhất vừa commit. */
+    void end(long token, long maxId) {
+        lock.lock();
+        try {
+            open.remove(token);
+            if (committed >= 0 && maxId > committed) committed = maxId;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mọi dòng có id ≤ giá trị này đã commit; đọc TRƯỚC khi tải dòng. {@link Long#MAX_VALUE} nếu không
+     * nạp được mốc từ DB (như trước: không chặn trên).
+     */
+    long safeId(ConnectionPool pool) {
+        lock.lock();
+        try {
+            load(pool);
+            if (committed < 0) return Long.MAX_VALUE;
+            long safe = committed;
+            for (long floor : open.values()) safe = Math.min(safe, floor);
+            return safe;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void load(ConnectionPool pool) {
+        if (committed >= 0) return;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM " + table);
+             ResultSet rs = ps.executeQuery()) {
+            committed = rs.next() ? rs.getLong(1) : 0L;
+        } catch (SQLException e) {
+            System.err.println("[SYNC] " + table + " watermark unavailable: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package server.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool JDBC dùng chung cho mọi DAO.
+ * - Giới hạn số kết nối (Semaphore), checkout có timeout.
+ * - Kết nối rảnh lâu sẽ được kiểm tra {@code isValid} trước khi giao ra.
+ * - Mỗi kết nối cache PreparedStatement (LRU) → DAO cứ {@code prepareStatement(sql)} như cũ,
+ *   {@code close()} trên Connection/PreparedStatement chỉ trả về pool/cache.
+ * - {@link #inTransaction} gắn 1 kết nối vào thread hiện tại để nhiều DAO dùng chung 1 transaction.
+ */
+public final class ConnectionPool implements AutoCloseable {
+
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection open() throws SQLException;
+    }
+
+    @FunctionalInterface
+    public interface SqlWork<T> {
+        T run(Connection conn) throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long checkoutTimeoutMs;
+    private final int statementCacheSize;
+    private final long validateAfterIdleMs;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<>();
+    private final ThreadLocal<Pooled> bound = new ThreadLocal<>();
+    private volatile boolean closed;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong stmtHits = new AtomicLong();
+    private final AtomicLong stmtMisses = new AtomicLong();
+
+    public ConnectionPool(ConnectionFactory factory, int maxSize, long checkoutTimeoutMs,
+                          int statementCacheSize, long validateAfterIdleMs) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.checkoutTimeoutMs = checkoutTimeoutMs;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.validateAfterIdleMs = validateAfterIdleMs;
+        this.permits = new Semaphore(this.maxSize, true);
+    }
+
+    /* ================= CHECKOUT / RETURN ================= */
+
+    /** Lấy kết nối; {@code close()} để trả về pool. Trong {@link #inTransaction} trả lại kết nối đang gắn. */
+    public Connection getConnection() throws SQLException {
+        Pooled b = bound.get();
+        if (b != null) return b.proxy(false);
+        return checkout().proxy(true);
+    }
+
+    private Pooled checkout() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        long t0 = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(checkoutTimeoutMs, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("Connection pool checkout timed out after "
+                        + checkoutTimeoutMs + "ms (active=" + active.get() + ", max=" + maxSize + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+        long waited = System.nanoTime() - t0;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        checkouts.incrementAndGet();
+
+        try {
+            Pooled p;
+            while ((p = idle.pollFirst()) != null) {
+                if (isUsable(p)) break;
+                p.destroy();
+            }
+            if (p == null) {
+                p = new Pooled(factory.open());
+                created.incrementAndGet();
+            }
+            active.incrementAndGet();
+            return p;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private boolean isUsable(Pooled p) {
+        if (System.currentTimeMillis() - p.lastUsed < validateAfterIdleMs) return true;
+        try {
+            return p.raw.isValid(2);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(Pooled p) {
+        active.decrementAndGet();
+        try {
+            if (!p.raw.getAutoCommit()) {
+                p.raw.rollback();
+                p.raw.setAutoCommit(true);
+            }
+            p.lastUsed = System.currentTimeMillis();
+            if (closed) p.destroy();
+            else idle.offerFirst(p);
+        } catch (SQLException e) {
+            p.destroy();
+        } finally {
+            permits.release();
+        }
+    }
+
+    /* ================= TRANSACTION ================= */
+
+    /**
+     * Chạy {@code work} trong 1 transaction; mọi {@link #getConnection()} cùng thread bên trong
+     * đều nhận lại đúng kết nối này. Commit nếu không lỗi, ngược lại rollback.
+     */
+    public <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        if (bound.get() != null) {
+            return work.run(bound.get().proxy(false));
+        }
+        Pooled p = checkout();
+        bound.set(p);
+        try {
+            p.raw.setAutoCommit(false);
+            T result = work.run(p.proxy(false));
+            p.raw.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            try { p.raw.rollback(); } catch (SQLException ignore) {}
+            throw e;
+        } finally {
+            bound.remove();
+            release(p);
+        }
+    }
+
+    /** Thread hiện tại có đang ở trong {@link #inTransaction} không (ghi chưa commit). */
+    public boolean inTransactionNow() {
+        return bound.get() != null;
+    }
+
+    /* ================= STATS ================= */
+
+    public Stats stats() {
+        long n = checkouts.get();
+        return new Stats(active.get(), idle.size(), maxSize, created.get(), n,
+                n == 0 ? 0 : waitNanos.get() / n / 1_000,
+                maxWaitNanos.get() / 1_000, timeouts.get(),
+                stmtHits.get(), stmtMisses.get());
+    }
+
+    public static final class Stats {
+        public final int active;
+        public final int idle;
+        public final int max;
+        public final long created;
+        public final long checkouts;
+        public final long avgWaitMicros;
+        public final long maxWaitMicros;
+        public final long timeouts;
+        public final long statementHits;
+        public final long statementMisses;
+
+        Stats(int active, int idle, int max, long created, long checkouts, long avgWaitMicros,
+              long maxWaitMicros, long timeouts, long statementHits, long statementMisses) {
+            this.active = active;
+            this.idle = idle;
+            this.max = max;
+            this.created = created;
+            this.checkouts = checkouts;
+            this.avgWaitMicros = avgWaitMicros;
+            this.maxWaitMicros = maxWaitMicros;
+            this.timeouts = timeouts;
+            this.statementHits = statementHits;
+            this.statementMisses = statementMisses;
+        }
+
+        @Override
+        public String toString() {
+            return "DbPool{active=" + active + ", idle=" + idle + ", max=" + max
+                    + ", created=" + created + ", checkouts=" + checkouts
+                    + ", avgWait=" + avgWaitMicros + "us, maxWait=" + maxWaitMicros + "us"
+                    + ", timeouts=" + timeouts
+                    + ", stmtCache=" + statementHits + "/" + (statementHits + statementMisses) + "}";
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Pooled p;
+        while ((p = idle.pollFirst()) != null) p.destroy();
+    }
+
+    /* ================= POOLED CONNECTION ================= */
+
+    private final class Pooled {
+        final Connection raw;
+        volatile long lastUsed = System.currentTimeMillis();
+        /** LRU: sql (+ cờ generated keys) → statement thật. */
+        final Map<String, CachedStatement> statements =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                        if (size() <= statementCacheSize) return false;
+                        CachedStatement cs = eldest.getValue();
+                        if (cs.inUse) cs.evicted = true;
+                        else cs.closeQuietly();
+                        return true;
+                    }
+                };
+
+        Pooled(Connection raw) {
+            this.raw = raw;
+        }
+
+        /** {@code owning=true}: close() trả kết nối về pool; false: close() không làm gì (đang trong transaction). */
+        Connection proxy(boolean owning) {
+            return (Connection) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class},
+                    new ConnectionHandler(this, owning));
+        }
+
+        PreparedStatement prepare(Connection owner, String sql, int autoKeys) throws SQLException {
+            if (statementCacheSize == 0) return raw.prepareStatement(sql, autoKeys);
+            String key = autoKeys + "|" + sql;
+            CachedStatement cs = statements.get(key);
+            if (cs != null && !cs.inUse) {
+                stmtHits.incrementAndGet();
+            } else if (cs != null) {
+                // cùng SQL đang được dùng lồng nhau → tạo statement tạm, không cache
+                stmtMisses.incrementAndGet();
+                return raw.prepareStatement(sql, autoKeys);
+            } else {
+                stmtMisses.incrementAndGet();
+                cs = new CachedStatement(raw.prepareStatement(sql, autoKeys));
+                statements.put(key, cs);
+            }
+            cs.inUse = true;
+            return cs.proxy(owner);
+        }
+
+        void destroy() {
+            for (Iterator<CachedStatement> it = statements.values().iterator(); it.hasNext(); ) {
+                it.next().closeQuietly();
+                it.remove();
+            }
+            try { raw.close(); } catch (SQLException ignore) {}
+        }
+    }
+
+    private final class ConnectionHandler implements InvocationHandler {
+        private final Pooled pooled;
+        private final boolean owning;
+        private boolean closed;
+
+        ConnectionHandler(Pooled pooled, boolean owning) {
+            this.pooled = pooled;
+            this.owning = owning;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            String name = m.getName();
+            switch (name) {
+                case "close" -> {
+                    if (!closed) {
+                        closed = true;
+                        if (owning) release(pooled);
+                    }
+                    return null;
+                }
+                case "isClosed" -> { return closed || pooled.raw.isClosed(); }
+                case "equals" -> { return proxy == args[0]; }
+                case "hashCode" -> { return System.identityHashCode(proxy); }
+                case "toString" -> { return "Pooled[" + pooled.raw + "]"; }
+                default -> { }
+            }
+            if (closed) throw new SQLException("Connection already returned to pool");
+
+            if (name.equals("prepareStatement") && args != null && args[0] instanceof String sql) {
+                Class<?>[] types = m.getParameterTypes();
+                if (types.length == 1) {
+                    return pooled.prepare((Connection) proxy, sql, java.sql.Statement.NO_GENERATED_KEYS);
+                }
+                if (types.length == 2 && types[1] == int.class) {
+                    return pooled.prepare((Connection) proxy, sql, (Integer) args[1]);
+                }
+            }
+            try {
+                return m.invoke(pooled.raw, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private static final class CachedStatement {
+        final PreparedStatement raw;
+        volatile boolean inUse;
+        /** Bị đẩy khỏi cache trong lúc đang dùng → đóng thật khi caller close(). */
+        volatile boolean evicted;
+
+        CachedStatement(PreparedStatement raw) {
+            this.raw = raw;
+        }
+
+        PreparedStatement proxy(Connection owner) {
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class},
+                    new InvocationHandler() {
+                        private boolean closed;
+
+                        @Override
+                        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                            switch (m.getName()) {
+                                case "close" -> {
+                                    if (!closed) {
+                                        closed = true;
+                                        try {
+                                            raw.clearParameters();
+                                            raw.clearBatch();
+                                        } catch (SQLException e) {
+                                            closeQuietly();
+                                        }
+                                        inUse = false;
+                                        if (evicted) closeQuietly();
+                                    }
+                                    return null;
+                                }
+                                case "isClosed" -> { return closed || raw.isClosed(); }
+                                case "getConnection" -> { return owner; }
+                                case "equals" -> { return proxy == args[0]; }
+                                case "hashCode" -> { return System.identityHashCode(proxy); }
+                                default -> { }
+                            }
+                            if (closed) throw new SQLException("Statement already closed");
+                            try {
+                                return m.invoke(raw, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        void closeQuietly() {
+            try { raw.close(); } catch (SQLException ignore) {}
+        }
+    }
+}
@@ -7,11 +7,49 @@ public class DBConnection {
 		    "jdbc:mysql://localhost:3306/socialchatapp"
 		  + "?useSSL=false"
 		  + "&allowPublicKeyRetrieval=true"
-		  + "&serverTimezone=Asia/Ho_Chi_Minh";
+		  + "&serverTimezone=Asia/Ho_Chi_Minh"
+		  + "&rewriteBatchedStatements=true"; // executeBatch của write-behind → 1 INSERT nhiều VALUES
     private static final String USER = "root";
     private static final String PASS = "";
 
+    // cấu hình pool (ServerMain có thể đổi trước lần dùng đầu tiên)
+    private static int poolSize = 16;
+    private static long checkoutTimeoutMs = 5_000;
+    private static int statementCacheSize = 64;
+    private static long validateAfterIdleMs = 30_000;
+
+    private static volatile ConnectionPool pool;
+
+    public static synchronized void configure(int size, long timeoutMs, int stmtCache, long validateIdleMs) {
+        if (pool != null) throw new IllegalStateException("Connection pool already started");
+        poolSize = size;
+        checkoutTimeoutMs = timeoutMs;
+        statementCacheSize = stmtCache;
+        validateAfterIdleMs = validateIdleMs;
+    }
+
+    /** Pool dùng chung cho toàn server (tạo lần đầu khi được gọi). */
+    public static ConnectionPool pool() {
+        ConnectionPool p = pool;
+        if (p == null) {
+            synchronized (DBConnection.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ConnectionPool(DBConnection::openPhysical, poolSize, checkoutTimeoutMs,
+                            statementCacheSize, validateAfterIdleMs);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** Kết nối lấy từ pool; {@code close()} sẽ trả về pool thay vì đóng thật. */
     public static Connection get() throws SQLException {
+        return pool().getConnection();
+    }
+
+    private static Connection openPhysical() throws SQLException {
         try {
             Class.forName("com.mysql.cj.jdbc.Driver");
         } catch (ClassNotFoundException e) {
@@ -8,10 +8,10 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class FileDao {
-    private final Connection conn;
+    private final ConnectionPool pool;
 
-    public FileDao(Connection conn) {
-        this.conn = conn;
+    public FileDao(ConnectionPool pool) {
+        this.pool = pool;
     }
 
     /* ===================== CREATE ===================== */
@@ -23,7 +23,8 @@ public class FileDao {
             INSERT INTO files (message_id, file_name, file_path, mime_type, file_size)
             VALUES (?, ?, ?, ?, ?)
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setLong(1, messageId);
             ps.setString(2, fileName);
             ps.setString(3, filePath);
@@ -45,7 +46,8 @@ public class FileDao {
     /** Lấy list file theo message_id (1-n) */
     public List<FileResource> listByMessageId(long messageId) throws SQLException {
         String sql = "SELECT * FROM files WHERE message_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             try (ResultSet rs = ps.executeQuery()) {
                 List<FileResource> list = new ArrayList<>();
@@ -58,7 +60,8 @@ public class FileDao {
     /** Lấy metadata theo message_id (case cũ: 1 message ↔ 1 file) */
     public FileResource getByMessageId(long messageId) throws SQLException {
         String sql = "SELECT * FROM files WHERE message_id = ? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) return mapRow(rs);
@@ -70,7 +73,8 @@ public class FileDao {
     /** Lấy metadata theo id file (PK) */
     public FileResource getById(long id) throws SQLException {
         String sql = "SELECT * FROM files WHERE id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) return mapRow(rs);
@@ -79,21 +83,26 @@ public class FileDao {
         return null;
     }
 
-    /** Danh sách lịch sử file của 1 user (phân trang) */
-    public List<FileResource> listByUserPaged(String username, int limit, int offset) throws SQLException {
+    /**
+     * Lịch sử file của 1 user, mới nhất trước, cursor = message_id của dòng cuối trang trước
+     * ({@code beforeMessageId <= 0} = trang đầu). Duyệt ngược theo files.message_id.
+     */
+    public List<FileResource> listByUserBefore(String username, long beforeMessageId, int limit) throws SQLException {
         String sql = """
             SELECT f.*
             FROM files f
             JOIN messages m ON f.message_id = m.id
             WHERE (m.sender = ? OR m.recipient = ?)
-            ORDER BY f.uploaded_at DESC
-            LIMIT ? OFFSET ?
+              AND f.message_id < ?
+            ORDER BY f.message_id DESC
+            LIMIT ?
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             ps.setString(2, username);
-            ps.setInt(3, Math.max(1, limit));
-            ps.setInt(4, Math.max(0, offset));
+            ps.setLong(3, beforeMessageId > 0 ? beforeMessageId : Long.MAX_VALUE);
+            ps.setInt(4, Math.max(1, limit));
             try (ResultSet rs = ps.executeQuery()) {
                 List<FileResource> list = new ArrayList<>();
                 while (rs.next()) list.add(mapRow(rs));
@@ -102,23 +111,34 @@ public class FileDao {
         }
     }
 
-    /** Lịch sử file giữa 2 user (phân trang) */
-    public List<FileResource> listByUserAndPeer(String user, String peer, int limit, int offset) throws SQLException {
-        String sql = """
-            SELECT f.*
-            FROM files f
-            JOIN messages m ON f.message_id = m.id
-            WHERE (m.sender = ? AND m.recipient = ?) OR (m.sender = ? AND m.recipient = ?)
-            ORDER BY f.uploaded_at DESC
-            LIMIT ? OFFSET ?
+    /**
+     * Lịch sử file giữa 2 user, mới nhất trước, cursor = message_id như {@link #listByUserBefore}.
+     * Mỗi chiều đi theo index messages (sender, recipient, id) rồi join files theo message_id.
+     */
+    public List<FileResource> listByUserAndPeerBefore(String user, String peer, long beforeMessageId, int limit)
+            throws SQLException {
+        String branch = """
+            (SELECT f.*
+             FROM messages m
+             JOIN files f ON f.message_id = m.id
+             WHERE m.sender = ? AND m.recipient = ? AND m.id < ?
+             ORDER BY m.id DESC
+             LIMIT ?)
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        String sql = "SELECT * FROM (" + branch + " UNION " + branch + ") t ORDER BY message_id DESC LIMIT ?";
+        long cursor = beforeMessageId > 0 ? beforeMessageId : Long.MAX_VALUE;
+        int n = Math.max(1, limit);
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, user);
             ps.setString(2, peer);
-            ps.setString(3, peer);
-            ps.setString(4, user);
-            ps.setInt(5, Math.max(1, limit));
-            ps.setInt(6, Math.max(0, offset));
+            ps.setLong(3, cursor);
+            ps.setInt(4, n);
+            ps.setString(5, peer);
+            ps.setString(6, user);
+            ps.setLong(7, cursor);
+            ps.setInt(8, n);
+            ps.setInt(9, n);
             try (ResultSet rs = ps.executeQuery()) {
                 List<FileResource> list = new ArrayList<>();
                 while (rs.next()) list.add(mapRow(rs));
@@ -127,12 +147,50 @@ public class FileDao {
         }
     }
 
+    /** Số dòng files trỏ tới {@code filePath} (đếm tham chiếu blob nội dung, xem UploadStore). */
+    public long countByPath(String filePath) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM files WHERE file_path = ?";
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, filePath);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }
+    }
+
+    /**
+     * Số dòng files trỏ tới {@code filePath} mà {@code sender} đã gửi (DM hoặc nhóm). files.message_id
+     * có thể là id của messages hoặc group_messages → so thêm body "[FILE] <tên>" để không nhận nhầm
+     * tin khác trùng id.
+     */
+    public long countByPathAndSender(String filePath, String sender) throws SQLException {
+        String sql = """
+            SELECT
+              (SELECT COUNT(*) FROM files f JOIN messages m ON m.id = f.message_id
+                WHERE f.file_path = ? AND m.sender = ? AND m.body = CONCAT('[FILE] ', f.file_name))
+            + (SELECT COUNT(*) FROM files f JOIN group_messages g ON g.id = f.message_id
+                WHERE f.file_path = ? AND g.sender = ? AND g.body = CONCAT('[FILE] ', f.file_name))
+        """;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, filePath);
+            ps.setString(2, sender);
+            ps.setString(3, filePath);
+            ps.setString(4, sender);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        }
+    }
+
     /* ===================== DELETE ===================== */
 
     /** Xoá metadata theo message_id (trong DB) */
     public boolean deleteByMessageId(long messageId) throws SQLException {
         String sql = "DELETE FROM files WHERE message_id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             return ps.executeUpdate() > 0;
         }
@@ -2,52 +2,101 @@ package server.dao;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import common.Group;
 
+/**
+ * Nhóm + thành viên. Danh sách thành viên được cache trong RAM theo groupId (write-through):
+ * GROUP_MSG / file nhóm / sửa / xoá / lịch sử kiểm tra và fan-out không cần truy vấn khi nhóm đã nóng.
+ * addMember / removeMember cập nhật entry sau khi ghi DB thành công, deleteGroup bỏ entry.
+ */
 public class GroupDao {
-    private final Connection conn;
+    private static final int MAX_CACHED_GROUPS = 10_000;
 
-    public GroupDao(Connection conn) {
-        this.conn = conn;
+    private final ConnectionPool pool;
+
+    /** Thành viên theo thứ tự vào nhóm + set để kiểm tra nhanh; bất biến, thay cả cụm khi đổi. */
+    private record Members(List<String> ordered, Set<String> set) {
+        static Members of(List<String> ordered) {
+            return new Members(Collections.unmodifiableList(ordered), new HashSet<>(ordered));
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Members> memberCache = new ConcurrentHashMap<>();
+    // tăng mỗi lần ghi thành viên: lần nạp chạy song song với 1 lần ghi không được để lại dữ liệu cũ
+    private final AtomicLong memberWrites = new AtomicLong();
+    private final AtomicLong memberHits = new AtomicLong();
+    private final AtomicLong memberMisses = new AtomicLong();
+
+    public GroupDao(ConnectionPool pool) {
+        this.pool = pool;
     }
 
 
     public int createGroup(String owner, String name) throws SQLException {
-        String sql = "INSERT INTO groups (name, owner) VALUES (?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, name);
-            ps.setString(2, owner);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) {
-                    int groupId = rs.getInt(1);
-                    addMember(groupId, owner); // owner auto-joins
-                    return groupId;
+        // tạo group + owner auto-join trong cùng 1 transaction
+        return pool.inTransaction(conn -> {
+            String sql = "INSERT INTO groups (name, owner) VALUES (?, ?)";
+            try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                ps.setString(1, name);
+                ps.setString(2, owner);
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        int groupId = rs.getInt(1);
+                        addMember(groupId, owner); // owner auto-joins
+                        return groupId;
+                    }
                 }
             }
-        }
-        return -1;
+            return -1;
+        });
     }
 
 
     public boolean addMember(int groupId, String username) throws SQLException {
         String sql = "INSERT IGNORE INTO group_members (group_id, username) VALUES (?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setString(2, username);
-            return ps.executeUpdate() > 0;
+            boolean added = ps.executeUpdate() > 0;
+            if (added) {
+                memberWritten(groupId, m -> {
+                    if (m.set().contains(username)) return m;
+                    List<String> next = new ArrayList<>(m.ordered());
+                    next.add(username);
+                    return Members.of(next);
+                });
+            }
+            return added;
         }
     }
 
 
     public boolean removeMember(int groupId, String username) throws SQLException {
         String sql = "DELETE FROM group_members WHERE group_id=? AND username=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setString(2, username);
-            return ps.executeUpdate() > 0;
+            boolean removed = ps.executeUpdate() > 0;
+            if (removed) {
+                memberWritten(groupId, m -> {
+                    if (!m.set().contains(username)) return m;
+                    List<String> next = new ArrayList<>(m.ordered());
+                    next.remove(username);
+                    return Members.of(next);
+                });
+            }
+            return removed;
         }
     }
 
@@ -59,16 +108,20 @@ public class GroupDao {
 
         // Deleting from 'groups' cascades to 'group_members' if FK has ON DELETE CASCADE
         String sql = "DELETE FROM groups WHERE id=? AND owner=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setString(2, owner);
-            return ps.executeUpdate() > 0;
+            boolean deleted = ps.executeUpdate() > 0;
+            if (deleted) memberWritten(groupId, m -> null);
+            return deleted;
         }
     }
 
     public boolean isOwner(int groupId, String username) throws SQLException {
         String sql = "SELECT 1 FROM groups WHERE id=? AND owner=? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             ps.setString(2, username);
             try (ResultSet rs = ps.executeQuery()) {
@@ -78,24 +131,16 @@ public class GroupDao {
     }
 
 
+    /** Thành viên theo thứ tự vào nhóm (từ cache); danh sách chỉ đọc. */
     public List<String> listMembers(int groupId) throws SQLException {
-        String sql = "SELECT username FROM group_members WHERE group_id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, groupId);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<String> members = new ArrayList<>();
-                while (rs.next()) {
-                    members.add(rs.getString("username"));
-                }
-                return members;
-            }
-        }
+        return members(groupId).ordered();
     }
 
 
     public String getGroupName(int groupId) throws SQLException {
         String sql = "SELECT name FROM groups WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -106,14 +151,7 @@ public class GroupDao {
         return null;
     }
     public boolean isMember(int groupId, String username) throws SQLException {
-        String sql = "SELECT 1 FROM group_members WHERE group_id=? AND username=? LIMIT 1";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, groupId);
-            ps.setString(2, username);
-            try (ResultSet rs = ps.executeQuery()) {
-                return rs.next();
-            }
-        }
+        return username != null && members(groupId).set().contains(username);
     }
     public List<Group> listGroupsForUser(String username) throws SQLException {
         String sql = """
@@ -122,7 +160,8 @@ public class GroupDao {
             JOIN group_members gm ON g.id = gm.group_id
             WHERE gm.username = ?
         """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
                 List<Group> groups = new ArrayList<>();
@@ -140,9 +179,32 @@ public class GroupDao {
     }
     
     public List<String> listMembersOrderByJoinTime(int groupId) throws SQLException {
+        return members(groupId).ordered();
+    }
+
+    /* ===================== cache thành viên ===================== */
+
+    private Members members(int groupId) throws SQLException {
+        Members m = memberCache.get(groupId);
+        if (m != null) {
+            memberHits.incrementAndGet();
+            return m;
+        }
+        memberMisses.incrementAndGet();
+        long seq = memberWrites.get();
+        Members loaded = Members.of(loadMembers(groupId));
+        if (memberCache.size() >= MAX_CACHED_GROUPS) evictOne();
+        memberCache.put(groupId, loaded);
+        // có ghi chen giữa lúc đọc DB và lúc put → không tin bản vừa nạp, lần sau nạp lại
+        if (memberWrites.get() != seq) memberCache.remove(groupId);
+        return loaded;
+    }
+
+    private List<String> loadMembers(int groupId) throws SQLException {
         String sql = "SELECT username FROM group_members WHERE group_id=? ORDER BY joined_at ASC";
         List<String> list = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) list.add(rs.getString("username"));
@@ -151,9 +213,34 @@ public class GroupDao {
         return list;
     }
 
+    /** Sau khi ghi DB: sửa entry đang cache (null = bỏ entry); chưa cache thì thôi. */
+    private void memberWritten(int groupId, java.util.function.UnaryOperator<Members> change) {
+        memberWrites.incrementAndGet();
+        if (pool.inTransactionNow()) {
+            // đang trong transaction (vd. createGroup): chưa commit nên chỉ bỏ entry
+            memberCache.remove(groupId);
+            return;
+        }
+        memberCache.computeIfPresent(groupId, (k, m) -> change.apply(m));
+    }
+
+    private void evictOne() {
+        Iterator<Integer> it = memberCache.keySet().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public String stats() {
+        return "GroupMembers{hits=" + memberHits.get() + ", misses=" + memberMisses.get()
+                + ", cachedGroups=" + memberCache.size() + "}";
+    }
+
     public boolean updateOwner(int groupId, String newOwner) throws SQLException {
         String sql = "UPDATE groups SET owner=? WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, newOwner);
             ps.setInt(2, groupId);
             return ps.executeUpdate() > 0;
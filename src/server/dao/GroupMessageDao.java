@@ -5,21 +5,52 @@ import common.GroupMessage;
 import java.sql.*;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class GroupMessageDao {
-    private final Connection conn;
+    private final ConnectionPool pool;
+    private final MessageChangeLog changes;
+    /** null = INSERT trực tiếp như cũ. */
+    private volatile MessageWriteBehind writeBehind;
+
+    public GroupMessageDao(ConnectionPool pool) {
+        this.pool = pool;
+        this.changes = new MessageChangeLog(pool);
+    }
+
+    /** Tombstone sửa/xoá cho đồng bộ delta (khoá {@link MessageChangeLog#groupKey}). */
+    public MessageChangeLog changeLog() {
+        return changes;
+    }
+
+    public void setWriteBehind(MessageWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    public boolean ackAfterEnqueue() {
+        MessageWriteBehind wb = writeBehind;
+        return wb != null && wb.durability() == MessageWriteBehind.Durability.ENQUEUE;
+    }
 
-    public GroupMessageDao(Connection conn) {
-        this.conn = conn;
+    /** Như saveMessage nhưng đi qua write-behind (nếu bật); id trả về khi đã commit. */
+    public CompletableFuture<Long> saveMessageAsync(int groupId, String sender, String body, Long replyTo) {
+        MessageWriteBehind wb = writeBehind;
+        if (wb != null) return wb.submitGroup(groupId, sender, body, replyTo);
+        try {
+            return CompletableFuture.completedFuture(saveMessage(groupId, sender, body, replyTo));
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
     public long saveMessage(int groupId, String sender, String body, Long replyTo) throws SQLException {
-        String sql = """
-            INSERT INTO group_messages (group_id, sender, body, reply_to)
-            VALUES (?, ?, ?, ?)
-            """;
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        String sql = MessageWriteBehind.GROUP_SQL;
+        long token = CommitWatermark.GROUP_MESSAGES.begin(pool);
+        long id = -1;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setInt(1, groupId);
             ps.setString(2, sender);
             ps.setString(3, body);
@@ -29,25 +60,51 @@ public class GroupMessageDao {
             ps.executeUpdate();
 
             try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) return rs.getLong(1);
+                if (rs.next()) id = rs.getLong(1);
             }
+        } finally {
+            CommitWatermark.GROUP_MESSAGES.end(token, id);
         }
-        return -1;
+        return id;
     }
 
-    // LOAD RECENT
+    /** Mọi tin nhóm có id ≤ giá trị này đã commit (xem {@link CommitWatermark}); đọc trước khi tải trang. */
+    public long committedIdWatermark() {
+        return CommitWatermark.GROUP_MESSAGES.safeId(pool);
+    }
+
+    // LOAD RECENT: trang mới nhất, id tăng dần
     public List<GroupMessage> loadRecentMessages(int groupId, int limit) throws SQLException {
+        return loadPage(groupId, 0, 0, limit);
+    }
+
+    /**
+     * 1 trang tin nhóm theo cursor (index (group_id, id)), luôn trả về id tăng dần.
+     * - {@code afterId > 0}: tin mới hơn afterId.
+     * - ngược lại: tin cũ hơn {@code beforeId} ({@code beforeId <= 0} = trang mới nhất).
+     */
+    public List<GroupMessage> loadPage(int groupId, long beforeId, long afterId, int limit) throws SQLException {
+        return loadPage(groupId, beforeId, afterId, Long.MAX_VALUE, limit);
+    }
+
+    /** Như trên nhưng chỉ lấy tin có id ≤ {@code maxId} (vd. {@link #committedIdWatermark()}). */
+    public List<GroupMessage> loadPage(int groupId, long beforeId, long afterId, long maxId, int limit)
+            throws SQLException {
+        boolean older = afterId <= 0;
         String sql = """
             SELECT id, group_id, sender, body, reply_to, created_at, updated_at
             FROM group_messages
-            WHERE group_id = ?
-            ORDER BY id ASC
+            WHERE group_id = ? AND id %s ? AND id <= ?
+            ORDER BY id %s
             LIMIT ?
-            """;
+            """.formatted(older ? "<" : ">", older ? "DESC" : "ASC");
 
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setInt(1, groupId);
-            ps.setInt(2, limit);
+            ps.setLong(2, older ? (beforeId > 0 ? beforeId : Long.MAX_VALUE) : afterId);
+            ps.setLong(3, maxId);
+            ps.setInt(4, Math.max(1, limit));
 
             try (ResultSet rs = ps.executeQuery()) {
                 List<GroupMessage> list = new ArrayList<>();
@@ -68,6 +125,7 @@ public class GroupMessageDao {
                             updatedAt
                     ));
                 }
+                if (older) Collections.reverse(list);
                 return list;
             }
         }
@@ -81,28 +139,33 @@ public class GroupMessageDao {
             SET body = ?, updated_at = CURRENT_TIMESTAMP
             WHERE id = ? AND sender = ?
             """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, newBody);
-            ps.setLong(2, id);
-            ps.setString(3, editor);
-            int updated = ps.executeUpdate();
-            if (updated == 0) return null;
-        }
+        return pool.inTransaction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setString(1, newBody);
+                ps.setLong(2, id);
+                ps.setString(3, editor);
+                int updated = ps.executeUpdate();
+                if (updated == 0) return null;
+            }
 
-        try (PreparedStatement ps = conn.prepareStatement(
-                "SELECT group_id FROM group_messages WHERE id = ?")) {
-            ps.setLong(1, id);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getInt("group_id");
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "SELECT group_id FROM group_messages WHERE id = ?")) {
+                ps.setLong(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) return null;
+                    int groupId = rs.getInt("group_id");
+                    changes.record(MessageChangeLog.groupKey(groupId), id, MessageChangeLog.EDIT, newBody);
+                    return groupId;
+                }
             }
-        }
-        return null;
+        });
     }
 
     // DELETE: trả về group_id nếu xoá được
     public Integer deleteByIdReturningGroup(long id, String requester) throws SQLException {
         Integer groupId = null;
-        try (PreparedStatement ps = conn.prepareStatement(
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(
                 "SELECT group_id, sender FROM group_messages WHERE id = ?")) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
@@ -115,13 +178,16 @@ public class GroupMessageDao {
             }
         }
 
-        try (PreparedStatement ps = conn.prepareStatement(
-                "DELETE FROM group_messages WHERE id = ?")) {
-            ps.setLong(1, id);
-            int deleted = ps.executeUpdate();
-            if (deleted == 0) return null;
-        }
-
-        return groupId;
+        final int gid = groupId;
+        return pool.inTransaction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "DELETE FROM group_messages WHERE id = ?")) {
+                ps.setLong(1, id);
+                int deleted = ps.executeUpdate();
+                if (deleted == 0) return null;
+            }
+            changes.record(MessageChangeLog.groupKey(gid), id, MessageChangeLog.DELETE, null);
+            return gid;
+        });
     }
 }
@@ -0,0 +1,153 @@
+package server.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Nhật ký sửa/xoá tin theo cuộc hội thoại (bảng {@code message_changes}) cho đồng bộ delta:
+ * client gửi seq đã thấy, server trả các tombstone edit/delete sau seq đó thay vì gửi lại cả trang.
+ * - Seq đánh riêng từng hội thoại ({@code message_changes.conv_seq}) từ dòng đếm
+ *   {@code message_change_counters} khoá {@code FOR UPDATE} trong cùng transaction với UPDATE/DELETE:
+ *   2 transaction cùng hội thoại lấy seq và commit theo đúng 1 thứ tự, nên client đã thấy seq N thì
+ *   mọi thay đổi có seq nhỏ hơn đều đã commit (AUTO_INCREMENT thì không: seq nhỏ có thể commit sau).
+ * - Bảng chưa tồn tại (chưa chạy migration 002/005) → bỏ qua ghi, {@link #since} trả null và server
+ *   quay về gửi nguyên trang như cũ.
+ */
+public class MessageChangeLog {
+    public static final String EDIT = "edit";
+    public static final String DELETE = "delete";
+
+    public record Change(long seq, long messageId, String op, String body) {}
+
+    private final ConnectionPool pool;
+    private volatile boolean available = true;
+
+    public MessageChangeLog(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /** Khoá hội thoại DM, không phụ thuộc chiều gửi. */
+    public static String dmKey(String a, String b) {
+        return (a.compareTo(b) <= 0) ? "dm:" + a + "|" + b : "dm:" + b + "|" + a;
+    }
+
+    public static String groupKey(int groupId) {
+        return "group:" + groupId;
+    }
+
+    public boolean isAvailable() { return available; }
+
+    /**
+     * Ghi 1 thay đổi; gọi trong cùng transaction với UPDATE/DELETE để không lệch nhau (ngoài
+     * transaction thì tự mở 1 transaction riêng). Dòng đếm của hội thoại bị khoá tới khi commit.
+     * Thiếu bảng (42xxx) → tắt delta sync, không lỗi; lỗi khác ném ra để transaction rollback
+     * (không được để sửa/xoá commit mà thiếu tombstone).
+     */
+    void record(String convKey, long messageId, String op, String body) throws SQLException {
+        if (!available) return;
+        try {
+            pool.inTransaction(conn -> {
+                long seq = nextSeq(conn, convKey);
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "INSERT INTO message_changes (conv_key, conv_seq, message_id, op, body) VALUES (?, ?, ?, ?, ?)")) {
+                    ps.setString(1, convKey);
+                    ps.setLong(2, seq);
+                    ps.setLong(3, messageId);
+                    ps.setString(4, op);
+                    ps.setString(5, body);
+                    ps.executeUpdate();
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            if (!isMissingTable(e)) throw e;
+            disable(e);
+        }
+    }
+
+    /** Tăng dòng đếm của hội thoại (tạo nếu chưa có) rồi đọc lại dưới khoá ghi. */
+    private static long nextSeq(Connection conn, String convKey) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT INTO message_change_counters (conv_key, seq) VALUES (?, 1) ON DUPLICATE KEY UPDATE seq = seq + 1")) {
+            ps.setString(1, convKey);
+            ps.executeUpdate();
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT seq FROM message_change_counters WHERE conv_key = ? FOR UPDATE")) {
+            ps.setString(1, convKey);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) throw new SQLException("Change counter missing for " + convKey);
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * Seq đã commit của hội thoại (0 nếu chưa có thay đổi), -1 nếu không dùng được. Mọi thay đổi có
+     * seq ≤ giá trị này đều đã commit (dòng đếm chỉ lộ ra sau commit của transaction tăng nó).
+     */
+    public long currentSeq(String convKey) {
+        if (!available) return -1;
+        String sql = "SELECT seq FROM message_change_counters WHERE conv_key = ?";
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, convKey);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0L;
+            }
+        } catch (SQLException e) {
+            disable(e);
+            return -1;
+        }
+    }
+
+    /** Các thay đổi có seq > {@code afterSeq}, tăng dần, tối đa {@code limit}; null nếu không dùng được. */
+    public List<Change> since(String convKey, long afterSeq, int limit) {
+        if (!available) return null;
+        String sql = """
+            SELECT conv_seq, message_id, op, body
+            FROM message_changes
+            WHERE conv_key = ? AND conv_seq > ?
+            ORDER BY conv_seq
+            LIMIT ?
+        """;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, convKey);
+            ps.setLong(2, afterSeq);
+            ps.setInt(3, Math.max(1, limit));
+            try (ResultSet rs = ps.executeQuery()) {
+                List<Change> out = new ArrayList<>();
+                while (rs.next()) {
+                    out.add(new Change(rs.getLong("conv_seq"), rs.getLong("message_id"),
+                            rs.getString("op"), rs.getString("body")));
+                }
+                return out;
+            }
+        } catch (SQLException e) {
+            disable(e);
+            return null;
+        }
+    }
+
+    private static boolean isMissingTable(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && state.startsWith("42");
+    }
+
+    /** Thiếu bảng/quyền (SQLState 42xxx) → tắt hẳn; lỗi tạm thời chỉ bỏ qua lần này. */
+    private void disable(SQLException e) {
+        if (isMissingTable(e)) {
+            if (available) {
+                available = false;
+                System.err.println("[SYNC] message_changes unavailable, delta sync off: " + e.getMessage());
+            }
+        } else {
+            System.err.println("[SYNC] change log error: " + e.getMessage());
+        }
+    }
+}
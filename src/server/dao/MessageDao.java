@@ -8,12 +8,32 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class MessageDao {
-    private final Connection conn;
+    private final ConnectionPool pool;
+    private final MessageChangeLog changes;
+    /** null = INSERT trực tiếp như cũ. */
+    private volatile MessageWriteBehind writeBehind;
+
+    public MessageDao(ConnectionPool pool) {
+        this.pool = pool;
+        this.changes = new MessageChangeLog(pool);
+    }
+
+    /** Tombstone sửa/xoá cho đồng bộ delta (khoá {@link MessageChangeLog#dmKey}). */
+    public MessageChangeLog changeLog() {
+        return changes;
+    }
 
-    public MessageDao(Connection conn) {
-        this.conn = conn;
+    public void setWriteBehind(MessageWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /** true: người gọi không chờ commit, xử lý kết quả trong callback của future. */
+    public boolean ackAfterEnqueue() {
+        MessageWriteBehind wb = writeBehind;
+        return wb != null && wb.durability() == MessageWriteBehind.Durability.ENQUEUE;
     }
 
     /* ===================== SAVE (API cũ – giữ lại gọi từ Frame) ===================== */
@@ -44,6 +64,19 @@ public class MessageDao {
         return insertMessage(sender, recipient, body, replyTo, "delivered");
     }
 
+    /** Như saveSent/saveQueuedReturnId nhưng đi qua write-behind (nếu bật); id trả về khi đã commit. */
+    public CompletableFuture<Long> saveAsync(String sender, String recipient, String body, Long replyTo,
+                                             boolean delivered) {
+        String status = delivered ? "delivered" : "queued";
+        MessageWriteBehind wb = writeBehind;
+        if (wb != null) return wb.submitDm(sender, recipient, body, replyTo, status);
+        try {
+            return CompletableFuture.completedFuture(insertMessage(sender, recipient, body, replyTo, status));
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
     public long saveReturnId(Message m) throws SQLException {
         return insertMessage(
                 m.getSender(),
@@ -60,8 +93,12 @@ public class MessageDao {
                                Long replyTo,
                                String status) throws SQLException {
 
-        String sql = "INSERT INTO messages(sender, recipient, body, reply_to, status) VALUES(?,?,?,?,?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        String sql = MessageWriteBehind.DM_SQL;
+        // autocommit: executeUpdate xong là đã commit → end() ngay sau đó
+        long token = CommitWatermark.MESSAGES.begin(pool);
+        long id = 0L;
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setString(1, sender);
             ps.setString(2, recipient);
             ps.setString(3, body);
@@ -72,76 +109,158 @@ public class MessageDao {
 
             try (ResultSet rs = ps.getGeneratedKeys()) {
                 if (rs.next()) {
-                    return rs.getLong(1);
+                    id = rs.getLong(1);
                 }
             }
+        } finally {
+            CommitWatermark.MESSAGES.end(token, id);
         }
-        return 0L;
+        return id;
+    }
+
+    /**
+     * Mọi tin có id ≤ giá trị này đã commit (xem {@link CommitWatermark}); đọc trước khi tải trang
+     * để client không lưu mốc afterId vượt qua 1 tin chưa commit.
+     */
+    public long committedIdWatermark() {
+        return CommitWatermark.MESSAGES.safeId(pool);
     }
 
     /* ===================== OFFLINE QUEUE ===================== */
     public List<Message> loadQueued(String recipient) throws SQLException {
+        List<Message> out = loadQueuedPage(recipient, 0, Integer.MAX_VALUE);
+        List<Long> ids = new ArrayList<>(out.size());
+        for (Message m : out) ids.add(m.getId());
+        markDelivered(recipient, ids);
+        return out;
+    }
+
+    /** 1 trang tin đang chờ của {@code recipient}, id > {@code afterId}, tăng dần. Không đổi trạng thái. */
+    public List<Message> loadQueuedPage(String recipient, long afterId, int limit) throws SQLException {
         String sql = """
             SELECT id, sender, recipient, body, reply_to, status,
                    created_at, delivered_at, updated_at
             FROM messages
-            WHERE recipient=? AND status='queued'
+            WHERE recipient=? AND status='queued' AND id>?
             ORDER BY id
+            LIMIT ?
         """;
 
         List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, recipient);
+            ps.setLong(2, afterId);
+            ps.setInt(3, Math.max(1, limit));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    Message m = mapRow(rs);
-                    out.add(m);
-                    markDelivered(m.getId());
+                    out.add(mapRow(rs));
                 }
             }
         }
         return out;
     }
 
-    private void markDelivered(long id) throws SQLException {
-        String sql = "UPDATE messages SET status='delivered', delivered_at=NOW() WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setLong(1, id);
-            ps.executeUpdate();
+    /**
+     * Đánh dấu đã giao đúng các tin {@code ids} đã gửi cho {@code recipient} (1 câu lệnh).
+     * Không dùng "id <= last": tin id nhỏ hơn commit muộn (sau khi trang đã đọc) chưa được gửi,
+     * phải giữ 'queued' để lần sau gửi.
+     */
+    public int markDelivered(String recipient, List<Long> ids) throws SQLException {
+        if (ids == null || ids.isEmpty()) return 0;
+        StringBuilder sql = new StringBuilder(
+                "UPDATE messages SET status='delivered', delivered_at=NOW() WHERE recipient=? AND status='queued' AND id IN (");
+        for (int i = 0; i < ids.size(); i++) sql.append(i == 0 ? "?" : ",?");
+        sql.append(')');
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            ps.setString(1, recipient);
+            for (int i = 0; i < ids.size(); i++) ps.setLong(i + 2, ids.get(i));
+            return ps.executeUpdate();
+        }
+    }
+
+    /* ===================== HISTORY (keyset) ===================== */
+
+    private static final String COLS = """
+            id, sender, recipient, body, reply_to, status,
+            created_at, delivered_at, updated_at""";
+
+    /**
+     * 1 chiều của hội thoại (sender→recipient) theo cursor id; mỗi nhánh là 1 range scan trên
+     * index (sender, recipient, id) nên trang sâu tốn như trang đầu.
+     * {@code extra} là điều kiện thêm (vd. LIKE của search), rỗng nếu không có.
+     */
+    private static String pairBranch(String extra, boolean older) {
+        return "(SELECT " + COLS + " FROM messages WHERE sender=? AND recipient=? AND id"
+                + (older ? "<?" : ">?") + " AND id<=?" + extra
+                + " ORDER BY id " + (older ? "DESC" : "ASC") + " LIMIT ?)";
+    }
+
+    /**
+     * Gộp 2 chiều a→b và b→a. Dùng UNION (không ALL) để hội thoại với chính mình (a = b)
+     * không bị lặp dòng; số dòng gộp tối đa 2×limit nên chi phí khử trùng không đáng kể.
+     */
+    private static String pairPageSql(String extra, boolean older) {
+        return "SELECT * FROM (" + pairBranch(extra, older) + " UNION " + pairBranch(extra, older) + ") t"
+                + " ORDER BY id " + (older ? "DESC" : "ASC") + " LIMIT ?";
+    }
+
+    /** Gán tham số cho {@link #pairPageSql}; {@code extraParam} null nếu không có điều kiện thêm. */
+    private static void bindPair(PreparedStatement ps, String a, String b, long cursor, long maxId,
+                                 String extraParam, int limit) throws SQLException {
+        int i = 1;
+        for (int branch = 0; branch < 2; branch++) {
+            ps.setString(i++, branch == 0 ? a : b);
+            ps.setString(i++, branch == 0 ? b : a);
+            ps.setLong(i++, cursor);
+            ps.setLong(i++, maxId);
+            if (extraParam != null) ps.setString(i++, extraParam);
+            ps.setInt(i++, limit);
         }
+        ps.setInt(i, limit);
     }
 
-    /* ===================== HISTORY ===================== */
+    /** Trang mới nhất của hội thoại, id tăng dần. */
     public List<Message> loadConversation(String a, String b, int limit) throws SQLException {
-        String sql = """
-            SELECT id, sender, recipient, body, reply_to, status,
-                   created_at, delivered_at, updated_at
-            FROM messages
-            WHERE (sender=? AND recipient=?) OR (sender=? AND recipient=?)
-            ORDER BY id DESC
-            LIMIT ?
-        """;
+        return loadConversationPage(a, b, 0, 0, limit);
+    }
+
+    /**
+     * 1 trang hội thoại theo cursor, luôn trả về id tăng dần.
+     * - {@code afterId > 0}: tin mới hơn afterId (cũ nhất trước).
+     * - ngược lại: tin cũ hơn {@code beforeId} ({@code beforeId <= 0} = trang mới nhất).
+     */
+    public List<Message> loadConversationPage(String a, String b, long beforeId, long afterId, int limit)
+            throws SQLException {
+        return loadConversationPage(a, b, beforeId, afterId, Long.MAX_VALUE, limit);
+    }
+
+    /** Như trên nhưng chỉ lấy tin có id ≤ {@code maxId} (vd. {@link #committedIdWatermark()}). */
+    public List<Message> loadConversationPage(String a, String b, long beforeId, long afterId, long maxId,
+                                              int limit) throws SQLException {
+        boolean older = afterId <= 0;
+        long cursor = older ? (beforeId > 0 ? beforeId : Long.MAX_VALUE) : afterId;
+        int n = Math.max(1, limit);
 
         List<Message> out = new ArrayList<>();
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, a);
-            ps.setString(2, b);
-            ps.setString(3, b);
-            ps.setString(4, a);
-            ps.setInt(5, Math.max(1, limit));
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(pairPageSql("", older))) {
+            bindPair(ps, a, b, cursor, maxId, null, n);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     out.add(mapRow(rs));
                 }
             }
         }
-        Collections.reverse(out);
+        if (older) Collections.reverse(out);
         return out;
     }
 
     public Long getReplyToByMessageId(long messageId) throws SQLException {
         String sql = "SELECT reply_to FROM messages WHERE id = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, messageId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -158,7 +277,8 @@ public class MessageDao {
     public boolean deleteById(long id, String requester) throws SQLException {
         String checkSql = "SELECT sender FROM messages WHERE id=?";
         String sender = null;
-        try (PreparedStatement ps = conn.prepareStatement(checkSql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(checkSql)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) sender = rs.getString("sender");
@@ -166,7 +286,8 @@ public class MessageDao {
         }
         if (sender == null || !sender.equals(requester)) return false;
 
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
             ps.setLong(1, id);
             return ps.executeUpdate() > 0;
         }
@@ -175,7 +296,8 @@ public class MessageDao {
     public String deleteByIdReturningPeer(long id, String requester) throws SQLException {
         String sqlSel = "SELECT sender, recipient FROM messages WHERE id=?";
         String sender = null, recipient = null;
-        try (PreparedStatement ps = conn.prepareStatement(sqlSel)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sqlSel)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -186,17 +308,22 @@ public class MessageDao {
         }
         if (sender == null || !sender.equals(requester)) return null;
 
-        try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
-            ps.setLong(1, id);
-            int n = ps.executeUpdate();
-            return (n > 0) ? recipient : null;
-        }
+        final String peer = recipient;
+        return pool.inTransaction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM messages WHERE id=?")) {
+                ps.setLong(1, id);
+                if (ps.executeUpdate() == 0) return null;
+            }
+            changes.record(MessageChangeLog.dmKey(requester, peer), id, MessageChangeLog.DELETE, null);
+            return peer;
+        });
     }
 
     public String updateByIdReturningPeer(long id, String requester, String newBody) throws SQLException {
         String sel = "SELECT sender, recipient FROM messages WHERE id=?";
         String sender = null, recipient = null;
-        try (PreparedStatement ps = conn.prepareStatement(sel)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sel)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
@@ -208,17 +335,22 @@ public class MessageDao {
         if (sender == null || !sender.equals(requester)) return null;
 
         String upd = "UPDATE messages SET body=?, updated_at=NOW() WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(upd)) {
-            ps.setString(1, newBody);
-            ps.setLong(2, id);
-            int n = ps.executeUpdate();
-            return (n > 0) ? recipient : null;
-        }
+        final String peer = recipient;
+        return pool.inTransaction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(upd)) {
+                ps.setString(1, newBody);
+                ps.setLong(2, id);
+                if (ps.executeUpdate() == 0) return null;
+            }
+            changes.record(MessageChangeLog.dmKey(requester, peer), id, MessageChangeLog.EDIT, newBody);
+            return peer;
+        });
     }
 
     public String getSenderById(long id) throws SQLException {
         String sql = "SELECT sender FROM messages WHERE id=?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setLong(1, id);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) return rs.getString("sender");
@@ -227,26 +359,15 @@ public class MessageDao {
         return null;
     }
 
-    /* ===================== SEARCH ===================== */
+    /* ===================== SEARCH (keyset) ===================== */
 
-    public List<Message> searchConversation(String a, String b, String q, int limit, int offset) throws SQLException {
-        String sql = """
-            SELECT id, sender, recipient, body, reply_to, status,
-                   created_at, delivered_at, updated_at
-            FROM messages
-            WHERE ((sender=? AND recipient=?) OR (sender=? AND recipient=?))
-              AND body COLLATE utf8mb4_0900_ai_ci LIKE ?
-            ORDER BY created_at ASC
-            LIMIT ? OFFSET ?
-        """;
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, a);
-            ps.setString(2, b);
-            ps.setString(3, b);
-            ps.setString(4, a);
-            ps.setString(5, "%" + q + "%");
-            ps.setInt(6, Math.max(1, limit));
-            ps.setInt(7, Math.max(0, offset));
+    /** Kết quả khớp {@code q} có id > {@code afterId} (0 = từ đầu), tăng dần; cursor trang sau = id cuối. */
+    public List<Message> searchConversation(String a, String b, String q, int limit, long afterId) throws SQLException {
+        int n = Math.max(1, limit);
+        String sql = pairPageSql(" AND body COLLATE utf8mb4_0900_ai_ci LIKE ?", false);
+        try (Connection conn = pool.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            bindPair(ps, a, b, Math.max(0, afterId), Long.MAX_VALUE, "%" + q + "%", n);
             try (ResultSet rs = ps.executeQuery()) {
                 List<Message> out = new ArrayList<>();
                 while (rs.next()) {
@@ -255,53 +376,30 @@ public class MessageDao {
                 return out;
             }
         } catch (SQLException e) {
-            return searchConversationFallbackJava(a, b, q, limit, offset);
+            return searchConversationFallbackJava(a, b, q, n, afterId);
         }
     }
 
-    private List<Message> searchConversationFallbackJava(String a, String b, String q, int limit, int offset) throws SQLException {
-        String sql = """
-            SELECT id, sender, recipient, body, reply_to, status,
-                   created_at, delivered_at, updated_at
-            FROM messages
-            WHERE (sender=? AND recipient=?) OR (sender=? AND recipient=?)
-            ORDER BY created_at ASC
-            LIMIT ? OFFSET ?
-        """;
-
+    /** DB không có collation ai_ci: duyệt hội thoại theo cursor và lọc bỏ dấu phía Java. */
+    private List<Message> searchConversationFallbackJava(String a, String b, String q, int limit, long afterId)
+            throws SQLException {
         List<Message> out = new ArrayList<>();
         String nq = normalizeAscii(q);
-        int need = limit + offset;
-        int page = Math.max(need * 3, 200);
-        int off = 0;
-
-        while (out.size() < need) {
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                ps.setString(1, a);
-                ps.setString(2, b);
-                ps.setString(3, b);
-                ps.setString(4, a);
-                ps.setInt(5, page);
-                ps.setInt(6, off);
-
-                try (ResultSet rs = ps.executeQuery()) {
-                    boolean any = false;
-                    while (rs.next()) {
-                        any = true;
-                        String body = rs.getString("body");
-                        if (normalizeAscii(body).contains(nq)) {
-                            out.add(mapRow(rs));
-                            if (out.size() >= need) break;
-                        }
-                    }
-                    if (!any) break;
+        int page = Math.max(limit * 3, 200);
+        long cursor = Math.max(0, afterId);
+
+        while (out.size() < limit) {
+            List<Message> rows = loadConversationPage(a, b, 0, cursor, page);
+            if (rows.isEmpty()) break;
+            for (Message m : rows) {
+                if (normalizeAscii(m.getBody()).contains(nq)) {
+                    out.add(m);
+                    if (out.size() >= limit) break;
                 }
             }
-            off += page;
+            cursor = rows.get(rows.size() - 1).getId();
         }
-
-        if (out.size() <= offset) return Collections.emptyList();
-        return out.subList(offset, Math.min(out.size(), offset + limit));
+        return out;
     }
 
     /* ===================== Helpers ===================== */
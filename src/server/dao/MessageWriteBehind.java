@@ -0,0 +1,295 @@
+package server.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ghi trễ (write-behind) tin nhắn DM và group: gom các INSERT tới trong vài ms thành 1 batch,
+ * chạy trong 1 transaction rồi trả id sinh ra cho từng người gửi qua {@link CompletableFuture}.
+ * Chỉ 1 thread ghi, xử lý FIFO → thứ tự id trong mỗi hội thoại giữ nguyên như thứ tự nhận.
+ * Future được complete trên 1 thread callback riêng (cũng FIFO) để ack/giao tin của batch trước
+ * không giữ chân thread ghi khi batch sau đã sẵn sàng.
+ */
+public final class MessageWriteBehind implements AutoCloseable {
+
+    /** Khi nào được ack cho người gửi. */
+    public enum Durability {
+        /** Handler chờ commit rồi mới ack (như cũ, chỉ khác là INSERT được gom batch). */
+        COMMIT,
+        /** Handler trả về ngay sau khi xếp hàng; ack/giao tin chạy khi batch commit xong. */
+        ENQUEUE
+    }
+
+    static final String DM_SQL =
+            "INSERT INTO messages(sender, recipient, body, reply_to, status) VALUES(?,?,?,?,?)";
+    static final String GROUP_SQL =
+            "INSERT INTO group_messages (group_id, sender, body, reply_to) VALUES (?, ?, ?, ?)";
+
+    private final ConnectionPool pool;
+    private final Durability durability;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final long enqueueTimeoutMs;
+    private final BlockingQueue<Insert> queue;
+    private final Thread writer;
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "message-writer-callbacks");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean running = true;
+
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxBatchSeen = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public MessageWriteBehind(ConnectionPool pool, Durability durability, int maxBatch, long lingerMs,
+                              int queueCapacity, long enqueueTimeoutMs) {
+        this.pool = pool;
+        this.durability = durability;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMs));
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+        this.queue = new ArrayBlockingQueue<>(Math.max(this.maxBatch, queueCapacity));
+        this.writer = new Thread(this::loop, "message-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public Durability durability() { return durability; }
+
+    /* ================= SUBMIT ================= */
+
+    CompletableFuture<Long> submitDm(String sender, String recipient, String body, Long replyTo, String status) {
+        return submit(new Insert(false, 0, sender, recipient, body, replyTo, status));
+    }
+
+    CompletableFuture<Long> submitGroup(int groupId, String sender, String body, Long replyTo) {
+        return submit(new Insert(true, groupId, sender, null, body, replyTo, null));
+    }
+
+    private CompletableFuture<Long> submit(Insert in) {
+        if (!running) {
+            in.result.completeExceptionally(new SQLException("Message writer is closed"));
+            return in.result;
+        }
+        try {
+            // hàng đầy → chặn người gửi (backpressure), quá hạn thì báo lỗi
+            if (!queue.offer(in, enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                failures.incrementAndGet();
+                in.result.completeExceptionally(new SQLException("Message writer queue full"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            in.result.completeExceptionally(new SQLException("Interrupted while queueing message", e));
+        }
+        return in.result;
+    }
+
+    /* ================= WRITER THREAD ================= */
+
+    private void loop() {
+        List<Insert> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Insert first = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - batch.size());
+
+                // chờ thêm 1 chút để gom batch lớn hơn
+                long deadline = System.nanoTime() + lingerNanos;
+                while (batch.size() < maxBatch && lingerNanos > 0) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    Insert next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+                flush(batch);
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } catch (Throwable t) {
+                System.err.println("[WRITE-BEHIND] writer error: " + t);
+                for (Insert in : batch) if (in.error == null) in.error = t;
+                complete(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Insert> batch) {
+        // đăng ký trước khi mở transaction: id của batch chưa commit thì chưa lộ ra cho HISTORY sync
+        long dmToken = CommitWatermark.MESSAGES.begin(pool);
+        long groupToken = CommitWatermark.GROUP_MESSAGES.begin(pool);
+        try {
+            write(batch);
+        } finally {
+            long dmMax = 0, groupMax = 0;
+            for (Insert in : batch) {
+                if (in.error != null) continue;
+                if (in.group) groupMax = Math.max(groupMax, in.id);
+                else dmMax = Math.max(dmMax, in.id);
+            }
+            CommitWatermark.MESSAGES.end(dmToken, dmMax);
+            CommitWatermark.GROUP_MESSAGES.end(groupToken, groupMax);
+        }
+
+        rows.addAndGet(batch.size());
+        batches.incrementAndGet();
+        maxBatchSeen.accumulateAndGet(batch.size(), Math::max);
+        complete(batch);
+    }
+
+    private void write(List<Insert> batch) {
+        try {
+            pool.inTransaction(conn -> {
+                insertBatch(conn, batch, false);
+                insertBatch(conn, batch, true);
+                return null;
+            });
+        } catch (SQLException e) {
+            // 1 dòng hỏng không được kéo theo cả batch → ghi lại từng dòng
+            fallbacks.incrementAndGet();
+            System.err.println("[WRITE-BEHIND] batch of " + batch.size() + " failed, retrying per row: "
+                    + e.getMessage());
+            for (Insert in : batch) {
+                in.id = 0;
+                try {
+                    pool.inTransaction(conn -> {
+                        insertBatch(conn, List.of(in), in.group);
+                        return null;
+                    });
+                } catch (SQLException ex) {
+                    failures.incrementAndGet();
+                    in.error = ex;
+                }
+            }
+        }
+    }
+
+    /** Complete sau commit, theo đúng thứ tự nhận, trên thread callback (batch được copy vì loop tái dùng list). */
+    private void complete(List<Insert> batch) {
+        List<Insert> done = List.copyOf(batch);
+        Runnable task = () -> {
+            for (Insert in : done) {
+                if (in.error != null) in.result.completeExceptionally(in.error);
+                else in.result.complete(in.id);
+            }
+        };
+        try {
+            callbacks.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run(); // đang đóng
+        }
+    }
+
+    private static void insertBatch(Connection conn, List<Insert> batch, boolean group) throws SQLException {
+        List<Insert> rowsOfKind = new ArrayList<>(batch.size());
+        for (Insert in : batch) if (in.group == group) rowsOfKind.add(in);
+        if (rowsOfKind.isEmpty()) return;
+
+        try (PreparedStatement ps = conn.prepareStatement(group ? GROUP_SQL : DM_SQL,
+                Statement.RETURN_GENERATED_KEYS)) {
+            for (Insert in : rowsOfKind) {
+                if (group) {
+                    ps.setInt(1, in.groupId);
+                    ps.setString(2, in.sender);
+                    ps.setString(3, in.body);
+                    if (in.replyTo == null) ps.setNull(4, Types.BIGINT);
+                    else ps.setLong(4, in.replyTo);
+                } else {
+                    ps.setString(1, in.sender);
+                    ps.setString(2, in.recipient);
+                    ps.setString(3, in.body);
+                    if (in.replyTo == null) ps.setNull(4, Types.BIGINT);
+                    else ps.setLong(4, in.replyTo);
+                    ps.setString(5, in.status);
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+
+            int i = 0;
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                while (rs.next() && i < rowsOfKind.size()) {
+                    rowsOfKind.get(i++).id = rs.getLong(1);
+                }
+            }
+            if (i != rowsOfKind.size()) {
+                throw new SQLException("Expected " + rowsOfKind.size() + " generated keys, got " + i);
+            }
+        }
+    }
+
+    /* ================= STATS / CLOSE ================= */
+
+    public String stats() {
+        long b = batches.get();
+        return "WriteBehind{mode=" + durability + ", rows=" + rows.get() + ", batches=" + b
+                + ", avgBatch=" + (b == 0 ? 0 : rows.get() / b) + ", maxBatch=" + maxBatchSeen.get()
+                + ", queued=" + queue.size() + ", fallbacks=" + fallbacks.get() + ", failures=" + failures.get() + "}";
+    }
+
+    /** Ghi nốt những gì đang chờ rồi dừng thread ghi. */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        callbacks.shutdown();
+        try {
+            callbacks.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Insert in;
+        while ((in = queue.poll()) != null) {
+            in.result.completeExceptionally(new SQLException("Message writer is closed"));
+        }
+    }
+
+    private static final class Insert {
+        final boolean group;
+        final int groupId;
+        final String sender;
+        final String recipient;
+        final String body;
+        final Long replyTo;
+        final String status;
+        final CompletableFuture<Long> result = new CompletableFuture<>();
+        long id;
+        Throwable error;
+
+        Insert(boolean group, int groupId, String sender, String recipient, String body, Long replyTo, String status) {
+            this.group = group;
+            this.groupId = groupId;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.body = body;
+            this.replyTo = replyTo;
+            this.status = status;
+        }
+    }
+}
@@ -94,50 +94,71 @@ public class UserDAO {
             u.setAvatarUpdatedAtIso(rs.getString("avatar_updated_at"));
         } catch (SQLException ignore) {}
 
+        try {
+            u.setAvatarHash(rs.getString("avatar_hash"));
+        } catch (SQLException ignore) {}
+
         return u;
     }
 
-    public static List<User> listOthers(int excludeUserId) throws SQLException {
-        String sql =
-            "SELECT id, username, avatar, avatar_mime, online, last_seen, avatar_updated_at " +
-            "FROM users WHERE id <> ? ORDER BY username";
-        try (Connection c = DBConnection.get();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setInt(1, excludeUserId);
-            try (ResultSet rs = ps.executeQuery()) {
-                List<User> list = new ArrayList<>();
-                while (rs.next()) {
-                    User u = mapUserRow(rs, false);
-                    list.add(u);
-                }
-                return list;
-            }
-        }
+    // Danh sách user chỉ kèm hash avatar (không đọc BLOB); ảnh lấy riêng qua getAvatar khi client chưa có.
+    // avatar_hash là cột sinh tự động (migration 003); DB chưa migrate thì băm tại chỗ bằng SHA1(avatar).
+    private static volatile boolean avatarHashColumn = true;
+
+    private static String avatarHashExpr() {
+        return avatarHashColumn ? "avatar_hash" : "SHA1(avatar) AS avatar_hash";
     }
 
-    public static List<User> searchUsers(String keyword, int excludeUserId) throws SQLException {
+    /**
+     * 1 trang danh bạ (trừ {@code excludeUserId}) theo username tăng dần, keyset sau {@code afterUsername}
+     * (null = từ đầu), lọc {@code keyword} nếu có. Chỉ 1 truy vấn cho cả trang, không đọc BLOB avatar;
+     * online không lấy ở đây (server biết ai đang kết nối).
+     * {@code onStatement} nhận statement trước khi chạy để có thể {@link Statement#cancel()} từ thread khác.
+     */
+    public static List<User> listPage(int excludeUserId, String keyword, String afterUsername, int limit,
+                                      java.util.function.Consumer<Statement> onStatement) throws SQLException {
+        boolean filter = keyword != null && !keyword.isBlank();
+        boolean after = afterUsername != null && !afterUsername.isEmpty();
         String sql =
-            "SELECT id, username, avatar, avatar_mime, online, last_seen, avatar_updated_at " +
-            "FROM users " +
-            "WHERE id <> ? AND username LIKE ? ORDER BY username";
+            "SELECT id, username, last_seen, avatar_updated_at, " + avatarHashExpr() + " " +
+            "FROM users WHERE id <> ?" +
+            (filter ? " AND username LIKE ?" : "") +
+            (after ? " AND username > ?" : "") +
+            " ORDER BY username LIMIT ?";
         try (Connection c = DBConnection.get();
              PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setInt(1, excludeUserId);
-            ps.setString(2, "%" + keyword + "%");
+            int i = 1;
+            ps.setInt(i++, excludeUserId);
+            if (filter) ps.setString(i++, "%" + keyword + "%");
+            if (after) ps.setString(i++, afterUsername);
+            ps.setInt(i, Math.max(1, limit));
+            if (onStatement != null) onStatement.accept(ps);
             try (ResultSet rs = ps.executeQuery()) {
                 List<User> list = new ArrayList<>();
                 while (rs.next()) {
-                    User u = mapUserRow(rs, false);
-                    list.add(u);
+                    list.add(mapUserRow(rs, false));
                 }
                 return list;
+            } finally {
+                if (onStatement != null) onStatement.accept(null);
             }
+        } catch (SQLException e) {
+            if (!fallBackFromHashColumn(e)) throw e;
+            return listPage(excludeUserId, keyword, afterUsername, limit, onStatement);
         }
     }
 
+    /** Thiếu cột avatar_hash (42S22) → chuyển hẳn sang SHA1(avatar); true nếu nên chạy lại câu lệnh. */
+    private static boolean fallBackFromHashColumn(SQLException e) {
+        if (!avatarHashColumn || !"42S22".equals(e.getSQLState())) return false;
+        avatarHashColumn = false;
+        System.err.println("[AVATAR] users.avatar_hash missing, hashing in query: " + e.getMessage());
+        return true;
+    }
+
     public static User findByUsername(String username) throws SQLException {
         String sql =
-            "SELECT id, username, password, avatar, avatar_mime, online, last_seen, avatar_updated_at " +
+            "SELECT id, username, password, avatar_mime, online, last_seen, avatar_updated_at, " + avatarHashExpr() + " " +
             "FROM users WHERE username = ?";
         try (Connection c = DBConnection.get();
              PreparedStatement ps = c.prepareStatement(sql)) {
@@ -148,37 +169,31 @@ public class UserDAO {
                 }
                 return null;
             }
+        } catch (SQLException e) {
+            if (!fallBackFromHashColumn(e)) throw e;
+            return findByUsername(username);
         }
     }
 
-    public static void setOnline(int userId, boolean online) throws SQLException {
-        String sql = "UPDATE users SET online=?, last_seen=? WHERE id=?";
-        try (Connection c = DBConnection.get();
-             PreparedStatement ps = c.prepareStatement(sql)) {
-            ps.setInt(1, online ? 1 : 0);
-            ps.setString(2, online ? null : Instant.now().toString());
-            ps.setInt(3, userId);
-            ps.executeUpdate();
-        }
-    }
+    /** 1 thay đổi online/last_seen chờ ghi (PresenceService gom lại ghi theo lô). */
+    public record PresenceUpdate(int userId, boolean online, String lastSeenIso) {}
 
-    public static Map<Integer, Presence> getPresenceOfAll() throws SQLException {
-        String sql = "SELECT id, online, last_seen FROM users";
-        Map<Integer, Presence> map = new HashMap<>();
-        try (Connection c = DBConnection.get();
-             PreparedStatement ps = c.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-            while (rs.next()) {
-                map.put(
-                    rs.getInt("id"),
-                    new Presence(
-                        rs.getInt("online") == 1,
-                        rs.getString("last_seen")
-                    )
-                );
+    /** Ghi nhiều thay đổi presence trong 1 batch / 1 transaction. */
+    public static void setOnlineBatch(Collection<PresenceUpdate> updates) throws SQLException {
+        if (updates == null || updates.isEmpty()) return;
+        String sql = "UPDATE users SET online=?, last_seen=? WHERE id=?";
+        DBConnection.pool().inTransaction(c -> {
+            try (PreparedStatement ps = c.prepareStatement(sql)) {
+                for (PresenceUpdate u : updates) {
+                    ps.setInt(1, u.online() ? 1 : 0);
+                    ps.setString(2, u.online() ? null : u.lastSeenIso());
+                    ps.setInt(3, u.userId());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
             }
-        }
-        return map;
+            return null;
+        });
     }
 
     public static class Presence {
@@ -206,14 +221,18 @@ public class UserDAO {
         return null;
     }
 
-    public static byte[] getAvatarById(int userId) throws SQLException {
-        String sql = "SELECT avatar FROM users WHERE id = ?";
+    /** Ảnh gốc + mime của 1 user (null nếu không có). */
+    public record Avatar(byte[] data, String mime) {}
+
+    public static Avatar getAvatar(int userId) throws SQLException {
+        String sql = "SELECT avatar, avatar_mime FROM users WHERE id = ?";
         try (Connection c = DBConnection.get();
              PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setInt(1, userId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    return rs.getBytes(1);
+                    byte[] data = rs.getBytes(1);
+                    if (data != null && data.length > 0) return new Avatar(data, rs.getString(2));
                 }
             }
         }
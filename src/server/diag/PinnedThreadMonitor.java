@@ -0,0 +1,73 @@
+package server.diag;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Theo dõi sự kiện JFR {@code jdk.VirtualThreadPinned}: virtual thread bị "ghim" vào carrier
+ * (thường do block IO bên trong synchronized). In ra vài frame đầu của stack để tìm chỗ cần sửa.
+ * Singleton, chỉ bật khi server chạy chế độ virtual thread.
+ */
+public final class PinnedThreadMonitor {
+
+    private static final PinnedThreadMonitor INSTANCE = new PinnedThreadMonitor();
+    public static PinnedThreadMonitor getInstance() { return INSTANCE; }
+
+    private static final int MAX_FRAMES = 6;
+
+    private final AtomicLong pinnedEvents = new AtomicLong();
+    private final AtomicLong pinnedNanos = new AtomicLong();
+    private volatile RecordingStream stream;
+
+    private PinnedThreadMonitor() {}
+
+    /** Bật stream JFR (không chặn). Chỉ báo các lần ghim lâu hơn {@code threshold}. */
+    public synchronized void start(Duration threshold) {
+        if (stream != null) return;
+        try {
+            RecordingStream rs = new RecordingStream();
+            rs.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+            rs.onEvent("jdk.VirtualThreadPinned", this::onPinned);
+            rs.startAsync();
+            stream = rs;
+            System.out.println("[PINNING] monitor started (threshold=" + threshold.toMillis() + "ms)");
+        } catch (Exception | LinkageError e) {
+            System.err.println("[PINNING] JFR not available: " + e.getMessage());
+        }
+    }
+
+    public synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    public long pinnedEvents() { return pinnedEvents.get(); }
+    public long pinnedMillis() { return pinnedNanos.get() / 1_000_000; }
+
+    private void onPinned(RecordedEvent e) {
+        pinnedEvents.incrementAndGet();
+        pinnedNanos.addAndGet(e.getDuration().toNanos());
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("[PINNING] virtual thread pinned ").append(e.getDuration().toMillis()).append("ms");
+        RecordedStackTrace st = e.getStackTrace();
+        if (st != null) {
+            List<RecordedFrame> frames = st.getFrames();
+            for (int i = 0; i < Math.min(MAX_FRAMES, frames.size()); i++) {
+                RecordedFrame fr = frames.get(i);
+                sb.append("\n    at ").append(fr.getMethod().getType().getName())
+                  .append('.').append(fr.getMethod().getName())
+                  .append(':').append(fr.getLineNumber());
+            }
+        }
+        System.err.println(sb);
+    }
+}
@@ -0,0 +1,13 @@
+package server.net;
+
+import common.Frame;
+
+/** Logic xử lý của 1 kết nối, tách khỏi transport (blocking hoặc NIO). */
+public interface ConnectionHandler {
+
+    /** Xử lý 1 frame đã decode. Các frame của cùng kết nối được gọi tuần tự. */
+    void onFrame(Frame f);
+
+    /** Kết nối đã đóng (EOF, lỗi IO, hoặc server chủ động đóng). Gọi đúng 1 lần. */
+    void onClosed();
+}
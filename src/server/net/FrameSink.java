@@ -0,0 +1,27 @@
+package server.net;
+
+import common.Frame;
+
+/**
+ * Đầu ra của 1 kết nối. ClientHandler chỉ làm việc với interface này nên
+ * không cần biết bên dưới là socket blocking (FrameWriter) hay NIO (NioConnection).
+ */
+public interface FrameSink {
+
+    /** Enqueue không chặn. false nếu hàng đợi đầy hoặc kết nối đã đóng. */
+    boolean offer(Frame f);
+
+    /** Enqueue, chặn tới khi có chỗ (backpressure). false nếu kết nối đã đóng. */
+    boolean put(Frame f) throws InterruptedException;
+
+    /** Số frame đang chờ ghi. */
+    int depth();
+
+    boolean isClosed();
+
+    /** Đóng bình thường: không nhận thêm, ghi nốt frame đang chờ (ERROR/ACK cuối) trong 1 hạn ngắn. */
+    void close();
+
+    /** Đóng ngay, bỏ frame đang chờ (slow consumer, lỗi ghi, tắt server). */
+    void abort();
+}
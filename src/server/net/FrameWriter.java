@@ -0,0 +1,139 @@
+package server.net;
+
+import common.Frame;
+import common.FrameCodec;
+import common.FrameScheduler;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hàng đợi gửi đi (bounded) cho 1 kết nối + 1 thread writer duy nhất.
+ * - Các thread khác chỉ enqueue, không bao giờ đụng vào socket → không interleave frame.
+ * - Hàng đợi là {@link FrameScheduler}: tín hiệu gọi > tin nhắn > chunk file/audio. Writer gom các frame
+ *   nhỏ đang chờ, ghi liền rồi flush 1 lần; mỗi lô chứa tối đa 1 chunk để tin nhắn tới sau chỉ phải
+ *   chờ 1 chunk chứ không phải cả file.
+ * - Frame có payload từ file ({@link Frame#file}) ghi thẳng file → stream, không nạp cả chunk vào heap.
+ */
+public final class FrameWriter implements FrameSink {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int MAX_BATCH = 64;
+    /** close() chờ writer ghi nốt hàng đợi tối đa chừng này, quá hạn thì bỏ phần còn lại. */
+    static final long DRAIN_TIMEOUT_MS = 500;
+
+    private final DataOutputStream out;
+    /** Chỉ thread writer dùng → buffer encode tái sử dụng cho mọi frame. */
+    private final FrameCodec codec = new FrameCodec();
+    private final FrameScheduler queue;
+    private final Thread thread;
+    private final Runnable onFailure;
+    private volatile boolean closed;
+
+    private final AtomicLong framesWritten = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** @param bulkBytesPerSec phần băng thông cho chunk file/audio (0 = không giới hạn) */
+    public FrameWriter(String name, DataOutputStream out, int capacity, long bulkBytesPerSec,
+                       ThreadFactory threadFactory, Runnable onFailure) {
+        this.out = out;
+        this.queue = new FrameScheduler(capacity, bulkBytesPerSec);
+        this.onFailure = onFailure;
+        this.thread = threadFactory.newThread(this::loop);
+        this.thread.setName(name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Enqueue không chặn (dùng cho fan-out từ thread khác). false nếu đầy hoặc đã đóng. */
+    @Override
+    public boolean offer(Frame f) {
+        if (closed || f == null) return false;
+        boolean ok = queue.offer(f);
+        if (!ok) rejected.incrementAndGet();
+        return ok;
+    }
+
+    /** Enqueue có chặn (dùng cho chính thread đọc của kết nối → backpressure tự nhiên). */
+    @Override
+    public boolean put(Frame f) throws InterruptedException {
+        if (closed || f == null) return false;
+        return queue.put(f);
+    }
+
+    @Override
+    public int depth() { return queue.size(); }
+    public long framesWritten() { return framesWritten.get(); }
+    public long flushes() { return flushes.get(); }
+    public long rejected() { return rejected.get(); }
+    public String schedulerStats() { return queue.stats(); }
+    @Override
+    public boolean isClosed() { return closed; }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.finish(); // writer lấy nốt rồi tự thoát khi hàng rỗng
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(DRAIN_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drop(); // quá hạn (client không đọc) → bỏ phần còn lại; caller đóng socket sau đó
+    }
+
+    @Override
+    public void abort() {
+        closed = true;
+        thread.interrupt();
+        drop();
+    }
+
+    /** Bỏ các frame còn chờ, đóng file của các lần gửi file dở. */
+    private void drop() {
+        queue.close(Frame::releaseFile);
+    }
+
+    private void loop() {
+        List<Frame> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            // closed chỉ chặn enqueue; vòng lặp dừng khi take() trả null (đã drop, hoặc finish và hết frame)
+            while (true) {
+                Frame first = queue.take();
+                if (first == null) break;
+                batch.add(first);
+                Frame f;
+                while (batch.size() < MAX_BATCH && (f = queue.poll(false)) != null) batch.add(f);
+                for (Frame b : batch) {
+                    codec.write(out, b);
+                    b.releaseFile();
+                }
+                out.flush();
+                framesWritten.addAndGet(batch.size());
+                flushes.incrementAndGet();
+                batch.clear();
+            }
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("[SERVER] writer " + thread.getName() + " failed: " + e.getMessage());
+                closed = true;
+                drop();
+                if (onFailure != null) onFailure.run();
+            }
+        } finally {
+            for (Frame f : batch) f.releaseFile(); // lô đang ghi dở
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package server.net;
+
+import common.Frame;
+import common.FrameCodec;
+import common.FrameIO;
+import common.FrameScheduler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 1 kết nối trong NioServer.
+ * - Đọc: gom byte vào readBuf, cắt frame theo length-prefix, đẩy sang SerialExecutor của kết nối.
+ * - Ghi: frame xếp hàng nguyên dạng; event loop encode thẳng vào 1 direct buffer mượn từ pool của loop
+ *   (trả lại khi đã ghi hết) → không cấp phát buffer cho từng frame.
+ * - Frame có payload từ file ({@link Frame#file}): chỉ header vào buffer, payload đi thẳng
+ *   file → socket bằng {@link java.nio.channels.FileChannel#transferTo} (sendfile), không qua heap.
+ * - Thứ tự gửi do {@link FrameScheduler} quyết định (tín hiệu gọi > tin nhắn > chunk); buffer chỉ nhận
+ *   tối đa 1 chunk mỗi lần fill, nên frame ưu tiên tới sau chỉ chờ phần đang nằm trong socket.
+ *   Chunk bị giới hạn băng thông thì hẹn giờ đánh thức loop thay vì quay vòng.
+ */
+final class NioConnection implements FrameSink {
+
+    private static final int INITIAL_READ_BUF = 16 * 1024;
+    /** Quá số frame inbound chưa xử lý này thì tạm ngừng đọc socket. */
+    private static final int INBOUND_HIGH_WATER = 256;
+    private static final int INBOUND_LOW_WATER = 64;
+
+    /** Đánh thức các kết nối đang chờ token BULK (chỉ execute sang event loop, không làm IO). */
+    private static final ScheduledExecutorService BULK_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "nio-bulk-timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final SerialExecutor inbound;
+    private final String remote;
+    private SelectionKey key;
+    private ConnectionHandler handler;
+
+    private ByteBuffer readBuf = ByteBuffer.allocate(INITIAL_READ_BUF);
+    private volatile boolean readPaused;
+
+    private final FrameScheduler outQ;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean wakeScheduled = new AtomicBoolean();
+    /** Chỉ event loop đụng tới: buffer đang mượn (chế độ ghi vào), frame quá lớn cho buffer,
+     *  và frame đã lấy khỏi hàng nhưng chưa vừa buffer (ghi đầu tiên ở lần fill sau). */
+    private ByteBuffer wbuf;
+    private ByteBuffer oversized;
+    private Frame next;
+    /** Frame file đang chuyển dở (header đã vào wbuf) và vị trí/độ dài còn lại. */
+    private Frame region;
+    private long regionPos;
+    private long regionRem;
+
+    /** closing: không nhận thêm frame (close() bình thường, còn đang ghi nốt); closed: đã đóng hẳn channel. */
+    private final AtomicBoolean closing = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(SocketChannel channel, NioServer.EventLoop loop, SerialExecutor inbound,
+                  int outboundCapacity, long bulkBytesPerSec, String remote) {
+        this.channel = channel;
+        this.loop = loop;
+        this.inbound = inbound;
+        this.outQ = new FrameScheduler(outboundCapacity, bulkBytesPerSec);
+        this.remote = remote;
+    }
+
+    void bind(SelectionKey key, ConnectionHandler handler) {
+        this.key = key;
+        this.handler = handler;
+    }
+
+    String remote() { return remote; }
+
+    /* ================= READ (event loop thread) ================= */
+
+    void onReadable() {
+        try {
+            if (!readBuf.hasRemaining()) grow(readBuf.capacity() * 2);
+            int n = channel.read(readBuf);
+            if (n < 0) { abort(); return; }
+
+            readBuf.flip();
+            while (true) {
+                if (readBuf.remaining() >= 4) {
+                    int need = 4 + readBuf.getInt(readBuf.position());
+                    if (need > readBuf.capacity() && need <= 4 + FrameIO.MAX_TOTAL_LEN) {
+                        readBuf.compact();
+                        grow(need);
+                        readBuf.flip();
+                    }
+                }
+                Frame f = FrameIO.tryDecode(readBuf);
+                if (f == null) break;
+                dispatch(f);
+            }
+            readBuf.compact();
+
+            if (!readPaused && inbound.pending() > INBOUND_HIGH_WATER) {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[NIO] read failed " + remote + ": " + e.getMessage());
+            abort();
+        }
+    }
+
+    private void grow(int minCapacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(minCapacity, readBuf.capacity()));
+        readBuf.flip();
+        bigger.put(readBuf);
+        readBuf = bigger;
+    }
+
+    private void dispatch(Frame f) {
+        inbound.execute(() -> {
+            if (closing.get()) return;
+            handler.onFrame(f);
+            if (readPaused && inbound.pending() <= INBOUND_LOW_WATER) loop.execute(this::resumeRead);
+        });
+    }
+
+    private void resumeRead() {
+        if (!readPaused || !key.isValid()) return;
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /* ================= WRITE ================= */
+
+    @Override
+    public boolean offer(Frame f) {
+        if (closing.get() || f == null) return false;
+        return outQ.offer(f) && scheduleFlush();
+    }
+
+    @Override
+    public boolean put(Frame f) throws InterruptedException {
+        if (closing.get() || f == null) return false;
+        return outQ.put(f) && scheduleFlush();
+    }
+
+    private boolean scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::onWritable);
+        }
+        return true;
+    }
+
+    /** Chạy trên event loop: ghi càng nhiều càng tốt, còn dư thì chờ OP_WRITE. */
+    void onWritable() {
+        if (closed.get() || key == null || !key.isValid()) return;
+        try {
+            while (true) {
+                if (wbuf == null) wbuf = loop.acquireWriteBuffer();
+                int filled = (oversized == null && region == null) ? fill() : 0;
+
+                if (wbuf.position() > 0) {
+                    wbuf.flip();
+                    channel.write(wbuf);
+                    wbuf.compact();
+                    if (wbuf.position() > 0) { waitWritable(); return; }
+                }
+                if (oversized != null) {
+                    channel.write(oversized);
+                    if (oversized.hasRemaining()) { waitWritable(); return; }
+                    oversized = null;
+                    continue;
+                }
+                if (region != null) {
+                    if (!transferRegion()) { waitWritable(); return; }
+                    continue;
+                }
+                if (filled == 0 && next == null) break;    // hết frame, hoặc chỉ còn chunk đang bị giới hạn
+            }
+            // đã ghi hết → trả buffer cho pool
+            loop.releaseWriteBuffer(wbuf);
+            wbuf = null;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            flushScheduled.set(false);
+            if (next == null && outQ.isEmpty()) {
+                if (closing.get()) abort(); // close() bình thường: đã ghi nốt
+                return;
+            }
+            long delay = outQ.bulkDelayNanos();
+            if (delay > 0) {
+                // frame mới (enqueue) vẫn tự lên lịch ghi; timer chỉ cho chunk đang chờ token
+                if (wakeScheduled.compareAndSet(false, true)) {
+                    BULK_TIMER.schedule(() -> {
+                        wakeScheduled.set(false);
+                        if (!closed.get()) scheduleFlush();
+                    }, delay, TimeUnit.NANOSECONDS);
+                }
+            } else {
+                scheduleFlush();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[NIO] write failed " + remote + ": " + e.getMessage());
+            abort();
+        }
+    }
+
+    /**
+     * Encode các frame đang chờ (theo thứ tự của scheduler) vào wbuf tới khi đầy; frame lớn hơn cả
+     * buffer thì encode riêng; dừng sau chunk đầu tiên (frame file: sau header của nó, payload chỉ
+     * chuyển sau khi wbuf đã ghi hết).
+     * @return số frame đã lấy ra
+     */
+    private int fill() throws IOException {
+        int done = 0;
+        while (true) {
+            Frame f = (next != null) ? next : outQ.poll();
+            if (f == null) break;
+            next = null;
+            if (f.file != null) {
+                if (FrameCodec.maxEncodedLength(f) - f.binLength() > wbuf.remaining()) { next = f; break; }
+                FrameCodec.encodeHeaderTo(f, wbuf);
+                region = f;
+                regionPos = f.fileOffset;
+                regionRem = f.binLength();
+                done++;
+                break;
+            }
+            // cận trên đủ chỗ thì khỏi tính độ dài UTF-8 chính xác
+            long need = FrameCodec.maxEncodedLength(f);
+            if (need > wbuf.remaining()) need = FrameCodec.encodedLength(f);
+            if (need > wbuf.capacity()) {
+                if (wbuf.position() > 0) { next = f; break; }   // ghi phần đã có trước, giữ thứ tự
+                oversized = FrameIO.encode(f);
+                done++;
+                break;
+            } else if (need > wbuf.remaining()) {
+                next = f;
+                break;
+            }
+            FrameCodec.encodeTo(f, wbuf);
+            done++;
+            if (FrameScheduler.laneOf(f) == FrameScheduler.Lane.BULK) break;
+        }
+        return done;
+    }
+
+    /** @return true nếu đã chuyển hết payload của {@link #region}, false nếu socket đầy. */
+    private boolean transferRegion() throws IOException {
+        while (regionRem > 0) {
+            long n = region.file.transferTo(regionPos, regionRem, channel);
+            if (n <= 0) {
+                if (regionPos >= region.file.size()) throw new IOException("File truncated at " + regionPos);
+                return false;
+            }
+            regionPos += n;
+            regionRem -= n;
+        }
+        region.releaseFile();
+        region = null;
+        return true;
+    }
+
+    private void waitWritable() {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public int depth() { return outQ.size() + (next != null ? 1 : 0); }
+
+    @Override
+    public boolean isClosed() { return closing.get(); }
+
+    /** Ghi nốt hàng đợi trên event loop rồi mới đóng channel; quá {@link FrameWriter#DRAIN_TIMEOUT_MS} thì bỏ. */
+    @Override
+    public void close() {
+        if (!closing.compareAndSet(false, true)) return;
+        outQ.finish();
+        scheduleFlush(); // hàng rỗng → onWritable đóng ngay
+        BULK_TIMER.schedule(this::abort, FrameWriter.DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void abort() {
+        closing.set(true);
+        if (!closed.compareAndSet(false, true)) return;
+        try { if (key != null) key.cancel(); } catch (Exception ignored) {}
+        try { channel.close(); } catch (IOException ignored) {}
+        outQ.close(Frame::releaseFile);
+        // trả buffer trên thread của loop (pool và wbuf chỉ loop được đụng)
+        loop.execute(() -> {
+            loop.releaseWriteBuffer(wbuf);
+            wbuf = null;
+            oversized = null;
+            if (next != null) next.releaseFile();
+            next = null;
+            if (region != null) region.releaseFile();
+            region = null;
+        });
+        // onClosed chạy sau các frame đã nhận → cleanup đúng thứ tự như mô hình cũ
+        if (handler != null) inbound.execute(handler::onClosed);
+    }
+}
@@ -0,0 +1,173 @@
+package server.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Transport NIO: 1 thread accept + N event loop (Selector) cho toàn bộ kết nối.
+ * Logic nghiệp vụ (JDBC, BCrypt...) vẫn chạy trên {@code workers}, mỗi kết nối tuần tự
+ * qua SerialExecutor; event loop chỉ làm IO nên không bao giờ bị chặn.
+ */
+public final class NioServer {
+
+    private final int port;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final Function<FrameSink, ConnectionHandler> handlerFactory;
+    private final int outboundCapacity;
+    private final long bulkBytesPerSec;
+    private volatile boolean running = true;
+    private int next;
+
+    public NioServer(int port, int ioThreads, ExecutorService workers, int outboundCapacity,
+                     long bulkBytesPerSec, Function<FrameSink, ConnectionHandler> handlerFactory) throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.outboundCapacity = outboundCapacity;
+        this.bulkBytesPerSec = bulkBytesPerSec;
+        this.handlerFactory = handlerFactory;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i);
+        }
+    }
+
+    /** Chạy vòng accept trên thread hiện tại cho tới khi {@link #stop()}. */
+    public void serve() throws IOException {
+        for (EventLoop l : loops) l.start();
+        try (ServerSocketChannel ssc = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            System.out.println("✅ Server (NIO, " + loops.length + " loops) started at port " + port);
+
+            while (running) {
+                acceptSelector.select(500);
+                acceptSelector.selectedKeys().clear();
+                SocketChannel ch;
+                while ((ch = ssc.accept()) != null) {
+                    accept(ch);
+                }
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (EventLoop l : loops) l.shutdown();
+    }
+
+    private void accept(SocketChannel ch) {
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            String remote = String.valueOf(ch.getRemoteAddress());
+            System.out.println("➡ Client connected (NIO): " + remote);
+
+            EventLoop loop = loops[next++ % loops.length];
+            NioConnection conn = new NioConnection(ch, loop, new SerialExecutor(workers),
+                    outboundCapacity, bulkBytesPerSec, remote);
+            ConnectionHandler h = handlerFactory.apply(conn);
+            loop.execute(() -> {
+                try {
+                    SelectionKey key = ch.register(loop.selector, SelectionKey.OP_READ, conn);
+                    conn.bind(key, h);
+                } catch (IOException e) {
+                    conn.abort();
+                }
+            });
+        } catch (IOException e) {
+            try { ch.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /* ================= EVENT LOOP ================= */
+
+    static final class EventLoop implements Runnable {
+        /** Đủ cho 1 FILE_CHUNK (64KB) + header; frame lớn hơn được encode riêng. */
+        private static final int WRITE_BUF_SIZE = 128 * 1024;
+        private static final int MAX_POOLED_BUFFERS = 64;
+
+        final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean open = true;
+        /** Direct buffer cho ghi, chỉ dùng trên thread của loop. */
+        private final ArrayDeque<ByteBuffer> writeBuffers = new ArrayDeque<>();
+
+        EventLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() { thread.start(); }
+
+        /** Chạy task trên thread của loop (mọi thao tác với SelectionKey phải đi qua đây). */
+        void execute(Runnable r) {
+            tasks.add(r);
+            selector.wakeup();
+        }
+
+        ByteBuffer acquireWriteBuffer() {
+            ByteBuffer b = writeBuffers.pollFirst();
+            return b != null ? b : ByteBuffer.allocateDirect(WRITE_BUF_SIZE);
+        }
+
+        void releaseWriteBuffer(ByteBuffer b) {
+            if (b == null) return;
+            b.clear();
+            if (writeBuffers.size() < MAX_POOLED_BUFFERS) writeBuffers.addFirst(b);
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select();
+                    Runnable r;
+                    while ((r = tasks.poll()) != null) {
+                        try { r.run(); } catch (RuntimeException e) {
+                            System.err.println("[NIO] loop task failed: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        NioConnection c = (NioConnection) k.attachment();
+                        if (!k.isValid()) continue;
+                        if (k.isReadable()) c.onReadable();
+                        if (k.isValid() && k.isWritable()) c.onWritable();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("[NIO] selector failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey k : selector.keys()) {
+                    if (k.attachment() instanceof NioConnection c) c.abort();
+                }
+                try { selector.close(); } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package server.net;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chạy task của 1 kết nối lần lượt (FIFO, không chồng nhau) trên executor dùng chung.
+ * Giữ đúng thứ tự frame như mô hình thread-per-connection nhưng không giữ thread khi rảnh.
+ */
+final class SerialExecutor implements Executor {
+    private final Executor delegate;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        pending.incrementAndGet();
+        tasks.add(task);
+        schedule();
+    }
+
+    int pending() { return pending.get(); }
+
+    private void schedule() {
+        if (running.compareAndSet(false, true)) {
+            delegate.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable r;
+            while ((r = tasks.poll()) != null) {
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    System.err.println("[SERVER] task failed: " + t);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        } finally {
+            running.set(false);
+            if (!tasks.isEmpty()) schedule();
+        }
+    }
+}
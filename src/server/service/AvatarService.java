@@ -0,0 +1,96 @@
+package server.service;
+
+import server.dao.UserDAO;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phục vụ AVATAR_GET theo hash nội dung (SHA-1 hex, trùng với {@code users.avatar_hash}).
+ * - USER_LIST / login chỉ gửi hash; client đã có ảnh cùng hash thì không xin lại.
+ * - LRU các avatar vừa phục vụ, giới hạn theo tổng độ dài Base64 đã mã hoá sẵn:
+ *   cả phòng cùng mở app sau khi 1 người đổi ảnh chỉ đọc BLOB + mã hoá 1 lần.
+ * Singleton, an toàn đa luồng (khoá bằng chính map).
+ */
+public final class AvatarService {
+
+    private static final AvatarService INSTANCE = new AvatarService();
+    public static AvatarService getInstance() { return INSTANCE; }
+
+    private static final long MAX_CACHE_CHARS = 8L * 1024 * 1024;
+
+    /** Avatar đã mã hoá sẵn để gửi; {@code hash} là hash của bản hiện tại trong DB. */
+    public record Entry(String hash, String mime, String base64) {}
+
+    // hash → entry (access-order)
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cacheChars;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    private AvatarService() {}
+
+    /**
+     * Avatar của {@code userId}; {@code wantHash} khớp cache thì trả luôn, không đụng DB.
+     * Hash cũ (user đã đổi ảnh) → đọc bản mới từ DB, entry trả về mang hash mới.
+     * @return null nếu user không có avatar
+     */
+    public Entry fetch(int userId, String wantHash) throws SQLException {
+        if (wantHash != null && !wantHash.isBlank()) {
+            synchronized (cache) {
+                Entry e = cache.get(wantHash);
+                if (e != null) {
+                    hits.incrementAndGet();
+                    return e;
+                }
+            }
+        }
+
+        UserDAO.Avatar a = UserDAO.getAvatar(userId);
+        if (a == null) return null;
+        loads.incrementAndGet();
+
+        Entry e = new Entry(sha1(a.data()), a.mime(), Base64.getEncoder().encodeToString(a.data()));
+        put(e);
+        return e;
+    }
+
+    private void put(Entry e) {
+        if (e.base64().length() > MAX_CACHE_CHARS / 4) return; // ảnh quá lớn: không giữ, tránh đẩy hết cache
+        synchronized (cache) {
+            Entry old = cache.put(e.hash(), e);
+            if (old != null) cacheChars -= old.base64().length();
+            cacheChars += e.base64().length();
+            var it = cache.values().iterator();
+            while (cacheChars > MAX_CACHE_CHARS && it.hasNext()) {
+                cacheChars -= it.next().base64().length();
+                it.remove();
+            }
+        }
+    }
+
+    public static String sha1(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String stats() {
+        int size;
+        long chars;
+        synchronized (cache) {
+            size = cache.size();
+            chars = cacheChars;
+        }
+        return "Avatar{hits=" + hits.get() + ", loads=" + loads.get()
+                + ", cached=" + size + ", cachedBytes=" + chars + "}";
+    }
+}
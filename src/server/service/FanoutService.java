@@ -0,0 +1,207 @@
+package server.service;
+
+import common.Frame;
+import common.FrameCodec;
+import server.ClientHandler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Phát 1 frame tới nhiều thành viên (tin nhắn / sự kiện nhóm).
+ * - Frame được encode 1 lần ({@link FrameCodec#preEncode}) và cùng 1 instance được xếp vào hàng đợi
+ *   của mọi người nhận: writer chỉ copy byte, không mã hoá lại N lần.
+ * - Người nhận chia theo hash(username) vào {@code lanes} worker (mỗi lane 1 thread): thread xử lý
+ *   của người gửi không bị giữ theo kích thước nhóm, và 1 người nhận luôn ở cùng 1 lane nên các
+ *   frame tới họ vẫn đúng thứ tự phát.
+ * - Enqueue không chặn ({@link ClientHandler#sendFrame} từ thread khác = offer): 1 người nhận chậm
+ *   chỉ làm rơi chính kết nối đó, không làm chậm cả nhóm.
+ * - Người gọi ACK người gửi sau khi lưu DB, trước khi phát; thời gian phát (tới lúc xếp hàng xong
+ *   cho người cuối) ghi theo nhóm kích thước, {@link #stats()} in p50/p95/p99.
+ * Singleton, ServerMain gọi {@link #start} lúc khởi động (chưa start thì phát trên thread gọi).
+ */
+public final class FanoutService {
+
+    /** Cận trên (số thành viên) của từng nhóm kích thước khi thống kê độ trễ. */
+    private static final int[] SIZE_BUCKETS = {10, 100, 1_000, Integer.MAX_VALUE};
+    private static final String[] SIZE_LABELS = {"1-10", "11-100", "101-1000", "1000+"};
+
+    private static final FanoutService INSTANCE = new FanoutService();
+    public static FanoutService getInstance() { return INSTANCE; }
+
+    private volatile ExecutorService[] lanes;
+
+    private final LatencyWindow[] latency = new LatencyWindow[SIZE_BUCKETS.length];
+
+    // thống kê
+    private final AtomicLong fanouts = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong offline = new AtomicLong();
+    private final AtomicLong tasks = new AtomicLong();
+
+    private FanoutService() {
+        for (int i = 0; i < latency.length; i++) latency[i] = new LatencyWindow(1024);
+    }
+
+    public synchronized void start(int threads) {
+        if (lanes != null) return;
+        ExecutorService[] l = new ExecutorService[Math.max(1, threads)];
+        for (int i = 0; i < l.length; i++) {
+            String name = "fanout-" + i;
+            l[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        lanes = l;
+    }
+
+    /** Dừng nhận việc mới; các lô đã xếp vẫn được phát nốt. */
+    public synchronized void stop() {
+        ExecutorService[] l = lanes;
+        lanes = null;
+        if (l != null) for (ExecutorService e : l) e.shutdown();
+    }
+
+    /**
+     * Gửi {@code f} tới mọi {@code members} đang online trừ {@code exclude}.
+     * {@code f} bị đóng băng (encode sẵn) → người gọi không được sửa nó sau lời gọi này.
+     */
+    public void deliver(Frame f, List<String> members, String exclude, Map<String, ClientHandler> online) {
+        if (f == null || members == null || members.isEmpty()) return;
+        long start = System.nanoTime();
+        fanouts.incrementAndGet();
+        try {
+            FrameCodec.preEncode(f);
+        } catch (IOException e) {
+            // frame quá lớn: writer của từng kết nối sẽ báo lỗi như frame thường
+            System.err.println("[FANOUT] pre-encode failed: " + e.getMessage());
+        }
+
+        int n = members.size();
+        ExecutorService[] l = lanes;
+        if (l == null) {
+            send(f, members, exclude, online);
+            record(n, start);
+            return;
+        }
+
+        // chia người nhận theo lane; lane trống thì bỏ
+        List<List<String>> parts = new ArrayList<>(Collections.nCopies(l.length, (List<String>) null));
+        int used = 0;
+        for (String m : members) {
+            if (m == null || m.equals(exclude)) continue;
+            int i = Math.floorMod(m.hashCode(), l.length);
+            if (parts.get(i) == null) {
+                parts.set(i, new ArrayList<>(n / l.length + 1));
+                used++;
+            }
+            parts.get(i).add(m);
+        }
+        if (used == 0) return;
+
+        AtomicInteger remaining = new AtomicInteger(used);
+        for (int i = 0; i < l.length; i++) {
+            List<String> part = parts.get(i);
+            if (part == null) continue;
+            Runnable task = () -> {
+                try {
+                    send(f, part, null, online);
+                } finally {
+                    if (remaining.decrementAndGet() == 0) record(n, start);
+                }
+            };
+            tasks.incrementAndGet();
+            try {
+                l[i].execute(task);
+            } catch (RejectedExecutionException e) { // đang tắt server
+                task.run();
+            }
+        }
+    }
+
+    private void send(Frame f, List<String> part, String exclude, Map<String, ClientHandler> online) {
+        int sent = 0, missing = 0;
+        for (String m : part) {
+            if (m == null || m.equals(exclude)) continue;
+            ClientHandler target = online.get(m);
+            if (target == null) {
+                missing++;
+                continue;
+            }
+            target.sendFrame(f);
+            sent++;
+        }
+        delivered.addAndGet(sent);
+        offline.addAndGet(missing);
+    }
+
+    private void record(int members, long startNanos) {
+        long us = (System.nanoTime() - startNanos) / 1_000;
+        int i = 0;
+        while (members > SIZE_BUCKETS[i]) i++;
+        latency[i].add(us);
+    }
+
+    public String stats() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("Fanout{fanouts=").append(fanouts.get())
+          .append(", delivered=").append(delivered.get())
+          .append(", offline=").append(offline.get())
+          .append(", tasks=").append(tasks.get());
+        for (int i = 0; i < latency.length; i++) {
+            long[] p = latency[i].percentiles(50, 95, 99);
+            if (p == null) continue;
+            sb.append(", ").append(SIZE_LABELS[i]).append("(n=").append(latency[i].count())
+              .append(")=p50 ").append(p[0]).append("us/p95 ").append(p[1])
+              .append("us/p99 ").append(p[2]).append("us");
+        }
+        return sb.append('}').toString();
+    }
+
+    /** {@code capacity} mẫu gần nhất (µs); percentile tính lúc in thống kê. */
+    private static final class LatencyWindow {
+        private final long[] samples;
+        private int next;
+        private long count;
+
+        LatencyWindow(int capacity) {
+            samples = new long[capacity];
+        }
+
+        synchronized void add(long us) {
+            samples[next] = us;
+            next = (next + 1) % samples.length;
+            count++;
+        }
+
+        synchronized long count() { return count; }
+
+        /** null nếu chưa có mẫu. */
+        long[] percentiles(int... ps) {
+            long[] copy;
+            synchronized (this) {
+                int n = (int) Math.min(count, samples.length);
+                if (n == 0) return null;
+                copy = Arrays.copyOf(samples, n);
+            }
+            Arrays.sort(copy);
+            long[] out = new long[ps.length];
+            for (int i = 0; i < ps.length; i++) {
+                int idx = (int) Math.ceil(ps[i] / 100.0 * copy.length) - 1;
+                out[i] = copy[Math.max(0, Math.min(copy.length - 1, idx))];
+            }
+            return out;
+        }
+    }
+}
@@ -1,29 +1,28 @@
 package server.service;
 
 import common.FileResource;
+import server.dao.ConnectionPool;
 import server.dao.MessageDao;
 import server.dao.FileDao;
 
 import java.io.File;
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
 
 public class MessageService {
-    private final Connection conn;
+    private final ConnectionPool pool;
     private final MessageDao messageDao;
     private final FileDao fileDao;
 
-    public MessageService(Connection conn) {
-        this.conn = conn;
-        this.messageDao = new MessageDao(conn);
-        this.fileDao    = new FileDao(conn);
+    public MessageService(ConnectionPool pool) {
+        this.pool = pool;
+        this.messageDao = new MessageDao(pool);
+        this.fileDao    = new FileDao(pool);
     }
 
     public boolean deleteMessageCascade(long messageId, String requester) throws SQLException {
-        boolean oldAutoCommit = conn.getAutoCommit();
-        conn.setAutoCommit(false);
-        try {
+        // các DAO bên trong dùng chung kết nối của transaction này
+        return pool.inTransaction(conn -> {
             String sender = messageDao.getSenderById(messageId);
             if (sender == null || !sender.equals(requester)) {
                 conn.rollback();
@@ -51,18 +50,8 @@ public class MessageService {
             fileDao.deleteByMessageId(messageId);
             boolean ok = messageDao.deleteById(messageId, requester);
 
-            if (ok) {
-                conn.commit();
-                return true;
-            } else {
-                conn.rollback();
-                return false;
-            }
-        } catch (SQLException e) {
-            conn.rollback();
-            throw e;
-        } finally {
-            try { conn.setAutoCommit(oldAutoCommit); } catch (Exception ignore) {}
-        }
+            if (!ok) conn.rollback();
+            return ok;
+        });
     }
 }
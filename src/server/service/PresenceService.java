@@ -0,0 +1,234 @@
+package server.service;
+
+import common.Frame;
+import common.Json;
+import common.MessageType;
+import server.ClientHandler;
+import server.dao.UserDAO;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Nguồn duy nhất về presence trên server.
+ * - {@link #sessions()}: username → handler của phiên đang đăng nhập; đồng thời là bảng định tuyến
+ *   cho DM / group / CallRouter (thay cho map online ở ServerMain và map riêng trong CallRouter).
+ * - Client đăng ký (PRESENCE_SUB) đúng những user nó đang hiển thị; đổi trạng thái chỉ gửi cho
+ *   người đăng ký, nên chi phí theo số người quan tâm chứ không theo tổng số người online.
+ * - Thay đổi gom theo cửa sổ {@code window}: login/logout liên tiếp chỉ phát trạng thái cuối,
+ *   mỗi kết nối nhận tối đa 1 frame PRESENCE {"p":[{"u":..,"on":1|0,"ls":..}]} mỗi cửa sổ.
+ * - users.online / last_seen ghi nền theo lô mỗi {@code dbFlush} thay vì mỗi lần login/logout.
+ * Singleton, ServerMain gọi {@link #start} lúc khởi động.
+ */
+public final class PresenceService {
+
+    private static final PresenceService INSTANCE = new PresenceService();
+    public static PresenceService getInstance() { return INSTANCE; }
+
+    /** Số user tối đa 1 kết nối được theo dõi. */
+    private static final int MAX_WATCH_PER_CONNECTION = 10_000;
+
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    // username → lúc offline gần nhất (từ khi server chạy; cũ hơn thì lấy last_seen trong DB)
+    private final ConcurrentHashMap<String, String> lastSeen = new ConcurrentHashMap<>();
+
+    // username → kết nối đang theo dõi; kết nối → username nó theo dõi
+    private final ConcurrentHashMap<String, Set<ClientHandler>> watchers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ClientHandler, Set<String>> watching = new ConcurrentHashMap<>();
+
+    // thay đổi chờ phát: username → trạng thái mới nhất trong cửa sổ
+    private final ConcurrentHashMap<String, Boolean> changed = new ConcurrentHashMap<>();
+    // trạng thái đã phát gần nhất (bỏ lần lật rồi lật lại trong cùng cửa sổ)
+    private final ConcurrentHashMap<String, Boolean> published = new ConcurrentHashMap<>();
+    // userId → thay đổi mới nhất chờ ghi DB
+    private final ConcurrentHashMap<Integer, UserDAO.PresenceUpdate> dirty = new ConcurrentHashMap<>();
+
+    private volatile ScheduledExecutorService timer;
+
+    // thống kê
+    private final AtomicLong deltas = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong dbRows = new AtomicLong();
+    private final AtomicLong dbBatches = new AtomicLong();
+
+    private PresenceService() {}
+
+    public synchronized void start(Duration window, Duration dbFlush) {
+        if (timer != null) return;
+        ScheduledExecutorService t = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "presence");
+            th.setDaemon(true);
+            return th;
+        });
+        long w = Math.max(10, window.toMillis());
+        long f = Math.max(w, dbFlush.toMillis());
+        t.scheduleWithFixedDelay(this::publishSafely, w, w, TimeUnit.MILLISECONDS);
+        t.scheduleWithFixedDelay(this::flushDb, f, f, TimeUnit.MILLISECONDS);
+        timer = t;
+    }
+
+    /** Dừng timer và ghi nốt thay đổi còn chờ. */
+    public synchronized void stop() {
+        ScheduledExecutorService t = timer;
+        timer = null;
+        if (t != null) t.shutdownNow();
+        flushDb();
+    }
+
+    /* ================= phiên đăng nhập ================= */
+
+    /** Bảng username → handler đang online. Chỉ đọc; thêm/bớt qua {@link #connect}/{@link #disconnect}. */
+    public Map<String, ClientHandler> sessions() { return sessions; }
+
+    public ClientHandler handler(String username) {
+        return (username == null) ? null : sessions.get(username);
+    }
+
+    public boolean isOnline(String username) {
+        return username != null && sessions.containsKey(username);
+    }
+
+    /** Lúc offline gần nhất nếu server biết (null = hỏi DB). */
+    public String lastSeen(String username) {
+        return (username == null) ? null : lastSeen.get(username);
+    }
+
+    /** @return false nếu username đang có phiên khác */
+    public boolean connect(String username, int userId, ClientHandler h) {
+        if (username == null || username.isBlank() || h == null) return false;
+        if (sessions.putIfAbsent(username, h) != null) return false;
+        lastSeen.remove(username);
+        changed.put(username, Boolean.TRUE);
+        if (userId > 0) dirty.put(userId, new UserDAO.PresenceUpdate(userId, true, null));
+        return true;
+    }
+
+    /** Kết nối đóng: bỏ mọi đăng ký của nó; nếu đang giữ phiên của {@code username} thì chuyển offline. */
+    public void disconnect(String username, int userId, ClientHandler h) {
+        unsubscribeAll(h);
+        if (username == null || !sessions.remove(username, h)) return;
+        String now = Instant.now().toString();
+        lastSeen.put(username, now);
+        changed.put(username, Boolean.FALSE);
+        if (userId > 0) dirty.put(userId, new UserDAO.PresenceUpdate(userId, false, now));
+    }
+
+    /* ================= đăng ký ================= */
+
+    /** Thêm/bớt user {@code h} theo dõi; user mới thêm được trả trạng thái hiện tại ngay (1 frame). */
+    public void subscribe(ClientHandler h, Collection<String> add, Collection<String> remove) {
+        if (h == null) return;
+        Set<String> mine = watching.computeIfAbsent(h, k -> ConcurrentHashMap.newKeySet());
+        if (remove != null) {
+            for (String u : remove) {
+                if (u != null && mine.remove(u)) unwatch(u, h);
+            }
+        }
+        if (add == null || add.isEmpty()) return;
+
+        Json.Writer w = null;
+        for (String u : add) {
+            if (u == null || u.isBlank()) continue;
+            if (mine.size() >= MAX_WATCH_PER_CONNECTION) break;
+            if (!mine.add(u)) continue;
+            watchers.compute(u, (k, set) -> {
+                if (set == null) set = ConcurrentHashMap.newKeySet();
+                set.add(h);
+                return set;
+            });
+            if (w == null) w = new Json.Writer(64 + add.size() * 32).beginObject().beginArray("p");
+            entry(w, u, sessions.containsKey(u));
+        }
+        if (w != null) send(h, w);
+    }
+
+    public void unsubscribeAll(ClientHandler h) {
+        if (h == null) return;
+        Set<String> mine = watching.remove(h);
+        if (mine == null) return;
+        for (String u : mine) unwatch(u, h);
+    }
+
+    private void unwatch(String u, ClientHandler h) {
+        watchers.computeIfPresent(u, (k, set) -> {
+            set.remove(h);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /* ================= phát delta ================= */
+
+    private void publishSafely() {
+        try {
+            publish();
+        } catch (RuntimeException e) {
+            System.err.println("[PRESENCE] publish failed: " + e);
+        }
+    }
+
+    private void publish() {
+        if (changed.isEmpty()) return;
+        Map<ClientHandler, Json.Writer> out = new HashMap<>();
+        for (String u : new ArrayList<>(changed.keySet())) {
+            Boolean on = changed.remove(u);
+            if (on == null) continue;
+            if (on.equals(published.put(u, on))) continue;
+            Set<ClientHandler> ws = watchers.get(u);
+            if (ws == null) continue;
+            for (ClientHandler h : ws) {
+                Json.Writer w = out.computeIfAbsent(h, k -> new Json.Writer(256).beginObject().beginArray("p"));
+                entry(w, u, on);
+                deltas.incrementAndGet();
+            }
+        }
+        out.forEach(this::send);
+    }
+
+    private void entry(Json.Writer w, String u, boolean on) {
+        w.beginObject().field("u", u).field("on", on ? 1 : 0);
+        if (!on) {
+            String ls = lastSeen.get(u);
+            if (ls != null) w.field("ls", ls);
+        }
+        w.endObject();
+    }
+
+    private void send(ClientHandler h, Json.Writer w) {
+        frames.incrementAndGet();
+        h.sendFrame(new Frame(MessageType.PRESENCE, "server", "", w.endArray().endObject().toString()));
+    }
+
+    /* ================= ghi DB theo lô ================= */
+
+    private void flushDb() {
+        if (dirty.isEmpty()) return;
+        List<UserDAO.PresenceUpdate> batch = new ArrayList<>();
+        for (Integer id : new ArrayList<>(dirty.keySet())) {
+            UserDAO.PresenceUpdate u = dirty.remove(id);
+            if (u != null) batch.add(u);
+        }
+        try {
+            UserDAO.setOnlineBatch(batch);
+            dbRows.addAndGet(batch.size());
+            dbBatches.incrementAndGet();
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("[PRESENCE] last_seen batch failed (" + batch.size() + " rows): " + e.getMessage());
+            // giữ lại để lần sau ghi; bản mới hơn (nếu có) thắng
+            for (UserDAO.PresenceUpdate u : batch) dirty.putIfAbsent(u.userId(), u);
+        }
+    }
+
+    public String stats() {
+        return "Presence{online=" + sessions.size() + ", watchedUsers=" + watchers.size()
+                + ", deltas=" + deltas.get() + ", frames=" + frames.get()
+                + ", dbRows=" + dbRows.get() + ", dbBatches=" + dbBatches.get()
+                + ", pendingDb=" + dirty.size() + "}";
+    }
+}
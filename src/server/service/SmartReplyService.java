@@ -0,0 +1,274 @@
+package server.service;
+
+import common.Json;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Gợi ý trả lời (FastAPI /smart-reply) chạy bất đồng bộ, tách khỏi luồng xử lý DM.
+ * - Debounce theo cặp hội thoại: nhiều tin liên tiếp trong {@code debounce} chỉ gọi backend 1 lần.
+ * - Giới hạn số hội thoại chờ và số request đang bay; quá giới hạn thì bỏ (gợi ý cũ không có giá trị).
+ * - Timeout connect/request, circuit breaker khi backend lỗi liên tục.
+ * Singleton, ServerMain gọi {@link #start} lúc khởi động.
+ */
+public final class SmartReplyService {
+
+    private static final SmartReplyService INSTANCE = new SmartReplyService();
+    public static SmartReplyService getInstance() { return INSTANCE; }
+
+    /** Số tin gần nhất gửi kèm làm ngữ cảnh. */
+    private static final int MAX_CONTEXT = 5;
+
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private volatile URI endpoint;
+    private volatile HttpClient http;
+    private volatile ScheduledExecutorService timer;
+    private Duration debounce;
+    private Duration requestTimeout;
+    private int maxPending;
+    private Semaphore inFlight;
+    private int failureThreshold;
+    private long openMillis;
+
+    // circuit breaker
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openUntil;
+    private volatile boolean probing;
+
+    // thống kê
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    private SmartReplyService() {}
+
+    /** Bật dịch vụ. {@code url} rỗng = tắt hẳn gợi ý. */
+    public synchronized void start(String url, Duration debounce, Duration connectTimeout, Duration requestTimeout,
+                                   int maxPending, int maxInFlight, int failureThreshold, Duration openFor) {
+        if (timer != null) return;
+        if (url == null || url.isBlank()) {
+            System.out.println("[SMART-REPLY] disabled");
+            return;
+        }
+        this.endpoint = URI.create(url);
+        this.debounce = debounce;
+        this.requestTimeout = requestTimeout;
+        this.maxPending = Math.max(1, maxPending);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openFor.toMillis();
+
+        ScheduledExecutorService t = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "smart-reply");
+            th.setDaemon(true);
+            return th;
+        });
+        this.http = HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .executor(t)
+                .build();
+        this.timer = t;
+        System.out.println("[SMART-REPLY] started → " + endpoint + " (debounce=" + debounce.toMillis() + "ms)");
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+        pending.clear();
+        // lần start sau bắt đầu với mạch đóng
+        consecutiveFailures.set(0);
+        openUntil = 0;
+        probing = false;
+    }
+
+    /**
+     * Ghi nhận 1 tin nhắn mới từ {@code sender} tới {@code recipient}; không bao giờ chặn.
+     * {@code deliver} nhận JSON gợi ý (chạy trên thread của dịch vụ).
+     */
+    public void submit(String sender, String recipient, long messageId, String text, Consumer<String> deliver) {
+        ScheduledExecutorService t = timer;
+        if (t == null || recipient == null || deliver == null) return;
+        submitted.incrementAndGet();
+
+        // mạch đang mở → bỏ luôn, không giữ chỗ trong hàng chờ
+        if (System.currentTimeMillis() < openUntil) { shed.incrementAndGet(); return; }
+
+        String key = sender + "\u0000" + recipient;
+        boolean schedule;
+        while (true) {
+            Pending p = pending.get(key);
+            if (p == null) {
+                if (pending.size() >= maxPending) { shed.incrementAndGet(); return; }
+                Pending fresh = new Pending();
+                p = pending.putIfAbsent(key, fresh);
+                if (p == null) p = fresh;
+            }
+            synchronized (p) {
+                // entry vừa được gửi đi → tạo entry mới
+                if (p.flushed) { pending.remove(key, p); continue; }
+                if (!p.messages.isEmpty()) coalesced.incrementAndGet();
+                p.messages.addLast(text == null ? "" : text);
+                while (p.messages.size() > MAX_CONTEXT) p.messages.removeFirst();
+                p.lastMessageId = messageId;
+                p.deliver = deliver;
+                p.deadline = System.nanoTime() + debounce.toNanos();
+                schedule = !p.scheduled;
+                p.scheduled = true;
+            }
+            break;
+        }
+        if (schedule) {
+            try {
+                t.schedule(() -> flush(key), debounce.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    private void flush(String key) {
+        Pending p = pending.get(key);
+        ScheduledExecutorService t = timer;
+        if (p == null || t == null) return;
+        String payload;
+        Consumer<String> deliver;
+        synchronized (p) {
+            long wait = p.deadline - System.nanoTime();
+            if (wait > 0) {
+                // còn tin mới trong cửa sổ debounce → dời lại
+                t.schedule(() -> flush(key), wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            p.flushed = true;
+            pending.remove(key, p);
+            payload = buildPayload(p);
+            deliver = p.deliver;
+        }
+
+        if (!inFlight.tryAcquire()) { shed.incrementAndGet(); return; }
+        if (isOpen()) { inFlight.release(); shed.incrementAndGet(); return; }
+        inFlightCount.incrementAndGet();
+        sent.incrementAndGet();
+
+        CompletableFuture<HttpResponse<String>> call;
+        try {
+            HttpRequest req = HttpRequest.newBuilder(endpoint)
+                    .timeout(requestTimeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(payload))
+                    .build();
+            call = http.sendAsync(req, HttpResponse.BodyHandlers.ofString());
+        } catch (RuntimeException e) {
+            // lỗi ngay khi gửi (URI sai, client đã đóng...) → whenComplete không bao giờ chạy, tự trả permit
+            inFlight.release();
+            inFlightCount.decrementAndGet();
+            onFailure(String.valueOf(e));
+            return;
+        }
+        call.whenComplete((resp, err) -> {
+            inFlight.release();
+            inFlightCount.decrementAndGet();
+            if (err != null || resp.statusCode() != 200) {
+                onFailure(err != null ? String.valueOf(err.getMessage()) : "status " + resp.statusCode());
+                return;
+            }
+            onSuccess();
+            String body = resp.body();
+            if (body != null && body.contains("suggestions")) {
+                try {
+                    deliver.accept(body);
+                    delivered.incrementAndGet();
+                } catch (RuntimeException e) {
+                    System.err.println("[SMART-REPLY] deliver failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static String buildPayload(Pending p) {
+        Json.Writer w = Json.object()
+                .field("conversation_id", String.valueOf(p.lastMessageId))
+                .beginArray("messages");
+        for (String m : p.messages) {
+            w.beginObject().field("role", "A").field("text", m).endObject();
+        }
+        return w.endArray()
+                .field("n", 3)
+                .field("max_words", 12)
+                .field("lang", "vi")
+                .endObject().toString();
+    }
+
+    /* ================= CIRCUIT BREAKER ================= */
+
+    /** Mở mạch: bỏ qua mọi request cho tới {@code openUntil}; sau đó cho 1 request thử. */
+    private boolean isOpen() {
+        long until = openUntil;
+        if (until == 0) return false;
+        if (System.currentTimeMillis() < until) return true;
+        synchronized (this) {
+            if (probing) return true;
+            probing = true;     // half-open: 1 request thử
+            return false;
+        }
+    }
+
+    private void onSuccess() {
+        consecutiveFailures.set(0);
+        if (openUntil != 0) System.out.println("[SMART-REPLY] backend recovered, circuit closed");
+        openUntil = 0;
+        probing = false;
+    }
+
+    private void onFailure(String reason) {
+        failed.incrementAndGet();
+        int n = consecutiveFailures.incrementAndGet();
+        if (probing || n >= failureThreshold) {
+            openUntil = System.currentTimeMillis() + openMillis;
+            probing = false;
+            System.err.println("[SMART-REPLY] circuit open for " + openMillis + "ms: " + reason);
+        } else {
+            System.err.println("[SMART-REPLY] failed: " + reason);
+        }
+    }
+
+    /* ================= STATS ================= */
+
+    public String stats() {
+        return "SmartReply{submitted=" + submitted.get() + ", coalesced=" + coalesced.get()
+                + ", sent=" + sent.get() + ", delivered=" + delivered.get() + ", failed=" + failed.get()
+                + ", shed=" + shed.get() + ", pending=" + pending.size() + ", inFlight=" + inFlightCount.get()
+                + ", circuit=" + (openUntil == 0 ? "closed" : "open") + "}";
+    }
+
+    private static final class Pending {
+        final Deque<String> messages = new ArrayDeque<>(MAX_CONTEXT + 1);
+        long lastMessageId;
+        long deadline;
+        Consumer<String> deliver;
+        boolean scheduled;
+        boolean flushed;
+    }
+}
@@ -0,0 +1,635 @@
+package server.service;
+
+import common.Frame;
+import common.Json;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Upload file/audio theo khoảng byte, tiếp tục được sau khi rớt kết nối.
+ * - Dữ liệu đang nhận nằm ở {@code uploads/<id>.part}; thông tin phiên (chủ, người nhận, tên, mime,
+ *   size) ở {@code uploads/<id>.upload}. Độ dài file .part chính là offset server đã có → tồn tại qua
+ *   cả lần khởi động lại server.
+ * - Chunk thứ {@code seq} là khoảng [seq * CHUNK_SIZE, +len): chunk trùng (gửi lại) bị bỏ qua,
+ *   chunk vượt offset thì báo lỗi để client hỏi lại offset.
+ * - Nội dung được băm SHA-256 trong lúc nhận; xong thì .part thành blob {@code uploads/blobs/ab/cd/<sha256>}
+ *   (chia thư mục theo hash). Blob đã có thì bỏ .part: cùng 1 file gửi cho 200 người chỉ lưu 1 lần.
+ *   Client gửi kèm "sha256" trong META: hash + size không phải bằng chứng có nội dung (ai biết hash
+ *   cũng lấy được file, và dò được file nào đang có) → chỉ bỏ qua gửi byte khi người gửi đã có dòng
+ *   files trỏ tới blob ({@link #lookup}), còn lại phải trả lời {@link Challenge} (nonce + đoạn byte
+ *   server chọn, {@link #prove}). Challenge được gửi kể cả khi blob chưa có, để không lộ tồn tại.
+ * - Blob được đếm tham chiếu theo các dòng {@code files} cùng file_path: xoá file chỉ unlink blob khi
+ *   không còn dòng nào ({@link #releaseBlob}). Blob vừa xong nhưng chưa kịp ghi dòng files được
+ *   "ghim" trong bộ nhớ ({@link #unpin}) để lần xoá chạy song song không unlink mất.
+ * - Phiên bỏ dở quá {@code ttl} bị dọn.
+ * - Mỗi kết nối giữ 1 {@link Sessions}: nhiều upload song song theo transferId, giới hạn số phiên
+ *   và tổng dung lượng, phiên im lặng quá {@code idle} bị đóng.
+ * Singleton, ServerMain gọi {@link #start} lúc khởi động.
+ */
+public final class UploadStore {
+
+    private static final UploadStore INSTANCE = new UploadStore();
+    public static UploadStore getInstance() { return INSTANCE; }
+
+    private static final String PART = ".part";
+    private static final String INFO = ".upload";
+    private static final HexFormat HEX = HexFormat.of();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** Độ dài đoạn byte phải băm để chứng minh có file. */
+    private static final int PROOF_BYTES = Frame.CHUNK_SIZE;
+
+    private final File dir = new File("uploads");
+    private final File blobs = new File(dir, "blobs");
+    // khoá theo blob (đường dẫn tuyệt đối): đặt/bỏ blob không chen nhau. ReentrantLock chứ không
+    // synchronized: có I/O file bên trong, virtual thread chờ khoá không ghim carrier thread
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+    // tăng mỗi lần ghim 1 blob của stripe: releaseBlob đếm tham chiếu ngoài khoá rồi kiểm tra lại
+    private final AtomicLongArray pinEpochs = new AtomicLongArray(locks.length);
+    // blob → số upload vừa xong / tìm thấy nhưng chưa ghi xong dòng files
+    private final ConcurrentHashMap<String, Integer> pins = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService timer;
+    private volatile int maxSessions = 8;
+    private volatile long maxSessionBytes = 4 * Frame.MAX_FILE_BYTES;
+    private volatile long idleMs = 120_000;
+
+    // thống kê
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+    private final AtomicLong resumedBytes = new AtomicLong();
+    private final AtomicLong duplicateChunks = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong swept = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong blobsStored = new AtomicLong();
+    private final AtomicLong dedupHits = new AtomicLong();
+    private final AtomicLong preCheckHits = new AtomicLong();
+    private final AtomicLong proofHits = new AtomicLong();
+    private final AtomicLong proofFails = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong blobsUnlinked = new AtomicLong();
+
+    /** Thông tin 1 phiên upload (giữ trong file .upload). */
+    public record Info(String owner, String to, String name, String mime, long size) {}
+
+    /** 1 blob nội dung; {@code deduped} = đã có sẵn, không ghi thêm byte nào. */
+    public record Blob(String hash, File file, long size, boolean deduped) {
+        public String path() { return file.getAbsolutePath(); }
+    }
+
+    /**
+     * Thách client chứng minh có nội dung {@code hash}: trả về
+     * SHA-256(nonce UTF-8 || byte [offset, offset + length)) dạng hex.
+     */
+    public record Challenge(String hash, long size, String nonce, long offset, int length) {}
+
+    /** Số dòng files đang trỏ tới {@code path} (FileDao). */
+    @FunctionalInterface
+    public interface RefCount {
+        long count(String path) throws SQLException;
+    }
+
+    /** 1 phiên upload đang mở trên 1 kết nối. Không thread-safe (kết nối xử lý frame tuần tự). */
+    public static final class Upload {
+        public final String id;
+        public final Info info;
+        /** true: client hỗ trợ tiếp tục (giữ .part khi rớt); false: client cũ, chunk phải đúng thứ tự. */
+        public final boolean resumable;
+        private final FileChannel ch;
+        private final MessageDigest sha = sha256();
+        private long offset;
+        private int expectedSeq;
+
+        private Upload(String id, Info info, boolean resumable, FileChannel ch, long offset) {
+            this.id = id;
+            this.info = info;
+            this.resumable = resumable;
+            this.ch = ch;
+            this.offset = offset;
+            this.expectedSeq = (int) (offset / Frame.CHUNK_SIZE);
+        }
+
+        /** Số byte liên tục server đã có tính từ đầu file. */
+        public long offset() { return offset; }
+    }
+
+    /** Vượt giới hạn phiên / dung lượng của kết nối; client đợi 1 upload xong rồi gửi lại. */
+    public static final class LimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitException(String msg) { super(msg); }
+    }
+
+    /** 1 upload đang mở trong {@link Sessions}. */
+    public static final class Session {
+        /** transferId client gửi (id trên đĩa là bản đã lọc ký tự). */
+        public final String transferId;
+        public final Upload upload;
+        public final Long replyTo;
+        private long lastActive = System.currentTimeMillis();
+
+        private Session(String transferId, Upload upload, Long replyTo) {
+            this.transferId = transferId;
+            this.upload = upload;
+            this.replyTo = replyTo;
+        }
+    }
+
+    /**
+     * Các upload đang mở của 1 kết nối, theo transferId. Chỉ thread xử lý frame của kết nối dùng
+     * (không thread-safe); phiên quá hạn được dọn khi kết nối có frame upload kế tiếp hoặc khi đóng.
+     */
+    public final class Sessions {
+        private final Map<String, Session> open = new LinkedHashMap<>();
+        // challenge đã gửi, chờ META có "proof"; giữ tối đa {@code max} cái mới nhất
+        private final Map<String, Challenge> challenges = new LinkedHashMap<>();
+        private final int max = maxSessions;
+        private final long maxBytes = maxSessionBytes;
+        private final long idle = idleMs;
+
+        /** Mở (hoặc mở lại, khi client gửi lại META cùng id) phiên {@code transferId}. */
+        public Session open(String transferId, String id, Info info, boolean resumable, Long replyTo)
+                throws IOException {
+            expireIdle();
+            close(transferId);
+            if (open.size() >= max) {
+                limited.incrementAndGet();
+                throw new LimitException("Too many uploads (" + max + ")");
+            }
+            long bytes = info.size();
+            for (Session s : open.values()) bytes += s.upload.info.size();
+            if (bytes > maxBytes) {
+                limited.incrementAndGet();
+                throw new LimitException("Uploads exceed " + maxBytes + " bytes");
+            }
+            Session s = new Session(transferId, UploadStore.this.open(id, info, resumable), replyTo);
+            open.put(transferId, s);
+            return s;
+        }
+
+        /** Phiên của chunk {@code transferId}, null nếu chưa có META hoặc đã hết hạn. */
+        public Session get(String transferId) {
+            expireIdle();
+            Session s = (transferId == null) ? null : open.get(transferId);
+            if (s != null) s.lastActive = System.currentTimeMillis();
+            return s;
+        }
+
+        /** Challenge cho upload {@code transferId}; null nếu hash/size không hợp lệ. */
+        public Challenge challenge(String transferId, String hash, long size) {
+            Challenge c = UploadStore.this.challenge(hash, size);
+            if (c == null || transferId == null) return null;
+            challenges.remove(transferId);
+            if (challenges.size() >= max) {
+                challenges.remove(challenges.keySet().iterator().next());
+            }
+            challenges.put(transferId, c);
+            return c;
+        }
+
+        /** Trả lời challenge của {@code transferId} (dùng 1 lần): xem {@link UploadStore#prove}. */
+        public Blob prove(String transferId, String hash, long size, String proof) {
+            Challenge c = (transferId == null) ? null : challenges.remove(transferId);
+            if (c == null || hash == null || !c.hash().equals(hash.toLowerCase()) || c.size() != size) return null;
+            return UploadStore.this.prove(c, proof);
+        }
+
+        /** Nhận đủ phiên {@code s}: xem {@link UploadStore#complete}. */
+        public Blob complete(Session s) throws IOException {
+            open.remove(s.transferId, s);
+            return UploadStore.this.complete(s.upload);
+        }
+
+        /** Bỏ phiên (lỗi hoặc client mở lại): phần đã nhận giữ lại nếu tiếp tục được. */
+        public void close(String transferId) {
+            Session s = (transferId == null) ? null : open.remove(transferId);
+            if (s != null) release(s.upload);
+        }
+
+        public void closeAll() {
+            for (Session s : open.values()) release(s.upload);
+            open.clear();
+            challenges.clear();
+        }
+
+        public int size() { return open.size(); }
+
+        private void expireIdle() {
+            if (open.isEmpty()) return;
+            long cutoff = System.currentTimeMillis() - idle;
+            for (Session s : new ArrayList<>(open.values())) {
+                if (s.lastActive >= cutoff) continue;
+                System.out.println("[UPLOAD] idle " + s.transferId + " at " + s.upload.offset() + " bytes, closing");
+                open.remove(s.transferId);
+                release(s.upload);
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    private UploadStore() {
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+    }
+
+    /**
+     * @param ttl         phần dở (.part) không ai tiếp tục quá lâu thì xoá
+     * @param maxSessions số upload song song tối đa mỗi kết nối
+     * @param maxBytes    tổng size khai báo tối đa của các upload đang mở trên 1 kết nối
+     * @param idle        upload không nhận chunk nào quá lâu thì đóng
+     */
+    public synchronized void start(Duration ttl, int maxSessions, long maxBytes, Duration idle) {
+        this.maxSessions = Math.max(1, maxSessions);
+        this.maxSessionBytes = Math.max(Frame.MAX_FILE_BYTES, maxBytes);
+        this.idleMs = Math.max(1_000, idle.toMillis());
+        if (timer != null) return;
+        ScheduledExecutorService t = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "upload-sweep");
+            th.setDaemon(true);
+            return th;
+        });
+        long ms = Math.max(60_000, ttl.toMillis());
+        t.execute(() -> sweep(ms));
+        t.scheduleWithFixedDelay(() -> sweep(ms), Math.min(ms, 3_600_000), Math.min(ms, 3_600_000),
+                TimeUnit.MILLISECONDS);
+        timer = t;
+    }
+
+    /** Bảng upload cho 1 kết nối mới (giới hạn lấy theo {@link #start}). */
+    public Sessions newSessions() { return new Sessions(); }
+
+    public synchronized void stop() {
+        ScheduledExecutorService t = timer;
+        timer = null;
+        if (t != null) t.shutdownNow();
+    }
+
+    /**
+     * Mở phiên upload {@code id}. {@code resumable} và đã có phần dở cùng chủ + cùng size
+     * thì tiếp tục từ phần đó, ngược lại bắt đầu lại từ 0.
+     */
+    public Upload open(String id, Info info, boolean resumable) throws IOException {
+        if (!dir.exists()) dir.mkdirs();
+        Path part = part(id), meta = meta(id);
+        boolean canResume = resumable && info.owner() != null;
+
+        if (canResume && Files.exists(part) && info.equals(readInfo(meta))) {
+            FileChannel ch = FileChannel.open(part, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // chỉ tin phần trọn chunk: chunk cuối có thể ghi dở lúc rớt kết nối
+            long have = ch.size() / Frame.CHUNK_SIZE * Frame.CHUNK_SIZE;
+            ch.truncate(have);
+            resumed.incrementAndGet();
+            resumedBytes.addAndGet(have);
+            Upload u = new Upload(id, info, true, ch, have);
+            rehash(u); // trạng thái băm không lưu lại → băm lại phần đã có
+            return u;
+        }
+
+        Info other = readInfo(meta);
+        if (other != null && other.owner() != null && !other.owner().equals(info.owner())) {
+            throw new IOException("Upload id in use");
+        }
+        FileChannel ch = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (canResume) writeInfo(meta, info);
+        else Files.deleteIfExists(meta);
+        started.incrementAndGet();
+        return new Upload(id, info, canResume, ch, 0);
+    }
+
+    /**
+     * Ghi chunk {@code seq}.
+     * @return false nếu là chunk đã có (gửi lại sau khi tiếp tục) — bỏ qua, không lỗi
+     */
+    public boolean write(Upload u, int seq, boolean last, byte[] data, int off, int len) throws IOException {
+        if (!u.resumable) {
+            // client cũ: đúng thứ tự, kích thước chunk tuỳ client
+            if (seq != u.expectedSeq) throw new IOException("Out-of-order chunk");
+        } else {
+            long pos = (long) seq * Frame.CHUNK_SIZE;
+            if (pos < u.offset) {
+                duplicateChunks.incrementAndGet();
+                return false;
+            }
+            if (pos > u.offset) throw new IOException("Missing range at " + u.offset);
+            if (!last && len != Frame.CHUNK_SIZE) throw new IOException("Short chunk " + seq);
+        }
+        if (u.offset + len > Frame.MAX_FILE_BYTES) throw new IOException("File exceeds limit");
+        if (u.info.size() > 0 && u.offset + len > u.info.size()) throw new IOException("Chunk past declared size");
+
+        ByteBuffer buf = ByteBuffer.wrap(data, off, len);
+        long pos = u.offset;
+        while (buf.hasRemaining()) pos += u.ch.write(buf, pos);
+        u.sha.update(data, off, len);
+        u.offset = pos;
+        u.expectedSeq++;
+        return true;
+    }
+
+    /**
+     * Nhận đủ: đóng, .part thành blob theo hash (blob đã có thì bỏ .part).
+     * Blob trả về đang bị ghim: gọi {@link #unpin} sau khi đã ghi dòng files.
+     */
+    public Blob complete(Upload u) throws IOException {
+        if (u.resumable && u.info.size() > 0 && u.offset != u.info.size()) {
+            throw new IOException("Incomplete upload " + u.offset + "/" + u.info.size());
+        }
+        u.ch.close();
+        String hash = HEX.formatHex(u.sha.digest());
+        Path target = blobPath(hash);
+        Path part = part(u.id);
+        String key = target.toFile().getAbsolutePath();
+        boolean deduped;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            deduped = Files.exists(target) && Files.size(target) == u.offset;
+            if (deduped) {
+                Files.delete(part);
+                dedupHits.incrementAndGet();
+                bytesSaved.addAndGet(u.offset);
+            } else {
+                Files.createDirectories(target.getParent());
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                blobsStored.incrementAndGet();
+            }
+            pin(key);
+        } finally {
+            lock.unlock();
+        }
+        Files.deleteIfExists(meta(u.id));
+        completed.incrementAndGet();
+        return new Blob(hash, target.toFile(), u.offset, deduped);
+    }
+
+    /**
+     * Người gửi đã có nội dung này: blob {@code hash} đúng {@code size} và {@code owned} đếm được dòng
+     * files của người gửi trỏ tới nó thì trả về (đã ghim, gọi {@link #unpin} sau khi ghi dòng files),
+     * client không cần gửi byte nào. null nếu không (→ {@link #challenge}).
+     */
+    public Blob lookup(String hash, long size, RefCount owned) {
+        String h = normalizeHash(hash);
+        if (h == null || size <= 0) return null;
+        File f = blobPath(h).toFile();
+        try {
+            // hỏi DB trước, không nhìn đĩa: người gửi không sở hữu thì trả lời như nhau dù blob có hay không
+            if (owned.count(f.getAbsolutePath()) <= 0) return null;
+        } catch (SQLException e) {
+            System.err.println("[UPLOAD] owner check failed for " + h + ": " + e.getMessage());
+            return null;
+        }
+        if (!pinIfPresent(f, size)) return null;
+        preCheckHits.incrementAndGet();
+        bytesSaved.addAndGet(size);
+        return new Blob(h, f, size, true);
+    }
+
+    /** Challenge ngẫu nhiên cho {@code hash}, không phụ thuộc blob có hay chưa. null nếu hash/size sai. */
+    public Challenge challenge(String hash, long size) {
+        String h = normalizeHash(hash);
+        if (h == null || size <= 0) return null;
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        int length = (int) Math.min(size, PROOF_BYTES);
+        long offset = (size == length) ? 0 : (long) (RANDOM.nextDouble() * (size - length + 1));
+        return new Challenge(h, size, HEX.formatHex(nonce), offset, length);
+    }
+
+    /**
+     * {@code proof} đúng với blob của {@code c} thì trả về blob (đã ghim, như {@link #lookup}); null nếu
+     * blob chưa có hoặc sai → client gửi byte như thường.
+     */
+    public Blob prove(Challenge c, String proof) {
+        if (c == null || proof == null) return null;
+        File f = blobPath(c.hash()).toFile();
+        if (!f.isFile() || f.length() != c.size()) return null;
+        byte[] expected;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            expected = proofOf(c.nonce(), ch, c.offset(), c.length());
+        } catch (IOException e) {
+            return null; // vừa bị xoá
+        }
+        byte[] got;
+        try {
+            got = HEX.parseHex(proof);
+        } catch (IllegalArgumentException e) {
+            got = null;
+        }
+        if (got == null || !MessageDigest.isEqual(expected, got)) {
+            proofFails.incrementAndGet();
+            return null;
+        }
+        if (!pinIfPresent(f, c.size())) return null;
+        proofHits.incrementAndGet();
+        bytesSaved.addAndGet(c.size());
+        return new Blob(c.hash(), f, c.size(), true);
+    }
+
+    /** SHA-256(nonce UTF-8 || byte [offset, offset + length)) của {@code ch}. */
+    public static byte[] proofOf(String nonce, FileChannel ch, long offset, int length) throws IOException {
+        MessageDigest md = sha256();
+        md.update(nonce.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position()) < 0) throw new IOException("Short read at " + offset);
+        }
+        buf.flip();
+        md.update(buf);
+        return md.digest();
+    }
+
+    /** Dòng files của blob đã ghi (hoặc ghi lỗi): bỏ ghim. */
+    public void unpin(Blob b) {
+        if (b == null) return;
+        String key = b.path();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            pins.computeIfPresent(key, (k, n) -> n <= 1 ? null : n - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Đã xoá 1 dòng files trỏ tới {@code path}: unlink file khi không còn dòng nào và không upload nào
+     * đang ghim. Lỗi DB → giữ file (thừa còn hơn mất).
+     * Đếm dòng files chạy ngoài khoá (không bắt xoá/upload khác cùng stripe chờ 1 lượt DB); trong lúc
+     * đếm mà stripe có blob bị ghim (upload có thể vừa ghi dòng files mới) thì đếm lại.
+     * @return true nếu đã xoá file
+     */
+    public boolean releaseBlob(String path, RefCount refs) {
+        if (path == null || path.isBlank()) return false;
+        String key = new File(path).getAbsolutePath();
+        ReentrantLock lock = lockFor(key);
+        int stripe = stripe(key);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long epoch;
+            lock.lock();
+            try {
+                if (pins.containsKey(key)) return false;
+                epoch = pinEpochs.get(stripe);
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (refs.count(path) > 0) return false;
+            } catch (SQLException e) {
+                System.err.println("[UPLOAD] ref count failed for " + path + ": " + e.getMessage());
+                return false;
+            }
+            lock.lock();
+            try {
+                if (pins.containsKey(key)) return false;
+                if (pinEpochs.get(stripe) != epoch) continue;
+                if (!new File(key).delete()) return false;
+            } finally {
+                lock.unlock();
+            }
+            blobsUnlinked.incrementAndGet();
+            return true;
+        }
+        return false; // stripe bận liên tục: giữ file
+    }
+
+    /** Kết nối đóng / lỗi: phiên tiếp tục được thì giữ phần đã nhận, còn lại thì xoá. */
+    public void release(Upload u) {
+        if (u == null) return;
+        try {
+            u.ch.close();
+        } catch (IOException ignored) {}
+        if (u.resumable) return;
+        try {
+            Files.deleteIfExists(part(u.id));
+        } catch (IOException ignored) {}
+    }
+
+    /* ================= nội bộ ================= */
+
+    private Path part(String id) { return dir.toPath().resolve(id + PART); }
+
+    /** {@code uploads/blobs/ab/cd/abcd...}: 2 tầng thư mục con, mỗi tầng tối đa 256 mục. */
+    private Path blobPath(String hash) {
+        return blobs.toPath().resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+    }
+
+    private int stripe(String key) {
+        return Math.floorMod(key.hashCode(), locks.length);
+    }
+
+    private ReentrantLock lockFor(String key) {
+        return locks[stripe(key)];
+    }
+
+    /** Ghim blob {@code f} nếu nó vẫn còn, đúng size (kiểm tra lại dưới khoá). */
+    private boolean pinIfPresent(File f, long size) {
+        String key = f.getAbsolutePath();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!f.isFile() || f.length() != size) return false;
+            pin(key);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Hex SHA-256 chữ thường, null nếu sai dạng. */
+    private static String normalizeHash(String hash) {
+        if (hash == null || hash.length() != 64) return null;
+        String h = hash.toLowerCase();
+        try {
+            HEX.parseHex(h);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return h;
+    }
+
+    /** Gọi khi đang giữ {@link #lockFor}{@code (key)}. */
+    private void pin(String key) {
+        pins.merge(key, 1, Integer::sum);
+        pinEpochs.incrementAndGet(stripe(key));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void rehash(Upload u) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Frame.CHUNK_SIZE);
+        long pos = 0;
+        while (pos < u.offset) {
+            buf.clear().limit((int) Math.min(buf.capacity(), u.offset - pos));
+            int n = u.ch.read(buf, pos);
+            if (n < 0) throw new IOException("Part shrank at " + pos);
+            buf.flip();
+            u.sha.update(buf);
+            pos += n;
+        }
+    }
+    private Path meta(String id) { return dir.toPath().resolve(id + INFO); }
+
+    private static Info readInfo(Path p) {
+        try {
+            if (!Files.exists(p)) return null;
+            Json.Obj o = Json.parse(Files.readString(p, StandardCharsets.UTF_8));
+            return new Info(o.str("owner"), o.str("to"), o.str("name"), o.str("mime"), o.lng("size", 0));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void writeInfo(Path p, Info i) throws IOException {
+        String json = Json.object()
+                .field("owner", i.owner()).field("to", i.to()).field("name", i.name())
+                .field("mime", i.mime()).field("size", i.size())
+                .endObject().toString();
+        Files.writeString(p, json, StandardCharsets.UTF_8);
+    }
+
+    private void sweep(long ttlMs) {
+        File[] files = dir.listFiles((d, n) -> n.endsWith(PART) || n.endsWith(INFO));
+        if (files == null) return;
+        long cutoff = System.currentTimeMillis() - ttlMs;
+        for (File f : files) {
+            if (f.lastModified() < cutoff && f.delete()) swept.incrementAndGet();
+        }
+    }
+
+    public String stats() {
+        return "Uploads{started=" + started.get() + ", resumed=" + resumed.get()
+                + ", resumedBytes=" + resumedBytes.get() + ", duplicateChunks=" + duplicateChunks.get()
+                + ", completed=" + completed.get() + ", swept=" + swept.get()
+                + ", idleClosed=" + expired.get() + ", limited=" + limited.get()
+                + ", blobs=" + blobsStored.get() + ", dedupHits=" + dedupHits.get()
+                + ", preCheckHits=" + preCheckHits.get() + ", proofHits=" + proofHits.get()
+                + ", proofFails=" + proofFails.get() + ", bytesSaved=" + bytesSaved.get()
+                + ", blobsUnlinked=" + blobsUnlinked.get() + ", pinned=" + pins.size() + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package server.service;
+
+import common.User;
+import server.dao.UserDAO;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Danh bạ USER_LIST theo trang, chạy ngoài hàng đợi frame của kết nối.
+ * - Mỗi trang = 1 truy vấn keyset theo username (UserDAO.listPage) = 1 frame trả về.
+ * - Mỗi kết nối chỉ có 1 yêu cầu "sống" ({@link Session}): yêu cầu mới (gõ thêm ký tự khi tìm)
+ *   huỷ truy vấn đang chạy bằng {@link Statement#cancel()} và bỏ các trang chưa gửi của yêu cầu cũ.
+ * - Trang sau chỉ chạy khi client xin (kèm cursor), nên tìm kiếm bị bỏ giữa chừng không tốn thêm gì.
+ * Singleton.
+ */
+public final class UserDirectoryService {
+
+    private static final UserDirectoryService INSTANCE = new UserDirectoryService();
+    public static UserDirectoryService getInstance() { return INSTANCE; }
+
+    public static final int DEFAULT_PAGE = 200;
+    public static final int MAX_PAGE = 500;
+
+    /** 1 trang kết quả; {@code next} = cursor cho trang sau (username cuối), null nếu hết. */
+    public record Page(long reqId, List<User> users, boolean more, String next) {}
+
+    /** Trạng thái danh bạ của 1 kết nối. */
+    public static final class Session {
+        private final AtomicLong latest = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicReference<Statement> running = new AtomicReference<>();
+    }
+
+    private final ExecutorService exec =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("user-list-", 0).factory());
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    private UserDirectoryService() {}
+
+    /**
+     * Xin 1 trang cho yêu cầu {@code reqId} (thay mọi yêu cầu trước đó của {@code s}).
+     * {@code onPage}/{@code onError} chạy trên thread truy vấn, không gọi nếu yêu cầu đã bị thay.
+     */
+    public void submit(Session s, int excludeUserId, long reqId, String keyword, String afterUsername, int limit,
+                       Consumer<Page> onPage, Consumer<SQLException> onError) {
+        requested.incrementAndGet();
+        s.latest.set(reqId);
+        cancelRunning(s); // statement đang chạy (nếu có) thuộc yêu cầu cũ
+
+        int n = Math.max(1, Math.min(MAX_PAGE, limit));
+        exec.execute(() -> {
+            if (s.latest.get() != reqId) {
+                cancelled.incrementAndGet();
+                return;
+            }
+            Statement[] mine = new Statement[1];
+            try {
+                List<User> rows = UserDAO.listPage(excludeUserId, keyword, afterUsername, n + 1, st -> {
+                    if (st != null) {
+                        mine[0] = st;
+                        s.running.set(st);
+                    } else {
+                        s.running.compareAndSet(mine[0], null);
+                    }
+                });
+                if (s.latest.get() != reqId) {
+                    cancelled.incrementAndGet();
+                    return;
+                }
+                boolean more = rows.size() > n;
+                if (more) rows = rows.subList(0, n);
+                String next = (more && !rows.isEmpty()) ? rows.get(rows.size() - 1).getUsername() : null;
+                served.incrementAndGet();
+                onPage.accept(new Page(reqId, rows, more, next));
+            } catch (SQLException e) {
+                if (s.latest.get() != reqId) { // bị huỷ giữa chừng → lỗi là do cancel()
+                    cancelled.incrementAndGet();
+                    return;
+                }
+                onError.accept(e);
+            }
+        });
+    }
+
+    /** Bỏ yêu cầu đang chạy của {@code s} (client huỷ hoặc kết nối đóng). */
+    public void cancel(Session s) {
+        s.latest.set(Long.MIN_VALUE);
+        cancelRunning(s);
+    }
+
+    private void cancelRunning(Session s) {
+        Statement st = s.running.getAndSet(null);
+        if (st == null) return;
+        try {
+            st.cancel();
+        } catch (SQLException e) {
+            System.err.println("[USER_LIST] cancel failed: " + e.getMessage());
+        }
+    }
+
+    public String stats() {
+        return "UserDirectory{requested=" + requested.get() + ", served=" + served.get()
+                + ", cancelled=" + cancelled.get() + "}";
+    }
+}
@@ -1,13 +1,13 @@
 package server.signaling;
 
 import server.ClientHandler;
+import server.service.PresenceService;
 import common.Frame;
 import common.MessageType;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 /**
  * Online-only call routing (Frame-based).
+ * Ai đang online lấy từ PresenceService (không giữ map riêng).
  * Singleton. ClientHandler gọi CallRouter.getInstance().
  */
 public final class CallRouter {
@@ -15,23 +15,10 @@ public final class CallRouter {
     private static final CallRouter INSTANCE = new CallRouter();
     public static CallRouter getInstance() { return INSTANCE; }
 
-    private final ConcurrentHashMap<String, ClientHandler> online = new ConcurrentHashMap<>();
-
     private CallRouter() {}
 
-    /* ============ Presence management ============ */
-    public void register(String username, ClientHandler handler) {
-        if (username == null || username.isBlank() || handler == null) return;
-        online.put(username, handler);
-    }
-
-    public void unregister(String username, ClientHandler handler) {
-        if (username == null || username.isBlank()) return;
-        online.computeIfPresent(username, (u, h) -> (h == handler) ? null : h);
-    }
-
     public boolean isOnline(String username) {
-        return online.containsKey(username);
+        return PresenceService.getInstance().isOnline(username);
     }
 
     /* ============ Frame routing API (mới) ============ */
@@ -73,7 +60,7 @@ public final class CallRouter {
 
     /** Gửi frame đến user đích; nếu offline trả về false. */
     private boolean forwardOrOffline(String fromUser, String toUser, Frame toSend) {
-        ClientHandler h = online.get(toUser);
+        ClientHandler h = PresenceService.getInstance().handler(toUser);
         if (h == null) return false;
         // khẳng định lại sender/recipient cho chuẩn
         toSend.sender    = fromUser;
@@ -88,7 +75,7 @@ public final class CallRouter {
 
     /** Gửi CALL_OFFLINE về caller khi callee không online. body = callId (nếu biết). */
     private void sendOffline(String caller, String callee, String callIdOrNull) {
-        ClientHandler c = online.get(caller);
+        ClientHandler c = PresenceService.getInstance().handler(caller);
         if (c == null) return;
         Frame off = new Frame(MessageType.CALL_OFFLINE, callee /*sender?*/ , caller, safe(callIdOrNull));
         // Convention: sender = callee để client hiển thị "callee offline".
@@ -0,0 +1,274 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FrameCodec: round-trip (so với bộ mã hoá tham chiếu viết thẳng theo định dạng, getBytes(UTF_8)) và
+ * số byte cấp phát trên buffer dùng lại. Chạy với {@code bench} để in thêm ns/frame và B/frame.
+ * Không cần JUnit:
+ * <pre>
+ *   javac -d out $(find src test -name '*.java') -cp 'lib/*'
+ *   java -cp out:'lib/*' common.FrameCodecTest [bench]
+ * </pre>
+ */
+public final class FrameCodecTest {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        roundTrip();
+        encodePathsAgree();
+        reusesBuffers();
+        if (args.length > 0 && args[0].equals("bench")) bench();
+
+        if (failures > 0) {
+            System.err.println("[TEST] FrameCodecTest: " + failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("[TEST] FrameCodecTest: all checks passed");
+    }
+
+    /* ================= cases ================= */
+
+    private static void roundTrip() throws IOException {
+        FrameCodec codec = new FrameCodec();
+        for (Frame f : samples()) {
+            String name = "round-trip " + f.type + " " + abbrev(f.body);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            codec.write(out, f);
+            byte[] wire = out.toByteArray();
+            check(name + ": bytes match reference", Arrays.equals(wire, reference(f)));
+
+            Frame back = codec.read(new DataInputStream(new ByteArrayInputStream(wire)));
+            check(name + ": fields", back != null && back.type == f.type
+                    && back.sender.equals(expectString(f.sender)) && back.recipient.equals(expectString(f.recipient))
+                    && back.body.equals(expectString(f.body)) && back.transferId.equals(expectString(f.transferId)));
+            if (isChunk(f)) {
+                check(name + ": chunk header", back.seq == f.seq && back.last == f.last);
+                check(name + ": payload", Arrays.equals(
+                        Arrays.copyOfRange(back.bin, back.binOffset, back.binOffset + back.binLength()),
+                        Arrays.copyOfRange(f.bin, f.binOffset, f.binOffset + f.binLength())));
+            }
+        }
+    }
+
+    /** encode / encodeTo / preEncode / write phải ra cùng 1 dãy byte. */
+    private static void encodePathsAgree() throws IOException {
+        FrameCodec heap = new FrameCodec(256, false);
+        FrameCodec direct = new FrameCodec(256, true);
+        for (Frame f : samples()) {
+            byte[] ref = reference(f);
+            String name = "encode paths " + f.type + " " + abbrev(f.body);
+
+            check(name + ": encode(heap)", Arrays.equals(bytes(heap.encode(f)), ref));
+            check(name + ": encode(direct)", Arrays.equals(bytes(direct.encode(f)), ref));
+
+            ByteBuffer dst = ByteBuffer.allocate(FrameCodec.encodedLength(f));
+            FrameCodec.encodeTo(f, dst);
+            check(name + ": encodeTo", Arrays.equals(dst.array(), ref));
+            check(name + ": encodedLength", FrameCodec.encodedLength(f) == ref.length);
+            check(name + ": maxEncodedLength >= actual", FrameCodec.maxEncodedLength(f) >= ref.length);
+
+            Frame copy = copyOf(f);
+            FrameCodec.preEncode(copy);
+            check(name + ": preEncode", Arrays.equals(copy.wire, ref));
+        }
+    }
+
+    /**
+     * Buffer encode/đọc được dùng lại: sau khi ấm máy, ghi 1 chunk 64KB không được cấp phát cỡ chunk,
+     * đọc chỉ cấp phát Frame + chuỗi (payload là slice của buffer đọc).
+     */
+    private static void reusesBuffers() throws IOException {
+        Frame chunk = Frame.fileChunk("alice", "bob", "3f2b9c1e-transfer", 7, false, payload(Frame.CHUNK_SIZE));
+        Frame dm = Frame.dm("alice", "bob", "Chào bạn, tối nay đi ăn phở không? 🍜");
+        int n = 2_000;
+
+        FrameCodec codec = new FrameCodec();
+        OutputStream sink = OutputStream.nullOutputStream();
+        long chunkWrite = allocPerOp(n, () -> codec.write(sink, chunk));
+        long dmWrite = allocPerOp(n, () -> codec.write(sink, dm));
+        check("alloc: write chunk " + chunkWrite + " B/frame < 256", chunkWrite < 256);
+        check("alloc: write dm " + dmWrite + " B/frame < 256", dmWrite < 256);
+
+        byte[] chunks = repeat(reference(chunk), n);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chunks));
+        long chunkRead = allocPerOp(n, () -> codec.read(in));
+        // Frame + 4 chuỗi ngắn; đọc mà copy payload sẽ là > 64KB/frame
+        check("alloc: read chunk " + chunkRead + " B/frame < 1024", chunkRead < 1024);
+
+        in.reset();
+        Frame a = codec.read(in);
+        byte[] firstBuf = a.bin;
+        Frame b = codec.read(in);
+        check("reuse: read buffer shared between frames", firstBuf == b.bin);
+        a = codec.read(in).detach();
+        codec.read(in);
+        check("reuse: detach() copies payload out", a.bin != firstBuf && a.binOffset == 0
+                && a.binLength() == Frame.CHUNK_SIZE && a.bin[0] == chunk.bin[0]);
+    }
+
+    private static void bench() throws IOException {
+        Frame chunk = Frame.fileChunk("alice", "bob", "3f2b9c1e-transfer", 7, false, payload(Frame.CHUNK_SIZE));
+        Frame dm = Frame.dm("alice", "bob", "Chào bạn, tối nay đi ăn phở không? 🍜");
+        FrameCodec codec = new FrameCodec();
+        OutputStream sink = OutputStream.nullOutputStream();
+        int n = 200_000;
+
+        System.out.println("[BENCH] FrameCodec (" + n + " frames each)");
+        report("write dm (codec)", n, () -> codec.write(sink, dm));
+        report("write dm (getBytes baseline)", n, () -> sink.write(reference(dm)));
+        report("write 64KB chunk (codec)", n / 20, () -> codec.write(sink, chunk));
+        report("write 64KB chunk (getBytes baseline)", n / 20, () -> sink.write(reference(chunk)));
+
+        byte[] dms = repeat(reference(dm), n);
+        DataInputStream dmIn = new DataInputStream(new ByteArrayInputStream(dms));
+        report("read dm", n, () -> codec.read(dmIn));
+        byte[] chunks = repeat(reference(chunk), n / 20);
+        DataInputStream chunkIn = new DataInputStream(new ByteArrayInputStream(chunks));
+        report("read 64KB chunk", n / 20, () -> codec.read(chunkIn));
+    }
+
+    /* ================= reference encoder ================= */
+
+    /** Định dạng dây viết thẳng, không qua FrameCodec (giống FrameIO bản gốc). */
+    private static byte[] reference(Frame f) throws IOException {
+        byte[] s = utf8(f.sender), r = utf8(f.recipient), b = utf8(f.body), id = utf8(f.transferId);
+        boolean chunk = isChunk(f);
+        int binLen = chunk ? f.binLength() : 0;
+        int total = 1 + 2 + 2 + 4 + 2 + s.length + r.length + b.length + id.length + (chunk ? 9 + binLen : 0);
+        ByteBuffer buf = ByteBuffer.allocate(4 + total);
+        buf.putInt(total).put(f.type.id)
+                .putShort((short) s.length).putShort((short) r.length).putInt(b.length).putShort((short) id.length)
+                .put(s).put(r).put(b).put(id);
+        if (chunk) {
+            buf.putInt(f.seq).put((byte) (f.last ? 1 : 0)).putInt(binLen);
+            if (binLen > 0) buf.put(f.bin, f.binOffset, binLen);
+        }
+        return buf.array();
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Chuỗi nhận lại sau 1 vòng: null → "", surrogate lẻ → '?' như getBytes. */
+    private static String expectString(String s) {
+        return new String(utf8(s), StandardCharsets.UTF_8);
+    }
+
+    /* ================= samples ================= */
+
+    private static List<Frame> samples() {
+        Frame withId = Frame.ack("{\"status\":\"UPLOAD_OFFSET\",\"offset\":131072}");
+        withId.transferId = "b7c1-uuid";
+
+        Frame nulls = new Frame(MessageType.DM, null, null, null);
+
+        // payload là 1 đoạn giữa mảng (slice): chỉ đoạn đó được ghi
+        byte[] big = payload(3 * 1024);
+        Frame slice = Frame.fileChunk("alice", "group:12", "f-1", 3, true, big);
+        slice.binOffset = 1000;
+        slice.binLen = 1500;
+
+        return List.of(
+                Frame.dm("alice", "bob", "hello"),
+                Frame.dm("an", "bình", "Tiếng Việt có dấu: ắ ở ữ đ"),
+                Frame.dm("alice", "bob", "emoji 😀👍 và ký tự 3 byte €"),
+                Frame.dm("alice", "bob", "surrogate lẻ \uD83D ở giữa và cuối \uDE00"),
+                Frame.dm("alice", "bob", "x".repeat(40_000)),
+                withId,
+                nulls,
+                Frame.fileChunk("alice", "bob", "f-0", 0, false, payload(Frame.CHUNK_SIZE)),
+                Frame.audioChunk("alice", "bob", "a-0", 1, true, new byte[0]),
+                slice);
+    }
+
+    private static Frame copyOf(Frame f) {
+        Frame c = new Frame(f.type, f.sender, f.recipient, f.body);
+        c.transferId = f.transferId;
+        c.seq = f.seq;
+        c.last = f.last;
+        c.bin = f.bin;
+        c.binOffset = f.binOffset;
+        c.binLen = f.binLen;
+        return c;
+    }
+
+    /* ================= helpers ================= */
+
+    @FunctionalInterface
+    private interface Op {
+        void run() throws IOException;
+    }
+
+    /** Byte cấp phát trung bình / lần gọi trên thread hiện tại (sau 1 lượt ấm máy). */
+    private static long allocPerOp(int n, Op op) throws IOException {
+        for (int i = 0; i < Math.min(n, 500); i++) op.run();
+        long tid = Thread.currentThread().threadId();
+        long before = THREADS.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < n; i++) op.run();
+        return (THREADS.getThreadAllocatedBytes(tid) - before) / n;
+    }
+
+    private static void report(String name, int n, Op op) throws IOException {
+        for (int i = 0; i < Math.min(n, 10_000); i++) op.run();
+        long tid = Thread.currentThread().threadId();
+        long alloc = THREADS.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) op.run();
+        long ns = System.nanoTime() - t0;
+        alloc = THREADS.getThreadAllocatedBytes(tid) - alloc;
+        System.out.printf("  %-40s %8d ns/frame %10d B/frame%n", name, ns / n, alloc / n);
+    }
+
+    private static byte[] payload(int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++) b[i] = (byte) (i * 31 + 7);
+        return b;
+    }
+
+    /** {@code n} bản của 1 frame nối liền; stream đọc lại được từ đầu bằng reset(). */
+    private static byte[] repeat(byte[] frame, int n) {
+        byte[] all = new byte[frame.length * n];
+        for (int i = 0; i < n; i++) System.arraycopy(frame, 0, all, i * frame.length, frame.length);
+        return all;
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] b = new byte[buf.remaining()];
+        buf.duplicate().get(b);
+        return b;
+    }
+
+    private static boolean isChunk(Frame f) {
+        return f.type == MessageType.FILE_CHUNK || f.type == MessageType.AUDIO_CHUNK;
+    }
+
+    private static String abbrev(String s) {
+        if (s == null) return "(null)";
+        return s.length() <= 24 ? s : s.substring(0, 24) + "…";
+    }
+
+    private static void check(String name, boolean ok) {
+        if (ok) {
+            System.out.println("  ok   " + name);
+        } else {
+            failures++;
+            System.err.println("  FAIL " + name);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package server.service;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Kiểm tra SmartReplyService với 1 backend giả (HttpServer của JDK): timeout, bỏ bớt khi quá tải,
+ * circuit breaker, và permit được trả khi gửi lỗi ngay lập tức.
+ * Không cần JUnit:
+ * <pre>
+ *   javac -d out $(find src test -name '*.java') -cp 'lib/*'
+ *   java -cp out:'lib/*' server.service.SmartReplyServiceTest
+ * </pre>
+ */
+public final class SmartReplyServiceTest {
+
+    private static final String OK_BODY = "{\"suggestions\":[\"ok\",\"ừ\",\"để mình xem\"]}";
+
+    // hành vi backend giả: status trả về và thời gian chờ trước khi trả
+    private static volatile int status = 200;
+    private static volatile long delayMs = 0;
+    private static final AtomicInteger hits = new AtomicInteger();
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/smart-reply", ex -> {
+            hits.incrementAndGet();
+            ex.getRequestBody().readAllBytes();
+            try {
+                if (delayMs > 0) Thread.sleep(delayMs);
+            } catch (InterruptedException ignored) {}
+            byte[] body = (status == 200 ? OK_BODY : "{\"error\":\"boom\"}").getBytes(StandardCharsets.UTF_8);
+            try {
+                ex.sendResponseHeaders(status, body.length);
+                try (OutputStream out = ex.getResponseBody()) {
+                    out.write(body);
+                }
+            } catch (IOException ignored) {
+                // client đã bỏ (timeout)
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/smart-reply";
+
+        try {
+            delivers(url);
+            timesOut(url);
+            shedsWhenBusy(url);
+            circuitBreaker(url);
+            releasesPermitOnSyncFailure();
+        } finally {
+            SmartReplyService.getInstance().stop();
+            server.stop(0);
+        }
+
+        if (failures > 0) {
+            System.err.println("[TEST] SmartReplyServiceTest: " + failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("[TEST] SmartReplyServiceTest: all checks passed");
+        System.exit(0);
+    }
+
+    /* ================= cases ================= */
+
+    private static void delivers(String url) throws InterruptedException {
+        SmartReplyService s = start(url, 1_000, 8, 4, 3, 1_000);
+        reset(200, 0);
+        AtomicInteger got = new AtomicInteger();
+        // 3 tin liên tiếp cùng hội thoại → 1 request
+        for (int i = 0; i < 3; i++) s.submit("a", "b", i + 1, "tin " + i, body -> got.incrementAndGet());
+        check("delivers: suggestion delivered", await(() -> got.get() == 1, 2_000));
+        check("delivers: debounced into 1 request", hits.get() == 1);
+        check("delivers: coalesced=2", stat(s, "coalesced") == 2);
+        drain(s);
+    }
+
+    private static void timesOut(String url) throws InterruptedException {
+        SmartReplyService s = start(url, 200, 8, 4, 10, 1_000);
+        reset(200, 1_500);
+        AtomicInteger got = new AtomicInteger();
+        s.submit("a", "b", 1, "chậm", body -> got.incrementAndGet());
+        check("timeout: request failed", await(() -> stat(s, "failed") == 1, 2_000));
+        check("timeout: nothing delivered", got.get() == 0);
+        drain(s);
+        check("timeout: permit returned", stat(s, "inFlight") == 0);
+    }
+
+    private static void shedsWhenBusy(String url) throws InterruptedException {
+        // 1 request đang bay, tối đa 2 hội thoại chờ
+        SmartReplyService s = start(url, 2_000, 2, 1, 10, 1_000);
+        reset(200, 500);
+        s.submit("a", "b", 1, "x", body -> {});
+        s.submit("c", "d", 2, "x", body -> {});
+        s.submit("e", "f", 3, "x", body -> {});       // hàng chờ đầy
+        check("shed: pending limit", stat(s, "shed") >= 1);
+        // 2 hội thoại flush cùng lúc, chỉ 1 permit → cái sau bị bỏ
+        check("shed: in-flight limit", await(() -> stat(s, "shed") == 2, 2_000));
+        check("shed: only 1 request reached backend", await(() -> hits.get() == 1, 2_000));
+        drain(s);
+    }
+
+    private static void circuitBreaker(String url) throws InterruptedException {
+        SmartReplyService s = start(url, 1_000, 8, 4, 2, 400);
+        reset(500, 0);
+        s.submit("a", "b", 1, "x", body -> {});
+        check("breaker: 1st failure", await(() -> stat(s, "failed") == 1, 2_000));
+        s.submit("c", "d", 2, "x", body -> {});
+        check("breaker: 2nd failure", await(() -> stat(s, "failed") == 2, 2_000));
+        check("breaker: circuit open", s.stats().contains("circuit=open"));
+
+        // mạch mở → bỏ ngay lúc submit, không gọi backend
+        long shedBefore = stat(s, "shed");
+        s.submit("e", "f", 3, "x", body -> {});
+        check("breaker: shed while open", stat(s, "shed") == shedBefore + 1);
+        Thread.sleep(200);
+        check("breaker: backend not called while open", hits.get() == 2);
+
+        // hết thời gian mở → 1 request thử; backend đã khoẻ → đóng mạch
+        Thread.sleep(400);
+        status = 200;
+        AtomicInteger got = new AtomicInteger();
+        s.submit("g", "h", 4, "x", body -> got.incrementAndGet());
+        check("breaker: probe delivered", await(() -> got.get() == 1, 2_000));
+        check("breaker: circuit closed", await(() -> s.stats().contains("circuit=closed"), 1_000));
+        drain(s);
+    }
+
+    private static void releasesPermitOnSyncFailure() throws InterruptedException {
+        // HttpRequest.newBuilder từ chối scheme ftp ngay lập tức (không qua whenComplete)
+        SmartReplyService s = start("ftp://127.0.0.1/smart-reply", 1_000, 8, 1, 100, 1_000);
+        for (int i = 0; i < 3; i++) {
+            final int n = i + 1;
+            s.submit("a" + i, "b", i + 1, "x", body -> {});
+            check("sync failure #" + n + " counted", await(() -> stat(s, "failed") == n, 2_000));
+        }
+        check("sync failure: no request shed for lack of permit", stat(s, "shed") == 0);
+        check("sync failure: inFlight back to 0", stat(s, "inFlight") == 0);
+    }
+
+    /* ================= helpers ================= */
+
+    private static SmartReplyService start(String url, long requestTimeoutMs, int maxPending, int maxInFlight,
+                                           int failureThreshold, long openForMs) {
+        SmartReplyService s = SmartReplyService.getInstance();
+        s.stop();
+        s.start(url, Duration.ofMillis(50), Duration.ofMillis(500), Duration.ofMillis(requestTimeoutMs),
+                maxPending, maxInFlight, failureThreshold, Duration.ofMillis(openForMs));
+        baseline = s.stats();
+        return s;
+    }
+
+    private static void reset(int st, long delay) {
+        status = st;
+        delayMs = delay;
+        hits.set(0);
+    }
+
+    /** Chờ các request đang bay xong trước khi stop (stop không đợi). */
+    private static void drain(SmartReplyService s) throws InterruptedException {
+        await(() -> stat(s, "inFlight") == 0 && stat(s, "pending") == 0, 3_000);
+    }
+
+    // bộ đếm là của singleton, cộng dồn qua các case → so với lúc start
+    private static String baseline;
+
+    private static long stat(SmartReplyService s, String name) {
+        long now = read(s.stats(), name);
+        return name.equals("inFlight") || name.equals("pending") ? now : now - read(baseline, name);
+    }
+
+    private static long read(String stats, String name) {
+        Matcher m = Pattern.compile("\\b" + name + "=(\\d+)").matcher(stats);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    private static boolean await(BooleanSupplier cond, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static void check(String name, boolean ok) {
+        if (ok) {
+            System.out.println("  ok   " + name);
+        } else {
+            failures++;
+            System.err.println("  FAIL " + name);
+        }
+    }
+}